@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Entry point of the benchmarks jar. Takes the same arguments as the plain JMH
+ * launcher, but always runs the benchmarks with the GC profiler so that the
+ * allocation rate is reported alongside the time.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList()
+                || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+
+        final OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (!hasGcProfiler(commandLine)) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        final Options options = builder.build();
+        new Runner(options).run();
+    }
+
+    private static boolean hasGcProfiler(final Options options) {
+        for (final ProfilerConfig profiler : options.getProfilers()) {
+            if ("gc".equals(profiler.getKlass())
+                    || GCProfiler.class.getName().equals(profiler.getKlass())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.portlet.PortletRequest;
+
+import com.liferay.portal.kernel.bean.BeanLocator;
+import com.liferay.portal.kernel.bean.BeanLocatorException;
+import com.liferay.portal.kernel.bean.PortalBeanLocatorUtil;
+import com.liferay.portal.kernel.parsers.bbcode.BBCodeTranslatorUtil;
+import com.liferay.portal.kernel.util.HtmlUtil;
+import com.liferay.portal.kernel.util.WebKeys;
+import com.liferay.portal.parsers.bbcode.HtmlBBCodeTranslatorImpl;
+import com.liferay.portal.theme.ThemeDisplay;
+import com.liferay.portal.util.HtmlImpl;
+import com.liferay.portlet.messageboards.model.MBMessage;
+import com.liferay.portlet.messageboards.service.MBMessageLocalService;
+
+/**
+ * Stands in for the parts of the Liferay portal the formatting code relies on,
+ * so that it can be benchmarked outside a portal: the BBCode translator and
+ * HTML utilities, a theme display, and a message service that resolves the
+ * message board links in posts to threads without a database.
+ */
+public final class LiferayStubs {
+
+    private static final String THEME_IMAGES_PATH = "/html/themes/classic/images";
+
+    private static boolean installed;
+
+    private LiferayStubs() {
+    }
+
+    /**
+     * Sets up the portal utilities. Safe to call more than once.
+     */
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        new BBCodeTranslatorUtil()
+                .setBBCodeTranslator(new HtmlBBCodeTranslatorImpl());
+        new HtmlUtil().setHtml(new HtmlImpl());
+
+        final MBMessageLocalService messageService = stub(
+                MBMessageLocalService.class, new Stub() {
+                    @Override
+                    Object invoke(final String method, final Object[] args) {
+                        if ("getMBMessage".equals(method)) {
+                            return message((Long) args[0]);
+                        }
+                        return null;
+                    }
+                });
+        PortalBeanLocatorUtil.setBeanLocator(stub(BeanLocator.class,
+                new Stub() {
+                    @Override
+                    Object invoke(final String method, final Object[] args) {
+                        if ("getClassLoader".equals(method)) {
+                            return LiferayStubs.class.getClassLoader();
+                        } else if ("locate".equals(method)) {
+                            if (MBMessageLocalService.class.getName().equals(
+                                    args[0])) {
+                                return messageService;
+                            }
+                            throw new BeanLocatorException("Not stubbed: "
+                                    + args[0]);
+                        }
+                        return null;
+                    }
+                }));
+        installed = true;
+    }
+
+    /**
+     * Returns a render request of a page with the classic theme, as passed to
+     * the request aware services.
+     */
+    public static PortletRequest newPortletRequest() {
+        final ThemeDisplay themeDisplay = new ThemeDisplay();
+        themeDisplay.setPathThemeImages(THEME_IMAGES_PATH);
+        return stub(PortletRequest.class, new Stub() {
+            @Override
+            Object invoke(final String method, final Object[] args) {
+                if ("getAttribute".equals(method)
+                        && WebKeys.THEME_DISPLAY.equals(args[0])) {
+                    return themeDisplay;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A message of the thread with one tenth of the message's id.
+     */
+    private static MBMessage message(final long messageId) {
+        return stub(MBMessage.class, new Stub() {
+            @Override
+            Object invoke(final String method, final Object[] args) {
+                if ("getMessageId".equals(method)) {
+                    return messageId;
+                } else if ("getThreadId".equals(method)) {
+                    return messageId / 10;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static <T> T stub(final Class<T> type, final Stub stub) {
+        return type.cast(Proxy.newProxyInstance(
+                LiferayStubs.class.getClassLoader(), new Class<?>[] { type },
+                stub));
+    }
+
+    /**
+     * Answers the calls made by the benchmarked code, and <code>null</code> to
+     * anything else.
+     */
+    private abstract static class Stub implements InvocationHandler {
+        @Override
+        public Object invoke(final Object proxy, final Method method,
+                final Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else {
+                    return "stub of " + proxy.getClass().getInterfaces()[0];
+                }
+            }
+            return invoke(method.getName(), args);
+        }
+
+        abstract Object invoke(String method, Object[] args);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.vaadin.tori.data.entity.Post;
+
+/**
+ * Deterministic corpora of BBCode forum posts, modeled after what a real
+ * message board has: short replies, long write-ups with formatting, lists and
+ * code, posts that mostly link to other threads and categories, and replies
+ * quoting the previous posts several levels deep. The same kind always yields
+ * the same posts, so results are comparable from release to release.
+ */
+public final class PostCorpus {
+
+    public enum Kind {
+        SHORT, LONG, LINK_HEAVY, QUOTE_HEAVY
+    }
+
+    /**
+     * Posts per corpus, so that a benchmark doesn't just repeat a single
+     * input. A power of two, see {@link #index(int)}.
+     */
+    public static final int SIZE = 64;
+
+    private static final String FORUM_URL = "http://forum.example.com/web/guest/forum";
+
+    // @formatter:off
+    private static final String[] WORDS = { "the", "a", "to", "and", "of",
+            "in", "is", "it", "that", "for", "on", "with", "this", "but",
+            "not", "when", "if", "you", "I", "we", "can", "should", "would",
+            "application", "server", "portlet", "theme", "widgetset", "layout",
+            "component", "table", "container", "session", "request", "deploy",
+            "compile", "browser", "upgrade", "version", "error", "exception",
+            "stack", "trace", "listener", "button", "window", "field", "form",
+            "binder", "property", "data", "source", "query", "lazy", "loading",
+            "works", "fails", "seems", "tried", "found", "changed", "added",
+            "removed", "configured", "expected", "actually", "probably",
+            "again", "already", "instead", "finally", "thanks", "help",
+            "issue", "ticket", "workaround", "fix", "release", "nightly" };
+
+    private static final String[] NAMES = { "Artur Signell", "Jens Jansson",
+            "Henri Sara", "Marc Englund", "Leif Åstrand", "Joonas Lehtinen",
+            "Teemu Suo-Anttila", "Matti Tahvonen", "Anna Koskinen",
+            "Sami Ekblad" };
+
+    private static final String[] CODE_LINES = {
+            "final Table table = new Table(\"Orders\");",
+            "table.setContainerDataSource(container);",
+            "table.setVisibleColumns(\"id\", \"customer\", \"total\");",
+            "layout.addComponent(table);",
+            "layout.setExpandRatio(table, 1.0f);",
+            "button.addClickListener(new ClickListener() {",
+            "    public void buttonClick(final ClickEvent event) {",
+            "        Notification.show(\"Saved\");",
+            "    }",
+            "});" };
+
+    private static final String[] SMILEYS = { ":)", ":(", ";)", ":D" };
+    // @formatter:on
+
+    private PostCorpus() {
+    }
+
+    /**
+     * Returns the index of the <code>n</code>th post to use, wrapping around
+     * the corpus.
+     */
+    public static int index(final int n) {
+        return n & (SIZE - 1);
+    }
+
+    /**
+     * Returns the raw BBCode bodies of the given kind of posts.
+     */
+    public static String[] bodies(final Kind kind) {
+        final Random random = new Random(kind.ordinal());
+        final String[] bodies = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            switch (kind) {
+            case SHORT:
+                bodies[i] = shortPost(random);
+                break;
+            case LONG:
+                bodies[i] = longPost(random);
+                break;
+            case LINK_HEAVY:
+                bodies[i] = linkHeavyPost(random);
+                break;
+            case QUOTE_HEAVY:
+                bodies[i] = quoteHeavyPost(random);
+                break;
+            default:
+                throw new IllegalArgumentException(kind.name());
+            }
+        }
+        return bodies;
+    }
+
+    /**
+     * Returns the given kind of posts as BBCode formatted {@link Post}s.
+     */
+    public static List<Post> posts(final Kind kind) {
+        final List<Post> posts = new ArrayList<Post>();
+        for (final String body : bodies(kind)) {
+            final Post post = new Post();
+            post.setBodyRaw(body);
+            post.setFormatBBCode(true);
+            posts.add(post);
+        }
+        return posts;
+    }
+
+    /**
+     * The kind of regex replacements configured in the portlet preferences:
+     * emoticons, ticket links and a few substitutions.
+     */
+    public static Map<String, String> replacements() {
+        final Map<String, String> replacements = new LinkedHashMap<String, String>();
+        replacements.put(":\\)",
+                "<img src=\"/emoticons/smile.gif\" alt=\":)\" />");
+        replacements.put(":\\(", "<img src=\"/emoticons/sad.gif\" alt=\":(\" />");
+        replacements.put(";\\)",
+                "<img src=\"/emoticons/wink.gif\" alt=\";)\" />");
+        replacements.put("#(\\d{4,5})\\b",
+                "<a href=\"http://dev.example.com/ticket/$1\">#$1</a>");
+        replacements.put("(?i)\\bvaadin 6\\b", "Vaadin 6 (no longer supported)");
+        return replacements;
+    }
+
+    /**
+     * Returns a random display name of a forum user.
+     */
+    public static String name(final Random random) {
+        return NAMES[random.nextInt(NAMES.length)];
+    }
+
+    /**
+     * Returns a random sentence of the given length range, capitalized and
+     * ending with a period.
+     */
+    public static String sentence(final Random random, final int minWords,
+            final int maxWords) {
+        final int words = minWords + random.nextInt(maxWords - minWords + 1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            final String word = WORDS[random.nextInt(WORDS.length)];
+            if (i == 0) {
+                sb.append(Character.toUpperCase(word.charAt(0))).append(
+                        word.substring(1));
+            } else {
+                sb.append(' ').append(word);
+            }
+        }
+        return sb.append('.').toString();
+    }
+
+    private static String paragraph(final Random random, final int sentences) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(sentence(random, 5, 18));
+        }
+        return sb.toString();
+    }
+
+    private static String shortPost(final Random random) {
+        String post = sentence(random, 3, 12);
+        if (random.nextBoolean()) {
+            post += " " + sentence(random, 3, 10);
+        }
+        if (random.nextInt(4) == 0) {
+            post += " " + SMILEYS[random.nextInt(SMILEYS.length)];
+        }
+        return post;
+    }
+
+    private static String longPost(final Random random) {
+        final StringBuilder sb = new StringBuilder();
+        final int paragraphs = 6 + random.nextInt(7);
+        for (int i = 0; i < paragraphs; i++) {
+            switch (random.nextInt(5)) {
+            case 0:
+                sb.append("[b]").append(sentence(random, 2, 6))
+                        .append("[/b]\n");
+                sb.append(paragraph(random, 3 + random.nextInt(4)));
+                break;
+            case 1:
+                sb.append("[list]\n");
+                final int items = 3 + random.nextInt(4);
+                for (int j = 0; j < items; j++) {
+                    sb.append("[*]").append(sentence(random, 3, 10))
+                            .append('\n');
+                }
+                sb.append("[/list]");
+                break;
+            case 2:
+                sb.append("[code]");
+                final int lines = 4 + random.nextInt(7);
+                for (int j = 0; j < lines; j++) {
+                    sb.append(CODE_LINES[random.nextInt(CODE_LINES.length)])
+                            .append('\n');
+                }
+                sb.append("[/code]");
+                break;
+            default:
+                sb.append(paragraph(random, 3 + random.nextInt(4)));
+                sb.append(" See [url=https://vaadin.com/book]the book[/url]"
+                        + " and [i]ticket #")
+                        .append(10000 + random.nextInt(5000))
+                        .append("[/i].");
+                break;
+            }
+            sb.append("\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static String linkHeavyPost(final Random random) {
+        final StringBuilder sb = new StringBuilder(sentence(random, 4, 10));
+        sb.append("\n\n");
+        final int links = 8 + random.nextInt(13);
+        for (int i = 0; i < links; i++) {
+            final long id = 10000 + random.nextInt(900000);
+            final String url;
+            switch (random.nextInt(5)) {
+            case 0:
+                url = FORUM_URL + "/-/message_boards/category/" + id;
+                break;
+            case 1:
+                url = FORUM_URL + "/-/message_boards?_19_mbCategoryId=" + id;
+                break;
+            case 2:
+                url = FORUM_URL + "/-/message_boards/view_message/" + id;
+                break;
+            case 3:
+                url = FORUM_URL + "/-/message_boards/message/" + id
+                        + "#_19_message_" + (id + 1);
+                break;
+            default:
+                url = "https://vaadin.com/directory#addon/" + id;
+                break;
+            }
+            sb.append("[*][url=").append(url).append(']')
+                    .append(sentence(random, 2, 7)).append("[/url] ")
+                    .append(url).append('\n');
+        }
+        return "[list]" + sb + "[/list]";
+    }
+
+    private static String quoteHeavyPost(final Random random) {
+        final int depth = 2 + random.nextInt(4);
+        String post = paragraph(random, 1 + random.nextInt(3));
+        for (int i = 0; i < depth; i++) {
+            post = "[quote=" + name(random) + "]" + post + "[/quote]\n"
+                    + paragraph(random, 1 + random.nextInt(3));
+        }
+        return post;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.tori.benchmark.LiferayStubs;
+import org.vaadin.tori.benchmark.PostCorpus;
+import org.vaadin.tori.benchmark.PostCorpus.Kind;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.util.TestPostFormatter;
+
+/**
+ * Rendering a notification mail of a new post: populating the shipped mail
+ * template, and inlining the theme's CSS into the result. Both are done once
+ * per post and recipient format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MailTemplateBenchmark {
+
+    private static final String FORUM_URL = "http://forum.example.com/web/guest/forum";
+
+    @Param({ "SHORT", "LONG", "LINK_HEAVY", "QUOTE_HEAVY" })
+    public Kind kind;
+
+    private String template;
+    private String css;
+    private String[] bodies;
+    private String[] topics;
+    private String[] authors;
+    private String[] populated;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        LiferayStubs.install();
+        template = readResource("/toripostmailtemplate.xhtml");
+        css = readResource("/mailtheme.css");
+
+        final TestPostFormatter formatter = new TestPostFormatter();
+        final Random random = new Random(kind.ordinal());
+        bodies = new String[PostCorpus.SIZE];
+        topics = new String[PostCorpus.SIZE];
+        authors = new String[PostCorpus.SIZE];
+        int i = 0;
+        for (final Post post : PostCorpus.posts(kind)) {
+            bodies[i] = formatter.format(post, null, false);
+            topics[i] = PostCorpus.sentence(random, 3, 9);
+            authors[i] = PostCorpus.name(random);
+            i++;
+        }
+
+        populated = new String[PostCorpus.SIZE];
+        for (i = 0; i < PostCorpus.SIZE; i++) {
+            populated[i] = populate(i);
+        }
+    }
+
+    @Benchmark
+    public String populateTemplate() {
+        return populate(PostCorpus.index(next++));
+    }
+
+    @Benchmark
+    public String formatInlineCSS() throws Exception {
+        return LiferayToriMailService.formatInlineCSS(
+                populated[PostCorpus.index(next++)], css);
+    }
+
+    private String populate(final int i) {
+        final String threadUrl = FORUM_URL + "#!/thread/" + (1000 + i);
+        return LiferayToriMailService.populateTemplate(template, i % 3 == 0 ? ""
+                : "/image/user_portrait?img_id=" + (2000 + i), topics[i],
+                authors[i], bodies[i], null, threadUrl, threadUrl + "/"
+                        + (3000 + i));
+    }
+
+    private static String readResource(final String name) throws IOException {
+        final InputStream in = MailTemplateBenchmark.class
+                .getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing resource " + name);
+        }
+        try {
+            final Scanner scanner = new Scanner(in, "UTF-8")
+                    .useDelimiter("\\A");
+            return scanner.hasNext() ? scanner.next() : "";
+        } finally {
+            in.close();
+        }
+    }
+}
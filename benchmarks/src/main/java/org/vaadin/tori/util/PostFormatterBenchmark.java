@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.tori.benchmark.LiferayStubs;
+import org.vaadin.tori.benchmark.PostCorpus;
+import org.vaadin.tori.benchmark.PostCorpus.Kind;
+import org.vaadin.tori.data.entity.Post;
+
+/**
+ * Formatting a post for display: BBCode translation followed by the regex
+ * replacements of the preferences, with and without the message board link
+ * conversion of the Liferay formatter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PostFormatterBenchmark {
+
+    @Param({ "SHORT", "LONG", "LINK_HEAVY", "QUOTE_HEAVY" })
+    public Kind kind;
+
+    private List<Post> posts;
+    private Map<String, String> replacements;
+    private TestPostFormatter testFormatter;
+    private LiferayPostFormatter liferayFormatter;
+    private int next;
+
+    @Setup
+    public void setup() {
+        LiferayStubs.install();
+        posts = PostCorpus.posts(kind);
+        replacements = PostCorpus.replacements();
+        testFormatter = new TestPostFormatter();
+        liferayFormatter = new LiferayPostFormatter();
+        liferayFormatter.setRequest(LiferayStubs.newPortletRequest());
+    }
+
+    @Benchmark
+    public String testPostFormatter() {
+        return testFormatter.format(nextPost(), replacements, false);
+    }
+
+    @Benchmark
+    public String liferayPostFormatter() {
+        return liferayFormatter.format(nextPost(), replacements, true);
+    }
+
+    private Post nextPost() {
+        return posts.get(PostCorpus.index(next++));
+    }
+}
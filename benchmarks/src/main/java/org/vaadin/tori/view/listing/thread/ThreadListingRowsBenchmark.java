@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.listing.thread;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.tori.benchmark.PostCorpus;
+import org.vaadin.tori.view.listing.thread.ThreadListingView.ThreadData;
+import org.vaadin.tori.widgetset.client.ui.threadlisting.ThreadData.ThreadAdditionalData;
+import org.vaadin.tori.widgetset.client.ui.threadlisting.ThreadData.ThreadPrimaryData;
+
+/**
+ * Building the rows of one fetch of the thread listing: the primary data sent
+ * right away, and the additional data sent once loaded in the background.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ThreadListingRowsBenchmark {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /** Rows per fetch, from the initial preload to the largest fetch. */
+    @Param({ "30", "200" })
+    public int rows;
+
+    private ThreadListing listing;
+    private List<ThreadData> threads;
+
+    @Setup
+    public void setup() {
+        listing = new ThreadListing(null);
+        threads = new ArrayList<ThreadData>();
+        final Random random = new Random(rows);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < rows; i++) {
+            threads.add(new Row(random, now, i));
+        }
+    }
+
+    @Benchmark
+    public List<ThreadPrimaryData> primaryData() {
+        final ArrayList<ThreadPrimaryData> result = new ArrayList<ThreadPrimaryData>();
+        for (final ThreadData thread : threads) {
+            result.add(listing.getThreadPrimaryData(thread));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<ThreadAdditionalData> additionalData() {
+        final ArrayList<ThreadAdditionalData> result = new ArrayList<ThreadAdditionalData>();
+        for (final ThreadData thread : threads) {
+            result.add(listing.getThreadAdditionalData(thread));
+        }
+        return result;
+    }
+
+    /**
+     * A thread snapshot as returned by the listing's thread provider, with
+     * activity spread over the last two years.
+     */
+    private static class Row implements ThreadData {
+        private final long id;
+        private final String topic;
+        private final String author;
+        private final String latestPostAuthor;
+        private final Date createTime;
+        private final Date latestPostTime;
+        private final int postCount;
+        private final boolean read;
+        private final boolean following;
+        private final boolean moderator;
+
+        public Row(final Random random, final long now, final int index) {
+            id = 10000 + index;
+            topic = PostCorpus.sentence(random, 3, 12);
+            author = PostCorpus.name(random);
+            latestPostAuthor = PostCorpus.name(random);
+            createTime = new Date(now - (long) (random.nextDouble() * 730 * DAY));
+            latestPostTime = new Date(createTime.getTime()
+                    + (long) (random.nextDouble() * (now - createTime
+                            .getTime())));
+            postCount = 1 + random.nextInt(60);
+            read = random.nextBoolean();
+            following = random.nextInt(5) == 0;
+            moderator = random.nextInt(10) == 0;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public boolean isFollowing() {
+            return following;
+        }
+
+        @Override
+        public boolean userHasRead() {
+            return read;
+        }
+
+        @Override
+        public boolean mayDelete() {
+            return moderator;
+        }
+
+        @Override
+        public boolean mayReplyIn() {
+            return true;
+        }
+
+        @Override
+        public boolean mayFollow() {
+            return true;
+        }
+
+        @Override
+        public boolean mayMove() {
+            return moderator;
+        }
+
+        @Override
+        public boolean maySticky() {
+            return moderator;
+        }
+
+        @Override
+        public boolean mayLock() {
+            return moderator;
+        }
+
+        @Override
+        public boolean isLocked() {
+            return false;
+        }
+
+        @Override
+        public boolean isSticky() {
+            return id % 25 == 0;
+        }
+
+        @Override
+        public boolean mayView() {
+            return true;
+        }
+
+        @Override
+        public String getAuthor() {
+            return author;
+        }
+
+        @Override
+        public String getTopic() {
+            return topic;
+        }
+
+        @Override
+        public int getPostCount() {
+            return postCount;
+        }
+
+        @Override
+        public String getLatestPostAuthor() {
+            return latestPostAuthor;
+        }
+
+        @Override
+        public Date getLatestPostTime() {
+            return latestPostTime;
+        }
+
+        @Override
+        public Long getLatestPostId() {
+            return id * 100 + postCount;
+        }
+
+        @Override
+        public Date getCreateTime() {
+            return createTime;
+        }
+
+        @Override
+        public boolean mayMarkAsRead() {
+            return true;
+        }
+    }
+}
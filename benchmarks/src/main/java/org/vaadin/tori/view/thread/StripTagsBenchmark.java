@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.thread;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.tori.ToriApiLoader;
+import org.vaadin.tori.benchmark.LiferayStubs;
+import org.vaadin.tori.benchmark.PostCorpus;
+import org.vaadin.tori.benchmark.PostCorpus.Kind;
+import org.vaadin.tori.data.DataSource;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.util.TestPostFormatter;
+
+/**
+ * Stripping the tags of a formatted post, done for every post displayed when
+ * HTML isn't allowed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StripTagsBenchmark {
+
+    @Param({ "SHORT", "LONG", "LINK_HEAVY", "QUOTE_HEAVY" })
+    public Kind kind;
+
+    private ThreadPresenter presenter;
+    private String[] html;
+    private int next;
+
+    @Setup
+    public void setup() {
+        LiferayStubs.install();
+        final ToriApiLoader apiLoader = mock(ToriApiLoader.class);
+        when(apiLoader.getDataSource()).thenReturn(mock(DataSource.class));
+        presenter = new ThreadPresenter(null) {
+            @Override
+            protected ToriApiLoader getApiLoader() {
+                return apiLoader;
+            }
+        };
+
+        final TestPostFormatter formatter = new TestPostFormatter();
+        html = new String[PostCorpus.SIZE];
+        int i = 0;
+        for (final Post post : PostCorpus.posts(kind)) {
+            html[i++] = formatter.format(post, null, false);
+        }
+    }
+
+    @Benchmark
+    public String stripTags() {
+        return presenter.stripTags(html[PostCorpus.index(next++)]);
+    }
+}
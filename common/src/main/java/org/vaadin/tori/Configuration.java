@@ -20,6 +20,33 @@ import java.util.Map;
 
 public class Configuration {
 
+    /**
+     * Delivery mode of the thread notification emails sent by the Tori mail
+     * service.
+     */
+    public enum EmailDigestMode {
+        /** A notification is sent for every new post. */
+        IMMEDIATE(0),
+        /** New posts are collected and sent as a single mail once an hour. */
+        HOURLY(60 * 60 * 1000L),
+        /** New posts are collected and sent as a single mail once a day. */
+        DAILY(24 * 60 * 60 * 1000L);
+
+        private final long periodMillis;
+
+        private EmailDigestMode(final long periodMillis) {
+            this.periodMillis = periodMillis;
+        }
+
+        /**
+         * The interval between two digest mails, <code>0</code> for
+         * {@link #IMMEDIATE}.
+         */
+        public long getPeriodMillis() {
+            return periodMillis;
+        }
+    }
+
     private boolean updatePageTitle;
     private String pageTitlePrefix;
     private boolean replaceMessageBoardsLinks;
@@ -34,6 +61,7 @@ public class Configuration {
     private String emailFromAddress;
     private String emailFromName;
     private String emailReplyToAddress;
+    private EmailDigestMode emailDigestMode = EmailDigestMode.IMMEDIATE;
 
     public String getMayNotReplyNote() {
         return mayNotReplyNote;
@@ -142,6 +170,19 @@ public class Configuration {
         this.emailReplyToAddress = emailReplyToAddress;
     }
 
+    /**
+     * How the thread notification emails are delivered.
+     * 
+     * @see EmailDigestMode
+     */
+    public EmailDigestMode getEmailDigestMode() {
+        return emailDigestMode;
+    }
+
+    public void setEmailDigestMode(final EmailDigestMode emailDigestMode) {
+        this.emailDigestMode = emailDigestMode;
+    }
+
     public boolean isReplaceMessageBoardsLinks() {
         return replaceMessageBoardsLinks;
     }
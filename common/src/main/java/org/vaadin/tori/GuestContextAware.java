@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.tori;
+
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
+
+/**
+ * Implement this interface to allow the service to be used on behalf of an
+ * anonymous guest, e.g. for generating content that is published to everyone,
+ * while it is bound to the request of a signed in user.
+ */
+public interface GuestContextAware {
+
+    /**
+     * Creates a context that, while attached, makes the service act as an
+     * anonymous guest on the calling thread.
+     */
+    ThreadContext createGuestContext();
+}
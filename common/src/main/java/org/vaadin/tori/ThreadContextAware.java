@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.tori;
+
+/**
+ * Implement this interface to signal that the service relies on state of the
+ * current request kept in thread locals, which must be carried over to the
+ * worker threads that call the service on behalf of the request.
+ */
+public interface ThreadContextAware {
+
+    /**
+     * Captures the thread local state of the calling thread, to be attached
+     * to a single worker thread.
+     */
+    ThreadContext captureThreadContext();
+
+    interface ThreadContext {
+
+        /** Installs the captured state on the calling thread. */
+        void attach();
+
+        /** Restores the state the calling thread had before {@link #attach()}. */
+        void detach();
+    }
+}
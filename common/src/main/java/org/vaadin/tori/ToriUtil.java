@@ -16,8 +16,17 @@
 
 package org.vaadin.tori;
 
+import java.util.regex.Pattern;
 
 public final class ToriUtil {
+
+    private static final Pattern BBCODE_IMAGE = Pattern.compile(
+            "\\[img(=[^\\]]*)?\\].*?\\[/img\\]", Pattern.CASE_INSENSITIVE
+                    | Pattern.DOTALL);
+    private static final Pattern BBCODE_TAG = Pattern
+            .compile("\\[/?[a-zA-Z*]+(=[^\\]]*)?\\]");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
     private ToriUtil() {
         // not instantiable
     }
@@ -39,4 +48,17 @@ public final class ToriUtil {
         return xhtml.replace("&", "&amp;").replace("<", "&lt;")
                 .replace(">", "&gt;");
     }
+
+    /**
+     * Returns the text content of the given BBCode markup, without the tags
+     * and the image URLs, and with all whitespace collapsed to single spaces.
+     */
+    public static String stripBBCode(final String bbcode) {
+        if (bbcode == null) {
+            return "";
+        }
+        String text = BBCODE_IMAGE.matcher(bbcode).replaceAll(" ");
+        text = BBCODE_TAG.matcher(text).replaceAll(" ");
+        return WHITESPACE.matcher(text).replaceAll(" ").trim();
+    }
 }
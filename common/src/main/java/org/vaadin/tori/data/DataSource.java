@@ -16,14 +16,17 @@
 
 package org.vaadin.tori.data;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.vaadin.tori.Configuration;
 import org.vaadin.tori.data.entity.Category;
 import org.vaadin.tori.data.entity.DiscussionThread;
 import org.vaadin.tori.data.entity.Post;
 import org.vaadin.tori.data.entity.User;
+import org.vaadin.tori.data.search.TopicIndex.Topic;
 import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.exception.NoSuchThreadException;
 import org.vaadin.tori.service.post.PostReport.Reason;
@@ -142,6 +145,13 @@ public interface DataSource {
 
     boolean isFollowingThread(long threadId);
 
+    /**
+     * Returns the ids of those of the given threads the current user is
+     * following. Does the same as {@link #isFollowingThread(long)} for a whole
+     * page of threads at once.
+     */
+    Set<Long> getFollowedThreadIds(Collection<Long> threadIds);
+
     void deletePost(long postId) throws DataSourceException;
 
     Boolean getPostVote(long postId) throws DataSourceException;
@@ -233,6 +243,13 @@ public interface DataSource {
      */
     boolean isThreadRead(long threadId);
 
+    /**
+     * Returns the ids of those of the given threads the current user has read.
+     * If no user is logged in, all the given ids are returned. Does the same as
+     * {@link #isThreadRead(long)} for a whole page of threads at once.
+     */
+    Set<Long> getReadThreadIds(Collection<Long> threadIds);
+
     /**
      * Marks the given thread as read. If no user is logged in, this method
      * doesn't do anything.
@@ -265,10 +282,37 @@ public interface DataSource {
 
     String getPathRoot();
 
+    /**
+     * Returns the scheme, host and port of the address the forum is published
+     * at, as configured in the backend, or <code>null</code> if there is no
+     * such configuration. Unlike the host of a request, the configured address
+     * can be used in content that is shared by all the users.
+     */
+    String getServerUrl();
+
     User getToriUser(long userId) throws DataSourceException;
 
     Post getPost(long postId) throws DataSourceException;
 
+    /**
+     * Returns the {@link Post Posts} matching the given full-text query
+     * between given {@code startIndex} and {@code endIndex}, best match first.
+     * Both the topics and the bodies of the posts are searched. Only posts
+     * visible to the current user are returned and counted towards the
+     * indices. The {@code endIndex} is inclusive.
+     */
+    List<Post> search(String query, int startIndex, int endIndex)
+            throws DataSourceException;
+
+    /**
+     * Returns the topics of existing {@link DiscussionThread
+     * DiscussionThreads} having a word starting with each of the words in the
+     * given text, most recent thread first. Used for suggestions while the
+     * topic of a new thread is being typed, so this must be answered without
+     * querying the database. The visibility of the threads is not checked.
+     */
+    List<Topic> getTopicSuggestions(String text, int maxResults);
+
     void saveNewCategory(Long parentCategoryId, String name, String description)
             throws DataSourceException;
 
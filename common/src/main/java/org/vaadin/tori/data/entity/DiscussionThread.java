@@ -44,6 +44,9 @@ public class DiscussionThread extends AbstractEntity {
     @Transient
     private int postCount = -1;
 
+    @Transient
+    private Date lastPostTime;
+
     @ManyToOne(optional = false)
     private Category category;
 
@@ -136,6 +139,24 @@ public class DiscussionThread extends AbstractEntity {
         }
     }
 
+    /**
+     * Get the time of the newest post, or <code>null</code> if no posts are in
+     * thread. Unlike {@link #getLatestPost()}, doesn't require loading the
+     * post when the data source has set the time.
+     */
+    @Transient
+    public Date getLastPostTime() {
+        if (lastPostTime != null) {
+            return lastPostTime;
+        }
+        final Post latestPost = getLatestPost();
+        return latestPost != null ? latestPost.getTime() : null;
+    }
+
+    public void setLastPostTime(final Date lastPostTime) {
+        this.lastPostTime = lastPostTime;
+    }
+
     public Category getCategory() {
         return category;
     }
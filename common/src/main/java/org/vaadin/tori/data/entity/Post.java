@@ -28,6 +28,7 @@ import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.Transient;
 
 @Entity
 public class Post extends AbstractEntity {
@@ -55,6 +56,9 @@ public class Post extends AbstractEntity {
 
     private boolean formatBBCode;
 
+    @Transient
+    private boolean approved = true;
+
     public boolean isFormatBBCode() {
         return formatBBCode;
     }
@@ -63,6 +67,18 @@ public class Post extends AbstractEntity {
         this.formatBBCode = formatBBCode;
     }
 
+    /**
+     * Returns <code>false</code> if the post is still waiting for approval, or
+     * has otherwise been withheld from the public.
+     */
+    public boolean isApproved() {
+        return approved;
+    }
+
+    public void setApproved(final boolean approved) {
+        this.approved = approved;
+    }
+
     public void setAuthor(final User author) {
         this.author = author;
     }
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.data.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.vaadin.tori.ToriUtil;
+import org.vaadin.tori.data.DataSource;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.exception.DataSourceException;
+
+/**
+ * A full-text index of the topics and bodies of the posts of a single forum,
+ * stored on the local disk. The data source keeps the index up to date as
+ * posts are written, and resolves the hits back to posts at query time, so
+ * that deleted posts and posts the current user may not see are left out of
+ * the results without the index having to know about permissions.
+ * <p>
+ * A full reindex runs as a throttled background job when the index is found
+ * empty, e.g. on the first start or after the temporary directory has been
+ * cleaned, and then periodically, to reconcile the index with the changes
+ * made outside Tori. The jobs of all the indexes run one at a time on a single
+ * background thread, which is stopped by {@link #closeAll()}.
+ */
+public class PostSearchIndex {
+
+    /** Feeds the posts of the whole forum to a full reindex. */
+    public interface PostSource {
+        int getPostCount() throws DataSourceException;
+
+        /**
+         * Returns at most <code>maxResults</code> posts with an id greater
+         * than the given one, in ascending order of id. Unlike paging by
+         * index, paging by id doesn't skip posts when earlier ones are
+         * deleted or withdrawn during the reindex.
+         */
+        List<IndexedPost> getPosts(long afterPostId, int maxResults)
+                throws DataSourceException;
+    }
+
+    /** Maps search hits back to posts. */
+    public interface PostResolver {
+        /**
+         * Returns the post, or <code>null</code> if it no longer exists or is
+         * not visible to the current user.
+         */
+        Post resolve(long postId) throws DataSourceException;
+    }
+
+    /** The searchable content of a single post. */
+    public static class IndexedPost {
+        private final long postId;
+        private final long threadId;
+        private final String topic;
+        private final String bodyRaw;
+
+        /**
+         * @param topic
+         *            the topic of the thread if this is its first post,
+         *            otherwise <code>null</code>
+         */
+        public IndexedPost(final long postId, final long threadId,
+                final String topic, final String bodyRaw) {
+            this.postId = postId;
+            this.threadId = threadId;
+            this.topic = topic;
+            this.bodyRaw = bodyRaw;
+        }
+
+        public long getPostId() {
+            return postId;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(PostSearchIndex.class);
+
+    private static final Version LUCENE_VERSION = Version.LUCENE_46;
+
+    private static final String FIELD_POST_ID = "postId";
+    private static final String FIELD_THREAD_ID = "threadId";
+    private static final String FIELD_TOPIC = "topic";
+    private static final String FIELD_BODY = "body";
+    private static final String FIELD_INDEXED = "indexed";
+    private static final float TOPIC_BOOST = 3f;
+
+    /** Hits resolved per query at most, bounding the cost of deep pages. */
+    private static final int MAX_HITS = 1000;
+    private static final long COMMIT_INTERVAL = 30 * 1000;
+    private static final int REINDEX_BATCH_SIZE = 100;
+    private static final long REINDEX_BATCH_PAUSE = 100;
+    private static final long RECONCILE_INTERVAL = 6 * 60 * 60 * 1000;
+    private static final long SHUTDOWN_TIMEOUT = 10 * 1000;
+
+    private static final Map<String, PostSearchIndex> INDEXES = new HashMap<String, PostSearchIndex>();
+
+    /** Runs the reindex jobs, guarded by INDEXES */
+    private static ScheduledExecutorService executor;
+
+    private final String name;
+    private final Analyzer analyzer;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+
+    private volatile boolean closed;
+    private boolean reindexScheduled;
+    private long lastCommit = System.currentTimeMillis();
+
+    private PostSearchIndex(final String name, final File directory)
+            throws IOException {
+        this.name = name;
+        analyzer = new StandardAnalyzer(LUCENE_VERSION);
+        final IndexWriterConfig config = new IndexWriterConfig(
+                LUCENE_VERSION, analyzer);
+        config.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        writer = new IndexWriter(FSDirectory.open(directory), config);
+        searcherManager = new SearcherManager(writer, true, null);
+    }
+
+    /**
+     * Returns the index of the given name, opening it on first use. The index
+     * is shared by all the data sources of the forum on this node.
+     */
+    public static PostSearchIndex get(final String name)
+            throws DataSourceException {
+        synchronized (INDEXES) {
+            PostSearchIndex index = INDEXES.get(name);
+            if (index == null) {
+                final File directory = new File(new File(
+                        System.getProperty("java.io.tmpdir"), "tori-search"),
+                        name);
+                try {
+                    index = new PostSearchIndex(name, directory);
+                } catch (final IOException e) {
+                    LOG.error("Couldn't open the search index in "
+                            + directory, e);
+                    throw new DataSourceException(e);
+                }
+                INDEXES.put(name, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Stops the background jobs, and commits and closes all the open indexes.
+     * Must be called when the application is undeployed to release the index
+     * locks.
+     */
+    public static void closeAll() {
+        synchronized (INDEXES) {
+            for (final PostSearchIndex index : INDEXES.values()) {
+                // a running job stops after its current batch
+                index.closed = true;
+            }
+            if (executor != null) {
+                // not interrupted, the index writer doesn't survive that
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(SHUTDOWN_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                executor = null;
+            }
+            for (final PostSearchIndex index : INDEXES.values()) {
+                index.close();
+            }
+            INDEXES.clear();
+        }
+    }
+
+    private static ScheduledExecutorService getExecutor() {
+        synchronized (INDEXES) {
+            if (executor == null) {
+                executor = Executors
+                        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                            @Override
+                            public Thread newThread(final Runnable r) {
+                                final Thread thread = new Thread(r,
+                                        "tori-search-reindex");
+                                thread.setDaemon(true);
+                                thread.setPriority(Thread.MIN_PRIORITY);
+                                return thread;
+                            }
+                        });
+            }
+            return executor;
+        }
+    }
+
+    private void close() {
+        try {
+            searcherManager.close();
+            writer.close();
+        } catch (final IOException e) {
+            LOG.error("Couldn't close the search index " + name, e);
+        }
+    }
+
+    /**
+     * Adds the post to the index, or replaces its previous version.
+     */
+    public void update(final IndexedPost post) throws DataSourceException {
+        final Document document = new Document();
+        document.add(new StringField(FIELD_POST_ID, String
+                .valueOf(post.postId), Store.YES));
+        document.add(new StringField(FIELD_THREAD_ID, String
+                .valueOf(post.threadId), Store.NO));
+        if (post.topic != null) {
+            document.add(new TextField(FIELD_TOPIC, post.topic, Store.NO));
+        }
+        document.add(new TextField(FIELD_BODY, ToriUtil
+                .stripBBCode(post.bodyRaw), Store.NO));
+        document.add(new LongField(FIELD_INDEXED, System.currentTimeMillis(),
+                Store.NO));
+        try {
+            writer.updateDocument(
+                    new Term(FIELD_POST_ID, String.valueOf(post.postId)),
+                    document);
+            changed();
+        } catch (final IOException e) {
+            throw new DataSourceException(e);
+        }
+    }
+
+    public void deletePost(final long postId) throws DataSourceException {
+        delete(new Term(FIELD_POST_ID, String.valueOf(postId)));
+    }
+
+    public void deleteThread(final long threadId) throws DataSourceException {
+        delete(new Term(FIELD_THREAD_ID, String.valueOf(threadId)));
+    }
+
+    private void delete(final Term term) throws DataSourceException {
+        try {
+            writer.deleteDocuments(term);
+            changed();
+        } catch (final IOException e) {
+            throw new DataSourceException(e);
+        }
+    }
+
+    /**
+     * Makes the changes visible to the following searches, and durable once
+     * the commit interval has passed.
+     */
+    private void changed() throws IOException {
+        searcherManager.maybeRefresh();
+
+        final long now = System.currentTimeMillis();
+        boolean commit = false;
+        synchronized (this) {
+            if (now - lastCommit > COMMIT_INTERVAL) {
+                lastCommit = now;
+                commit = true;
+            }
+        }
+        if (commit) {
+            writer.commit();
+        }
+    }
+
+    /**
+     * Returns the posts matching the query between the given indices, best
+     * match first. The <code>endIndex</code> is inclusive. Hits the resolver
+     * doesn't return a post for are skipped and don't count towards the
+     * indices.
+     *
+     * @see DataSource#search(String, int, int)
+     */
+    public List<Post> search(final String queryString, final int startIndex,
+            final int endIndex, final PostResolver resolver)
+            throws DataSourceException {
+        final Query query = parse(queryString);
+        if (query == null) {
+            return Collections.emptyList();
+        }
+
+        final List<Post> result = new ArrayList<Post>();
+        try {
+            final IndexSearcher searcher = searcherManager.acquire();
+            try {
+                final TopDocs hits = searcher.search(query, MAX_HITS);
+                int visible = 0;
+                for (final ScoreDoc hit : hits.scoreDocs) {
+                    if (visible > endIndex) {
+                        break;
+                    }
+                    final long postId = Long.parseLong(searcher.doc(hit.doc)
+                            .get(FIELD_POST_ID));
+                    final Post post = resolver.resolve(postId);
+                    if (post != null) {
+                        if (visible >= startIndex) {
+                            result.add(post);
+                        }
+                        visible++;
+                    }
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (final IOException e) {
+            throw new DataSourceException(e);
+        }
+        return result;
+    }
+
+    private Query parse(final String queryString) {
+        if (queryString == null || queryString.trim().isEmpty()) {
+            return null;
+        }
+
+        final Map<String, Float> boosts = new HashMap<String, Float>();
+        boosts.put(FIELD_TOPIC, TOPIC_BOOST);
+        final MultiFieldQueryParser parser = new MultiFieldQueryParser(
+                LUCENE_VERSION, new String[] { FIELD_TOPIC, FIELD_BODY },
+                analyzer, boosts);
+        parser.setDefaultOperator(QueryParser.Operator.AND);
+        try {
+            return parser.parse(queryString);
+        } catch (final ParseException e) {
+            // unbalanced quotes and the like, search for the plain words
+            try {
+                return parser.parse(QueryParser.escape(queryString));
+            } catch (final ParseException e2) {
+                LOG.debug("Couldn't parse search query " + queryString, e2);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Schedules the background reindexing of this index from the given
+     * source: right away if the index is empty, and then every few hours to
+     * pick up the posts written, edited or deleted outside Tori. Only the
+     * first call has an effect.
+     */
+    public synchronized void scheduleReindexing(final PostSource source) {
+        if (!reindexScheduled) {
+            reindexScheduled = true;
+            final long initialDelay = writer.numDocs() == 0 ? 0
+                    : RECONCILE_INTERVAL;
+            try {
+                getExecutor().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        reindexNow(source);
+                    }
+                }, initialDelay, RECONCILE_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                LOG.debug("Not reindexing " + name + ", shutting down.");
+            }
+        }
+    }
+
+    /**
+     * Starts a full reindex in the background.
+     *
+     * @see #reindexNow(PostSource)
+     */
+    public void reindex(final PostSource source) {
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    reindexNow(source);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            LOG.debug("Not reindexing " + name + ", shutting down.");
+        }
+    }
+
+    /**
+     * Runs a full reindex on the calling thread. The documents are replaced
+     * one by one, so the index stays searchable throughout, and the ones not
+     * seen during the reindex are dropped when it completes. The job pauses
+     * between batches to leave the database to the users.
+     */
+    void reindexNow(final PostSource source) {
+        final long started = System.currentTimeMillis();
+        try {
+            final int count = source.getPostCount();
+            LOG.info(String.format(
+                    "Reindexing %d posts to the search index %s.", count,
+                    name));
+            long lastPostId = 0;
+            List<IndexedPost> posts;
+            do {
+                posts = source.getPosts(lastPostId, REINDEX_BATCH_SIZE);
+                for (final IndexedPost post : posts) {
+                    update(post);
+                    lastPostId = Math.max(lastPostId, post.getPostId());
+                }
+                Thread.sleep(REINDEX_BATCH_PAUSE);
+            } while (posts.size() == REINDEX_BATCH_SIZE && !closed);
+            if (!closed) {
+                // documents indexed after the start are up to date
+                writer.deleteDocuments(NumericRangeQuery.newLongRange(
+                        FIELD_INDEXED, null, started, true, false));
+                writer.commit();
+                searcherManager.maybeRefresh();
+                LOG.info("Reindexed the search index " + name + " in "
+                        + (System.currentTimeMillis() - started) + " ms.");
+            }
+        } catch (final InterruptedException e) {
+            LOG.warn("Reindexing of " + name + " was interrupted.");
+        } catch (final Exception e) {
+            LOG.error("Reindexing of " + name + " failed.", e);
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.data.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.exception.DataSourceException;
+
+/**
+ * An in-memory prefix index over the normalized words of the thread topics of
+ * a single forum, answering as-you-type topic suggestions without touching
+ * the database. The words are kept in a sorted map pointing to the ids of the
+ * threads using them, so that all the words starting with a prefix are found
+ * with a single range lookup.
+ * <p>
+ * The index is built in the background when first used and rebuilt
+ * periodically to pick up threads not created through Tori. In between, the
+ * data source keeps it up to date as threads are created, moved and deleted.
+ * It takes roughly 20-30 MB of heap per 100 000 topics, most of it for the
+ * topic strings themselves.
+ * <p>
+ * The builds of all the indexes run one at a time on a single background
+ * thread. {@link #closeAll()} stops it and drops the indexes.
+ */
+public class TopicIndex {
+
+    /** An indexed thread topic. */
+    public static class Topic {
+        private final long threadId;
+        private final Long categoryId;
+        private final String topic;
+        private final String[] words;
+
+        public Topic(final long threadId, final Long categoryId,
+                final String topic) {
+            this.threadId = threadId;
+            this.categoryId = categoryId;
+            this.topic = topic;
+            words = new LinkedHashSet<String>(Arrays.asList(tokenize(topic)))
+                    .toArray(new String[0]);
+        }
+
+        public long getThreadId() {
+            return threadId;
+        }
+
+        public Long getCategoryId() {
+            return categoryId;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        private boolean matches(final String[] prefixes) {
+            for (final String prefix : prefixes) {
+                boolean found = false;
+                for (final String word : words) {
+                    if (word.startsWith(prefix)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Feeds the topics of all the threads of the forum to a build. */
+    public interface TopicSource {
+        int getTopicCount() throws DataSourceException;
+
+        /**
+         * Returns the topics between the given indices, <code>endIndex</code>
+         * being inclusive, in a stable order.
+         */
+        List<Topic> getTopics(int startIndex, int endIndex)
+                throws DataSourceException;
+    }
+
+    private static final Logger LOG = Logger.getLogger(TopicIndex.class);
+
+    private static final Pattern DIACRITICS = Pattern
+            .compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern WORD_SEPARATOR = Pattern
+            .compile("[^\\p{L}\\p{N}]+");
+
+    /** Shorter prefixes would match too large a share of the topics. */
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final long REBUILD_INTERVAL = 60 * 60 * 1000;
+    private static final int BUILD_BATCH_SIZE = 500;
+
+    private static final Map<String, TopicIndex> INDEXES = new HashMap<String, TopicIndex>();
+
+    /** Runs the builds, guarded by INDEXES */
+    private static ExecutorService executor;
+
+    private final String name;
+    private volatile boolean closed;
+
+    private volatile Words words = new Words();
+
+    /** Threads changed during a build, copied over to the new words. */
+    private Set<Long> changedDuringBuild;
+    private long built;
+
+    private TopicIndex(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the index of the given name. The index is shared by all the
+     * data sources of the forum on this node.
+     */
+    public static TopicIndex get(final String name) {
+        synchronized (INDEXES) {
+            TopicIndex index = INDEXES.get(name);
+            if (index == null) {
+                index = new TopicIndex(name);
+                INDEXES.put(name, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Stops the background builds and drops all the indexes. Called when the
+     * application is undeployed.
+     */
+    public static void closeAll() {
+        synchronized (INDEXES) {
+            for (final TopicIndex index : INDEXES.values()) {
+                index.closed = true;
+            }
+            INDEXES.clear();
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    private static ExecutorService getExecutor() {
+        synchronized (INDEXES) {
+            if (executor == null) {
+                executor = Executors
+                        .newSingleThreadExecutor(new ThreadFactory() {
+                            @Override
+                            public Thread newThread(final Runnable r) {
+                                final Thread thread = new Thread(r,
+                                        "tori-topic-index");
+                                thread.setDaemon(true);
+                                thread.setPriority(Thread.MIN_PRIORITY);
+                                return thread;
+                            }
+                        });
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Starts building the index in the background if it has never been built
+     * or the last build is older than the rebuild interval. Until the first
+     * build completes, suggestions only cover the changes made since.
+     */
+    public synchronized void buildIfStale(final TopicSource source) {
+        if (changedDuringBuild == null
+                && System.currentTimeMillis() - built > REBUILD_INTERVAL) {
+            rebuild(source);
+        }
+    }
+
+    /**
+     * Starts rebuilding the index in the background, unless already being
+     * built. The current index keeps answering until the new one is ready.
+     */
+    public synchronized void rebuild(final TopicSource source) {
+        if (changedDuringBuild != null || closed) {
+            return;
+        }
+        changedDuringBuild = new HashSet<Long>();
+
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long started = System.currentTimeMillis();
+                    Words newWords = null;
+                    try {
+                        newWords = build(source);
+                    } catch (final Exception e) {
+                        LOG.error("Building the topic index " + name
+                                + " failed.", e);
+                    }
+                    swap(newWords);
+                    if (newWords != null) {
+                        LOG.info(String.format(
+                                "Built the topic index %s of %d topics and %d "
+                                        + "words in %d ms.", name,
+                                newWords.topics.size(),
+                                newWords.threadIds.size(),
+                                System.currentTimeMillis() - started));
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // shutting down
+            changedDuringBuild = null;
+        }
+    }
+
+    /**
+     * Reads all the topics of the source, or returns <code>null</code> if the
+     * index is closed meanwhile.
+     */
+    private Words build(final TopicSource source) throws DataSourceException {
+        final List<Topic> topics = new ArrayList<Topic>();
+        final int count = source.getTopicCount();
+        for (int start = 0; start < count; start += BUILD_BATCH_SIZE) {
+            if (closed || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            topics.addAll(source.getTopics(start, start + BUILD_BATCH_SIZE
+                    - 1));
+        }
+        return new Words(topics);
+    }
+
+    private synchronized void swap(final Words newWords) {
+        if (newWords != null) {
+            for (final Long threadId : changedDuringBuild) {
+                final Topic topic = words.topics.get(threadId);
+                if (topic != null) {
+                    newWords.put(topic);
+                } else {
+                    newWords.remove(threadId);
+                }
+            }
+            words = newWords;
+        }
+        // a failed build is retried after the interval as well
+        built = System.currentTimeMillis();
+        changedDuringBuild = null;
+    }
+
+    /**
+     * Adds the topic to the index, or replaces the previous topic of the
+     * thread.
+     */
+    public synchronized void put(final Topic topic) {
+        words.put(topic);
+        if (changedDuringBuild != null) {
+            changedDuringBuild.add(topic.getThreadId());
+        }
+    }
+
+    public synchronized void remove(final long threadId) {
+        words.remove(threadId);
+        if (changedDuringBuild != null) {
+            changedDuringBuild.add(threadId);
+        }
+    }
+
+    /**
+     * Removes the topics of the threads in the given categories, e.g. after
+     * the categories have been deleted along with their threads.
+     */
+    public synchronized void removeCategories(final Collection<Long> categoryIds) {
+        final List<Long> threadIds = new ArrayList<Long>();
+        for (final Topic topic : words.topics.values()) {
+            if (categoryIds.contains(topic.getCategoryId())) {
+                threadIds.add(topic.getThreadId());
+            }
+        }
+        for (final Long threadId : threadIds) {
+            remove(threadId);
+        }
+    }
+
+    /**
+     * Records that the thread has been moved to the given category.
+     */
+    public synchronized void move(final long threadId, final Long categoryId) {
+        final Topic topic = words.topics.get(threadId);
+        if (topic != null) {
+            put(new Topic(threadId, categoryId, topic.getTopic()));
+        }
+    }
+
+    /**
+     * Returns the topics having a word starting with each of the words in the
+     * given text, the most recently created threads first.
+     */
+    public List<Topic> suggest(final String text, final int maxResults) {
+        final String[] prefixes = tokenize(text);
+        if (prefixes.length == 0) {
+            return Collections.emptyList();
+        }
+
+        // look up the most selective prefix, check the others by topic
+        String longest = prefixes[0];
+        for (final String prefix : prefixes) {
+            if (prefix.length() > longest.length()) {
+                longest = prefix;
+            }
+        }
+        if (longest.length() < MIN_PREFIX_LENGTH) {
+            return Collections.emptyList();
+        }
+
+        final Words current = words;
+        final long[] candidates = current.getThreadIds(longest);
+        Arrays.sort(candidates);
+
+        final List<Topic> result = new ArrayList<Topic>();
+        long previous = -1;
+        for (int i = candidates.length - 1; i >= 0
+                && result.size() < maxResults; i--) {
+            if (candidates[i] != previous) {
+                previous = candidates[i];
+                final Topic topic = current.topics.get(previous);
+                if (topic != null && topic.matches(prefixes)) {
+                    result.add(topic);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits the text into lower case words without diacritics.
+     */
+    static String[] tokenize(final String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        final String normalized = DIACRITICS.matcher(
+                Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll(
+                "");
+        final String trimmed = WORD_SEPARATOR
+                .matcher(normalized.toLowerCase(Locale.ENGLISH))
+                .replaceAll(" ").trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split(" ");
+    }
+
+    /**
+     * The words and their threads. Written by a single thread at a time, read
+     * concurrently.
+     */
+    private static class Words {
+        private final ConcurrentMap<Long, Topic> topics = new ConcurrentHashMap<Long, Topic>();
+        /** Sorted thread ids per word, replaced rather than modified. */
+        private final ConcurrentNavigableMap<String, long[]> threadIds = new ConcurrentSkipListMap<String, long[]>();
+
+        public Words() {
+        }
+
+        public Words(final List<Topic> initialTopics) {
+            final Map<String, List<Long>> ids = new TreeMap<String, List<Long>>();
+            final Map<String, String> canonicalWords = new HashMap<String, String>();
+            for (final Topic topic : initialTopics) {
+                topics.put(topic.getThreadId(), topic);
+                for (int i = 0; i < topic.words.length; i++) {
+                    final String word = topic.words[i];
+                    List<Long> wordIds = ids.get(word);
+                    if (wordIds == null) {
+                        wordIds = new ArrayList<Long>(1);
+                        ids.put(word, wordIds);
+                        canonicalWords.put(word, word);
+                    } else {
+                        // all the topics share the same word instances
+                        topic.words[i] = canonicalWords.get(word);
+                    }
+                    wordIds.add(topic.getThreadId());
+                }
+            }
+            for (final Entry<String, List<Long>> entry : ids.entrySet()) {
+                final List<Long> wordIds = entry.getValue();
+                final long[] array = new long[wordIds.size()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = wordIds.get(i);
+                }
+                Arrays.sort(array);
+                threadIds.put(entry.getKey(), array);
+            }
+        }
+
+        private void put(final Topic topic) {
+            final Topic previous = topics.put(topic.getThreadId(), topic);
+            if (previous != null) {
+                removeWords(previous);
+            }
+            for (int i = 0; i < topic.words.length; i++) {
+                final String word = topic.words[i];
+                final long[] ids = threadIds.get(word);
+                if (ids == null) {
+                    threadIds.put(word, new long[] { topic.getThreadId() });
+                } else {
+                    topic.words[i] = threadIds.ceilingKey(word);
+                    int index = Arrays.binarySearch(ids, topic.getThreadId());
+                    if (index < 0) {
+                        index = -index - 1;
+                        final long[] newIds = new long[ids.length + 1];
+                        System.arraycopy(ids, 0, newIds, 0, index);
+                        newIds[index] = topic.getThreadId();
+                        System.arraycopy(ids, index, newIds, index + 1,
+                                ids.length - index);
+                        threadIds.put(word, newIds);
+                    }
+                }
+            }
+        }
+
+        private void remove(final long threadId) {
+            final Topic previous = topics.remove(threadId);
+            if (previous != null) {
+                removeWords(previous);
+            }
+        }
+
+        private void removeWords(final Topic topic) {
+            for (final String word : topic.words) {
+                final long[] ids = threadIds.get(word);
+                final int index = ids != null ? Arrays.binarySearch(ids,
+                        topic.getThreadId()) : -1;
+                if (index >= 0) {
+                    if (ids.length == 1) {
+                        threadIds.remove(word);
+                    } else {
+                        final long[] newIds = new long[ids.length - 1];
+                        System.arraycopy(ids, 0, newIds, 0, index);
+                        System.arraycopy(ids, index + 1, newIds, index,
+                                ids.length - index - 1);
+                        threadIds.put(word, newIds);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the ids of the threads having a word with the given prefix,
+         * unsorted and possibly with duplicates.
+         */
+        private long[] getThreadIds(final String prefix) {
+            final ConcurrentNavigableMap<String, long[]> matching = threadIds
+                    .subMap(prefix, prefix + Character.MAX_VALUE);
+            int size = 0;
+            final List<long[]> arrays = new ArrayList<long[]>();
+            for (final long[] ids : matching.values()) {
+                arrays.add(ids);
+                size += ids.length;
+            }
+            final long[] result = new long[size];
+            int position = 0;
+            for (final long[] ids : arrays) {
+                System.arraycopy(ids, 0, result, position, ids.length);
+                position += ids.length;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.data.spi;
+
+/**
+ * Implement this interface in a {@link ServiceProvider} that holds node-wide
+ * resources, such as timers or listeners registered to the portal, which must
+ * be released when Tori is undeployed.
+ */
+public interface Disposable {
+
+    /**
+     * Releases the resources. Called once when the servlet or the portlet is
+     * destroyed.
+     */
+    void dispose();
+}
@@ -35,6 +35,12 @@ import org.vaadin.tori.util.ToriMailService;
  * All factory methods in this interface are called only once per Application
  * instance (i.e. session) and the instance is reused by that instance. This
  * means that the returned service implementations are allowed to be stateful.
+ * The only exception is a {@link PostFormatter} that is neither
+ * {@link org.vaadin.tori.PortletRequestAware PortletRequestAware} nor
+ * {@link org.vaadin.tori.HttpServletRequestAware HttpServletRequestAware}: it
+ * is created once and shared by all the sessions, so it must be thread-safe.
+ * A provider holding node-wide resources should also implement
+ * {@link Disposable} to release them when Tori is undeployed.
  * 
  * @see ServiceLoader
  */
@@ -48,7 +54,8 @@ public interface ServiceProvider {
     DataSource createDataSource();
 
     /**
-     * Returns a new {@link PostFormatter} instance.
+     * Returns a new {@link PostFormatter} instance. Formatters that are not
+     * request aware are shared between sessions.
      */
     PostFormatter createPostFormatter();
 
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registers the MBeans of Tori in the platform MBean server, under names
+ * qualified with the deployment. Several deployments on the same server thus
+ * get beans of their own, and a deployment never takes over or unregisters
+ * the beans of another.
+ */
+public final class ManagedBeans {
+
+    public static final String DOMAIN = "org.vaadin.tori";
+
+    /**
+     * Identifies the deployment until {@link #setDeployment(String)} is
+     * called. The class loader is unique to each deployment.
+     */
+    private static volatile String deployment = "classloader-"
+            + Integer.toHexString(System.identityHashCode(ManagedBeans.class
+                    .getClassLoader()));
+
+    private ManagedBeans() {
+    }
+
+    /**
+     * Sets the name the MBeans of this deployment are qualified with, such as
+     * the context path. Must be called before any MBeans are registered.
+     */
+    public static void setDeployment(final String deployment) {
+        if (deployment != null && !deployment.isEmpty()) {
+            ManagedBeans.deployment = deployment;
+        }
+    }
+
+    /**
+     * Returns the name of a bean of this deployment.
+     * 
+     * @param keys
+     *            the key properties of the bean, such as
+     *            <code>type=MailDigestQueue</code>
+     */
+    public static ObjectName getObjectName(final String keys) {
+        try {
+            return new ObjectName(DOMAIN + ":deployment="
+                    + ObjectName.quote(deployment) + "," + keys);
+        } catch (final JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Registers the bean, unless the name is already taken.
+     * 
+     * @return <code>true</code> if the bean was registered, and thus should be
+     *         unregistered with {@link #unregister(ObjectName)} by its owner
+     */
+    public static boolean register(final ObjectName name, final Object mbean) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                getLogger().warn(name + " is already registered");
+                return false;
+            }
+            server.registerMBean(mbean, name);
+            return true;
+        } catch (final JMException e) {
+            getLogger().warn("Unable to register " + name, e);
+            return false;
+        }
+    }
+
+    /**
+     * Unregisters a bean that {@link #register(ObjectName, Object)} has
+     * registered.
+     */
+    public static void unregister(final ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (final JMException e) {
+            getLogger().debug("Unable to unregister " + name, e);
+        }
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(ManagedBeans.class);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.util;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.data.entity.User;
+
+/**
+ * An immutable summary of a newly authored post, published along with the
+ * user authored activity events so that the receivers don't need to query the
+ * post from the data source to react to them.
+ */
+@SuppressWarnings("serial")
+public final class PostSnapshot implements Serializable {
+
+    private final long postId;
+    private final long threadId;
+    private final long authorId;
+    private final String authorName;
+    private final long time;
+
+    public PostSnapshot(final long postId, final long threadId,
+            final long authorId, final String authorName, final Date time) {
+        this.postId = postId;
+        this.threadId = threadId;
+        this.authorId = authorId;
+        this.authorName = authorName;
+        this.time = time != null ? time.getTime() : 0;
+    }
+
+    public PostSnapshot(final Post post) {
+        this(post.getId(), post.getThread().getId(), getAuthorId(post),
+                getAuthorName(post), post.getTime());
+    }
+
+    private static long getAuthorId(final Post post) {
+        final User author = post.getAuthor();
+        return author != null ? author.getId() : 0;
+    }
+
+    private static String getAuthorName(final Post post) {
+        final User author = post.getAuthor();
+        return author != null ? author.getDisplayedName() : null;
+    }
+
+    public long getPostId() {
+        return postId;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public long getAuthorId() {
+        return authorId;
+    }
+
+    /**
+     * The displayed name of the author at the time of posting. May return
+     * <code>null</code>.
+     */
+    public String getAuthorName() {
+        return authorName;
+    }
+
+    public Date getTime() {
+        return new Date(time);
+    }
+}
@@ -8,13 +8,39 @@ public interface ToriActivityMessaging {
 
     void addUserAuthoredListener(UserAuthoredListener listener);
 
+    /**
+     * Adds a listener that is only notified of users typing in the thread with
+     * the given id.
+     */
+    void addUserTypingListener(long threadId, UserTypingListener listener);
+
+    /**
+     * Adds a listener that is only notified of posts authored in the thread
+     * with the given id.
+     */
+    void addUserAuthoredListener(long threadId, UserAuthoredListener listener);
+
+    /**
+     * Adds a listener that is notified when a post in the thread with the
+     * given id is edited or deleted, in this node or any other node of the
+     * cluster.
+     */
+    void addPostChangedListener(long threadId, PostChangedListener listener);
+
+    void removePostChangedListener(PostChangedListener listener);
+
     void removeUserTypingListener(UserTypingListener listener);
 
     void removeUserAuthoredListener(UserAuthoredListener listener);
 
     void sendUserTyping(long threadId, Date startedTyping);
 
-    void sendUserAuthored(long postId, long threadId);
+    /**
+     * Notifies the listeners of the thread that a new post has been authored.
+     * The snapshot is delivered to the listeners as-is, so that they don't
+     * need to query the post again.
+     */
+    void sendUserAuthored(PostSnapshot post);
 
     void register();
 
@@ -25,6 +51,10 @@ public interface ToriActivityMessaging {
     }
 
     public interface UserAuthoredListener {
-        void userAuthored(long postId, long threadId);
+        void userAuthored(PostSnapshot post);
+    }
+
+    public interface PostChangedListener {
+        void postChanged(long threadId, long postId);
     }
 }
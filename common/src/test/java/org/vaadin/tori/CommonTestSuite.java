@@ -19,9 +19,12 @@ package org.vaadin.tori;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
+import org.vaadin.tori.data.search.PostSearchIndexTest;
+import org.vaadin.tori.data.search.TopicIndexTest;
 
 @RunWith(Suite.class)
-@SuiteClasses({ ToriUtilTest.class })
+@SuiteClasses({ ToriUtilTest.class, PostSearchIndexTest.class,
+        TopicIndexTest.class })
 public class CommonTestSuite {
 
 }
@@ -16,6 +16,8 @@
 
 package org.vaadin.tori;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
 public class ToriUtilTest {
@@ -30,4 +32,16 @@ public class ToriUtilTest {
         // succeeds
     }
 
+    @Test
+    public void stripBBCode() {
+        assertEquals("Hello bold world, see link",
+                ToriUtil.stripBBCode("[b]Hello[/b] [i]bold[/i]\n world, "
+                        + "[img]http://x/y.png[/img] see [url=http://x]link[/url]"));
+    }
+
+    @Test
+    public void stripBBCodeWhenGivenNull() {
+        assertEquals("", ToriUtil.stripBBCode(null));
+    }
+
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.tori.data.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.data.search.PostSearchIndex.IndexedPost;
+import org.vaadin.tori.data.search.PostSearchIndex.PostResolver;
+import org.vaadin.tori.data.search.PostSearchIndex.PostSource;
+import org.vaadin.tori.exception.DataSourceException;
+
+public class PostSearchIndexTest {
+
+    private String name;
+    private PostSearchIndex index;
+    private final Set<Long> hiddenPosts = new HashSet<Long>();
+
+    private final PostResolver resolver = new PostResolver() {
+        @Override
+        public Post resolve(final long postId) {
+            if (hiddenPosts.contains(postId)) {
+                return null;
+            }
+            final Post post = new Post();
+            post.setId(postId);
+            return post;
+        }
+    };
+
+    @Before
+    public void setUp() throws DataSourceException {
+        name = "test-" + System.nanoTime();
+        index = PostSearchIndex.get(name);
+    }
+
+    @After
+    public void tearDown() {
+        PostSearchIndex.closeAll();
+        final File directory = new File(new File(
+                System.getProperty("java.io.tmpdir"), "tori-search"), name);
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void findsPostsByBody() throws DataSourceException {
+        index.update(new IndexedPost(1, 10, "First", "apples and pears"));
+        index.update(new IndexedPost(2, 10, null, "only pears"));
+
+        assertEquals(Arrays.asList(1L), search("apples"));
+        assertEquals(set(1L, 2L), new HashSet<Long>(search("pears")));
+    }
+
+    @Test
+    public void ranksTopicMatchesFirst() throws DataSourceException {
+        index.update(new IndexedPost(1, 10, "Bananas", "a topic"));
+        index.update(new IndexedPost(2, 20, "Other", "I like bananas a lot"));
+
+        assertEquals(Arrays.asList(1L, 2L), search("bananas"));
+    }
+
+    @Test
+    public void ignoresBBCode() throws DataSourceException {
+        index.update(new IndexedPost(1, 10, null, "[b]plums[/b]"));
+
+        assertEquals(Arrays.asList(1L), search("plums"));
+        assertEquals(0, search("b").size());
+    }
+
+    @Test
+    public void replacesUpdatedPosts() throws DataSourceException {
+        index.update(new IndexedPost(1, 10, null, "cherries"));
+        index.update(new IndexedPost(1, 10, null, "grapes"));
+
+        assertEquals(0, search("cherries").size());
+        assertEquals(Arrays.asList(1L), search("grapes"));
+    }
+
+    @Test
+    public void dropsDeletedPostsAndThreads() throws DataSourceException {
+        index.update(new IndexedPost(1, 10, "Lemons", "lemons"));
+        index.update(new IndexedPost(2, 10, null, "more lemons"));
+        index.update(new IndexedPost(3, 20, "Lemons again", "lemons"));
+
+        index.deletePost(3);
+        assertEquals(set(1L, 2L), new HashSet<Long>(search("lemons")));
+
+        index.deleteThread(10);
+        assertEquals(0, search("lemons").size());
+    }
+
+    @Test
+    public void leavesOutPostsTheResolverHides() throws DataSourceException {
+        for (long postId = 1; postId <= 6; postId++) {
+            index.update(new IndexedPost(postId, postId, null, "melons"));
+        }
+        hiddenPosts.add(2L);
+        hiddenPosts.add(4L);
+
+        final List<Long> visible = search("melons");
+        assertEquals(set(1L, 3L, 5L, 6L), new HashSet<Long>(visible));
+
+        // the indices only count the visible posts
+        final List<Long> secondPage = ids(index.search("melons", 2, 3,
+                resolver));
+        assertEquals(visible.subList(2, 4), secondPage);
+    }
+
+    @Test
+    public void ignoresEmptyAndMalformedQueries() throws DataSourceException {
+        index.update(new IndexedPost(1, 10, null, "quince \"jam\""));
+
+        assertEquals(0, search("  ").size());
+        assertEquals(Arrays.asList(1L), search("\"quince"));
+    }
+
+    @Test
+    public void reindexReconcilesWithTheSource() throws Exception {
+        index.update(new IndexedPost(1, 10, null, "figs"));
+        index.update(new IndexedPost(2, 10, null, "figs"));
+        // the documents older than the reindex are dropped
+        Thread.sleep(5);
+
+        index.reindexNow(new ListPostSource(new IndexedPost(2, 10, null,
+                "figs"), new IndexedPost(3, 20, null, "figs")));
+
+        assertEquals(set(2L, 3L), new HashSet<Long>(search("figs")));
+    }
+
+    @Test
+    public void reindexDoesNotSkipPostsAfterDeletedOnes() throws Exception {
+        final List<IndexedPost> posts = new ArrayList<IndexedPost>();
+        for (long id = 1; id <= 150; id++) {
+            posts.add(new IndexedPost(id, 10, null, "dates"));
+        }
+        final ListPostSource source = new ListPostSource(
+                posts.toArray(new IndexedPost[posts.size()])) {
+            @Override
+            public List<IndexedPost> getPosts(final long afterPostId,
+                    final int maxResults) {
+                if (afterPostId > 0) {
+                    // deleted while the reindex was running
+                    this.posts.remove(0);
+                }
+                return super.getPosts(afterPostId, maxResults);
+            }
+        };
+        index.reindexNow(source);
+
+        final Set<Long> found = new HashSet<Long>(search("dates"));
+        for (long id = 2; id <= 150; id++) {
+            assertTrue("post " + id, found.contains(id));
+        }
+    }
+
+    private List<Long> search(final String query) throws DataSourceException {
+        return ids(index.search(query, 0, Integer.MAX_VALUE - 1, resolver));
+    }
+
+    private static List<Long> ids(final List<Post> posts) {
+        final List<Long> ids = new ArrayList<Long>();
+        for (final Post post : posts) {
+            ids.add(post.getId());
+        }
+        return ids;
+    }
+
+    private static Set<Long> set(final Long... ids) {
+        return new HashSet<Long>(Arrays.asList(ids));
+    }
+
+    private static class ListPostSource implements PostSource {
+        protected final List<IndexedPost> posts;
+
+        public ListPostSource(final IndexedPost... posts) {
+            this.posts = new ArrayList<IndexedPost>(Arrays.asList(posts));
+        }
+
+        @Override
+        public int getPostCount() {
+            return posts.size();
+        }
+
+        @Override
+        public List<IndexedPost> getPosts(final long afterPostId,
+                final int maxResults) {
+            final List<IndexedPost> result = new ArrayList<IndexedPost>();
+            for (final IndexedPost post : posts) {
+                if (post.getPostId() > afterPostId
+                        && result.size() < maxResults) {
+                    result.add(post);
+                }
+            }
+            return result;
+        }
+    }
+}
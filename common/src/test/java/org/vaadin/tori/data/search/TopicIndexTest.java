@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.tori.data.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.tori.data.search.TopicIndex.Topic;
+
+public class TopicIndexTest {
+
+    private TopicIndex index;
+
+    @Before
+    public void setUp() {
+        index = TopicIndex.get("test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        TopicIndex.closeAll();
+    }
+
+    @Test
+    public void tokenizeNormalizesWords() {
+        assertArrayEquals(new String[] { "cafe", "uber", "alles", "2014" },
+                TopicIndex.tokenize("  Caf\u00e9: \u00dcber-ALLES (2014)! "));
+    }
+
+    @Test
+    public void tokenizeHandlesEmptyText() {
+        assertEquals(0, TopicIndex.tokenize(null).length);
+        assertEquals(0, TopicIndex.tokenize(" -- ").length);
+    }
+
+    @Test
+    public void suggestsTopicsByWordPrefixes() {
+        index.put(new Topic(1, 10L, "Vaadin grid performance"));
+        index.put(new Topic(2, 10L, "Grid layout question"));
+        index.put(new Topic(3, 20L, "Liferay portlet deployment"));
+
+        assertEquals(Arrays.asList(2L, 1L), ids(index.suggest("gri", 10)));
+        assertEquals(Arrays.asList(1L), ids(index.suggest("grid perf", 10)));
+        assertEquals(Arrays.asList(3L), ids(index.suggest("PORTL", 10)));
+    }
+
+    @Test
+    public void suggestsTheNewestThreadsFirstUpToTheLimit() {
+        for (long threadId = 1; threadId <= 5; threadId++) {
+            index.put(new Topic(threadId, null, "Theme " + threadId));
+        }
+
+        assertEquals(Arrays.asList(5L, 4L, 3L),
+                ids(index.suggest("theme", 3)));
+    }
+
+    @Test
+    public void ignoresTooShortPrefixes() {
+        index.put(new Topic(1, null, "a topic"));
+
+        assertEquals(0, index.suggest("a", 10).size());
+        assertEquals(0, index.suggest("", 10).size());
+    }
+
+    @Test
+    public void putReplacesTheTopicOfTheThread() {
+        index.put(new Topic(1, null, "Old topic"));
+        index.put(new Topic(1, null, "New subject"));
+
+        assertEquals(0, index.suggest("old", 10).size());
+        assertEquals(Arrays.asList(1L), ids(index.suggest("subj", 10)));
+    }
+
+    @Test
+    public void removeDropsTheTopic() {
+        index.put(new Topic(1, null, "Widgetset compilation"));
+        index.put(new Topic(2, null, "Widgetset caching"));
+
+        index.remove(1);
+
+        assertEquals(Arrays.asList(2L), ids(index.suggest("widgetset", 10)));
+        assertEquals(0, index.suggest("compilation", 10).size());
+    }
+
+    @Test
+    public void removeCategoriesDropsTheirTopics() {
+        index.put(new Topic(1, 10L, "Push setup"));
+        index.put(new Topic(2, 20L, "Push errors"));
+        index.put(new Topic(3, 30L, "Push in portlets"));
+
+        index.removeCategories(Arrays.asList(10L, 30L));
+
+        assertEquals(Arrays.asList(2L), ids(index.suggest("push", 10)));
+    }
+
+    @Test
+    public void moveKeepsTheTopic() {
+        index.put(new Topic(1, 10L, "Charts license"));
+
+        index.move(1, 20L);
+
+        final List<Topic> suggestions = index.suggest("charts", 10);
+        assertEquals(1, suggestions.size());
+        assertEquals(Long.valueOf(20), suggestions.get(0).getCategoryId());
+    }
+
+    private static List<Long> ids(final List<Topic> topics) {
+        final List<Long> ids = new ArrayList<Long>();
+        for (final Topic topic : topics) {
+            ids.add(topic.getThreadId());
+        }
+        return ids;
+    }
+}
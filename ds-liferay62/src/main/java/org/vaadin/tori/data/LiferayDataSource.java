@@ -28,10 +28,13 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,13 +45,23 @@ import javax.portlet.ValidatorException;
 
 import org.apache.log4j.Logger;
 import org.vaadin.tori.Configuration;
+import org.vaadin.tori.Configuration.EmailDigestMode;
+import org.vaadin.tori.GuestContextAware;
 import org.vaadin.tori.PortletRequestAware;
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
 import org.vaadin.tori.data.entity.Attachment;
 import org.vaadin.tori.data.entity.Category;
 import org.vaadin.tori.data.entity.DiscussionThread;
 import org.vaadin.tori.data.entity.LiferayEntityFactoryUtil;
 import org.vaadin.tori.data.entity.Post;
 import org.vaadin.tori.data.entity.User;
+import org.vaadin.tori.data.search.PostSearchIndex;
+import org.vaadin.tori.data.search.PostSearchIndex.IndexedPost;
+import org.vaadin.tori.data.search.PostSearchIndex.PostResolver;
+import org.vaadin.tori.data.search.PostSearchIndex.PostSource;
+import org.vaadin.tori.data.search.TopicIndex;
+import org.vaadin.tori.data.search.TopicIndex.Topic;
+import org.vaadin.tori.data.search.TopicIndex.TopicSource;
 import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.service.post.PostReport.Reason;
 
@@ -67,9 +80,16 @@ import com.liferay.portal.kernel.util.PortalClassLoaderUtil;
 import com.liferay.portal.kernel.util.PrefsPropsUtil;
 import com.liferay.portal.kernel.util.PropsKeys;
 import com.liferay.portal.kernel.util.StringPool;
+import com.liferay.portal.kernel.util.Validator;
 import com.liferay.portal.kernel.util.WebKeys;
 import com.liferay.portal.kernel.workflow.WorkflowConstants;
+import com.liferay.portal.model.Subscription;
 import com.liferay.portal.portletfilerepository.PortletFileRepositoryUtil;
+import com.liferay.portal.security.auth.CompanyThreadLocal;
+import com.liferay.portal.security.auth.PrincipalThreadLocal;
+import com.liferay.portal.security.permission.PermissionChecker;
+import com.liferay.portal.security.permission.PermissionCheckerFactoryUtil;
+import com.liferay.portal.security.permission.PermissionThreadLocal;
 import com.liferay.portal.service.ServiceContext;
 import com.liferay.portal.service.ServiceContextFactory;
 import com.liferay.portal.service.SubscriptionLocalServiceUtil;
@@ -82,6 +102,7 @@ import com.liferay.portlet.messageboards.NoSuchCategoryException;
 import com.liferay.portlet.messageboards.NoSuchThreadException;
 import com.liferay.portlet.messageboards.model.MBBan;
 import com.liferay.portlet.messageboards.model.MBCategory;
+import com.liferay.portlet.messageboards.model.MBCategoryConstants;
 import com.liferay.portlet.messageboards.model.MBMessage;
 import com.liferay.portlet.messageboards.model.MBMessageConstants;
 import com.liferay.portlet.messageboards.model.MBThread;
@@ -90,6 +111,7 @@ import com.liferay.portlet.messageboards.model.MBThreadFlag;
 import com.liferay.portlet.messageboards.service.MBBanLocalServiceUtil;
 import com.liferay.portlet.messageboards.service.MBBanServiceUtil;
 import com.liferay.portlet.messageboards.service.MBCategoryLocalServiceUtil;
+import com.liferay.portlet.messageboards.service.MBCategoryLocalServiceUtil;
 import com.liferay.portlet.messageboards.service.MBCategoryServiceUtil;
 import com.liferay.portlet.messageboards.service.MBMessageLocalServiceUtil;
 import com.liferay.portlet.messageboards.service.MBMessageServiceUtil;
@@ -104,7 +126,8 @@ import com.liferay.portlet.ratings.service.RatingsEntryLocalServiceUtil;
 import com.liferay.portlet.ratings.service.RatingsEntryServiceUtil;
 import com.liferay.portlet.ratings.service.RatingsStatsLocalServiceUtil;
 
-public class LiferayDataSource implements DataSource, PortletRequestAware {
+public class LiferayDataSource implements DataSource, PortletRequestAware,
+        GuestContextAware {
 
     private static final Logger LOG = Logger.getLogger(LiferayDataSource.class);
     private static final boolean INCLUDE_SUBSCRIBED = false;
@@ -115,14 +138,24 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
     // TODO this should be dynamic as it can be customized in liferay
     private static final double STICKY_PRIORITY = 2.0d;
 
+    /*
+     * Bans made through Tori on this node invalidate the cached status right
+     * away, the time to live only bounds how long a ban made elsewhere goes
+     * unnoticed.
+     */
+    private static final long BAN_STATUS_TTL = 60 * 1000;
+    private static final int BAN_STATUS_PRUNE_SIZE = 10000;
+    private static final ConcurrentMap<String, BanStatus> BAN_STATUS_CACHE = new ConcurrentHashMap<String, BanStatus>();
+
     protected long scopeGroupId = -1;
     protected long currentUserId;
     private String imagePath;
 
+    // request scoped, built on demand by the write operations needing them
     private ServiceContext mbBanServiceContext;
-    protected ServiceContext flagsServiceContext;
-    protected ServiceContext mbCategoryServiceContext;
-    protected ServiceContext mbMessageServiceContext;
+    private ServiceContext flagsServiceContext;
+    private ServiceContext mbCategoryServiceContext;
+    private ServiceContext mbMessageServiceContext;
 
     protected ThemeDisplay themeDisplay;
     private PortletRequest request;
@@ -138,6 +171,7 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
     public static final String PREFS_EMAIL_FROM_ADDRESS = "emailFromAddress";
     public static final String PREFS_EMAIL_FROM_NAME = "emailFromName";
     public static final String PREFS_EMAIL_REPLY_TO_ADDRESS = "emailReplyToAddress";
+    public static final String PREFS_EMAIL_DIGEST_MODE = "emailDigestMode";
 
     private static final String PREFS_REPLACEMENTS_KEY = "toriPostReplacements";
     private static final String REPLACEMENT_SEPARATOR = "<TORI-REPLACEMENT>";
@@ -178,6 +212,42 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
         }
     }
 
+    /**
+     * Returns whether the given user is banned in the given group. The status
+     * is cached on this node and invalidated when a user is banned or unbanned
+     * through Tori.
+     */
+    public static boolean hasBan(final long groupId, final long userId)
+            throws SystemException {
+        final String key = groupId + ":" + userId;
+        final long now = System.currentTimeMillis();
+        final BanStatus cached = BAN_STATUS_CACHE.get(key);
+        if (cached != null && now - cached.checked < BAN_STATUS_TTL) {
+            return cached.banned;
+        }
+
+        final boolean banned = MBBanLocalServiceUtil.hasBan(groupId, userId);
+        if (BAN_STATUS_CACHE.size() >= BAN_STATUS_PRUNE_SIZE) {
+            pruneBanStatusCache(now);
+        }
+        BAN_STATUS_CACHE.put(key, new BanStatus(banned, now));
+        return banned;
+    }
+
+    private static void invalidateBanStatus(final long groupId,
+            final long userId) {
+        BAN_STATUS_CACHE.remove(groupId + ":" + userId);
+    }
+
+    private static void pruneBanStatusCache(final long now) {
+        for (final Iterator<BanStatus> it = BAN_STATUS_CACHE.values()
+                .iterator(); it.hasNext();) {
+            if (now - it.next().checked >= BAN_STATUS_TTL) {
+                it.remove();
+            }
+        }
+    }
+
     @Override
     public List<DiscussionThread> getThreads(final Long categoryId,
             final int startIndex, int endIndex) throws DataSourceException {
@@ -392,8 +462,8 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
                     return LiferayEntityFactoryUtil
                             .createAnonymousUser(imagePath);
                 } else {
-                    final boolean isBanned = MBBanLocalServiceUtil.hasBan(
-                            scopeGroupId, liferayUser.getUserId());
+                    final boolean isBanned = hasBan(scopeGroupId,
+                            liferayUser.getUserId());
 
                     String userLink = null;
                     if (liferayUser.getGroup() != null
@@ -574,6 +644,26 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
                 WorkflowConstants.STATUS_APPROVED, comparator);
     }
 
+    /**
+     * Returns the id of the newest approved message in the given thread, or 0
+     * if there is none.
+     */
+    public long getLatestLiferayPostId(final long threadId)
+            throws SystemException {
+        DynamicQuery query = DynamicQueryFactoryUtil
+                .forClass(MBMessage.class,
+                        PortalClassLoaderUtil.getClassLoader())
+                .setProjection(ProjectionFactoryUtil.property("messageId"))
+                .add(PropertyFactoryUtil.forName("threadId").eq(threadId))
+                .add(PropertyFactoryUtil.forName("status").eq(
+                        WorkflowConstants.STATUS_APPROVED))
+                .addOrder(OrderFactoryUtil.desc("createDate"))
+                .addOrder(OrderFactoryUtil.desc("messageId"));
+        final List<?> result = MBMessageLocalServiceUtil.dynamicQuery(query,
+                0, 1);
+        return result.isEmpty() ? 0 : (Long) result.get(0);
+    }
+
     @Override
     public void updateCategory(final long categoryId, final String name,
             final String description) throws DataSourceException {
@@ -593,12 +683,18 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
     @Override
     public void deleteCategory(final long categoryId)
             throws DataSourceException {
+        final List<Long> categoryIds = new ArrayList<Long>();
+        categoryIds.add(categoryId);
         try {
+            // the threads of all the sub categories are removed as well
+            MBCategoryLocalServiceUtil.getSubcategoryIds(categoryIds,
+                    scopeGroupId, categoryId);
             MBCategoryServiceUtil.deleteCategory(scopeGroupId, categoryId);
         } catch (final NestableException e) {
             LOG.error(String.format("Cannot delete category %d", categoryId), e);
             throw new DataSourceException(e);
         }
+        getTopicIndex().removeCategories(categoryIds);
     }
 
     @Override
@@ -624,9 +720,11 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
 
             FlagsEntryServiceUtil.addEntry(MBMessage.class.getName(), postId,
                     reporterEmailAddress, reportedUserId, contentTitle,
-                    contentURL, reasonString, flagsServiceContext);
+                    contentURL, reasonString, getFlagsServiceContext());
         } catch (DataSourceException e) {
             e.printStackTrace();
+        } catch (final NestableException e) {
+            LOG.error("Couldn't create ServiceContext.", e);
         }
 
     }
@@ -635,7 +733,8 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
     public void savePost(final long postId, final String bodyRaw) {
         try {
             // Currently only editing of message body allowed
-            MBMessageLocalServiceUtil.updateMessage(postId, bodyRaw);
+            indexMessage(MBMessageLocalServiceUtil.updateMessage(postId,
+                    bodyRaw));
         } catch (final Exception e) {
             LOG.error("Editing message failed", e);
         }
@@ -644,7 +743,8 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
     @Override
     public void banUser(final long userId) throws DataSourceException {
         try {
-            MBBanServiceUtil.addBan(userId, mbBanServiceContext);
+            MBBanServiceUtil.addBan(userId, getMbBanServiceContext());
+            invalidateBanStatus(scopeGroupId, userId);
         } catch (NestableException e) {
             LOG.error(String.format("Cannot ban user %d", userId), e);
             throw new DataSourceException(e);
@@ -654,7 +754,8 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
     @Override
     public void unbanUser(final long userId) throws DataSourceException {
         try {
-            MBBanServiceUtil.deleteBan(userId, mbBanServiceContext);
+            MBBanServiceUtil.deleteBan(userId, getMbBanServiceContext());
+            invalidateBanStatus(scopeGroupId, userId);
         } catch (final NestableException e) {
             LOG.error(String.format("Cannot unban user %d", userId), e);
             throw new DataSourceException(e);
@@ -691,6 +792,33 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
         return result;
     }
 
+    @Override
+    public Set<Long> getFollowedThreadIds(final Collection<Long> threadIds) {
+        final Set<Long> result = new HashSet<Long>();
+        if (isLoggedInUser() && !threadIds.isEmpty()) {
+            DynamicQuery query = DynamicQueryFactoryUtil
+                    .forClass(Subscription.class,
+                            PortalClassLoaderUtil.getClassLoader())
+                    .setProjection(ProjectionFactoryUtil.property("classPK"))
+                    .add(PropertyFactoryUtil.forName("userId")
+                            .eq(currentUserId))
+                    .add(PropertyFactoryUtil.forName("classNameId").eq(
+                            PortalUtil.getClassNameId(MBThread.class)))
+                    .add(PropertyFactoryUtil.forName("classPK").in(
+                            new ArrayList<Object>(threadIds)));
+            try {
+                for (final Object threadId : SubscriptionLocalServiceUtil
+                        .dynamicQuery(query)) {
+                    result.add((Long) threadId);
+                }
+            } catch (final SystemException e) {
+                LOG.error("Cannot check which threads the user is following",
+                        e);
+            }
+        }
+        return result;
+    }
+
     @Override
     public void deletePost(final long postId) throws DataSourceException {
         try {
@@ -699,6 +827,11 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
             LOG.error(String.format("Couldn't delete post %d.", postId), e);
             throw new DataSourceException(e);
         }
+        try {
+            getSearchIndex().deletePost(postId);
+        } catch (final DataSourceException e) {
+            LOG.error("Couldn't update the search index.", e);
+        }
     }
 
     @Override
@@ -772,11 +905,13 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
             final Map<String, byte[]> attachments, final long threadId)
             throws DataSourceException {
         try {
-            mbMessageServiceContext.setAddCommunityPermissions(true);
-            mbMessageServiceContext.setAddGuestPermissions(true);
+            final ServiceContext serviceContext = getMbMessageServiceContext();
+            serviceContext.setAddCommunityPermissions(true);
+            serviceContext.setAddGuestPermissions(true);
             final MBMessage newPost = internalSaveAsCurrentUser(rawBody,
                     attachments, getThread(threadId),
                     getRootMessageId(threadId));
+            indexMessage(newPost);
             markThreadRead(threadId);
             return getPost(newPost.getMessageId());
         } catch (final NestableException e) {
@@ -799,6 +934,7 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
             LOG.error(String.format("Couldn't move thread %d.", threadId), e);
             throw new DataSourceException(e);
         }
+        getTopicIndex().move(threadId, destinationCategoryId);
 
     }
 
@@ -854,6 +990,12 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
             LOG.error(String.format("Couldn't delete thread %d.", threadId), e);
             throw new DataSourceException(e);
         }
+        try {
+            getSearchIndex().deleteThread(threadId);
+        } catch (final DataSourceException e) {
+            LOG.error("Couldn't update the search index.", e);
+        }
+        getTopicIndex().remove(threadId);
     }
 
     @Override
@@ -881,22 +1023,96 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
             }
         }
 
-        try {
+        // read-only requests (e.g. polls) never need the service contexts
+        mbBanServiceContext = null;
+        flagsServiceContext = null;
+        mbCategoryServiceContext = null;
+        mbMessageServiceContext = null;
+
+        if (toriConfiguration == null) {
+            toriConfiguration = mapConfiguration(request);
+        }
+    }
+
+    /**
+     * Creates a context that replaces the permission checker and the principal
+     * of the calling thread with the ones of the company's default user, and
+     * makes this data source treat the current user as not logged in.
+     */
+    @Override
+    public ThreadContext createGuestContext() {
+        final long companyId = themeDisplay != null ? themeDisplay
+                .getCompanyId() : CompanyThreadLocal.getCompanyId();
+        return new ThreadContext() {
+            private PermissionChecker previousPermissionChecker;
+            private String previousPrincipal;
+            private long previousUserId;
+
+            @Override
+            public void attach() {
+                previousPermissionChecker = PermissionThreadLocal
+                        .getPermissionChecker();
+                previousPrincipal = PrincipalThreadLocal.getName();
+                previousUserId = currentUserId;
+                currentUserId = 0;
+                try {
+                    final com.liferay.portal.model.User guest = UserLocalServiceUtil
+                            .getDefaultUser(companyId);
+                    PermissionThreadLocal
+                            .setPermissionChecker(PermissionCheckerFactoryUtil
+                                    .create(guest));
+                    PrincipalThreadLocal.setName(guest.getUserId());
+                } catch (final Exception e) {
+                    throw new IllegalStateException(
+                            "Unable to act as the guest of company "
+                                    + companyId, e);
+                }
+            }
+
+            @Override
+            public void detach() {
+                PermissionThreadLocal
+                        .setPermissionChecker(previousPermissionChecker);
+                PrincipalThreadLocal.setName(previousPrincipal);
+                currentUserId = previousUserId;
+            }
+        };
+    }
+
+    private ServiceContext getMbBanServiceContext() throws PortalException,
+            SystemException {
+        if (mbBanServiceContext == null) {
             mbBanServiceContext = ServiceContextFactory.getInstance(
                     MBBan.class.getName(), request);
+        }
+        return mbBanServiceContext;
+    }
+
+    private ServiceContext getFlagsServiceContext() throws PortalException,
+            SystemException {
+        if (flagsServiceContext == null) {
             flagsServiceContext = ServiceContextFactory.getInstance(
                     "com.liferay.portlet.flags.model.FlagsEntry", request);
+        }
+        return flagsServiceContext;
+    }
+
+    private ServiceContext getMbCategoryServiceContext()
+            throws PortalException, SystemException {
+        if (mbCategoryServiceContext == null) {
             mbCategoryServiceContext = ServiceContextFactory.getInstance(
                     MBCategory.class.getName(), request);
-            mbMessageServiceContext = ServiceContextFactory.getInstance(
-                    MBMessage.class.getName(), request);
-        } catch (final NestableException e) {
-            LOG.error("Couldn't create ServiceContext.", e);
         }
+        return mbCategoryServiceContext;
+    }
 
-        if (toriConfiguration == null) {
-            toriConfiguration = mapConfiguration(request);
+    private ServiceContext getMbMessageServiceContext()
+            throws PortalException, SystemException {
+        if (mbMessageServiceContext == null) {
+            mbMessageServiceContext = ServiceContextFactory.getInstance(
+                    MBMessage.class.getName(), request);
         }
+        return mbMessageServiceContext;
     }
 
     private static final int DEFAULT_MAX_FILE_SIZE = 307200;
@@ -914,12 +1130,15 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
                 thread.setCategory(getCategory(categoryId));
             }
 
-            mbMessageServiceContext.setAddCommunityPermissions(true);
-            mbMessageServiceContext.setAddGuestPermissions(true);
+            final ServiceContext serviceContext = getMbMessageServiceContext();
+            serviceContext.setAddCommunityPermissions(true);
+            serviceContext.setAddGuestPermissions(true);
             final MBMessage savedRootMessage = internalSaveAsCurrentUser(
                     rawBody, attachments, thread,
                     MBMessageConstants.DEFAULT_PARENT_MESSAGE_ID);
             if (savedRootMessage != null) {
+                indexMessage(savedRootMessage);
+                getTopicIndex().put(toTopic(savedRootMessage));
                 return getPost(savedRootMessage.getMessageId());
             }
         } catch (final NestableException e) {
@@ -991,6 +1210,10 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
                     config.getEmailReplyToAddress());
             portletPreferences.setValue(PREFS_EMAIL_HEADER_IMAGE_URL,
                     config.getEmailHeaderImageUrl());
+            if (config.getEmailDigestMode() != null) {
+                portletPreferences.setValue(PREFS_EMAIL_DIGEST_MODE, config
+                        .getEmailDigestMode().name());
+            }
 
             portletPreferences.store();
         } catch (final Exception e) {
@@ -1016,6 +1239,30 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
         return pathRoot;
     }
 
+    /**
+     * Builds the address from the virtual host of the site, or of the portal
+     * instance if the site has none.
+     */
+    @Override
+    public String getServerUrl() {
+        if (themeDisplay == null) {
+            return null;
+        }
+        String hostname = null;
+        if (themeDisplay.getLayoutSet() != null) {
+            hostname = themeDisplay.getLayoutSet().getVirtualHostname();
+        }
+        if (Validator.isNull(hostname) && themeDisplay.getCompany() != null) {
+            hostname = themeDisplay.getCompany().getVirtualHostname();
+        }
+        if (Validator.isNull(hostname)) {
+            return null;
+        }
+        final boolean secure = themeDisplay.isSecure();
+        return PortalUtil.getPortalURL(hostname,
+                PortalUtil.getPortalPort(secure), secure);
+    }
+
     /**
      * <p>
      * Remove the Locale setting parameter in the Liferay URI.
@@ -1080,6 +1327,93 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
         return result;
     }
 
+    @Override
+    public List<Post> search(final String query, final int startIndex,
+            final int endIndex) throws DataSourceException {
+        final Map<Long, DiscussionThread> threads = new HashMap<Long, DiscussionThread>();
+        return getSearchIndex().search(query, startIndex, endIndex,
+                new PostResolver() {
+                    @Override
+                    public Post resolve(final long postId)
+                            throws DataSourceException {
+                        try {
+                            // checks the view permission of the current user
+                            final MBMessage message = MBMessageServiceUtil
+                                    .getMessage(postId);
+                            if (!message.isApproved()) {
+                                return null;
+                            }
+                            DiscussionThread thread = threads.get(message
+                                    .getThreadId());
+                            if (thread == null) {
+                                thread = getThread(message.getThreadId());
+                                threads.put(message.getThreadId(), thread);
+                            }
+                            return internalGetPost(message, thread);
+                        } catch (final NestableException e) {
+                            // deleted or not visible to the current user
+                            return null;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns the search index of the current scope group, starting a full
+     * reindex in the background if it's empty.
+     */
+    private PostSearchIndex getSearchIndex() throws DataSourceException {
+        final PostSearchIndex index = PostSearchIndex
+                .get(getSearchIndexName());
+        index.scheduleReindexing(new GroupPostSource(scopeGroupId));
+        return index;
+    }
+
+    private String getSearchIndexName() {
+        return "liferay-" + scopeGroupId;
+    }
+
+    @Override
+    public List<Topic> getTopicSuggestions(final String text,
+            final int maxResults) {
+        return getTopicIndex().suggest(text, maxResults);
+    }
+
+    /**
+     * Returns the topic index of the current scope group, starting a build in
+     * the background if it's missing or stale.
+     */
+    private TopicIndex getTopicIndex() {
+        final TopicIndex index = TopicIndex.get(getSearchIndexName());
+        index.buildIfStale(new GroupTopicSource(scopeGroupId));
+        return index;
+    }
+
+    private static Topic toTopic(final MBMessage rootMessage) {
+        return new Topic(rootMessage.getThreadId(),
+                rootMessage.getCategoryId(), rootMessage.getSubject());
+    }
+
+    /**
+     * Updates the message in the search index. A failure is not allowed to
+     * fail the write, as the next reindex will catch up. Moving a thread
+     * needs no update since the visibility of the hits is checked at query
+     * time.
+     */
+    private void indexMessage(final MBMessage message) {
+        try {
+            getSearchIndex().update(toIndexedPost(message));
+        } catch (final DataSourceException e) {
+            LOG.error("Couldn't update the search index.", e);
+        }
+    }
+
+    private static IndexedPost toIndexedPost(final MBMessage message) {
+        return new IndexedPost(message.getMessageId(), message.getThreadId(),
+                message.isRoot() ? message.getSubject() : null,
+                message.getBody(false));
+    }
+
     private Post internalGetPost(final MBMessage message,
             final DiscussionThread thread) throws NestableException {
         final User author = getUser(message.getUserId());
@@ -1105,6 +1439,22 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
         return toriConfiguration;
     }
 
+    /**
+     * Parses the stored {@link EmailDigestMode} preference value, falling back
+     * to {@link EmailDigestMode#IMMEDIATE} for missing or unknown values.
+     */
+    public static EmailDigestMode parseEmailDigestMode(final String value) {
+        EmailDigestMode result = EmailDigestMode.IMMEDIATE;
+        if (value != null) {
+            try {
+                result = EmailDigestMode.valueOf(value);
+            } catch (final IllegalArgumentException e) {
+                LOG.warn("Unknown email digest mode: " + value);
+            }
+        }
+        return result;
+    }
+
     private Configuration mapConfiguration(final PortletRequest request) {
 
         Configuration configuration = new Configuration();
@@ -1163,6 +1513,10 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
             configuration.setEmailHeaderImageUrl(portletPreferences.getValue(
                     PREFS_EMAIL_HEADER_IMAGE_URL, null));
 
+            // Email digest mode
+            configuration.setEmailDigestMode(parseEmailDigestMode(
+                    portletPreferences.getValue(PREFS_EMAIL_DIGEST_MODE, null)));
+
             // May not reply note
             configuration.setMayNotReplyNote(portletPreferences.getValue(
                     PREFS_MAY_NOT_REPLY_NOTE, null));
@@ -1277,13 +1631,58 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
         return result;
     }
 
+    @Override
+    public Set<Long> getReadThreadIds(final Collection<Long> threadIds) {
+        final Set<Long> result = new HashSet<Long>();
+        if (!isLoggedInUser()) {
+            // default to read in case of an anonymous user
+            result.addAll(threadIds);
+            return result;
+        }
+        if (threadIds.isEmpty()) {
+            return result;
+        }
+
+        final Collection<Object> ids = new ArrayList<Object>(threadIds);
+        DynamicQuery flagQuery = DynamicQueryFactoryUtil.forClass(
+                MBThreadFlag.class, PortalClassLoaderUtil.getClassLoader())
+                .add(PropertyFactoryUtil.forName("userId").eq(currentUserId))
+                .add(PropertyFactoryUtil.forName("threadId").in(ids));
+        DynamicQuery threadQuery = DynamicQueryFactoryUtil.forClass(
+                MBThread.class, PortalClassLoaderUtil.getClassLoader()).add(
+                PropertyFactoryUtil.forName("threadId").in(ids));
+        try {
+            final Map<Long, Date> flagDates = new HashMap<Long, Date>();
+            for (final Object flag : MBThreadFlagLocalServiceUtil
+                    .dynamicQuery(flagQuery)) {
+                flagDates.put(((MBThreadFlag) flag).getThreadId(),
+                        ((MBThreadFlag) flag).getModifiedDate());
+            }
+            // a flag older than the latest post doesn't count, the same as in
+            // MBThreadFlagLocalServiceUtil.hasThreadFlag
+            for (final Object object : MBThreadLocalServiceUtil
+                    .dynamicQuery(threadQuery)) {
+                final MBThread thread = (MBThread) object;
+                final Date flagDate = flagDates.get(thread.getThreadId());
+                if (flagDate != null
+                        && (thread.getLastPostDate() == null || !flagDate
+                                .before(thread.getLastPostDate()))) {
+                    result.add(thread.getThreadId());
+                }
+            }
+        } catch (final SystemException e) {
+            LOG.error("Couldn't check for read flags on threads.", e);
+        }
+        return result;
+    }
+
     @Override
     public void markThreadRead(final long threadId) throws DataSourceException {
         if (isLoggedInUser()) {
             try {
                 MBThreadFlagLocalServiceUtil.addThreadFlag(currentUserId,
                         MBThreadLocalServiceUtil.getThread(threadId),
-                        flagsServiceContext);
+                        getFlagsServiceContext());
             } catch (final NestableException e) {
                 LOG.error(String.format("Couldn't mark thread %d as read.",
                         threadId), e);
@@ -1318,12 +1717,13 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
 
             final String displayStyle = "default";
 
-            mbCategoryServiceContext.setAddGroupPermissions(true);
-            mbCategoryServiceContext.setAddGuestPermissions(true);
+            final ServiceContext serviceContext = getMbCategoryServiceContext();
+            serviceContext.setAddGroupPermissions(true);
+            serviceContext.setAddGuestPermissions(true);
             MBCategoryServiceUtil.addCategory(parentId, name, description,
                     displayStyle, null, null, null, 0, false, null, null, 0,
                     null, false, null, 0, false, null, null, false, false,
-                    mbCategoryServiceContext);
+                    serviceContext);
         } catch (final NestableException e) {
             LOG.error("Cannot persist category", e);
             throw new DataSourceException(e);
@@ -1392,14 +1792,132 @@ public class LiferayDataSource implements DataSource, PortletRequestAware {
             // Post new thread
             message = MBMessageServiceUtil.addMessage(groupId, categoryId,
                     subject, body, format, attachments, anonymous, priority,
-                    allowPingbacks, mbMessageServiceContext);
+                    allowPingbacks, getMbMessageServiceContext());
         } else {
             // Post reply
             message = MBMessageServiceUtil.addMessage(parentMessageId, "RE: "
                     + subject, body, format, attachments, anonymous, priority,
-                    allowPingbacks, mbMessageServiceContext);
+                    allowPingbacks, getMbMessageServiceContext());
         }
         return message;
     }
 
+    /**
+     * The approved message board messages of a group, leaving out the
+     * comments of other assets.
+     */
+    private static class GroupPostSource implements PostSource {
+        private final long groupId;
+
+        public GroupPostSource(final long groupId) {
+            this.groupId = groupId;
+        }
+
+        private DynamicQuery createQuery() {
+            return DynamicQueryFactoryUtil
+                    .forClass(MBMessage.class,
+                            PortalClassLoaderUtil.getClassLoader())
+                    .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                    .add(PropertyFactoryUtil.forName("status").eq(
+                            WorkflowConstants.STATUS_APPROVED))
+                    .add(PropertyFactoryUtil.forName("categoryId").ne(
+                            MBCategoryConstants.DISCUSSION_CATEGORY_ID));
+        }
+
+        @Override
+        public int getPostCount() throws DataSourceException {
+            try {
+                return (int) MBMessageLocalServiceUtil
+                        .dynamicQueryCount(createQuery());
+            } catch (final SystemException e) {
+                throw new DataSourceException(e);
+            }
+        }
+
+        @Override
+        public List<IndexedPost> getPosts(final long afterPostId,
+                final int maxResults) throws DataSourceException {
+            try {
+                final List<IndexedPost> result = new ArrayList<IndexedPost>();
+                for (final Object message : MBMessageLocalServiceUtil
+                        .dynamicQuery(
+                                createQuery().add(
+                                        PropertyFactoryUtil
+                                                .forName("messageId").gt(
+                                                        afterPostId))
+                                        .addOrder(
+                                                OrderFactoryUtil
+                                                        .asc("messageId")),
+                                0, maxResults)) {
+                    result.add(toIndexedPost((MBMessage) message));
+                }
+                return result;
+            } catch (final SystemException e) {
+                throw new DataSourceException(e);
+            }
+        }
+    }
+
+    /**
+     * The topics of the approved message board threads of a group, read from
+     * their root messages.
+     */
+    private static class GroupTopicSource implements TopicSource {
+        private final long groupId;
+
+        public GroupTopicSource(final long groupId) {
+            this.groupId = groupId;
+        }
+
+        private DynamicQuery createQuery() {
+            return DynamicQueryFactoryUtil
+                    .forClass(MBMessage.class,
+                            PortalClassLoaderUtil.getClassLoader())
+                    .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                    .add(PropertyFactoryUtil.forName("parentMessageId").eq(
+                            MBMessageConstants.DEFAULT_PARENT_MESSAGE_ID))
+                    .add(PropertyFactoryUtil.forName("status").eq(
+                            WorkflowConstants.STATUS_APPROVED))
+                    .add(PropertyFactoryUtil.forName("categoryId").ne(
+                            MBCategoryConstants.DISCUSSION_CATEGORY_ID));
+        }
+
+        @Override
+        public int getTopicCount() throws DataSourceException {
+            try {
+                return (int) MBMessageLocalServiceUtil
+                        .dynamicQueryCount(createQuery());
+            } catch (final SystemException e) {
+                throw new DataSourceException(e);
+            }
+        }
+
+        @Override
+        public List<Topic> getTopics(final int startIndex, final int endIndex)
+                throws DataSourceException {
+            try {
+                final List<Topic> result = new ArrayList<Topic>();
+                for (final Object message : MBMessageLocalServiceUtil
+                        .dynamicQuery(
+                                createQuery().addOrder(
+                                        OrderFactoryUtil.asc("messageId")),
+                                startIndex, endIndex + 1)) {
+                    result.add(toTopic((MBMessage) message));
+                }
+                return result;
+            } catch (final SystemException e) {
+                throw new DataSourceException(e);
+            }
+        }
+    }
+
+    private static class BanStatus {
+        private final boolean banned;
+        private final long checked;
+
+        public BanStatus(final boolean banned, final long checked) {
+            this.banned = banned;
+            this.checked = checked;
+        }
+    }
 }
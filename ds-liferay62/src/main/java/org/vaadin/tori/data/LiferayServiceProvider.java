@@ -16,17 +16,24 @@
 
 package org.vaadin.tori.data;
 
+import org.vaadin.tori.data.spi.Disposable;
 import org.vaadin.tori.data.spi.ServiceProvider;
 import org.vaadin.tori.service.AuthorizationService;
 import org.vaadin.tori.service.LiferayAuthorizationService;
 import org.vaadin.tori.service.LiferayToriMailService;
+import org.vaadin.tori.service.MailDigestQueue;
 import org.vaadin.tori.util.LiferayToriActivityMessaging;
 import org.vaadin.tori.util.LiferayPostFormatter;
 import org.vaadin.tori.util.PostFormatter;
 import org.vaadin.tori.util.ToriActivityMessaging;
 import org.vaadin.tori.util.ToriMailService;
 
-public class LiferayServiceProvider implements ServiceProvider {
+public class LiferayServiceProvider implements ServiceProvider, Disposable {
+
+    public LiferayServiceProvider() {
+        // sends the digests left pending by the previous deployment
+        MailDigestQueue.start();
+    }
 
     @Override
     public DataSource createDataSource() {
@@ -53,4 +60,10 @@ public class LiferayServiceProvider implements ServiceProvider {
         return new LiferayToriMailService();
     }
 
+    @Override
+    public void dispose() {
+        MailDigestQueue.shutdown();
+        LiferayToriActivityMessaging.unregisterDispatcher();
+    }
+
 }
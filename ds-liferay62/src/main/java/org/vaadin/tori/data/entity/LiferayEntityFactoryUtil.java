@@ -80,28 +80,34 @@ public class LiferayEntityFactoryUtil {
             final User lastPostAuthor, final boolean sticky,
             final LiferayDataSource dataSource) {
         final DiscussionThread entity = new DiscussionThread() {
+            private Post latestPost;
+
             @Override
             public Post getLatestPost() {
                 // TODO workaround for this hack
-                final Post fakedLastPost = new Post() {
-                    @Override
-                    public long getId() {
-                        long result = 0;
-                        try {
-                            List<MBMessage> posts = dataSource
-                                    .getLiferayPostsForThread(liferayThread
-                                            .getThreadId());
-                            MBMessage last = posts.get(posts.size() - 1);
-                            result = last.getMessageId();
-                        } catch (NestableException e) {
-                            e.printStackTrace();
+                if (latestPost == null) {
+                    latestPost = new Post() {
+                        private Long latestPostId;
+
+                        @Override
+                        public long getId() {
+                            if (latestPostId == null) {
+                                try {
+                                    latestPostId = dataSource
+                                            .getLatestLiferayPostId(liferayThread
+                                                    .getThreadId());
+                                } catch (NestableException e) {
+                                    e.printStackTrace();
+                                    return 0;
+                                }
+                            }
+                            return latestPostId;
                         }
-                        return result;
-                    }
-                };
-                fakedLastPost.setTime(liferayThread.getLastPostDate());
-                fakedLastPost.setAuthor(lastPostAuthor);
-                return fakedLastPost;
+                    };
+                    latestPost.setTime(liferayThread.getLastPostDate());
+                    latestPost.setAuthor(lastPostAuthor);
+                }
+                return latestPost;
             }
 
             @Override
@@ -122,6 +128,7 @@ public class LiferayEntityFactoryUtil {
         entity.setPostCount(liferayThread.getMessageCount());
         entity.setLocked(liferayThread.isLocked());
         entity.setViewCount(liferayThread.getViewCount());
+        entity.setLastPostTime(liferayThread.getLastPostDate());
         return entity;
     }
 
@@ -136,6 +143,7 @@ public class LiferayEntityFactoryUtil {
         entity.setThread(thread);
         entity.setAuthor(author);
         entity.setFormatBBCode(formatBBCode);
+        entity.setApproved(liferayMessage.isApproved());
         entity.setAttachments(attachments);
         return entity;
     }
@@ -17,11 +17,13 @@
 package org.vaadin.tori.service;
 
 import java.lang.reflect.Method;
+import java.util.Locale;
 
 import javax.portlet.PortletRequest;
 
 import org.apache.log4j.Logger;
 import org.vaadin.tori.PortletRequestAware;
+import org.vaadin.tori.ThreadContextAware;
 import org.vaadin.tori.data.LiferayDataSource;
 import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.service.LiferayAuthorizationConstants.CategoryAction;
@@ -30,24 +32,28 @@ import org.vaadin.tori.service.LiferayAuthorizationConstants.MessageAction;
 
 import com.liferay.portal.kernel.exception.NestableException;
 import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.util.LocaleThreadLocal;
 import com.liferay.portal.kernel.util.PortalClassLoaderUtil;
 import com.liferay.portal.kernel.util.ReflectionUtil;
 import com.liferay.portal.kernel.util.WebKeys;
+import com.liferay.portal.security.auth.CompanyThreadLocal;
+import com.liferay.portal.security.auth.PrincipalThreadLocal;
 import com.liferay.portal.security.permission.PermissionChecker;
 import com.liferay.portal.security.permission.PermissionThreadLocal;
+import com.liferay.portal.service.ServiceContext;
+import com.liferay.portal.service.ServiceContextThreadLocal;
 import com.liferay.portal.theme.ThemeDisplay;
 import com.liferay.portlet.messageboards.model.MBThread;
-import com.liferay.portlet.messageboards.service.MBBanLocalServiceUtil;
 import com.liferay.portlet.messageboards.service.MBThreadLocalServiceUtil;
 
 public class LiferayAuthorizationService implements AuthorizationService,
-        PortletRequestAware {
+        PortletRequestAware, ThreadContextAware {
 
     private static final Logger LOG = Logger
             .getLogger(LiferayAuthorizationService.class);
     private long scopeGroupId = -1;
     private String currentUser;
-    private boolean banned;
+    private Boolean banned;
 
     @Override
     public boolean mayEditCategories() {
@@ -244,6 +250,9 @@ public class LiferayAuthorizationService implements AuthorizationService,
     }
 
     private boolean isBanned() {
+        if (banned == null) {
+            banned = fetchBannedStatus();
+        }
         return banned;
     }
 
@@ -260,17 +269,17 @@ public class LiferayAuthorizationService implements AuthorizationService,
         }
     }
 
-    private void setBannedStatus() {
-        // check the ban status and store in the banned field
+    private boolean fetchBannedStatus() {
         if (currentUser != null) {
             try {
-                banned = MBBanLocalServiceUtil.hasBan(scopeGroupId,
+                return LiferayDataSource.hasBan(scopeGroupId,
                         Long.valueOf(currentUser));
             } catch (final SystemException e) {
                 LOG.error("Cannot check ban status for user " + currentUser, e);
                 e.printStackTrace();
             }
         }
+        return false;
     }
 
     @Override
@@ -287,7 +296,81 @@ public class LiferayAuthorizationService implements AuthorizationService,
         }
 
         setCurrentUser(request.getRemoteUser());
-        setBannedStatus();
+        // checked on the first permission query of the request, if any
+        banned = null;
+    }
+
+    /**
+     * Carries the permission checker, the principal, the company, the service
+     * context and the locales of the request over to the worker thread, for
+     * both the permission checks here and the remote services used by the
+     * data source. The service context is copied, as it isn't thread safe.
+     */
+    @Override
+    public ThreadContext captureThreadContext() {
+        final PermissionChecker permissionChecker = PermissionThreadLocal
+                .getPermissionChecker();
+        final String principal = PrincipalThreadLocal.getName();
+        final Long companyId = CompanyThreadLocal.getCompanyId();
+        final ServiceContext serviceContext = ServiceContextThreadLocal
+                .getServiceContext();
+        final Locale defaultLocale = LocaleThreadLocal.getDefaultLocale();
+        final Locale siteDefaultLocale = LocaleThreadLocal
+                .getSiteDefaultLocale();
+        final Locale themeDisplayLocale = LocaleThreadLocal
+                .getThemeDisplayLocale();
+        return new ThreadContext() {
+            private PermissionChecker previousPermissionChecker;
+            private String previousPrincipal;
+            private Long previousCompanyId;
+            private boolean serviceContextPushed;
+            private Locale previousDefaultLocale;
+            private Locale previousSiteDefaultLocale;
+            private Locale previousThemeDisplayLocale;
+
+            @Override
+            public void attach() {
+                previousPermissionChecker = PermissionThreadLocal
+                        .getPermissionChecker();
+                previousPrincipal = PrincipalThreadLocal.getName();
+                previousCompanyId = CompanyThreadLocal.getCompanyId();
+                previousDefaultLocale = LocaleThreadLocal.getDefaultLocale();
+                previousSiteDefaultLocale = LocaleThreadLocal
+                        .getSiteDefaultLocale();
+                previousThemeDisplayLocale = LocaleThreadLocal
+                        .getThemeDisplayLocale();
+
+                PermissionThreadLocal.setPermissionChecker(permissionChecker);
+                PrincipalThreadLocal.setName(principal);
+                CompanyThreadLocal.setCompanyId(companyId);
+                if (serviceContext != null) {
+                    ServiceContextThreadLocal
+                            .pushServiceContext((ServiceContext) serviceContext
+                                    .clone());
+                    serviceContextPushed = true;
+                }
+                LocaleThreadLocal.setDefaultLocale(defaultLocale);
+                LocaleThreadLocal.setSiteDefaultLocale(siteDefaultLocale);
+                LocaleThreadLocal.setThemeDisplayLocale(themeDisplayLocale);
+            }
+
+            @Override
+            public void detach() {
+                PermissionThreadLocal
+                        .setPermissionChecker(previousPermissionChecker);
+                PrincipalThreadLocal.setName(previousPrincipal);
+                CompanyThreadLocal.setCompanyId(previousCompanyId);
+                if (serviceContextPushed) {
+                    ServiceContextThreadLocal.popServiceContext();
+                    serviceContextPushed = false;
+                }
+                LocaleThreadLocal.setDefaultLocale(previousDefaultLocale);
+                LocaleThreadLocal
+                        .setSiteDefaultLocale(previousSiteDefaultLocale);
+                LocaleThreadLocal
+                        .setThemeDisplayLocale(previousThemeDisplayLocale);
+            }
+        };
     }
 
     @Override
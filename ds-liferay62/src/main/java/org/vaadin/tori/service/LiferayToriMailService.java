@@ -37,9 +37,12 @@ import org.apache.log4j.Logger;
 import org.fit.cssbox.css.CSSNorm;
 import org.fit.cssbox.css.DOMAnalyzer;
 import org.jsoup.Jsoup;
+import org.vaadin.tori.Configuration.EmailDigestMode;
 import org.vaadin.tori.PortletRequestAware;
 import org.vaadin.tori.data.LiferayDataSource;
 import org.vaadin.tori.data.entity.LiferayEntityFactoryUtil;
+import org.vaadin.tori.service.MailDigestQueue.DigestEntry;
+import org.vaadin.tori.service.MailDigestQueue.DigestEnvelope;
 import org.vaadin.tori.util.DOMBuilder;
 import org.vaadin.tori.util.ToriMailService;
 import org.w3c.dom.Document;
@@ -95,13 +98,13 @@ public class LiferayToriMailService implements ToriMailService,
         this.mailTemplateHtml = mailTemplateHtml;
     }
 
-    private SMTPAccount getSMTPAccout(final MBMessage mbMessage) {
+    static SMTPAccount getSMTPAccount(final long groupId,
+            final long categoryId) {
         SMTPAccount account = null;
         try {
 
             MBMailingList mailingList = MBMailingListLocalServiceUtil
-                    .getCategoryMailingList(mbMessage.getGroupId(),
-                            mbMessage.getCategoryId());
+                    .getCategoryMailingList(groupId, categoryId);
             if (mailingList.isOutCustom()) {
                 String protocol = Account.PROTOCOL_SMTP;
 
@@ -133,31 +136,20 @@ public class LiferayToriMailService implements ToriMailService,
             String userAvatarUrl = LiferayEntityFactoryUtil.getAvatarUrl(
                     user.getPortraitId(), imagePath, user.isFemale());
             if (userAvatarUrl != null) {
-                avatarUrl = mbMessageServiceContext.getPortalURL()
+                avatarUrl = getMbMessageServiceContext().getPortalURL()
                         + userAvatarUrl;
             }
         } catch (NestableException e) {
             // Ignore
         }
 
-        MBMessage rootMessage = MBMessageLocalServiceUtil.getMessage(mbMessage
-                .getThread().getRootMessageId());
-        String threadTopic = rootMessage.getSubject();
-        threadTopic = stripTags(threadTopic);
-
-        String userDisplayName = user != null ? user.getFullName()
-                : "Anonymous";
-        if (user != null
-                && LiferayEntityFactoryUtil.usesScreennameOnTori(user)) {
-            userDisplayName = user.getScreenName();
-        }
-        userDisplayName = stripTags(userDisplayName);
+        String threadTopic = getThreadTopic(mbMessage);
+        String userDisplayName = getUserDisplayName(user);
 
         String headerImage = getPreferenceValue(
                 LiferayDataSource.PREFS_EMAIL_HEADER_IMAGE_URL, null);
 
-        String threadUrl = mbMessageServiceContext.getLayoutFullURL()
-                + "#!/thread/" + mbMessage.getThreadId();
+        String threadUrl = getThreadUrl(mbMessage);
 
         String permaLink = threadUrl + "/" + mbMessage.getMessageId();
 
@@ -168,6 +160,60 @@ public class LiferayToriMailService implements ToriMailService,
 
     }
 
+    private String getThreadTopic(final MBMessage mbMessage)
+            throws PortalException, SystemException {
+        MBMessage rootMessage = MBMessageLocalServiceUtil.getMessage(mbMessage
+                .getThread().getRootMessageId());
+        return stripTags(rootMessage.getSubject());
+    }
+
+    private String getUserDisplayName(final User user) {
+        String userDisplayName = user != null ? user.getFullName()
+                : "Anonymous";
+        if (user != null
+                && LiferayEntityFactoryUtil.usesScreennameOnTori(user)) {
+            userDisplayName = user.getScreenName();
+        }
+        return stripTags(userDisplayName);
+    }
+
+    private String getThreadUrl(final MBMessage mbMessage)
+            throws PortalException, SystemException {
+        return getMbMessageServiceContext().getLayoutFullURL() + "#!/thread/"
+                + mbMessage.getThreadId();
+    }
+
+    private void queueDigest(final MBMessage mbMessage,
+            final String formattedPostBody,
+            final InternetAddress[] bulkAddresses,
+            final EmailDigestMode digestMode, final InternetAddress from,
+            final InternetAddress replyTo) throws PortalException,
+            SystemException {
+        User user = null;
+        try {
+            user = UserLocalServiceUtil.getUser(mbMessage.getUserId());
+        } catch (NestableException e) {
+            // Ignore
+        }
+
+        String threadUrl = getThreadUrl(mbMessage);
+        DigestEntry entry = new DigestEntry(getThreadTopic(mbMessage),
+                getUserDisplayName(user), formattedPostBody, threadUrl,
+                threadUrl + "/" + mbMessage.getMessageId());
+
+        DigestEnvelope envelope = new DigestEnvelope(from, replyTo,
+                mbMessage.getGroupId(), mbMessage.getCategoryId(),
+                mailTemplateHtml, mailThemeCss, getPreferenceValue(
+                        LiferayDataSource.PREFS_EMAIL_HEADER_IMAGE_URL, null),
+                getMbMessageServiceContext().getLayoutFullURL());
+
+        // the envelope depends on the preferences of this portlet instance
+        String forumKey = mbMessage.getCompanyId() + ":"
+                + mbMessage.getGroupId() + ":" + request.getWindowID();
+        MailDigestQueue.getInstance().queue(forumKey, bulkAddresses,
+                digestMode, envelope, entry);
+    }
+
     static String populateTemplate(final String htmlTemplate,
             final String avatarUrl, final String threadTopic,
             final String userDisplayName, final String bodyFormatted,
@@ -319,12 +365,6 @@ public class LiferayToriMailService implements ToriMailService,
             InternetAddress[] bulkAddresses = parseAddresses(mbMessage);
 
             if (bulkAddresses.length > 0) {
-                String mailId = getMailId(mbMessage.getCompanyId(),
-                        mbMessage.getCategoryId(), mbMessage.getMessageId());
-                String body = formMailBody(mbMessage, formattedPostBody);
-
-                String subject = "[" + mbMessage.getCategory().getName() + "] "
-                        + mbMessage.getSubject();
                 Company company = CompanyLocalServiceUtil.getCompany(mbMessage
                         .getCompanyId());
                 String companyEmail = company.getEmailAddress();
@@ -348,7 +388,28 @@ public class LiferayToriMailService implements ToriMailService,
                     replyToAddress = fromAddress;
                 }
 
-                SMTPAccount account = getSMTPAccout(mbMessage);
+                InternetAddress from = new InternetAddress(fromAddress,
+                        fromName);
+
+                InternetAddress replyTo = new InternetAddress(replyToAddress,
+                        replyToAddress);
+
+                EmailDigestMode digestMode = LiferayDataSource
+                        .parseEmailDigestMode(getPreferenceValue(
+                                LiferayDataSource.PREFS_EMAIL_DIGEST_MODE,
+                                null));
+                if (digestMode != EmailDigestMode.IMMEDIATE) {
+                    queueDigest(mbMessage, formattedPostBody, bulkAddresses,
+                            digestMode, from, replyTo);
+                    return;
+                }
+
+                String mailId = getMailId(mbMessage.getCompanyId(),
+                        mbMessage.getCategoryId(), mbMessage.getMessageId());
+                String body = formMailBody(mbMessage, formattedPostBody);
+
+                String subject = "[" + mbMessage.getCategory().getName() + "] "
+                        + mbMessage.getSubject();
 
                 String inReplyTo = null;
                 if (mbMessage.getParentMessageId() != MBMessageConstants.DEFAULT_PARENT_MESSAGE_ID) {
@@ -357,22 +418,17 @@ public class LiferayToriMailService implements ToriMailService,
                             mbMessage.getParentMessageId());
                 }
 
-                InternetAddress from = new InternetAddress(fromAddress,
-                        fromName);
-
                 InternetAddress to = new InternetAddress(replyToAddress,
                         replyToAddress);
 
-                InternetAddress replyTo = new InternetAddress(replyToAddress,
-                        replyToAddress);
-
                 MailMessage message = new MailMessage(from, to, subject, body,
                         true);
                 message.setBulkAddresses(bulkAddresses);
                 message.setMessageId(mailId);
                 message.setInReplyTo(inReplyTo);
                 message.setReplyTo(new InternetAddress[] { replyTo });
-                message.setSMTPAccount(account);
+                message.setSMTPAccount(getSMTPAccount(mbMessage.getGroupId(),
+                        mbMessage.getCategoryId()));
 
                 MailServiceUtil.sendEmail(message);
             }
@@ -410,26 +466,33 @@ public class LiferayToriMailService implements ToriMailService,
         return sb.toString();
     }
 
-    private Logger getLogger() {
+    private static Logger getLogger() {
         return Logger.getLogger(LiferayToriMailService.class);
     }
 
     @Override
     public void setRequest(final PortletRequest request) {
         this.request = request;
+        // built on demand, only a request that sends mail needs one
+        mbMessageServiceContext = null;
 
         try {
             imagePath = ((ThemeDisplay) request
                     .getAttribute(WebKeys.THEME_DISPLAY)).getPathImage();
-            mbMessageServiceContext = ServiceContextFactory.getInstance(
-                    MBMessage.class.getName(), request);
-        } catch (NestableException e) {
-            getLogger().error("Unable to initialize mail service", e);
         } catch (NullPointerException e) {
             getLogger().error("Unable to initialize mail service", e);
         }
     }
 
+    private ServiceContext getMbMessageServiceContext()
+            throws PortalException, SystemException {
+        if (mbMessageServiceContext == null) {
+            mbMessageServiceContext = ServiceContextFactory.getInstance(
+                    MBMessage.class.getName(), request);
+        }
+        return mbMessageServiceContext;
+    }
+
     private String getPreferenceValue(final String preferenceKey,
             final String defaultValue) {
         String result = defaultValue;
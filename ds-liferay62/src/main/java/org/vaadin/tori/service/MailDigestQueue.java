@@ -0,0 +1,464 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.InternetAddress;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.Configuration.EmailDigestMode;
+import org.vaadin.tori.util.ManagedBeans;
+
+import com.liferay.mail.service.MailServiceUtil;
+import com.liferay.portal.kernel.mail.MailMessage;
+import com.liferay.portal.kernel.util.PropsKeys;
+import com.liferay.portal.kernel.util.PropsUtil;
+
+/**
+ * Node-wide buffer for thread notifications delivered in one of the digest
+ * modes. New posts are appended to a digest per recipient and forum, and a
+ * single mail listing all of them is rendered and sent once the period of the
+ * digest's {@link EmailDigestMode} has elapsed.
+ * <p>
+ * The pending digests are written to {@value #STORE_FILE} in the Liferay data
+ * directory every minute and when the queue is shut down, and read back when
+ * it is started again, so that a restart or a redeployment doesn't drop them.
+ * The queue's statistics are registered as an MBean of the deployment, see
+ * {@link ManagedBeans}.
+ */
+public final class MailDigestQueue implements MailDigestQueueMXBean {
+
+    static final String MBEAN_KEYS = "type=MailDigestQueue";
+
+    private static final String STORE_FILE = "tori/mail-digests.ser";
+
+    private static final long FLUSH_CHECK_INTERVAL = 60 * 1000;
+
+    private static MailDigestQueue instance;
+
+    private final ConcurrentMap<String, Digest> digests = new ConcurrentHashMap<String, Digest>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final AtomicLong sentDigests = new AtomicLong();
+    private final AtomicLong failedDigests = new AtomicLong();
+    private final Sender sender;
+    private final File storeFile;
+    private Timer timer;
+    private ObjectName mbeanName;
+
+    /**
+     * Sends a digest mail.
+     */
+    interface Sender {
+        void send(InternetAddress recipient, DigestEnvelope envelope,
+                List<DigestEntry> entries) throws Exception;
+    }
+
+    MailDigestQueue(final Sender sender, final File storeFile) {
+        this.sender = sender;
+        this.storeFile = storeFile;
+    }
+
+    /**
+     * Starts the queue of this node unless already started, restoring the
+     * digests stored by the previous deployment.
+     */
+    public static void start() {
+        getInstance();
+    }
+
+    /**
+     * Returns the queue of this node, starting it if not started yet.
+     */
+    static synchronized MailDigestQueue getInstance() {
+        if (instance == null) {
+            instance = new MailDigestQueue(new MailSender(), getStoreFile());
+            instance.load();
+            instance.startTimer();
+            instance.registerMBean();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the queue of this node, storing its pending digests for the next
+     * deployment.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stopTimer();
+            instance.store();
+            instance.unregisterMBean();
+            instance = null;
+        }
+    }
+
+    private static File getStoreFile() {
+        final String liferayHome = PropsUtil.get(PropsKeys.LIFERAY_HOME);
+        final File dataDir = liferayHome != null ? new File(liferayHome,
+                "data") : new File(System.getProperty("java.io.tmpdir"));
+        return new File(dataDir, STORE_FILE);
+    }
+
+    private void startTimer() {
+        timer = new Timer("tori-mail-digest", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flushExpired(System.currentTimeMillis());
+                if (dirty.get()) {
+                    store();
+                }
+            }
+        }, FLUSH_CHECK_INTERVAL, FLUSH_CHECK_INTERVAL);
+    }
+
+    private void stopTimer() {
+        timer.cancel();
+        timer = null;
+    }
+
+    /**
+     * Appends a new post to the digest of each of the given recipients in the
+     * given forum.
+     * 
+     * @param forumKey
+     *            identifies the forum the post was made in, so that posts
+     *            from different forums are never listed in the same digest
+     */
+    void queue(final String forumKey, final InternetAddress[] recipients,
+            final EmailDigestMode mode, final DigestEnvelope envelope,
+            final DigestEntry entry) {
+        for (final InternetAddress recipient : recipients) {
+            final String key = mode.name() + ":" + forumKey + ":"
+                    + recipient.getAddress().toLowerCase();
+            boolean added = false;
+            while (!added) {
+                Digest digest = digests.get(key);
+                if (digest == null) {
+                    final Digest newDigest = new Digest(recipient, mode,
+                            System.currentTimeMillis());
+                    digest = digests.putIfAbsent(key, newDigest);
+                    if (digest == null) {
+                        digest = newDigest;
+                    }
+                }
+                // a digest being flushed concurrently refuses new entries
+                added = digest.add(envelope, entry);
+            }
+        }
+        dirty.set(true);
+    }
+
+    void flushExpired(final long now) {
+        for (final Entry<String, Digest> entry : digests.entrySet()) {
+            final Digest digest = entry.getValue();
+            if (digest.isExpired(now)
+                    && digests.remove(entry.getKey(), digest)) {
+                dirty.set(true);
+                try {
+                    digest.send(sender);
+                    sentDigests.incrementAndGet();
+                } catch (final Exception e) {
+                    failedDigests.incrementAndGet();
+                    getLogger().warn(
+                            "Unable to send email digest to "
+                                    + digest.recipient.getAddress(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending digests to the store file, replacing its previous
+     * contents.
+     */
+    synchronized void store() {
+        dirty.set(false);
+        final Map<String, Digest> copies = new HashMap<String, Digest>();
+        for (final Entry<String, Digest> entry : digests.entrySet()) {
+            copies.put(entry.getKey(), entry.getValue().copy());
+        }
+        try {
+            storeFile.getParentFile().mkdirs();
+            final File tempFile = new File(storeFile.getPath() + ".tmp");
+            final ObjectOutputStream out = new ObjectOutputStream(
+                    new FileOutputStream(tempFile));
+            try {
+                // the envelopes shared by the digests are written only once
+                out.writeObject(copies);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(storeFile)) {
+                storeFile.delete();
+                if (!tempFile.renameTo(storeFile)) {
+                    throw new IOException("Unable to rename " + tempFile);
+                }
+            }
+        } catch (final IOException e) {
+            dirty.set(true);
+            getLogger().warn("Unable to store email digests to " + storeFile,
+                    e);
+        }
+    }
+
+    /**
+     * Adds the digests in the store file to the queue.
+     */
+    @SuppressWarnings("unchecked")
+    void load() {
+        if (!storeFile.isFile()) {
+            return;
+        }
+        try {
+            final ObjectInputStream in = new ObjectInputStream(
+                    new FileInputStream(storeFile));
+            try {
+                digests.putAll((Map<String, Digest>) in.readObject());
+            } finally {
+                in.close();
+            }
+            getLogger().info(
+                    "Restored " + digests.size() + " pending email digests");
+        } catch (final Exception e) {
+            // e.g. written by an incompatible version
+            getLogger().warn(
+                    "Unable to restore email digests from " + storeFile, e);
+        }
+    }
+
+    @Override
+    public int getQueuedDigests() {
+        return digests.size();
+    }
+
+    @Override
+    public int getQueuedEntries() {
+        int entries = 0;
+        for (final Digest digest : digests.values()) {
+            entries += digest.size();
+        }
+        return entries;
+    }
+
+    @Override
+    public long getSentDigests() {
+        return sentDigests.get();
+    }
+
+    @Override
+    public long getFailedDigests() {
+        return failedDigests.get();
+    }
+
+    private void registerMBean() {
+        final ObjectName name = ManagedBeans.getObjectName(MBEAN_KEYS);
+        mbeanName = ManagedBeans.register(name, this) ? name : null;
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName != null) {
+            ManagedBeans.unregister(mbeanName);
+            mbeanName = null;
+        }
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(MailDigestQueue.class);
+    }
+
+    /**
+     * Sender side information of a digest mail. The latest envelope queued for
+     * a recipient is used when the digest is sent. The SMTP account is looked
+     * up from the mailing list of the category only when sending, so that its
+     * credentials are never stored.
+     */
+    static class DigestEnvelope implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final InternetAddress from;
+        private final InternetAddress replyTo;
+        private final long groupId;
+        private final long categoryId;
+        private final String mailTemplateHtml;
+        private final String mailThemeCss;
+        private final String headerImage;
+        private final String forumUrl;
+
+        DigestEnvelope(final InternetAddress from,
+                final InternetAddress replyTo, final long groupId,
+                final long categoryId, final String mailTemplateHtml,
+                final String mailThemeCss, final String headerImage,
+                final String forumUrl) {
+            this.from = from;
+            this.replyTo = replyTo;
+            this.groupId = groupId;
+            this.categoryId = categoryId;
+            this.mailTemplateHtml = mailTemplateHtml;
+            this.mailThemeCss = mailThemeCss;
+            this.headerImage = headerImage;
+            this.forumUrl = forumUrl;
+        }
+    }
+
+    /**
+     * A single new post listed in a digest mail. Only the already formatted
+     * strings are kept to keep the buffer compact.
+     */
+    static class DigestEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String threadTopic;
+        private final String userDisplayName;
+        private final String bodyFormatted;
+        private final String threadUrl;
+        private final String permaLink;
+
+        DigestEntry(final String threadTopic, final String userDisplayName,
+                final String bodyFormatted, final String threadUrl,
+                final String permaLink) {
+            this.threadTopic = threadTopic;
+            this.userDisplayName = userDisplayName;
+            this.bodyFormatted = bodyFormatted;
+            this.threadUrl = threadUrl;
+            this.permaLink = permaLink;
+        }
+
+        private void appendTo(final StringBuilder sb) {
+            sb.append("<div class=\"digestentry\">");
+            sb.append("<p class=\"digestentryheader\"><a class=\"authorname nolink\">");
+            sb.append(userDisplayName);
+            sb.append("</a> in <a href=\"").append(threadUrl).append("\">");
+            sb.append(threadTopic).append("</a></p>");
+            sb.append("<div class=\"bodytext\">").append(bodyFormatted)
+                    .append("</div>");
+            sb.append("<p><a href=\"").append(permaLink)
+                    .append("\">View post</a></p>");
+            sb.append("<hr /></div>");
+        }
+    }
+
+    private static class Digest implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final InternetAddress recipient;
+        private final EmailDigestMode mode;
+        private final long created;
+        private final List<DigestEntry> entries = new ArrayList<DigestEntry>();
+        private DigestEnvelope envelope;
+        private boolean closed;
+
+        public Digest(final InternetAddress recipient,
+                final EmailDigestMode mode, final long created) {
+            this.recipient = recipient;
+            this.mode = mode;
+            this.created = created;
+        }
+
+        public synchronized boolean add(final DigestEnvelope envelope,
+                final DigestEntry entry) {
+            if (closed) {
+                return false;
+            }
+            this.envelope = envelope;
+            entries.add(entry);
+            return true;
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        public synchronized Digest copy() {
+            final Digest copy = new Digest(recipient, mode, created);
+            copy.entries.addAll(entries);
+            copy.envelope = envelope;
+            return copy;
+        }
+
+        public boolean isExpired(final long now) {
+            return now - created >= mode.getPeriodMillis();
+        }
+
+        public void send(final Sender sender) throws Exception {
+            final List<DigestEntry> sentEntries;
+            final DigestEnvelope sentEnvelope;
+            synchronized (this) {
+                closed = true;
+                sentEntries = new ArrayList<DigestEntry>(entries);
+                sentEnvelope = envelope;
+            }
+            if (!sentEntries.isEmpty()) {
+                sender.send(recipient, sentEnvelope, sentEntries);
+            }
+        }
+    }
+
+    /**
+     * Renders the digest with the mail template and sends it through the
+     * portal's mail service.
+     */
+    private static class MailSender implements Sender {
+        @Override
+        public void send(final InternetAddress recipient,
+                final DigestEnvelope envelope, final List<DigestEntry> entries)
+                throws Exception {
+            final StringBuilder body = new StringBuilder();
+            for (final DigestEntry entry : entries) {
+                entry.appendTo(body);
+            }
+
+            final String topic = entries.size() == 1 ? "1 new post"
+                    : entries.size() + " new posts";
+            final String html = LiferayToriMailService.populateTemplate(
+                    envelope.mailTemplateHtml, "", topic,
+                    envelope.from.getPersonal(), body.toString(),
+                    envelope.headerImage, envelope.forumUrl,
+                    envelope.forumUrl);
+            final String inlined = LiferayToriMailService.formatInlineCSS(
+                    html, envelope.mailThemeCss);
+
+            final String subject = "[" + envelope.from.getPersonal() + "] "
+                    + topic;
+            final MailMessage message = new MailMessage(envelope.from,
+                    recipient, subject, inlined, true);
+            message.setReplyTo(new InternetAddress[] { envelope.replyTo });
+            message.setSMTPAccount(LiferayToriMailService.getSMTPAccount(
+                    envelope.groupId, envelope.categoryId));
+            MailServiceUtil.sendEmail(message);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.service;
+
+/**
+ * Management interface of the node-wide {@link MailDigestQueue}.
+ */
+public interface MailDigestQueueMXBean {
+
+    /** The number of recipients with a digest waiting to be sent. */
+    int getQueuedDigests();
+
+    /** The number of posts in all the digests waiting to be sent. */
+    int getQueuedEntries();
+
+    long getSentDigests();
+
+    long getFailedDigests();
+}
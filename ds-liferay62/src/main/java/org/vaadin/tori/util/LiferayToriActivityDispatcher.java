@@ -0,0 +1,452 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.ToriUtil;
+import org.vaadin.tori.util.ToriActivityMessaging.PostChangedListener;
+import org.vaadin.tori.util.ToriActivityMessaging.UserAuthoredListener;
+import org.vaadin.tori.util.ToriActivityMessaging.UserTypingListener;
+
+import com.liferay.portal.ModelListenerException;
+import com.liferay.portal.kernel.cluster.ClusterLinkUtil;
+import com.liferay.portal.kernel.cluster.Priority;
+import com.liferay.portal.kernel.messaging.Destination;
+import com.liferay.portal.kernel.messaging.Message;
+import com.liferay.portal.kernel.messaging.MessageBusUtil;
+import com.liferay.portal.kernel.messaging.MessageListener;
+import com.liferay.portal.kernel.messaging.ParallelDestination;
+import com.liferay.portal.model.BaseModelListener;
+import com.liferay.portal.model.ModelListener;
+import com.liferay.portlet.messageboards.model.MBMessage;
+import com.liferay.portlet.messageboards.service.persistence.MBMessageUtil;
+
+/**
+ * The single {@link MessageListener} of the {@value #TORI_DESTINATION}
+ * destination on this node. Subscriptions are indexed by thread id so that an
+ * event is only delivered to the listeners of the affected thread, plus the
+ * ones listening to all threads. Listeners are only weakly referenced, so
+ * subscriptions of sessions that were never deregistered are pruned once their
+ * UIs have been garbage collected.
+ * <p>
+ * Edits and deletions of message board messages are observed with a model
+ * listener, so that also the changes made outside Tori (e.g. in the Liferay
+ * message boards portlet) are announced. The announcement is multicast to the
+ * other nodes of the cluster when cluster link is enabled.
+ * <p>
+ * The subscription and event counts are registered as an MBean of the
+ * deployment, see {@link ManagedBeans}.
+ */
+final class LiferayToriActivityDispatcher implements MessageListener,
+        ToriActivityStatsMXBean {
+
+    static final String TORI_DESTINATION = "tori/activity";
+    static final String MBEAN_KEYS = "type=ActivityDispatcher";
+
+    static final String TORI_ACTIVITY_ID = "toriactivity";
+    static final String TORI_ACTIVITY_USERTYPING = "usertyping";
+    static final String TORI_ACTIVITY_USERAUTHORED = "userauthored";
+    static final String TORI_ACTIVITY_POSTCHANGED = "postchanged";
+
+    static final String SENDER_ID = "SENDER_ID";
+
+    static final String USER_ID = "USER_ID";
+    static final String THREAD_ID = "THREAD_ID";
+    static final String STARTED_TYPING = "STARTED_TYPING";
+    static final String POST_ID = "POST_ID";
+    static final String AUTHOR_NAME = "AUTHOR_NAME";
+    static final String POST_TIME = "POST_TIME";
+
+    private static final LiferayToriActivityDispatcher INSTANCE = new LiferayToriActivityDispatcher();
+
+    private final ConcurrentMap<Long, Set<Subscription>> threadSubscriptions = new ConcurrentHashMap<Long, Set<Subscription>>();
+    private final Set<Subscription> globalSubscriptions = newSubscriptionSet();
+    private final AtomicLong receivedTypingEvents = new AtomicLong();
+    private final AtomicLong receivedAuthoredEvents = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong deliveryErrors = new AtomicLong();
+
+    private final ModelListener<MBMessage> messageListener = new BaseModelListener<MBMessage>() {
+        @Override
+        public void onAfterUpdate(final MBMessage model)
+                throws ModelListenerException {
+            sendPostChanged(model);
+        }
+
+        @Override
+        public void onAfterRemove(final MBMessage model)
+                throws ModelListenerException {
+            sendPostChanged(model);
+        }
+    };
+
+    private boolean registered;
+    private ObjectName mbeanName;
+
+    private LiferayToriActivityDispatcher() {
+    }
+
+    static LiferayToriActivityDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers this dispatcher to the message bus unless already registered.
+     */
+    synchronized void register() {
+        if (!registered) {
+            if (!MessageBusUtil.getMessageBus().hasDestination(
+                    TORI_DESTINATION)) {
+                getLogger().info(
+                        "Adding a message bus destination: "
+                                + TORI_DESTINATION);
+                @SuppressWarnings("deprecation")
+                Destination destination = new ParallelDestination(
+                        TORI_DESTINATION);
+                destination.open();
+                MessageBusUtil.addDestination(destination);
+            }
+            MessageBusUtil.registerMessageListener(TORI_DESTINATION, this);
+            MBMessageUtil.getPersistence().registerListener(messageListener);
+            registerMBean();
+            registered = true;
+        }
+    }
+
+    /**
+     * Unregisters this dispatcher from the message bus and drops all the
+     * subscriptions, so that the message bus doesn't keep the undeployed
+     * classes alive or deliver events to them.
+     */
+    synchronized void unregister() {
+        if (registered) {
+            MessageBusUtil.unregisterMessageListener(TORI_DESTINATION, this);
+            MBMessageUtil.getPersistence().unregisterListener(messageListener);
+            unregisterMBean();
+            threadSubscriptions.clear();
+            globalSubscriptions.clear();
+            registered = false;
+        }
+    }
+
+    /**
+     * Subscribes the listener to the events of the given thread, or to the
+     * events of all threads if <code>threadId</code> is <code>null</code>.
+     * Events sent by the given owner are never delivered back to it.
+     * 
+     * @throws IllegalArgumentException
+     *             if <code>ownerId</code> is <code>null</code>
+     */
+    void subscribe(final String ownerId, final Long threadId,
+            final UserTypingListener listener) {
+        subscribe(new Subscription(ownerId, listener, Kind.TYPING), threadId);
+    }
+
+    /**
+     * Subscribes the listener to the events of the given thread, or to the
+     * events of all threads if <code>threadId</code> is <code>null</code>.
+     * Events sent by the given owner are never delivered back to it.
+     * 
+     * @throws IllegalArgumentException
+     *             if <code>ownerId</code> is <code>null</code>
+     */
+    void subscribe(final String ownerId, final Long threadId,
+            final UserAuthoredListener listener) {
+        subscribe(new Subscription(ownerId, listener, Kind.AUTHORED),
+                threadId);
+    }
+
+    /**
+     * Subscribes the listener to the post changes of the given thread. Changes
+     * are delivered also to the owner that made them, since they are
+     * typically made without going through the owner.
+     * 
+     * @throws IllegalArgumentException
+     *             if <code>ownerId</code> is <code>null</code>
+     */
+    void subscribe(final String ownerId, final long threadId,
+            final PostChangedListener listener) {
+        subscribe(new Subscription(ownerId, listener, Kind.CHANGED), threadId);
+    }
+
+    private void subscribe(final Subscription subscription,
+            final Long threadId) {
+        ToriUtil.checkForNull(subscription.ownerId, "ownerId may not be null");
+        if (threadId == null) {
+            globalSubscriptions.add(subscription);
+            return;
+        }
+
+        boolean added = false;
+        while (!added) {
+            Set<Subscription> subscriptions = threadSubscriptions
+                    .get(threadId);
+            if (subscriptions == null) {
+                final Set<Subscription> newSubscriptions = newSubscriptionSet();
+                subscriptions = threadSubscriptions.putIfAbsent(threadId,
+                        newSubscriptions);
+                if (subscriptions == null) {
+                    subscriptions = newSubscriptions;
+                }
+            }
+            subscriptions.add(subscription);
+            // retry if the set was concurrently dropped as empty
+            added = threadSubscriptions.get(threadId) == subscriptions;
+        }
+    }
+
+    /**
+     * Removes all the typing event subscriptions of the given listener.
+     */
+    void unsubscribe(final UserTypingListener listener) {
+        removeSubscriptions(listener, Kind.TYPING, null);
+    }
+
+    /**
+     * Removes all the authored event subscriptions of the given listener.
+     */
+    void unsubscribe(final UserAuthoredListener listener) {
+        removeSubscriptions(listener, Kind.AUTHORED, null);
+    }
+
+    /**
+     * Removes all the post change subscriptions of the given listener.
+     */
+    void unsubscribe(final PostChangedListener listener) {
+        removeSubscriptions(listener, Kind.CHANGED, null);
+    }
+
+    /**
+     * Removes all the subscriptions made by the given owner.
+     */
+    void unsubscribeAll(final String ownerId) {
+        removeSubscriptions(null, null, ownerId);
+    }
+
+    private void removeSubscriptions(final Object listener,
+            final Kind kind, final String ownerId) {
+        removeMatching(globalSubscriptions, listener, kind, ownerId);
+        for (final Entry<Long, Set<Subscription>> entry : threadSubscriptions
+                .entrySet()) {
+            removeMatching(entry.getValue(), listener, kind, ownerId);
+            if (entry.getValue().isEmpty()) {
+                threadSubscriptions.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void removeMatching(final Set<Subscription> subscriptions,
+            final Object listener, final Kind kind, final String ownerId) {
+        for (final Iterator<Subscription> it = subscriptions.iterator(); it
+                .hasNext();) {
+            final Subscription subscription = it.next();
+            final Object subscribed = subscription.listener.get();
+            if (subscribed == null
+                    || (subscribed == listener && subscription.kind == kind)
+                    || (ownerId != null && ownerId
+                            .equals(subscription.ownerId))) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void receive(final Message message) {
+        final Object activity = message.get(TORI_ACTIVITY_ID);
+        final long threadId = message.getLong(THREAD_ID);
+        final Object senderId = message.get(SENDER_ID);
+
+        PostSnapshot post = null;
+        if (TORI_ACTIVITY_USERTYPING.equals(activity)) {
+            receivedTypingEvents.incrementAndGet();
+        } else if (TORI_ACTIVITY_USERAUTHORED.equals(activity)) {
+            receivedAuthoredEvents.incrementAndGet();
+            // one snapshot shared by all the receivers on this node
+            post = new PostSnapshot(message.getLong(POST_ID), threadId,
+                    message.getLong(USER_ID), message.getString(AUTHOR_NAME),
+                    new Date(message.getLong(POST_TIME)));
+        }
+
+        final Set<Subscription> subscriptions = threadSubscriptions
+                .get(threadId);
+        if (subscriptions != null) {
+            deliver(subscriptions, activity, senderId, message, post);
+            if (subscriptions.isEmpty()) {
+                threadSubscriptions.remove(threadId, subscriptions);
+            }
+        }
+        deliver(globalSubscriptions, activity, senderId, message, post);
+    }
+
+    private void deliver(final Set<Subscription> subscriptions,
+            final Object activity, final Object senderId,
+            final Message message, final PostSnapshot post) {
+        for (final Iterator<Subscription> it = subscriptions.iterator(); it
+                .hasNext();) {
+            final Subscription subscription = it.next();
+            final Object listener = subscription.listener.get();
+            if (listener == null) {
+                it.remove();
+            } else if (subscription.kind == Kind.CHANGED) {
+                if (TORI_ACTIVITY_POSTCHANGED.equals(activity)) {
+                    try {
+                        deliveries.incrementAndGet();
+                        ((PostChangedListener) listener).postChanged(
+                                message.getLong(THREAD_ID),
+                                message.getLong(POST_ID));
+                    } catch (final RuntimeException e) {
+                        deliveryErrors.incrementAndGet();
+                        getLogger().warn("Unable to deliver Tori activity", e);
+                    }
+                }
+            } else if (senderId == null
+                    || !senderId.equals(subscription.ownerId)) {
+                try {
+                    if (TORI_ACTIVITY_USERAUTHORED.equals(activity)
+                            && subscription.kind == Kind.AUTHORED) {
+                        deliveries.incrementAndGet();
+                        ((UserAuthoredListener) listener).userAuthored(post);
+                    } else if (TORI_ACTIVITY_USERTYPING.equals(activity)
+                            && subscription.kind == Kind.TYPING) {
+                        deliveries.incrementAndGet();
+                        ((UserTypingListener) listener).userTyping(
+                                message.getLong(USER_ID),
+                                message.getLong(THREAD_ID),
+                                new Date(message.getLong(STARTED_TYPING)));
+                    }
+                } catch (final RuntimeException e) {
+                    deliveryErrors.incrementAndGet();
+                    getLogger().warn("Unable to deliver Tori activity", e);
+                }
+            }
+        }
+    }
+
+    private void sendPostChanged(final MBMessage model) {
+        final Message message = new Message();
+        message.put(TORI_ACTIVITY_ID, TORI_ACTIVITY_POSTCHANGED);
+        message.put(THREAD_ID, model.getThreadId());
+        message.put(POST_ID, model.getMessageId());
+        MessageBusUtil.sendMessage(TORI_DESTINATION, message);
+
+        if (ClusterLinkUtil.getClusterLink() != null
+                && ClusterLinkUtil.getClusterLink().isEnabled()) {
+            final Message forwarded = new Message();
+            forwarded.setDestinationName(TORI_DESTINATION);
+            forwarded.put(TORI_ACTIVITY_ID, TORI_ACTIVITY_POSTCHANGED);
+            forwarded.put(THREAD_ID, model.getThreadId());
+            forwarded.put(POST_ID, model.getMessageId());
+            try {
+                ClusterLinkUtil.sendMulticastMessage(forwarded,
+                        Priority.LEVEL5);
+            } catch (final RuntimeException e) {
+                getLogger().warn(
+                        "Unable to announce a changed post to the cluster", e);
+            }
+        }
+    }
+
+    @Override
+    public int getThreadSubscriptions() {
+        int subscriptions = 0;
+        for (final Set<Subscription> threadSubscription : threadSubscriptions
+                .values()) {
+            subscriptions += threadSubscription.size();
+        }
+        return subscriptions;
+    }
+
+    @Override
+    public int getGlobalSubscriptions() {
+        return globalSubscriptions.size();
+    }
+
+    @Override
+    public int getSubscribedThreads() {
+        return threadSubscriptions.size();
+    }
+
+    @Override
+    public long getReceivedTypingEvents() {
+        return receivedTypingEvents.get();
+    }
+
+    @Override
+    public long getReceivedAuthoredEvents() {
+        return receivedAuthoredEvents.get();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.get();
+    }
+
+    @Override
+    public long getDeliveryErrors() {
+        return deliveryErrors.get();
+    }
+
+    private void registerMBean() {
+        final ObjectName name = ManagedBeans.getObjectName(MBEAN_KEYS);
+        mbeanName = ManagedBeans.register(name, this) ? name : null;
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName != null) {
+            ManagedBeans.unregister(mbeanName);
+            mbeanName = null;
+        }
+    }
+
+    private static Set<Subscription> newSubscriptionSet() {
+        return Collections
+                .newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(LiferayToriActivityDispatcher.class);
+    }
+
+    private enum Kind {
+        TYPING, AUTHORED, CHANGED
+    }
+
+    private static class Subscription {
+        private final String ownerId;
+        private final WeakReference<Object> listener;
+        private final Kind kind;
+
+        public Subscription(final String ownerId, final Object listener,
+                final Kind kind) {
+            this.ownerId = ownerId;
+            this.listener = new WeakReference<Object>(listener);
+            this.kind = kind;
+        }
+    }
+}
@@ -16,45 +16,39 @@
 
 package org.vaadin.tori.util;
 
-import java.util.Collection;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.AUTHOR_NAME;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.POST_ID;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.POST_TIME;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.SENDER_ID;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.STARTED_TYPING;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.THREAD_ID;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.TORI_ACTIVITY_ID;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.TORI_ACTIVITY_USERAUTHORED;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.TORI_ACTIVITY_USERTYPING;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.TORI_DESTINATION;
+import static org.vaadin.tori.util.LiferayToriActivityDispatcher.USER_ID;
+
 import java.util.Date;
-import java.util.HashSet;
 
 import javax.portlet.PortletRequest;
 
-import org.apache.log4j.Logger;
 import org.vaadin.tori.PortletRequestAware;
 
-import com.liferay.portal.kernel.messaging.Destination;
 import com.liferay.portal.kernel.messaging.Message;
 import com.liferay.portal.kernel.messaging.MessageBusUtil;
-import com.liferay.portal.kernel.messaging.MessageListener;
-import com.liferay.portal.kernel.messaging.ParallelDestination;
-
-public class LiferayToriActivityMessaging implements
-        ToriActivityMessaging, PortletRequestAware, MessageListener {
-
-    private static final String TORI_DESTINATION = "tori/activity";
-
-    private static final String TORI_ACTIVITY_ID = "toriactivity";
-    private static final String TORI_ACTIVITY_USERTYPING = "usertyping";
-    private static final String TORI_ACTIVITY_USERAUTHORED = "userauthored";
 
-    private static final String SENDER_ID = "SENDER_ID";
-
-    private static final String USER_ID = "USER_ID";
-    private static final String THREAD_ID = "THREAD_ID";
-    private static final String STARTED_TYPING = "STARTED_TYPING";
-    private static final String POST_ID = "POST_ID";
+/**
+ * Session specific facade of the node-wide
+ * {@link LiferayToriActivityDispatcher}. Listeners added through this instance
+ * are subscribed to the dispatcher, and are never notified of the activity
+ * sent from this same session.
+ */
+public class LiferayToriActivityMessaging implements ToriActivityMessaging,
+        PortletRequestAware {
 
     private PortletRequest request;
     private long currentUserId;
-
-    private final Collection<UserTypingListener> userTypingListeners = new HashSet<UserTypingListener>();
-    private final Collection<UserAuthoredListener> userAuthoredListeners = new HashSet<UserAuthoredListener>();
-
-    private final Logger log = Logger
-            .getLogger(LiferayToriActivityMessaging.class);
+    private String senderId;
 
     private Date lastSent;
 
@@ -73,10 +67,13 @@ public class LiferayToriActivityMessaging implements
     }
 
     @Override
-    public void sendUserAuthored(final long postId, final long threadId) {
+    public void sendUserAuthored(final PostSnapshot post) {
         Message message = new Message();
-        message.put(POST_ID, new Long(postId));
-        message.put(THREAD_ID, new Long(threadId));
+        message.put(POST_ID, new Long(post.getPostId()));
+        message.put(THREAD_ID, new Long(post.getThreadId()));
+        message.put(USER_ID, new Long(post.getAuthorId()));
+        message.put(AUTHOR_NAME, post.getAuthorName());
+        message.put(POST_TIME, post.getTime().getTime());
         message.put(TORI_ACTIVITY_ID, TORI_ACTIVITY_USERAUTHORED);
         sendMessage(message);
     }
@@ -87,42 +84,57 @@ public class LiferayToriActivityMessaging implements
     }
 
     private String getSenderId() {
-        return request.getPortletSession().getId();
+        if (senderId == null && request != null) {
+            senderId = request.getPortletSession().getId();
+        }
+        return senderId;
     }
 
-    private boolean isThisSender(final Message message) {
-        Object senderId = message.get(SENDER_ID);
-        return senderId != null && senderId.equals(getSenderId());
+    private LiferayToriActivityDispatcher getDispatcher() {
+        return LiferayToriActivityDispatcher.getInstance();
     }
 
     @Override
     public void addUserTypingListener(final UserTypingListener listener) {
-        userTypingListeners.add(listener);
+        getDispatcher().subscribe(getSenderId(), null, listener);
     }
 
     @Override
     public void addUserAuthoredListener(final UserAuthoredListener listener) {
-        userAuthoredListeners.add(listener);
+        getDispatcher().subscribe(getSenderId(), null, listener);
     }
 
     @Override
-    public void removeUserTypingListener(final UserTypingListener listener) {
-        userTypingListeners.remove(listener);
+    public void addUserTypingListener(final long threadId,
+            final UserTypingListener listener) {
+        getDispatcher().subscribe(getSenderId(), threadId, listener);
     }
 
     @Override
-    public void removeUserAuthoredListener(final UserAuthoredListener listener) {
-        userAuthoredListeners.remove(listener);
+    public void addUserAuthoredListener(final long threadId,
+            final UserAuthoredListener listener) {
+        getDispatcher().subscribe(getSenderId(), threadId, listener);
     }
 
-    private boolean isSessionAlive() {
-        boolean result = true;
-        try {
-            request.getPortletSession().getAttribute("test");
-        } catch (IllegalStateException e) {
-            result = false;
-        }
-        return result;
+    @Override
+    public void addPostChangedListener(final long threadId,
+            final PostChangedListener listener) {
+        getDispatcher().subscribe(getSenderId(), threadId, listener);
+    }
+
+    @Override
+    public void removePostChangedListener(final PostChangedListener listener) {
+        getDispatcher().unsubscribe(listener);
+    }
+
+    @Override
+    public void removeUserTypingListener(final UserTypingListener listener) {
+        getDispatcher().unsubscribe(listener);
+    }
+
+    @Override
+    public void removeUserAuthoredListener(final UserAuthoredListener listener) {
+        getDispatcher().unsubscribe(listener);
     }
 
     @Override
@@ -133,48 +145,24 @@ public class LiferayToriActivityMessaging implements
         }
     }
 
-    @Override
-    public void receive(final Message message) {
-        if (isSessionAlive()) {
-            if (!isThisSender(message)) {
-                if (TORI_ACTIVITY_USERAUTHORED.equals(message
-                        .get(TORI_ACTIVITY_ID))) {
-                    // Fire user authored events
-                    for (UserAuthoredListener listener : userAuthoredListeners) {
-                        listener.userAuthored(message.getLong(POST_ID),
-                                message.getLong(THREAD_ID));
-                    }
-                } else if (TORI_ACTIVITY_USERTYPING.equals(message
-                        .get(TORI_ACTIVITY_ID))) {
-                    // Fire user typing events
-                    for (UserTypingListener listener : userTypingListeners) {
-                        listener.userTyping(message.getLong(USER_ID),
-                                message.getLong(THREAD_ID),
-                                new Date(message.getLong(STARTED_TYPING)));
-                    }
-                }
-            }
-        } else {
-            deregister();
-        }
-    }
-
     @Override
     public void deregister() {
-        MessageBusUtil.unregisterMessageListener(TORI_DESTINATION, this);
+        if (senderId != null) {
+            getDispatcher().unsubscribeAll(senderId);
+        }
     }
 
     @Override
     public void register() {
-        if (!MessageBusUtil.getMessageBus().hasDestination(TORI_DESTINATION)) {
-            log.info("Adding a message bus destination: " + TORI_DESTINATION);
-            @SuppressWarnings("deprecation")
-            Destination destination = new ParallelDestination(TORI_DESTINATION);
-            destination.open();
-            MessageBusUtil.addDestination(destination);
-        }
+        getDispatcher().register();
+    }
 
-        MessageBusUtil.registerMessageListener(TORI_DESTINATION, this);
+    /**
+     * Unregisters the node-wide dispatcher from the message bus. Called when
+     * Tori is undeployed.
+     */
+    public static void unregisterDispatcher() {
+        LiferayToriActivityDispatcher.getInstance().unregister();
     }
 
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.util;
+
+/**
+ * Management interface of the node-wide {@link LiferayToriActivityDispatcher}.
+ */
+public interface ToriActivityStatsMXBean {
+
+    /** The number of subscriptions to the events of a single thread. */
+    int getThreadSubscriptions();
+
+    /** The number of subscriptions to the events of all threads. */
+    int getGlobalSubscriptions();
+
+    /** The number of threads with at least one subscription. */
+    int getSubscribedThreads();
+
+    long getReceivedTypingEvents();
+
+    long getReceivedAuthoredEvents();
+
+    /** The number of times an event was passed on to a listener. */
+    long getDeliveries();
+
+    long getDeliveryErrors();
+}
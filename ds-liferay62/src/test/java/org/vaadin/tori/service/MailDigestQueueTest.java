@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.vaadin.tori.Configuration.EmailDigestMode;
+import org.vaadin.tori.service.MailDigestQueue.DigestEntry;
+import org.vaadin.tori.service.MailDigestQueue.DigestEnvelope;
+
+public class MailDigestQueueTest {
+
+    private static final long HOUR = EmailDigestMode.HOURLY.getPeriodMillis();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SentDigest> sent = new ArrayList<SentDigest>();
+    private boolean failSending;
+    private File storeFile;
+    private MailDigestQueue queue;
+
+    private static class SentDigest {
+        private final InternetAddress recipient;
+        private final DigestEnvelope envelope;
+        private final List<DigestEntry> entries;
+
+        public SentDigest(final InternetAddress recipient,
+                final DigestEnvelope envelope, final List<DigestEntry> entries) {
+            this.recipient = recipient;
+            this.envelope = envelope;
+            this.entries = entries;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        storeFile = new File(folder.getRoot(), "digests.ser");
+        queue = newQueue();
+    }
+
+    private MailDigestQueue newQueue() {
+        return new MailDigestQueue(new MailDigestQueue.Sender() {
+            @Override
+            public void send(final InternetAddress recipient,
+                    final DigestEnvelope envelope,
+                    final List<DigestEntry> entries) throws Exception {
+                if (failSending) {
+                    throw new Exception("SMTP server unavailable");
+                }
+                sent.add(new SentDigest(recipient, envelope, entries));
+            }
+        }, storeFile);
+    }
+
+    private static InternetAddress[] recipients(final String... addresses)
+            throws Exception {
+        final InternetAddress[] result = new InternetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            result[i] = new InternetAddress(addresses[i]);
+        }
+        return result;
+    }
+
+    private static DigestEnvelope envelope() throws Exception {
+        return new DigestEnvelope(new InternetAddress("forum@example.com"),
+                new InternetAddress("noreply@example.com"), 1, 2, "", "",
+                null, "http://example.com/forum");
+    }
+
+    private static DigestEntry entry(final String topic) {
+        return new DigestEntry(topic, "Author", "body", "http://thread",
+                "http://thread/1");
+    }
+
+    @Test
+    public void batchesPostsPerRecipient() throws Exception {
+        final DigestEnvelope envelope = envelope();
+        queue.queue("1:2:forum", recipients("a@example.com", "b@example.com"),
+                EmailDigestMode.HOURLY, envelope, entry("first"));
+        queue.queue("1:2:forum", recipients("A@example.com"),
+                EmailDigestMode.HOURLY, envelope, entry("second"));
+
+        assertEquals(2, queue.getQueuedDigests());
+        assertEquals(3, queue.getQueuedEntries());
+
+        queue.flushExpired(System.currentTimeMillis() + HOUR);
+        assertEquals(2, sent.size());
+        for (final SentDigest digest : sent) {
+            final int expected = digest.recipient.getAddress()
+                    .equalsIgnoreCase("a@example.com") ? 2 : 1;
+            assertEquals(expected, digest.entries.size());
+            assertSame(envelope, digest.envelope);
+        }
+        assertEquals(0, queue.getQueuedDigests());
+        assertEquals(2, queue.getSentDigests());
+    }
+
+    @Test
+    public void keepsDigestsUntilTheirPeriodHasElapsed() throws Exception {
+        queue.queue("1:2:forum", recipients("a@example.com"),
+                EmailDigestMode.HOURLY, envelope(), entry("first"));
+        queue.queue("1:2:forum", recipients("a@example.com"),
+                EmailDigestMode.DAILY, envelope(), entry("first"));
+
+        queue.flushExpired(System.currentTimeMillis());
+        assertTrue(sent.isEmpty());
+
+        queue.flushExpired(System.currentTimeMillis() + HOUR);
+        assertEquals(1, sent.size());
+        assertEquals(1, queue.getQueuedDigests());
+    }
+
+    @Test
+    public void separatesForums() throws Exception {
+        queue.queue("1:2:forum", recipients("a@example.com"),
+                EmailDigestMode.HOURLY, envelope(), entry("first"));
+        queue.queue("1:3:forum", recipients("a@example.com"),
+                EmailDigestMode.HOURLY, envelope(), entry("second"));
+
+        queue.flushExpired(System.currentTimeMillis() + HOUR);
+        assertEquals(2, sent.size());
+        assertEquals(1, sent.get(0).entries.size());
+        assertEquals(1, sent.get(1).entries.size());
+    }
+
+    @Test
+    public void sendsWithTheLatestEnvelope() throws Exception {
+        final DigestEnvelope latest = envelope();
+        queue.queue("1:2:forum", recipients("a@example.com"),
+                EmailDigestMode.HOURLY, envelope(), entry("first"));
+        queue.queue("1:2:forum", recipients("a@example.com"),
+                EmailDigestMode.HOURLY, latest, entry("second"));
+
+        queue.flushExpired(System.currentTimeMillis() + HOUR);
+        assertSame(latest, sent.get(0).envelope);
+    }
+
+    @Test
+    public void dropsDigestsThatFailToSend() throws Exception {
+        failSending = true;
+        queue.queue("1:2:forum", recipients("a@example.com"),
+                EmailDigestMode.HOURLY, envelope(), entry("first"));
+
+        queue.flushExpired(System.currentTimeMillis() + HOUR);
+        assertEquals(1, queue.getFailedDigests());
+        assertEquals(0, queue.getQueuedDigests());
+    }
+
+    @Test
+    public void restoresStoredDigests() throws Exception {
+        queue.queue("1:2:forum", recipients("a@example.com", "b@example.com"),
+                EmailDigestMode.HOURLY, envelope(), entry("first"));
+        queue.queue("1:2:forum", recipients("a@example.com"),
+                EmailDigestMode.HOURLY, envelope(), entry("second"));
+        queue.store();
+
+        final MailDigestQueue restored = newQueue();
+        restored.load();
+        assertEquals(2, restored.getQueuedDigests());
+        assertEquals(3, restored.getQueuedEntries());
+
+        // restored digests keep their original creation time
+        restored.flushExpired(System.currentTimeMillis() + HOUR);
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void ignoresMissingStoreFile() {
+        queue.load();
+        assertEquals(0, queue.getQueuedDigests());
+    }
+}
@@ -18,13 +18,16 @@ package org.vaadin.tori.data;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
@@ -40,6 +43,13 @@ import org.vaadin.tori.data.entity.DiscussionThread;
 import org.vaadin.tori.data.entity.Post;
 import org.vaadin.tori.data.entity.PostVote;
 import org.vaadin.tori.data.entity.User;
+import org.vaadin.tori.data.search.PostSearchIndex;
+import org.vaadin.tori.data.search.PostSearchIndex.IndexedPost;
+import org.vaadin.tori.data.search.PostSearchIndex.PostResolver;
+import org.vaadin.tori.data.search.PostSearchIndex.PostSource;
+import org.vaadin.tori.data.search.TopicIndex;
+import org.vaadin.tori.data.search.TopicIndex.Topic;
+import org.vaadin.tori.data.search.TopicIndex.TopicSource;
 import org.vaadin.tori.data.util.PersistenceUtil;
 import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.exception.NoSuchCategoryException;
@@ -49,12 +59,20 @@ public class TestDataSource implements DataSource {
 
     private static final String CONTEXT = "/webapp";
     private static final String ATTACHMENT_PREFIX = CONTEXT + "/attachments/";
+    private static final String SEARCH_INDEX_NAME = "test";
     public static Long currentUserId;
 
     public TestDataSource() throws DataSourceException {
         if (isEmptyDatabase()) {
             TestDataGenerator.generateTestData();
         }
+        try {
+            PostSearchIndex.get(SEARCH_INDEX_NAME).scheduleReindexing(
+                    SEARCH_POST_SOURCE);
+        } catch (final DataSourceException e) {
+            e.printStackTrace();
+        }
+        TopicIndex.get(SEARCH_INDEX_NAME).buildIfStale(TOPIC_SOURCE);
     }
 
     private boolean isEmptyDatabase() throws DataSourceException {
@@ -280,6 +298,9 @@ public class TestDataSource implements DataSource {
     @Override
     public void deleteCategory(final long categoryId)
             throws DataSourceException {
+        // the threads of all the sub categories are removed as well
+        final List<Long> categoryIds = new ArrayList<Long>();
+        addCategoryIds(categoryId, categoryIds);
         executeWithEntityManager(new Command<Void>() {
             @Override
             public Void execute(final EntityManager em) {
@@ -298,6 +319,15 @@ public class TestDataSource implements DataSource {
                 return null;
             }
         });
+        TopicIndex.get(SEARCH_INDEX_NAME).removeCategories(categoryIds);
+    }
+
+    private void addCategoryIds(final long categoryId,
+            final List<Long> categoryIds) throws DataSourceException {
+        categoryIds.add(categoryId);
+        for (final Category subCategory : getSubCategories(categoryId)) {
+            addCategoryIds(subCategory.getId(), categoryIds);
+        }
     }
 
     @Override
@@ -319,6 +349,10 @@ public class TestDataSource implements DataSource {
                 return null;
             }
         });
+
+        final Post post = getPost(postId);
+        final List<Post> threadPosts = getPosts(post.getThread().getId());
+        index(post, threadPosts.get(0).getId() == postId);
     }
 
     @Override
@@ -423,6 +457,29 @@ public class TestDataSource implements DataSource {
         }
     }
 
+    @Override
+    public Set<Long> getFollowedThreadIds(final Collection<Long> threadIds) {
+        if (threadIds.isEmpty()) {
+            return new HashSet<Long>();
+        }
+        try {
+            return executeWithEntityManager(new Command<Set<Long>>() {
+                @Override
+                public Set<Long> execute(final EntityManager em) {
+                    final TypedQuery<Long> query = em
+                            .createQuery(
+                                    "select f.thread.id from Following f where f.follower = :follower AND f.thread.id in :threadIds",
+                                    Long.class);
+                    query.setParameter("follower", getCurrentUser());
+                    query.setParameter("threadIds", threadIds);
+                    return new HashSet<Long>(query.getResultList());
+                }
+            });
+        } catch (DataSourceException e) {
+            return new HashSet<Long>();
+        }
+    }
+
     @Override
     public void deletePost(final long postId) throws DataSourceException {
         final Post post = getPost(postId);
@@ -450,6 +507,12 @@ public class TestDataSource implements DataSource {
                 return null;
             }
         });
+
+        try {
+            PostSearchIndex.get(SEARCH_INDEX_NAME).deletePost(postId);
+        } catch (final DataSourceException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -576,7 +639,7 @@ public class TestDataSource implements DataSource {
             final Map<String, byte[]> attachments, final long threadId)
             throws DataSourceException {
 
-        return executeWithEntityManager(new Command<Post>() {
+        final Post reply = executeWithEntityManager(new Command<Post>() {
             @Override
             public Post execute(final EntityManager em) {
                 em.getTransaction().begin();
@@ -599,7 +662,8 @@ public class TestDataSource implements DataSource {
                 return post;
             }
         });
-
+        index(reply, false);
+        return reply;
     }
 
     private void persistPostAttachments(final Post post,
@@ -656,6 +720,8 @@ public class TestDataSource implements DataSource {
                 return null;
             }
         });
+        TopicIndex.get(SEARCH_INDEX_NAME).move(threadId,
+                destinationCategoryId);
     }
 
     @Override
@@ -734,6 +800,13 @@ public class TestDataSource implements DataSource {
                 return null;
             }
         });
+
+        try {
+            PostSearchIndex.get(SEARCH_INDEX_NAME).deleteThread(threadId);
+        } catch (final DataSourceException e) {
+            e.printStackTrace();
+        }
+        TopicIndex.get(SEARCH_INDEX_NAME).remove(threadId);
     }
 
     @Override
@@ -742,7 +815,7 @@ public class TestDataSource implements DataSource {
             throws DataSourceException {
         final Category category = categoryId == null ? null
                 : getCategory(categoryId);
-        return executeWithEntityManager(new Command<Post>() {
+        final Post firstPost = executeWithEntityManager(new Command<Post>() {
             @Override
             public Post execute(final EntityManager em) {
                 DiscussionThread newThread = new DiscussionThread();
@@ -770,6 +843,9 @@ public class TestDataSource implements DataSource {
                 return post;
             }
         });
+        index(firstPost, true);
+        TopicIndex.get(SEARCH_INDEX_NAME).put(toTopic(firstPost.getThread()));
+        return firstPost;
     }
 
     @Override
@@ -797,6 +873,17 @@ public class TestDataSource implements DataSource {
         return new Random().nextBoolean();
     }
 
+    @Override
+    public Set<Long> getReadThreadIds(final Collection<Long> threadIds) {
+        final Set<Long> result = new HashSet<Long>();
+        for (final Long threadId : threadIds) {
+            if (isThreadRead(threadId)) {
+                result.add(threadId);
+            }
+        }
+        return result;
+    }
+
     @Override
     public void markThreadRead(final long threadId) throws DataSourceException {
         System.out.println(String.format(
@@ -887,6 +974,11 @@ public class TestDataSource implements DataSource {
         return null;
     }
 
+    @Override
+    public String getServerUrl() {
+        return null;
+    }
+
     @Override
     public User getToriUser(final long userId) {
         User user = null;
@@ -910,6 +1002,146 @@ public class TestDataSource implements DataSource {
         });
     }
 
+    @Override
+    public List<Post> search(final String query, final int startIndex,
+            final int endIndex) throws DataSourceException {
+        return PostSearchIndex.get(SEARCH_INDEX_NAME).search(query,
+                startIndex, endIndex, new PostResolver() {
+                    @Override
+                    public Post resolve(final long postId)
+                            throws DataSourceException {
+                        // no permissions in the test data source
+                        return getPost(postId);
+                    }
+                });
+    }
+
+    @Override
+    public List<Topic> getTopicSuggestions(final String text,
+            final int maxResults) {
+        final TopicIndex index = TopicIndex.get(SEARCH_INDEX_NAME);
+        index.buildIfStale(TOPIC_SOURCE);
+        return index.suggest(text, maxResults);
+    }
+
+    private static Topic toTopic(final DiscussionThread thread) {
+        final Category category = thread.getCategory();
+        return new Topic(thread.getId(), category != null ? category.getId()
+                : null, thread.getTopic());
+    }
+
+    private static final TopicSource TOPIC_SOURCE = new TopicSource() {
+        @Override
+        public int getTopicCount() throws DataSourceException {
+            return executeWithEntityManager(new Command<Long>() {
+                @Override
+                public Long execute(final EntityManager em) {
+                    return em.createQuery(
+                            "select count(t) from DiscussionThread t",
+                            Long.class).getSingleResult();
+                }
+            }).intValue();
+        }
+
+        @Override
+        public List<Topic> getTopics(final int startIndex, final int endIndex)
+                throws DataSourceException {
+            return executeWithEntityManager(new Command<List<Topic>>() {
+                @Override
+                public List<Topic> execute(final EntityManager em) {
+                    final TypedQuery<DiscussionThread> query = em.createQuery(
+                            "select t from DiscussionThread t order by t.id",
+                            DiscussionThread.class);
+                    query.setFirstResult(startIndex);
+                    query.setMaxResults(endIndex - startIndex + 1);
+
+                    final List<Topic> result = new ArrayList<Topic>();
+                    for (final DiscussionThread thread : query.getResultList()) {
+                        result.add(toTopic(thread));
+                    }
+                    return result;
+                }
+            });
+        }
+    };
+
+    /**
+     * Updates the post in the search index. A failure is not allowed to fail
+     * the write, as the next reindex will catch up.
+     */
+    private static void index(final Post post, final boolean firstPost) {
+        final DiscussionThread thread = post.getThread();
+        try {
+            PostSearchIndex.get(SEARCH_INDEX_NAME).update(
+                    new IndexedPost(post.getId(), thread.getId(),
+                            firstPost ? thread.getTopic() : null, post
+                                    .getBodyRaw()));
+        } catch (final DataSourceException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * All the posts in the order of their ids. The posts of a thread get
+     * increasing ids, so the first one has the smallest.
+     */
+    private static final PostSource SEARCH_POST_SOURCE = new PostSource() {
+        @Override
+        public int getPostCount() throws DataSourceException {
+            return executeWithEntityManager(new Command<Long>() {
+                @Override
+                public Long execute(final EntityManager em) {
+                    return em.createQuery("select count(p) from Post p",
+                            Long.class).getSingleResult();
+                }
+            }).intValue();
+        }
+
+        @Override
+        public List<IndexedPost> getPosts(final long afterPostId,
+                final int maxResults) throws DataSourceException {
+            return executeWithEntityManager(new Command<List<IndexedPost>>() {
+                @Override
+                public List<IndexedPost> execute(final EntityManager em) {
+                    final TypedQuery<Post> query = em.createQuery(
+                            "select p from Post p where p.id > :afterPostId "
+                                    + "order by p.id", Post.class);
+                    query.setParameter("afterPostId", afterPostId);
+                    query.setMaxResults(maxResults);
+                    final List<Post> posts = query.getResultList();
+                    if (posts.isEmpty()) {
+                        return new ArrayList<IndexedPost>();
+                    }
+
+                    final Set<Long> threadIds = new HashSet<Long>();
+                    for (final Post post : posts) {
+                        threadIds.add(post.getThread().getId());
+                    }
+                    final Set<Long> firstPostIds = new HashSet<Long>();
+                    for (final Object firstPostId : em
+                            .createQuery(
+                                    "select min(p.id) from Post p "
+                                            + "where p.thread.id in :threadIds "
+                                            + "group by p.thread.id")
+                            .setParameter("threadIds", threadIds)
+                            .getResultList()) {
+                        firstPostIds.add((Long) firstPostId);
+                    }
+
+                    final List<IndexedPost> result = new ArrayList<IndexedPost>();
+                    for (final Post post : posts) {
+                        final DiscussionThread thread = post.getThread();
+                        result.add(new IndexedPost(post.getId(),
+                                thread.getId(), firstPostIds.contains(post
+                                        .getId()) ? thread.getTopic() : null,
+                                post.getBodyRaw()));
+                    }
+                    return result;
+                }
+            });
+        }
+    };
+
     @Override
     public void saveNewCategory(final Long parentCategoryId, final String name,
             final String description) throws DataSourceException {
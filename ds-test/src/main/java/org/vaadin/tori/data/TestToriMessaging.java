@@ -18,9 +18,12 @@ package org.vaadin.tori.data;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+import org.vaadin.tori.util.PostSnapshot;
 import org.vaadin.tori.util.ToriActivityMessaging;
 
 public class TestToriMessaging implements ToriActivityMessaging {
@@ -31,6 +34,9 @@ public class TestToriMessaging implements ToriActivityMessaging {
     private static Set<UserAuthoredListener> userAuthoredListeners = Collections
             .synchronizedSet(new HashSet<UserAuthoredListener>());
 
+    private static Map<Object, Long> listenerThreadIds = Collections
+            .synchronizedMap(new HashMap<Object, Long>());
+
     private final Set<Object> thisListeners = new HashSet<Object>();;
 
     @Override
@@ -45,22 +51,56 @@ public class TestToriMessaging implements ToriActivityMessaging {
         thisListeners.add(listener);
     }
 
+    @Override
+    public void addUserTypingListener(final long threadId,
+            final UserTypingListener listener) {
+        listenerThreadIds.put(listener, threadId);
+        addUserTypingListener(listener);
+    }
+
+    @Override
+    public void addUserAuthoredListener(final long threadId,
+            final UserAuthoredListener listener) {
+        listenerThreadIds.put(listener, threadId);
+        addUserAuthoredListener(listener);
+    }
+
+    @Override
+    public void addPostChangedListener(final long threadId,
+            final PostChangedListener listener) {
+        // posts are not changed behind tori's back in the test data source
+    }
+
+    @Override
+    public void removePostChangedListener(final PostChangedListener listener) {
+        // NOP
+    }
+
+    private static boolean isListening(final Object listener,
+            final long threadId) {
+        final Long listenedThreadId = listenerThreadIds.get(listener);
+        return listenedThreadId == null || listenedThreadId == threadId;
+    }
+
     @Override
     public void removeUserTypingListener(final UserTypingListener listener) {
         userTypingListeners.remove(listener);
         thisListeners.remove(listener);
+        listenerThreadIds.remove(listener);
     }
 
     @Override
     public void removeUserAuthoredListener(final UserAuthoredListener listener) {
         userAuthoredListeners.remove(listener);
         thisListeners.remove(listener);
+        listenerThreadIds.remove(listener);
     }
 
     @Override
     public void sendUserTyping(final long threadId, final Date startedTyping) {
         for (UserTypingListener listener : userTypingListeners) {
-            if (!thisListeners.contains(listener)) {
+            if (!thisListeners.contains(listener)
+                    && isListening(listener, threadId)) {
                 listener.userTyping(TestDataSource.currentUserId, threadId,
                         startedTyping);
             }
@@ -68,10 +108,11 @@ public class TestToriMessaging implements ToriActivityMessaging {
     }
 
     @Override
-    public void sendUserAuthored(final long postId, final long threadId) {
+    public void sendUserAuthored(final PostSnapshot post) {
         for (UserAuthoredListener listener : userAuthoredListeners) {
-            if (!thisListeners.contains(listener)) {
-                listener.userAuthored(postId, threadId);
+            if (!thisListeners.contains(listener)
+                    && isListening(listener, post.getThreadId())) {
+                listener.userAuthored(post);
             }
         }
     }
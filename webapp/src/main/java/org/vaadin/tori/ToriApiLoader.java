@@ -21,16 +21,24 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.ServiceLoader;
+import java.util.WeakHashMap;
 
 import javax.portlet.PortletRequest;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
 import org.vaadin.tori.data.DataSource;
+import org.vaadin.tori.data.spi.Disposable;
 import org.vaadin.tori.data.spi.ServiceProvider;
+import org.vaadin.tori.metrics.DataSourceMetrics;
+import org.vaadin.tori.metrics.InstrumentingServiceProvider;
 import org.vaadin.tori.service.AuthorizationService;
 import org.vaadin.tori.util.PostFormatter;
 import org.vaadin.tori.util.ToriActivityMessaging;
@@ -47,31 +55,80 @@ import com.vaadin.server.VaadinSession;
 import com.vaadin.ui.UI;
 
 @SuppressWarnings("serial")
-public class ToriApiLoader implements Serializable, SessionDestroyListener {
+public class ToriApiLoader implements Serializable {
 
-    private final ServiceProvider spi;
+    /**
+     * Deployment-wide services. Discovered only once, and shared by all the
+     * sessions.
+     */
+    private static SharedServices sharedServices;
+
+    /** VaadinServices the session destroy listener is registered to. */
+    private static final Map<VaadinService, Boolean> LISTENED_SERVICES = new WeakHashMap<VaadinService, Boolean>();
+
+    private static final SessionDestroyListener SESSION_DESTROY_LISTENER = new SessionDestroyListener() {
+        @Override
+        public void sessionDestroy(final SessionDestroyEvent event) {
+            final ToriApiLoader apiLoader = event.getSession().getAttribute(
+                    ToriApiLoader.class);
+            if (apiLoader != null
+                    && apiLoader.toriActivityMessaging != null) {
+                apiLoader.toriActivityMessaging.deregister();
+            }
+        }
+    };
+
+    // Session specific services
     private final DataSource ds;
     private final PostFormatter postFormatter;
     private final AuthorizationService authorizationService;
-
-    private final UserBadgeProvider userBadgeProvider;
-    private final UrlConverter urlConverter;
     private final ToriActivityMessaging toriActivityMessaging;
     private ToriMailService toriMailService;
-    private String sessionId;
 
     public ToriApiLoader() {
-        checkThatCommonIsLoaded();
-        spi = newServiceProvider();
-        ds = createDataSource();
-        postFormatter = createPostFormatter();
-        authorizationService = createAuthorizationService();
-        toriActivityMessaging = createToriActivityMessaging();
-        userBadgeProvider = createService(UserBadgeProvider.class);
-        urlConverter = createService(UrlConverter.class);
+        final SharedServices shared = getSharedServices();
+        ds = createDataSource(shared.spi);
+        postFormatter = shared.postFormatter != null ? shared.postFormatter
+                : createPostFormatter(shared.spi);
+        authorizationService = createAuthorizationService(shared.spi);
+        toriActivityMessaging = createToriActivityMessaging(shared.spi);
+    }
+
+    /**
+     * Creates the data source and the authorization service of tasks, run on
+     * other threads on behalf of the given session's current request.
+     */
+    private ToriApiLoader(final ToriApiLoader session, final Object request) {
+        final SharedServices shared = getSharedServices();
+        ds = createDataSource(shared.spi);
+        postFormatter = session.postFormatter;
+        authorizationService = createAuthorizationService(shared.spi);
+        toriActivityMessaging = null;
+        setRequest(request);
+    }
+
+    private static synchronized SharedServices getSharedServices() {
+        if (sharedServices == null) {
+            checkThatCommonIsLoaded();
+            sharedServices = new SharedServices();
+        }
+        return sharedServices;
+    }
+
+    /**
+     * Releases the deployment-wide services. Called when the servlet or the
+     * portlet is destroyed.
+     */
+    public static synchronized void destroy() {
+        if (sharedServices != null) {
+            if (sharedServices.spi instanceof Disposable) {
+                ((Disposable) sharedServices.spi).dispose();
+            }
+            sharedServices = null;
+        }
     }
 
-    private <T> T createService(final Class<T> clazz) {
+    private static <T> T createService(final Class<T> clazz) {
         T service = null;
         final ServiceLoader<T> loader = ServiceLoader.load(clazz);
         if (loader.iterator().hasNext()) {
@@ -87,6 +144,53 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
         return service;
     }
 
+    /**
+     * Whether the service depends on the current request, and thus can't be
+     * shared between sessions.
+     */
+    private static boolean isRequestAware(final Object service) {
+        return service instanceof PortletRequestAware
+                || service instanceof HttpServletRequestAware;
+    }
+
+    /**
+     * Whether the data source or the authorization service depends on the
+     * current request, and thus can't be used once the request has ended.
+     */
+    public boolean isRequestBound() {
+        return isRequestAware(ds) || isRequestAware(authorizationService);
+    }
+
+    /**
+     * Returns the services for tasks run on other threads on behalf of the
+     * current request. Request bound services keep per-request state, so the
+     * tasks get instances of their own, set up for the current request, which
+     * they must stop using before it ends. Services that don't depend on the
+     * request hold no such state, so the session's own are returned for them.
+     */
+    public ToriApiLoader createTaskServices() {
+        if (!isRequestBound()) {
+            return this;
+        }
+        return new ToriApiLoader(this, VaadinService.getCurrentRequest());
+    }
+
+    /**
+     * Captures the thread local state the services need for being called from
+     * another thread on behalf of the current request.
+     */
+    public List<ThreadContext> captureThreadContexts() {
+        final List<ThreadContext> contexts = new ArrayList<ThreadContext>();
+        for (final Object aware : Arrays.asList(ds, authorizationService,
+                toriActivityMessaging, postFormatter, toriMailService)) {
+            if (aware instanceof ThreadContextAware) {
+                contexts.add(((ThreadContextAware) aware)
+                        .captureThreadContext());
+            }
+        }
+        return contexts;
+    }
+
     public final void setRequest(final Object request) {
         if (request != null) {
             for (final Object aware : Arrays.asList(ds, authorizationService,
@@ -128,7 +232,12 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
         final ServiceLoader<ServiceProvider> loader = ServiceLoader
                 .load(ServiceProvider.class);
         if (loader.iterator().hasNext()) {
-            return loader.iterator().next();
+            final ServiceProvider spi = loader.iterator().next();
+            if (DataSourceMetrics.isEnabled()) {
+                getLogger().info("Instrumenting the data source");
+                return new InstrumentingServiceProvider(spi);
+            }
+            return spi;
         } else {
             throw new RuntimeException(
                     "It seems you don't have a DataSource in your classpath, "
@@ -137,7 +246,7 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
         }
     }
 
-    private DataSource createDataSource() {
+    private static DataSource createDataSource(final ServiceProvider spi) {
         final DataSource ds = spi.createDataSource();
         getLogger().debug(
                 String.format("Using %s implementation: %s", DataSource.class
@@ -145,7 +254,7 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
         return ds;
     }
 
-    private PostFormatter createPostFormatter() {
+    private static PostFormatter createPostFormatter(final ServiceProvider spi) {
         final PostFormatter postFormatter = spi.createPostFormatter();
         getLogger().debug(
                 String.format("Using %s implementation: %s",
@@ -154,7 +263,8 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
         return postFormatter;
     }
 
-    private AuthorizationService createAuthorizationService() {
+    private static AuthorizationService createAuthorizationService(
+            final ServiceProvider spi) {
         final AuthorizationService authorizationService = spi
                 .createAuthorizationService();
         getLogger().debug(
@@ -164,7 +274,8 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
         return authorizationService;
     }
 
-    private ToriActivityMessaging createToriActivityMessaging() {
+    private static ToriActivityMessaging createToriActivityMessaging(
+            final ServiceProvider spi) {
         final ToriActivityMessaging toriActivityMessaging = spi
                 .createToriActivityMessaging();
         getLogger().debug(
@@ -196,7 +307,7 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
     private ToriMailService createToriMailService(final VaadinRequest request) {
         ToriMailService result = null;
         if (request != null) {
-            result = spi.createToriMailService();
+            result = getSharedServices().spi.createToriMailService();
             try {
                 String themeName = UI.getCurrent().getTheme();
 
@@ -291,11 +402,11 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
     }
 
     public UserBadgeProvider getUserBadgeProvider() {
-        return userBadgeProvider;
+        return getSharedServices().userBadgeProvider;
     }
 
     public UrlConverter getUrlConverter() {
-        return urlConverter;
+        return getSharedServices().urlConverter;
     }
 
     public ToriActivityMessaging getToriActivityMessaging() {
@@ -327,23 +438,42 @@ public class ToriApiLoader implements Serializable, SessionDestroyListener {
             if (toriApiLoader.getToriActivityMessaging() != null) {
                 toriApiLoader.getToriActivityMessaging().register();
             }
-            request.getService().addSessionDestroyListener(toriApiLoader);
+            addSessionDestroyListener(request.getService());
             VaadinSession.getCurrent().setAttribute(ToriApiLoader.class,
                     toriApiLoader);
         }
-        toriApiLoader.sessionId = VaadinSession.getCurrent().getSession()
-                .getId();
         toriApiLoader.setRequest(request);
     }
 
-    @Override
-    public void sessionDestroy(final SessionDestroyEvent event) {
-        if (sessionId != null
-                && sessionId.equals(event.getSession().getSession().getId())) {
-            if (toriActivityMessaging != null) {
-                toriActivityMessaging.deregister();
+    /**
+     * Registers the shared session destroy listener, once per VaadinService.
+     */
+    private static void addSessionDestroyListener(final VaadinService service) {
+        synchronized (LISTENED_SERVICES) {
+            if (!LISTENED_SERVICES.containsKey(service)) {
+                service.addSessionDestroyListener(SESSION_DESTROY_LISTENER);
+                LISTENED_SERVICES.put(service, Boolean.TRUE);
             }
-            event.getService().removeSessionDestroyListener(this);
+        }
+    }
+
+    private static final class SharedServices {
+        private final ServiceProvider spi;
+        private final UserBadgeProvider userBadgeProvider;
+        private final UrlConverter urlConverter;
+        private final PostFormatter postFormatter;
+
+        private SharedServices() {
+            spi = newServiceProvider();
+            userBadgeProvider = createService(UserBadgeProvider.class);
+            urlConverter = createService(UrlConverter.class);
+
+            // stateless formatters can be shared by all the sessions
+            final PostFormatter formatter = createPostFormatter(spi);
+            postFormatter = isRequestAware(formatter) ? null : formatter;
+            getLogger().debug(
+                    "Sharing post formatter between sessions: "
+                            + (postFormatter != null));
         }
     }
 
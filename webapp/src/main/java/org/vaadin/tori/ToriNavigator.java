@@ -16,12 +16,18 @@
 
 package org.vaadin.tori;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
 import org.vaadin.tori.indexing.IndexableCategoryView;
 import org.vaadin.tori.indexing.IndexableDashboardView;
 import org.vaadin.tori.indexing.IndexableThreadView;
 import org.vaadin.tori.indexing.IndexableView;
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.metrics.RenderMetrics.Timer;
 import org.vaadin.tori.mvp.AbstractView;
 import org.vaadin.tori.view.listing.ListingViewImpl;
+import org.vaadin.tori.view.search.SearchViewImpl;
 import org.vaadin.tori.view.thread.ThreadViewImpl;
 import org.vaadin.tori.view.thread.newthread.NewThreadViewImpl;
 
@@ -48,7 +54,16 @@ public class ToriNavigator extends Navigator {
         addViewChangeListener(new ViewChangeListener() {
             @Override
             public boolean beforeViewChange(final ViewChangeEvent event) {
-                ((AbstractView<?, ?>) event.getNewView()).init();
+                final View newView = event.getNewView();
+                RenderMetrics.viewChanging(newView.getClass().getSimpleName(),
+                        event.getParameters());
+                final Timer timer = RenderMetrics.start("init "
+                        + newView.getClass().getSimpleName());
+                try {
+                    ((AbstractView<?, ?>) newView).init();
+                } finally {
+                    timer.stop();
+                }
                 return true;
             }
 
@@ -135,6 +150,15 @@ public class ToriNavigator extends Navigator {
                 suffix));
     }
 
+    public void navigateToSearch(final String query) {
+        try {
+            navigateTo(ApplicationView.SEARCH.getNavigatorUrl() + "/"
+                    + URLEncoder.encode(query.trim(), "UTF-8"));
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * All the views of Tori application that can be navigated to.
      */
@@ -143,7 +167,8 @@ public class ToriNavigator extends Navigator {
 		DASHBOARD("dashboard", ListingViewImpl.class, IndexableDashboardView.class),
 		CATEGORIES("category", ListingViewImpl.class, IndexableCategoryView.class),
 		THREADS("thread", ThreadViewImpl.class, IndexableThreadView.class),
-		NEWTHREAD("thread/new", NewThreadViewImpl.class, null);
+		NEWTHREAD("thread/new", NewThreadViewImpl.class, null),
+		SEARCH("search", SearchViewImpl.class, null);
 		// @formatter:on
 
         private String viewName;
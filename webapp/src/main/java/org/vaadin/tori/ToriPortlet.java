@@ -22,7 +22,10 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.portlet.CacheControl;
 import javax.portlet.PortletException;
 import javax.portlet.PortletRequest;
 import javax.portlet.PortletResponse;
@@ -30,7 +33,18 @@ import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
 import javax.servlet.http.HttpServletRequest;
 
+import org.vaadin.tori.data.search.PostSearchIndex;
+import org.vaadin.tori.data.search.TopicIndex;
+import org.vaadin.tori.indexing.IndexableSnapshot;
+import org.vaadin.tori.indexing.SitemapRequestHandler;
 import org.vaadin.tori.indexing.ToriIndexableApplication;
+import org.vaadin.tori.metrics.DataSourceMetrics;
+import org.vaadin.tori.metrics.PrometheusMetricsHandler;
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.util.ManagedBeans;
+import org.vaadin.tori.util.ParallelLoader;
+import org.vaadin.tori.util.ToriScheduler;
+import org.vaadin.tori.view.thread.TypingAggregator;
 
 import com.vaadin.server.DeploymentConfiguration;
 import com.vaadin.server.RequestHandler;
@@ -38,14 +52,21 @@ import com.vaadin.server.ServiceException;
 import com.vaadin.server.UICreateEvent;
 import com.vaadin.server.UIProvider;
 import com.vaadin.server.VaadinPortlet;
+import com.vaadin.server.VaadinPortletRequest;
 import com.vaadin.server.VaadinPortletService;
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinSession;
 
 @SuppressWarnings("serial")
 public class ToriPortlet extends VaadinPortlet {
 
     private static final String PORTAL_UTIL_CLASS = "com.liferay.portal.util.PortalUtil";
     private static final String DEFAULT_THEME_NAME = "tori";
+    private static final int INDEXABLE_EXPIRATION_SECONDS = 60;
+
+    /** Crawler renderers, one per portlet window. */
+    private final ConcurrentMap<String, ToriIndexableApplication> indexableApplications = new ConcurrentHashMap<String, ToriIndexableApplication>();
 
     private class ToriPortletService extends VaadinPortletService {
 
@@ -71,12 +92,48 @@ public class ToriPortlet extends VaadinPortlet {
             return request.getContextPath();
         }
 
+        @Override
+        public void requestStart(final VaadinRequest request,
+                final VaadinResponse response) {
+            DataSourceMetrics.requestStart();
+            super.requestStart(request, response);
+        }
+
+        @Override
+        public void requestEnd(final VaadinRequest request,
+                final VaadinResponse response, final VaadinSession session) {
+            try {
+                RenderMetrics.requestEnd(session);
+                super.requestEnd(request, response, session);
+            } finally {
+                DataSourceMetrics.requestEnd(String.valueOf(request
+                        .getPathInfo()));
+            }
+        }
+
         @Override
         protected List<RequestHandler> createRequestHandlers()
                 throws ServiceException {
             final List<RequestHandler> requestHandlers = super
                     .createRequestHandlers();
             requestHandlers.add(new UnsupportedDeviceHandler());
+            if (PrometheusMetricsHandler.isEnabled()) {
+                requestHandlers.add(new PrometheusMetricsHandler(this) {
+                    @Override
+                    protected int getLocalPort(final VaadinRequest request) {
+                        if (request instanceof VaadinPortletRequest) {
+                            final PortletRequest portletRequest = ((VaadinPortletRequest) request)
+                                    .getPortletRequest();
+                            final HttpServletRequest servletRequest = getServletRequest(portletRequest);
+                            if (servletRequest != null) {
+                                return servletRequest.getLocalPort();
+                            }
+                        }
+                        return super.getLocalPort(request);
+                    }
+                });
+            }
+            requestHandlers.add(new SitemapRequestHandler());
             requestHandlers.add(new PortletRequestAwareHandler());
             return requestHandlers;
         }
@@ -90,11 +147,29 @@ public class ToriPortlet extends VaadinPortlet {
         if (servletRequest != null && request instanceof RenderRequest
                 && ToriIndexableApplication.isIndexerBot(servletRequest)
                 && ToriIndexableApplication.isIndexableRequest(servletRequest)) {
-            final ToriIndexableApplication app = new ToriIndexableApplication(
-                    request);
-            final String htmlPage = app.getResultInHtml(servletRequest);
+            final IndexableSnapshot snapshot = getIndexableApplication(
+                    request).getSnapshot(request, servletRequest);
 
             final RenderResponse renderResponse = (RenderResponse) response;
+            if (snapshot == null) {
+                /*
+                 * A render can't set the status of the portal page, so the
+                 * portlet is left empty for the crawler to come back later.
+                 */
+                renderResponse.getCacheControl().setExpirationTime(0);
+                return;
+            }
+
+            // validation based caching, the portlet's counterpart of a 304
+            final CacheControl cacheControl = renderResponse.getCacheControl();
+            cacheControl.setETag(snapshot.getETag());
+            cacheControl.setExpirationTime(INDEXABLE_EXPIRATION_SECONDS);
+            if (snapshot.getETag().equals(((RenderRequest) request).getETag())) {
+                cacheControl.setUseCachedContent(true);
+                return;
+            }
+            final String htmlPage = snapshot.getHtml();
+
             renderResponse.setContentType("text/html");
             final OutputStream out = renderResponse.getPortletOutputStream();
             final PrintWriter outWriter = new PrintWriter(new BufferedWriter(
@@ -106,6 +181,20 @@ public class ToriPortlet extends VaadinPortlet {
         }
     }
 
+    private ToriIndexableApplication getIndexableApplication(
+            final PortletRequest request) {
+        final String windowId = request.getWindowID();
+        ToriIndexableApplication app = indexableApplications.get(windowId);
+        if (app == null) {
+            final ToriIndexableApplication newApp = new ToriIndexableApplication();
+            app = indexableApplications.putIfAbsent(windowId, newApp);
+            if (app == null) {
+                app = newApp;
+            }
+        }
+        return app;
+    }
+
     @Override
     protected VaadinPortletService createPortletService(
             final DeploymentConfiguration deploymentConfiguration)
@@ -144,7 +233,21 @@ public class ToriPortlet extends VaadinPortlet {
 
     @Override
     protected void portletInitialized() {
+        ManagedBeans.setDeployment(getPortletContext().getPortletContextName());
         getService()
                 .setSystemMessagesProvider(ToriSystemMessagesProvider.get());
     }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        // releases the index locks for the next deployment
+        PostSearchIndex.closeAll();
+        TopicIndex.closeAll();
+        DataSourceMetrics.shutdown();
+        TypingAggregator.shutdown();
+        ToriScheduler.shutdown();
+        ParallelLoader.shutdown();
+        ToriApiLoader.destroy();
+    }
 }
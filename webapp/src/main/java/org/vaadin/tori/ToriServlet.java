@@ -17,22 +17,40 @@
 package org.vaadin.tori;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.vaadin.tori.data.search.PostSearchIndex;
+import org.vaadin.tori.data.search.TopicIndex;
+import org.vaadin.tori.indexing.IndexableSnapshot;
+import org.vaadin.tori.indexing.SitemapRequestHandler;
+import org.vaadin.tori.indexing.ToriIndexableApplication;
+import org.vaadin.tori.metrics.DataSourceMetrics;
+import org.vaadin.tori.metrics.PrometheusMetricsHandler;
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.util.ManagedBeans;
+import org.vaadin.tori.util.ParallelLoader;
+import org.vaadin.tori.util.ToriScheduler;
+import org.vaadin.tori.view.thread.TypingAggregator;
+
 import com.vaadin.server.DeploymentConfiguration;
 import com.vaadin.server.RequestHandler;
 import com.vaadin.server.ServiceException;
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
 import com.vaadin.server.VaadinServlet;
 import com.vaadin.server.VaadinServletService;
+import com.vaadin.server.VaadinSession;
 
 @SuppressWarnings("serial")
 public class ToriServlet extends VaadinServlet {
 
+    private ToriIndexableApplication indexableApplication;
+
     public class ToriServletService extends VaadinServletService {
 
         public ToriServletService(final ToriServlet servlet,
@@ -47,6 +65,10 @@ public class ToriServlet extends VaadinServlet {
             final List<RequestHandler> requestHandlers = super
                     .createRequestHandlers();
             requestHandlers.add(new UnsupportedDeviceHandler());
+            if (PrometheusMetricsHandler.isEnabled()) {
+                requestHandlers.add(new PrometheusMetricsHandler(this));
+            }
+            requestHandlers.add(new SitemapRequestHandler());
             return requestHandlers;
         }
 
@@ -54,13 +76,79 @@ public class ToriServlet extends VaadinServlet {
         public String getConfiguredTheme(VaadinRequest request) {
             return getInitParameter("theme");
         }
+
+        @Override
+        public void requestStart(final VaadinRequest request,
+                final VaadinResponse response) {
+            DataSourceMetrics.requestStart();
+            super.requestStart(request, response);
+        }
+
+        @Override
+        public void requestEnd(final VaadinRequest request,
+                final VaadinResponse response, final VaadinSession session) {
+            try {
+                RenderMetrics.requestEnd(session);
+                super.requestEnd(request, response, session);
+            } finally {
+                DataSourceMetrics.requestEnd(String.valueOf(request
+                        .getPathInfo()));
+            }
+        }
     }
 
     @Override
     protected void service(final HttpServletRequest request,
             final HttpServletResponse response) throws ServletException,
             IOException {
-        super.service(request, response);
+        if (isIndexableBootstrapRequest(request)) {
+            serveIndexable(request, response);
+        } else {
+            super.service(request, response);
+        }
+    }
+
+    private static boolean isIndexableBootstrapRequest(
+            final HttpServletRequest request) {
+        final String pathInfo = request.getPathInfo();
+        return "GET".equals(request.getMethod())
+                && (pathInfo == null || "/".equals(pathInfo))
+                && ToriIndexableApplication.isIndexerBot(request)
+                && ToriIndexableApplication.isIndexableRequest(request);
+    }
+
+    private void serveIndexable(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        final IndexableSnapshot snapshot = getIndexableApplication()
+                .getSnapshot(request, request);
+        if (snapshot == null) {
+            response.setHeader("Retry-After", String
+                    .valueOf(ToriIndexableApplication.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        response.setDateHeader("Last-Modified", snapshot.getLastModified());
+        response.setHeader("ETag", snapshot.getETag());
+        if (snapshot.isNotModified(request)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType("text/html; charset=UTF-8");
+        final PrintWriter writer = response.getWriter();
+        writer.print("<!DOCTYPE html><html><head><meta charset=\"UTF-8\">"
+                + "</head><body>");
+        writer.print(snapshot.getHtml());
+        writer.print("</body></html>");
+        writer.close();
+    }
+
+    private synchronized ToriIndexableApplication getIndexableApplication() {
+        if (indexableApplication == null) {
+            indexableApplication = new ToriIndexableApplication();
+        }
+        return indexableApplication;
     }
 
     @Override
@@ -75,8 +163,22 @@ public class ToriServlet extends VaadinServlet {
 
     @Override
     protected void servletInitialized() {
+        ManagedBeans.setDeployment(getServletContext().getContextPath());
         getService()
                 .setSystemMessagesProvider(ToriSystemMessagesProvider.get());
     }
 
+    @Override
+    public void destroy() {
+        super.destroy();
+        // releases the index locks for the next deployment
+        PostSearchIndex.closeAll();
+        TopicIndex.closeAll();
+        DataSourceMetrics.shutdown();
+        TypingAggregator.shutdown();
+        ToriScheduler.shutdown();
+        ParallelLoader.shutdown();
+        ToriApiLoader.destroy();
+    }
+
 }
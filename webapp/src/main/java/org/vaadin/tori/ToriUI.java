@@ -16,6 +16,10 @@
 
 package org.vaadin.tori;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.portlet.PortletMode;
 
 import org.apache.log4j.Logger;
@@ -24,6 +28,8 @@ import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker;
 import org.vaadin.tori.component.Breadcrumbs;
 import org.vaadin.tori.component.DebugControlPanel;
 import org.vaadin.tori.component.RecentBar;
+import org.vaadin.tori.metrics.SessionMetrics;
+import org.vaadin.tori.metrics.UiRenderStats;
 import org.vaadin.tori.service.AuthorizationService;
 import org.vaadin.tori.service.DebugAuthorizationService;
 import org.vaadin.tori.util.ComponentUtil;
@@ -33,9 +39,13 @@ import org.vaadin.tori.view.edit.EditViewImpl;
 import org.vaadin.tori.widgetset.client.ui.ToriUIServerRpc;
 
 import com.vaadin.annotations.Widgetset;
+import com.vaadin.event.UIEvents.PollEvent;
+import com.vaadin.event.UIEvents.PollListener;
 import com.vaadin.server.Page;
 import com.vaadin.server.VaadinPortletRequest;
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.shared.communication.PushMode;
+import com.vaadin.shared.ui.ui.Transport;
 import com.vaadin.ui.Alignment;
 import com.vaadin.ui.UI;
 import com.vaadin.ui.VerticalLayout;
@@ -45,6 +55,7 @@ import com.vaadin.ui.VerticalLayout;
 public class ToriUI extends UI implements ToriUIServerRpc {
 
     public static final int DEFAULT_POLL_INTERVAL = 1000 * 10;
+    public static final int MAX_POLL_INTERVAL = 1000 * 60 * 5;
 
     private VerticalLayout mainLayout;
 
@@ -56,10 +67,19 @@ public class ToriUI extends UI implements ToriUIServerRpc {
     private ToriApiLoader apiLoader;
     private InputCacheUtil inputCacheUtil;
 
+    private final Queue<Runnable> pendingAccessTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean accessScheduled = new AtomicBoolean();
+
+    private final UiRenderStats renderStats = new UiRenderStats();
+
+    private boolean pushEnabled;
+    private boolean userInactive;
+    private volatile boolean activitySincePoll;
+
     @Override
     protected void init(final VaadinRequest request) {
         setId("tori-ui");
-        setPollInterval(DEFAULT_POLL_INTERVAL);
+        initPushOrPolling(request);
         registerRpc(this);
         ToriApiLoader.init(request);
         apiLoader = ToriApiLoader.getCurrent();
@@ -97,6 +117,61 @@ public class ToriUI extends UI implements ToriUIServerRpc {
         ConfirmDialog.setFactory(ComponentUtil.getConfirmDialogFactory());
     }
 
+    @Override
+    public void attach() {
+        super.attach();
+        SessionMetrics.uiAttached();
+    }
+
+    @Override
+    public void detach() {
+        SessionMetrics.uiDetached();
+        super.detach();
+    }
+
+    /**
+     * Activity updates are delivered through push (websocket with
+     * long-polling fallback) whenever available. Push isn't supported in
+     * portlets, in which case the UI polls with an interval that backs off
+     * exponentially while nothing happens and resets on new activity.
+     */
+    private void initPushOrPolling(final VaadinRequest request) {
+        pushEnabled = !(request instanceof VaadinPortletRequest)
+                && request.getService().ensurePushAvailable();
+        if (pushEnabled) {
+            getPushConfiguration().setPushMode(PushMode.AUTOMATIC);
+            getPushConfiguration().setTransport(Transport.WEBSOCKET);
+            getPushConfiguration().setFallbackTransport(Transport.LONG_POLLING);
+            setPollInterval(-1);
+        } else {
+            setPollInterval(DEFAULT_POLL_INTERVAL);
+            addPollListener(new PollListener() {
+                @Override
+                public void poll(final PollEvent event) {
+                    if (activitySincePoll) {
+                        activitySincePoll = false;
+                    } else {
+                        backOffPolling();
+                    }
+                }
+            });
+        }
+    }
+
+    private void backOffPolling() {
+        if (!pushEnabled) {
+            setPollInterval(Math.min(
+                    Math.max(getPollInterval(), DEFAULT_POLL_INTERVAL) * 2,
+                    MAX_POLL_INTERVAL));
+        }
+    }
+
+    private void resetPolling() {
+        if (!pushEnabled && getPollInterval() != DEFAULT_POLL_INTERVAL) {
+            setPollInterval(DEFAULT_POLL_INTERVAL);
+        }
+    }
+
     private void checkUrl() {
         UrlConverter uc = apiLoader.getUrlConverter();
         if (uc != null) {
@@ -168,6 +243,48 @@ public class ToriUI extends UI implements ToriUIServerRpc {
         return inputCacheUtil;
     }
 
+    public UiRenderStats getRenderStats() {
+        return renderStats;
+    }
+
+    /**
+     * Whether changes made in {@link #access(Runnable)} reach the client right
+     * away, instead of on the next poll.
+     */
+    public boolean isPushEnabled() {
+        return pushEnabled;
+    }
+
+    /**
+     * Runs the given task while holding the session lock, like
+     * {@link #access(Runnable)}. Tasks added from background threads while a
+     * previous one is still waiting for the lock are run within the same
+     * access, so a burst of activity events results in a single UI update.
+     */
+    public void accessBatched(final Runnable task) {
+        pendingAccessTasks.add(task);
+        if (accessScheduled.compareAndSet(false, true)) {
+            access(new Runnable() {
+                @Override
+                public void run() {
+                    accessScheduled.set(false);
+                    Runnable pending;
+                    while ((pending = pendingAccessTasks.poll()) != null) {
+                        try {
+                            pending.run();
+                        } catch (RuntimeException e) {
+                            getLogger().debug("Batched UI access failed", e);
+                        }
+                    }
+                    activitySincePoll = true;
+                    if (!userInactive) {
+                        resetPolling();
+                    }
+                }
+            });
+        }
+    }
+
     private static Logger getLogger() {
         return Logger.getLogger(ToriUI.class);
     }
@@ -178,11 +295,13 @@ public class ToriUI extends UI implements ToriUIServerRpc {
 
     @Override
     public void userInactive() {
-        setPollInterval(0);
+        userInactive = true;
+        backOffPolling();
     }
 
     @Override
     public void userActive() {
-        setPollInterval(DEFAULT_POLL_INTERVAL);
+        userInactive = false;
+        resetPolling();
     }
 }
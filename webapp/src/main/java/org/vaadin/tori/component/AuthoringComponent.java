@@ -26,6 +26,7 @@ import java.util.Map.Entry;
 
 import org.ocpsoft.prettytime.PrettyTime;
 import org.vaadin.tori.ToriUI;
+import org.vaadin.tori.metrics.RenderMetrics;
 import org.vaadin.tori.util.ToriScheduler;
 import org.vaadin.tori.util.ToriScheduler.ScheduledCommand;
 import org.vaadin.tori.view.thread.AuthoringData;
@@ -296,17 +297,22 @@ public class AuthoringComponent extends PostComponent {
             data.authorName = authoringData.getCurrentUserName();
             data.authorAvatarUrl = authoringData.getCurrentUserAvatarUrl();
             data.authorLink = authoringData.getCurrentUserLink();
-            getRpcProxy(PostComponentClientRpc.class).setPostPrimaryData(data);
+            getClientRpc().setPostPrimaryData(data);
 
             PostAdditionalData additionalData = new PostAdditionalData();
             additionalData.badgeHTML = authoringData.getCurrentUserBadgeHTML();
-            getRpcProxy(PostComponentClientRpc.class).setPostAdditionalData(
-                    additionalData);
+            getClientRpc().setPostAdditionalData(additionalData);
 
-            getRpcProxy(PostComponentClientRpc.class).editPost(editorLayout);
+            getClientRpc().editPost(editorLayout);
         }
     }
 
+    private PostComponentClientRpc getClientRpc() {
+        return RenderMetrics.instrument(
+                getRpcProxy(PostComponentClientRpc.class),
+                PostComponentClientRpc.class);
+    }
+
     public interface AuthoringListener {
         void submit(String rawBody, Map<String, byte[]> attachments,
                 boolean follow);
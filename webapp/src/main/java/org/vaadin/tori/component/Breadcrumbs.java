@@ -16,10 +16,10 @@
 
 package org.vaadin.tori.component;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-import org.apache.log4j.Logger;
 import org.vaadin.tori.ToriApiLoader;
 import org.vaadin.tori.ToriNavigator;
 import org.vaadin.tori.ToriUI;
@@ -27,15 +27,22 @@ import org.vaadin.tori.data.DataSource;
 import org.vaadin.tori.data.entity.Category;
 import org.vaadin.tori.data.entity.DiscussionThread;
 import org.vaadin.tori.exception.DataSourceException;
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.metrics.RenderMetrics.Timer;
 import org.vaadin.tori.mvp.AbstractView;
 import org.vaadin.tori.service.AuthorizationService;
 import org.vaadin.tori.util.ComponentUtil;
 import org.vaadin.tori.util.ToriScheduler;
+import org.vaadin.tori.util.ToriScheduler.BackgroundTask;
 import org.vaadin.tori.util.ToriScheduler.ScheduledCommand;
 import org.vaadin.tori.view.listing.ListingView;
+import org.vaadin.tori.view.search.SearchView;
+import org.vaadin.tori.view.thread.ThreadPresenter;
 import org.vaadin.tori.view.thread.ThreadView;
 import org.vaadin.tori.view.thread.newthread.NewThreadView;
 
+import com.vaadin.event.ShortcutAction.KeyCode;
+import com.vaadin.event.ShortcutListener;
 import com.vaadin.navigator.View;
 import com.vaadin.navigator.ViewChangeListener;
 import com.vaadin.server.ExternalResource;
@@ -54,6 +61,7 @@ import com.vaadin.ui.MenuBar.Command;
 import com.vaadin.ui.MenuBar.MenuItem;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.Notification.Type;
+import com.vaadin.ui.TextField;
 import com.vaadin.ui.VerticalLayout;
 
 @SuppressWarnings("serial")
@@ -95,6 +103,11 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
         captionLayout.setWidth(100.0f, Unit.PERCENTAGE);
         captionLayout.setExpandRatio(viewCaption, 1.0f);
 
+        final Component searchField = buildSearchField();
+        captionLayout.addComponent(searchField);
+        captionLayout.setComponentAlignment(searchField,
+                Alignment.MIDDLE_RIGHT);
+
         followButton = buildFollowButton();
         captionLayout.addComponent(followButton);
 
@@ -127,6 +140,23 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
         return result;
     }
 
+    private Component buildSearchField() {
+        final TextField searchField = new TextField();
+        searchField.setInputPrompt("Search");
+        searchField.setStyleName("searchfield");
+        searchField.addShortcutListener(new ShortcutListener("Search",
+                KeyCode.ENTER, null) {
+            @Override
+            public void handleAction(final Object sender, final Object target) {
+                final String query = searchField.getValue();
+                if (query != null && !query.trim().isEmpty()) {
+                    ToriNavigator.getCurrent().navigateToSearch(query);
+                }
+            }
+        });
+        return searchField;
+    }
+
     public void updateFollowButtonStyle() {
         followButton.setVisible(authorizationService.mayFollowThread(threadId));
         followButton
@@ -143,6 +173,16 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
 
     @Override
     public void afterViewChange(final ViewChangeEvent event) {
+        final Timer timer = RenderMetrics
+                .start("Breadcrumbs.afterViewChange");
+        try {
+            updateCrumbs(event);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void updateCrumbs(final ViewChangeEvent event) {
         viewCaption.setValue(null);
         viewCaption.setStyleName("viewcaption");
         followButton.setVisible(false);
@@ -154,7 +194,10 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
             final Long urlParameterId = ((AbstractView<?, ?>) view)
                     .getUrlParameterId();
             viewCaption.setValue(viewTitle);
-            if (view instanceof NewThreadView) {
+            if (view instanceof SearchView) {
+                crumbsLayout.removeAllComponents();
+                prependLink(null);
+            } else if (view instanceof NewThreadView) {
                 crumbsLayout.removeAllComponents();
                 Long categoryId = ((AbstractView) view).getUrlParameterId();
                 try {
@@ -170,8 +213,14 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
                 ToriScheduler.get().scheduleDeferred(new ScheduledCommand() {
                     @Override
                     public void execute() {
-                        crumbsLayout.removeAllComponents();
-                        buildCrumbs(view, urlParameterId);
+                        final Timer timer = RenderMetrics
+                                .start("Breadcrumbs.buildCrumbs");
+                        try {
+                            crumbsLayout.removeAllComponents();
+                            buildCrumbs(view, urlParameterId);
+                        } finally {
+                            timer.stop();
+                        }
                     }
                 });
             }
@@ -183,7 +232,8 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
         Category parentCategory = null;
         if (view instanceof ThreadView) {
             try {
-                DiscussionThread thread = dataSource.getThread(urlParameterId);
+                DiscussionThread thread = getOpenedThread(view,
+                        urlParameterId);
                 if (thread.isLocked()) {
                     viewCaption.addStyleName("lockedthread");
                 }
@@ -219,6 +269,23 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
         }
     }
 
+    /**
+     * Returns the thread the view has just loaded, or loads it if the view
+     * shows another one.
+     */
+    private DiscussionThread getOpenedThread(final View view,
+            final long threadId) throws DataSourceException {
+        final Object presenter = ((AbstractView<?, ?>) view).getPresenter();
+        if (presenter instanceof ThreadPresenter) {
+            final DiscussionThread thread = ((ThreadPresenter) presenter)
+                    .getCurrentThread();
+            if (thread != null && thread.getId() == threadId) {
+                return thread;
+            }
+        }
+        return dataSource.getThread(threadId);
+    }
+
     private void prependLink(final Category category) {
         if (category == null) {
             crumbsLayout.addComponent(getDashboardLink(), 0);
@@ -261,43 +328,47 @@ public class Breadcrumbs extends CustomComponent implements ViewChangeListener {
         final MenuBar menuBar = ComponentUtil.getDropdownMenu();
         final MenuItem topItem = menuBar.getMoreMenuItem();
         // Lazily populate the menubar
-        ToriScheduler.get().scheduleDeferred(new ScheduledCommand() {
-            @Override
-            public void execute() {
-                if (!topItem.hasChildren()) {
-                    populateSiblingMenu(topItem, category);
-                }
-            }
-        });
+        ToriScheduler.get().scheduleBackground(
+                new BackgroundTask<List<Category>>() {
+                    @Override
+                    public List<Category> load() throws DataSourceException {
+                        return getVisibleSiblings(category);
+                    }
+
+                    @Override
+                    public void loaded(final List<Category> siblings) {
+                        if (!topItem.hasChildren()) {
+                            populateSiblingMenu(topItem, siblings);
+                        }
+                    }
+                });
         return menuBar;
     }
 
-    protected void populateSiblingMenu(final MenuItem topItem,
-            final Category category) {
-        try {
-            Category parent = category.getParentCategory();
-            Long parentId = parent != null ? parent.getId() : null;
-            final List<Category> siblings = dataSource
-                    .getSubCategories(parentId);
-            for (final Category sibling : siblings) {
-                if (authorizationService.mayViewCategory(sibling.getId())) {
-                    topItem.addItem(sibling.getName(), new Command() {
-                        @Override
-                        public void menuSelected(final MenuItem selectedItem) {
-                            ToriNavigator.getCurrent().navigateToCategory(
-                                    sibling.getId());
-                        }
-                    });
-                }
+    private List<Category> getVisibleSiblings(final Category category)
+            throws DataSourceException {
+        Category parent = category.getParentCategory();
+        Long parentId = parent != null ? parent.getId() : null;
+        final List<Category> siblings = new ArrayList<Category>();
+        for (final Category sibling : dataSource.getSubCategories(parentId)) {
+            if (authorizationService.mayViewCategory(sibling.getId())) {
+                siblings.add(sibling);
             }
-        } catch (final DataSourceException e) {
-            getLogger().error(e);
-            e.printStackTrace();
         }
+        return siblings;
     }
 
-    private static Logger getLogger() {
-        return Logger.getLogger(Breadcrumbs.class);
+    protected void populateSiblingMenu(final MenuItem topItem,
+            final List<Category> siblings) {
+        for (final Category sibling : siblings) {
+            topItem.addItem(sibling.getName(), new Command() {
+                @Override
+                public void menuSelected(final MenuItem selectedItem) {
+                    ToriNavigator.getCurrent().navigateToCategory(
+                            sibling.getId());
+                }
+            });
+        }
     }
 
     @Override
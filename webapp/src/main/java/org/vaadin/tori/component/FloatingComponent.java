@@ -16,6 +16,7 @@
 
 package org.vaadin.tori.component;
 
+import org.vaadin.tori.metrics.RenderMetrics;
 import org.vaadin.tori.widgetset.client.ui.floatingcomponent.FloatingComponentClientRpc;
 
 import com.vaadin.server.AbstractExtension;
@@ -29,6 +30,8 @@ public class FloatingComponent extends AbstractExtension {
     }
 
     public void flash() {
-        getRpcProxy(FloatingComponentClientRpc.class).flash();
+        RenderMetrics.instrument(
+                getRpcProxy(FloatingComponentClientRpc.class),
+                FloatingComponentClientRpc.class).flash();
     }
 }
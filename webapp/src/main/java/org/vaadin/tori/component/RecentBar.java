@@ -26,9 +26,11 @@ import org.vaadin.tori.data.entity.Post;
 import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.util.ComponentUtil;
 import org.vaadin.tori.util.ComponentUtil.HeadingLevel;
+import org.vaadin.tori.util.PostSnapshot;
 import org.vaadin.tori.util.ToriActivityMessaging;
 import org.vaadin.tori.util.ToriActivityMessaging.UserAuthoredListener;
 import org.vaadin.tori.util.ToriScheduler;
+import org.vaadin.tori.util.ToriScheduler.BackgroundTask;
 import org.vaadin.tori.util.ToriScheduler.ScheduledCommand;
 import org.vaadin.tori.view.listing.SpecialCategory;
 
@@ -52,6 +54,7 @@ public class RecentBar extends CustomComponent implements UserAuthoredListener {
     private final DataSource dataSource = ToriApiLoader.getCurrent()
             .getDataSource();
     private CssLayout notificationsLayout;
+    private int refreshCount;
     private final ToriActivityMessaging messaging = ToriApiLoader.getCurrent()
             .getToriActivityMessaging();
 
@@ -89,12 +92,7 @@ public class RecentBar extends CustomComponent implements UserAuthoredListener {
         layout.addComponent(floatingNotification);
         floatingNotification.setId("floatingnotification");
 
-        ToriScheduler.get().scheduleDeferred(new ScheduledCommand() {
-            @Override
-            public void execute() {
-                refresh();
-            }
-        });
+        refresh();
     }
 
     private void addMyPostsLink(final HorizontalLayout barLayout) {
@@ -134,9 +132,9 @@ public class RecentBar extends CustomComponent implements UserAuthoredListener {
     }
 
     @Override
-    public void userAuthored(final long postId, final long threadId) {
+    public void userAuthored(final PostSnapshot post) {
         try {
-            getUI().access(new Runnable() {
+            ((ToriUI) getUI()).accessBatched(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -237,49 +235,65 @@ public class RecentBar extends CustomComponent implements UserAuthoredListener {
         return ToriUI.getCurrent().getRecentBar();
     }
 
+    /**
+     * Loads the latest post in the background and shows it if it's new. Only
+     * the result of the latest refresh is shown, as the loads may complete in
+     * any order.
+     */
     public void refresh() {
-        try {
-            DiscussionThread recentThread = null;
-
-            try {
-                int count = dataSource.getThreadCountRecursively(null);
-                for (int i = 0; i < count; i++) {
-                    DiscussionThread thread = dataSource.getRecentPosts(i,
-                            Math.min(i + 1, count - 1)).get(0);
-                    boolean newerThread = recentThread == null
-                            || thread
-                                    .getLatestPost()
-                                    .getTime()
-                                    .after(recentThread.getLatestPost()
-                                            .getTime());
-                    recentThread = newerThread ? thread : recentThread;
-                    if (!thread.isSticky()) {
-                        break;
-                    }
+        final int refresh = ++refreshCount;
+        ToriScheduler.get().scheduleBackground(new BackgroundTask<Post>() {
+            @Override
+            public Post load() throws DataSourceException {
+                return loadLatestPost();
+            }
+
+            @Override
+            public void loaded(final Post latestPost) {
+                if (refresh == refreshCount && latestPost != null) {
+                    showLatestPost(latestPost);
                 }
-            } catch (IndexOutOfBoundsException e) {
-                // No recent threads
             }
+        });
+    }
 
-            if (recentThread != null) {
-                Post latestPost = recentThread.getLatestPost();
-                if (latestPost != null) {
-                    latestPost.setThread(recentThread);
-                    if (current == null) {
-                        current = new PostNotification(latestPost);
-                        current.setState(PostNotificationState.CURRENT);
-                        notificationsLayout.addComponent(current);
-                    } else {
-                        long latestId = latestPost.getId();
-                        long currentId = current.getPostId();
-                        if (latestId != currentId) {
-                            newPostAdded(latestPost);
-                        }
-                    }
+    private Post loadLatestPost() throws DataSourceException {
+        DiscussionThread recentThread = null;
+
+        try {
+            int count = dataSource.getThreadCountRecursively(null);
+            for (int i = 0; i < count; i++) {
+                DiscussionThread thread = dataSource.getRecentPosts(i,
+                        Math.min(i + 1, count - 1)).get(0);
+                boolean newerThread = recentThread == null
+                        || thread.getLatestPost().getTime()
+                                .after(recentThread.getLatestPost().getTime());
+                recentThread = newerThread ? thread : recentThread;
+                if (!thread.isSticky()) {
+                    break;
                 }
             }
-        } catch (DataSourceException e) {
-            e.printStackTrace();
+        } catch (IndexOutOfBoundsException e) {
+            // No recent threads
+        }
+
+        if (recentThread != null) {
+            Post latestPost = recentThread.getLatestPost();
+            if (latestPost != null) {
+                latestPost.setThread(recentThread);
+            }
+            return latestPost;
+        }
+        return null;
+    }
+
+    private void showLatestPost(final Post latestPost) {
+        if (current == null) {
+            current = new PostNotification(latestPost);
+            current.setState(PostNotificationState.CURRENT);
+            notificationsLayout.addComponent(current);
+        } else if (latestPost.getId() != current.getPostId()) {
+            newPostAdded(latestPost);
         }
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.indexing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Node-wide token bucket per crawler, limiting how often crawlers may cause the
+ * database to be queried, be it for validating a snapshot or for rendering a
+ * view. Rate limited crawlers are served the previous snapshot as is. The
+ * number of views rendered at the same time is bounded separately, so that
+ * crawlers can't tie up the data source connections.
+ */
+final class CrawlerRateLimiter {
+
+    /** Sustained renders per second allowed for a single crawler. */
+    private static final double RENDERS_PER_SECOND = 2;
+    private static final double BURST = 10;
+    /** Views rendered at the same time by all the crawlers. */
+    private static final int CONCURRENT_RENDERS = 2;
+
+    private static final Semaphore RENDERS = new Semaphore(CONCURRENT_RENDERS);
+
+    private static final Map<String, Bucket> BUCKETS = new HashMap<String, Bucket>();
+
+    private CrawlerRateLimiter() {
+    }
+
+    /**
+     * Takes a token from the bucket of the given crawler.
+     *
+     * @return <code>false</code> if the crawler has exceeded its rate
+     */
+    static boolean tryAcquire(final String crawler) {
+        synchronized (BUCKETS) {
+            Bucket bucket = BUCKETS.get(crawler);
+            if (bucket == null) {
+                bucket = new Bucket();
+                BUCKETS.put(crawler, bucket);
+            }
+            return bucket.tryAcquire(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Reserves a slot for rendering a view. A successful call must be followed
+     * by {@link #endRender()}.
+     *
+     * @return <code>false</code> if too many views are being rendered
+     */
+    static boolean tryStartRender() {
+        return RENDERS.tryAcquire();
+    }
+
+    static void endRender() {
+        RENDERS.release();
+    }
+
+    /**
+     * Returns the number of seconds it takes for a bucket to gain a token, the
+     * time a rate limited crawler should wait before retrying.
+     */
+    static int getRetryAfterSeconds() {
+        return (int) Math.ceil(1 / RENDERS_PER_SECOND);
+    }
+
+    private static class Bucket {
+        private double tokens = BURST;
+        private long refilled = System.currentTimeMillis();
+
+        private boolean tryAcquire(final long now) {
+            tokens = Math.min(BURST, tokens + (now - refilled)
+                    * RENDERS_PER_SECOND / 1000);
+            refilled = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.vaadin.tori.indexing;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.vaadin.tori.ToriNavigator.ApplicationView;
@@ -27,6 +28,8 @@ import org.vaadin.tori.exception.NoSuchCategoryException;
 
 public class IndexableCategoryView extends IndexableView {
 
+    private static final int THREADS_PER_PAGE = 50;
+
     public IndexableCategoryView(final List<String> arguments,
             final ToriIndexableApplication application) {
         super(arguments, application);
@@ -53,7 +56,7 @@ public class IndexableCategoryView extends IndexableView {
             sb.append("<h1>" + category.getName() + "</h1>");
             sb.append(IndexableDashboardView.getCategoriesXhtml(
                     application.getDataSource(), getLogger(), category));
-            sb.append(getThreadsXhtml(category));
+            sb.append(getThreadsXhtml(category, getPage()));
             return sb.toString();
 
         } catch (final NumberFormatException e) {
@@ -78,13 +81,32 @@ public class IndexableCategoryView extends IndexableView {
         }
     }
 
-    private String getThreadsXhtml(final Category category) {
+    /**
+     * The zero based page number, given as the optional second argument.
+     */
+    private int getPage() {
+        if (arguments.size() > 1) {
+            try {
+                return Math.max(0, Integer.parseInt(arguments.get(1)));
+            } catch (final NumberFormatException e) {
+                getLogger().debug("Invalid page argument " + arguments.get(1));
+            }
+        }
+        return 0;
+    }
+
+    private String getThreadsXhtml(final Category category, final int page) {
         final StringBuilder sb = new StringBuilder();
         sb.append("<h2>Threads</h2>");
 
         try {
-            final List<DiscussionThread> threads = application.getDataSource()
-                    .getThreads(category);
+            final int threadCount = application.getDataSource()
+                    .getThreadCount(category.getId());
+            final int start = page * THREADS_PER_PAGE;
+            final List<DiscussionThread> threads = start < threadCount ? application
+                    .getDataSource().getThreads(category.getId(), start,
+                            start + THREADS_PER_PAGE - 1)
+                    : Collections.<DiscussionThread> emptyList();
             if (!threads.isEmpty()) {
                 sb.append("<table>");
                 sb.append("<tr><th>Thread</th><th>Author</th><th>Posts</th></tr>");
@@ -92,6 +114,9 @@ public class IndexableCategoryView extends IndexableView {
                     sb.append(getThreadRow(thread));
                 }
                 sb.append("</table>");
+                sb.append(getPagingXhtml(category, page, threadCount));
+            } else if (page > 0) {
+                sb.append("There are no more threads in this category");
             } else {
                 sb.append("There are no threads in this category");
             }
@@ -103,6 +128,27 @@ public class IndexableCategoryView extends IndexableView {
         return sb.toString();
     }
 
+    private String getPagingXhtml(final Category category, final int page,
+            final int threadCount) {
+        final StringBuilder sb = new StringBuilder();
+        if (page > 0) {
+            sb.append(String.format("<a rel=\"prev\" href=\"%s\">Previous</a> ",
+                    getPageUrl(category, page - 1)));
+        }
+        if ((page + 1) * THREADS_PER_PAGE < threadCount) {
+            sb.append(String.format("<a rel=\"next\" href=\"%s\">Next</a>",
+                    getPageUrl(category, page + 1)));
+        }
+        return sb.toString();
+    }
+
+    private String getPageUrl(final Category category, final int page) {
+        final String categoryUrl = application.getDataSource().getPathRoot()
+                + "#" + ApplicationView.CATEGORIES.getUrl() + "/"
+                + category.getId();
+        return page > 0 ? categoryUrl + "/" + page : categoryUrl;
+    }
+
     private String getThreadRow(final DiscussionThread thread) {
         final String threadUrl = getThreadUrl(thread);
         final String topic = ToriUtil.escapeXhtml(thread.getTopic());
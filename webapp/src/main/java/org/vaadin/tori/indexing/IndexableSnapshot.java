@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.indexing;
+
+import java.util.Date;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Rendered crawler HTML of a single indexable view, together with the
+ * validators used to answer conditional requests.
+ */
+public class IndexableSnapshot {
+
+    private final String html;
+    private final long lastModified;
+    private final String eTag;
+    private final long created = System.currentTimeMillis();
+
+    IndexableSnapshot(final String key, final String html,
+            final long lastModified) {
+        this.html = html;
+        // HTTP dates have a resolution of one second
+        this.lastModified = lastModified - lastModified % 1000;
+        eTag = String.format("\"%x-%x\"", key.hashCode(), this.lastModified);
+    }
+
+    public String getHtml() {
+        return html;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    long getAge() {
+        return System.currentTimeMillis() - created;
+    }
+
+    /**
+     * Checks whether the source of this snapshot has changed since the given
+     * modification time.
+     */
+    boolean isOlderThan(final Date sourceLastModified) {
+        return sourceLastModified != null
+                && sourceLastModified.getTime() - lastModified >= 1000;
+    }
+
+    /**
+     * Returns <code>true</code> if the client already has this snapshot
+     * according to the <code>If-None-Match</code> or
+     * <code>If-Modified-Since</code> header of the request.
+     */
+    public boolean isNotModified(final HttpServletRequest request) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.contains(eTag);
+        }
+
+        try {
+            final long ifModifiedSince = request
+                    .getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+        } catch (final IllegalArgumentException e) {
+            // malformed date
+            return false;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.vaadin.tori.indexing;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -29,11 +30,39 @@ import org.vaadin.tori.exception.NoSuchThreadException;
 
 public class IndexableThreadView extends IndexableView {
 
+    private DiscussionThread thread;
+
     public IndexableThreadView(final List<String> arguments,
             final ToriIndexableApplication application) {
         super(arguments, application);
     }
 
+    @Override
+    public Date getLastModified() {
+        if (arguments.isEmpty()) {
+            return null;
+        }
+        try {
+            final DiscussionThread loaded = getThread();
+            if (loaded != null && loaded.getLatestPost() != null) {
+                return loaded.getLatestPost().getTime();
+            }
+        } catch (final NumberFormatException e) {
+            // reported when rendering
+        } catch (final DataSourceException e) {
+            // reported when rendering
+        }
+        return null;
+    }
+
+    private DiscussionThread getThread() throws DataSourceException {
+        if (thread == null) {
+            final long threadId = Long.parseLong(arguments.get(0));
+            thread = application.getDataSource().getThread(threadId);
+        }
+        return thread;
+    }
+
     @Override
     public String getHtml() {
 
@@ -42,9 +71,7 @@ public class IndexableThreadView extends IndexableView {
         }
 
         try {
-            final long threadId = Long.parseLong(arguments.get(0));
-            final DiscussionThread thread = application.getDataSource()
-                    .getThread(threadId);
+            final DiscussionThread thread = getThread();
 
             if (thread == null) {
                 return "No such thread";
@@ -59,6 +86,13 @@ public class IndexableThreadView extends IndexableView {
             sb.append("<h2>" + ToriUtil.escapeXhtml(thread.getTopic())
                     + "</h2>");
             if (!posts.isEmpty()) {
+                final Configuration configuration = application
+                        .getDataSource().getConfiguration();
+                final Map<String, String> postReplacements = configuration
+                        .getReplacements();
+                final boolean replaceMessageBoardsLinks = configuration
+                        .isReplaceMessageBoardsLinks();
+
                 for (final Post post : posts) {
                     sb.append("<article>");
 
@@ -72,14 +106,6 @@ public class IndexableThreadView extends IndexableView {
                     sb.append("</header>");
 
                     sb.append("<section>");
-
-                    Configuration configuration = application.getDataSource()
-                            .getConfiguration();
-
-                    Map<String, String> postReplacements = configuration
-                            .getReplacements();
-                    boolean replaceMessageBoardsLinks = configuration
-                            .isReplaceMessageBoardsLinks();
                     sb.append(application.getPostFormatter().format(post,
                             postReplacements, replaceMessageBoardsLinks));
                     sb.append("</section>");
@@ -18,6 +18,7 @@ package org.vaadin.tori.indexing;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -34,6 +35,15 @@ public abstract class IndexableView {
 
     abstract public String getHtml();
 
+    /**
+     * Returns the time the content of this view was last changed, or
+     * <code>null</code> if it can't be determined cheaply. Snapshots of views
+     * without a modification time are simply re-rendered once they expire.
+     */
+    public Date getLastModified() {
+        return null;
+    }
+
     public static <T extends IndexableView> T newInstance(
             final Class<T> viewClass, final List<String> arguments,
             final ToriIndexableApplication application) {
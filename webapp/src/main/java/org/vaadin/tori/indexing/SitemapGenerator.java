@@ -0,0 +1,503 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.indexing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.GuestContextAware;
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
+import org.vaadin.tori.ToriApiLoader;
+import org.vaadin.tori.ToriNavigator.ApplicationView;
+import org.vaadin.tori.ToriUtil;
+import org.vaadin.tori.data.DataSource;
+import org.vaadin.tori.data.entity.Category;
+import org.vaadin.tori.data.entity.DiscussionThread;
+import org.vaadin.tori.exception.DataSourceException;
+
+/**
+ * Generates the sitemap files of a single Tori instance into a directory on
+ * disk. Each category gets its own sitemap files, which are only rewritten when
+ * the category's newest post or thread count has changed since the previous
+ * generation. Threads are paged through the data source, so that only one page
+ * of threads is held in memory at a time.
+ * <p>
+ * The sitemap is public, so it is always built as an anonymous guest, no
+ * matter whose request triggers the generation. Data sources that don't
+ * implement {@link GuestContextAware} are expected to return the same content
+ * to everyone. For the same reason the absolute URLs are built from the
+ * configured address of the forum (see {@link DataSource#getServerUrl()} and
+ * {@link SitemapRequestHandler#SERVER_URL_PROPERTY}), never from the request.
+ * <p>
+ * Only the first generation is waited for. Later ones run in the background
+ * while the previous files are served, except with data sources bound to the
+ * request, which can't be used once it has ended. Those are regenerated by
+ * the request that notices the sitemap is due, and only it waits.
+ */
+class SitemapGenerator {
+
+    static final String INDEX_FILE = "sitemap.xml";
+
+    /** The maximum number of URLs in a single sitemap file */
+    private static final int MAX_URLS_PER_FILE = 50000;
+    private static final int PAGE_SIZE = 500;
+    /** Threads checked for the newest post of a category */
+    private static final int PROBE_SIZE = 20;
+    /** How often the data source is checked for changes */
+    private static final long REFRESH_INTERVAL = 15 * 60 * 1000;
+
+    private static final String STATE_FILE = "sitemap.properties";
+    private static final String CATEGORY_PREFIX = "category.";
+    private static final String NAMESPACE = "http://www.sitemaps.org/schemas/sitemap/0.9";
+
+    private final File directory;
+    private final ToriApiLoader apiLoader = new ToriApiLoader();
+    private final Properties state = new Properties();
+    private final DateFormat dateFormat;
+    private long lastRefresh;
+    private boolean refreshing;
+
+    SitemapGenerator(final File directory) {
+        this.directory = directory;
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        loadState();
+    }
+
+    /**
+     * Builds the absolute URLs of the sitemap files listed in the index.
+     */
+    interface SitemapUrlBuilder {
+        String getUrl(String serverUrl, String fileName);
+    }
+
+    /**
+     * Returns the requested sitemap file, first starting to bring the sitemap
+     * up to date if it hasn't been checked for a while.
+     *
+     * @param request
+     *            the portlet or servlet request to bind the services to
+     * @param defaultPagePath
+     *            the path of the page Tori is on, if the data source doesn't
+     *            know it
+     * @return the file, or <code>null</code> if there is no such file
+     */
+    File getFile(final Object request, final String defaultPagePath,
+            final SitemapUrlBuilder urlBuilder, final String fileName) {
+        final File indexFile = new File(directory, INDEX_FILE);
+        if (startRefresh(indexFile)) {
+            apiLoader.setRequest(request);
+            if (indexFile.isFile() && !apiLoader.isRequestBound()) {
+                refreshInBackground(defaultPagePath, urlBuilder);
+            } else {
+                try {
+                    regenerate(defaultPagePath, urlBuilder);
+                } finally {
+                    endRefresh();
+                }
+            }
+        } else if (!indexFile.isFile()) {
+            awaitRefresh();
+        }
+
+        final File file = new File(directory, fileName);
+        return file.isFile() ? file : null;
+    }
+
+    private synchronized boolean startRefresh(final File indexFile) {
+        final long now = System.currentTimeMillis();
+        if (refreshing || indexFile.isFile()
+                && now - lastRefresh <= REFRESH_INTERVAL) {
+            return false;
+        }
+        refreshing = true;
+        lastRefresh = now;
+        return true;
+    }
+
+    private synchronized void endRefresh() {
+        refreshing = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the generation running on another thread, there being no
+     * previous files to serve meanwhile.
+     */
+    private synchronized void awaitRefresh() {
+        while (refreshing) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void refreshInBackground(final String defaultPagePath,
+            final SitemapUrlBuilder urlBuilder) {
+        final List<ThreadContext> contexts = apiLoader.captureThreadContexts();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (final ThreadContext context : contexts) {
+                    context.attach();
+                }
+                try {
+                    regenerate(defaultPagePath, urlBuilder);
+                } finally {
+                    for (int i = contexts.size() - 1; i >= 0; i--) {
+                        contexts.get(i).detach();
+                    }
+                    endRefresh();
+                }
+            }
+        }, "tori-sitemap-generator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void regenerate(final String defaultPagePath,
+            final SitemapUrlBuilder urlBuilder) {
+        final DataSource ds = apiLoader.getDataSource();
+        final ThreadContext guestContext = ds instanceof GuestContextAware ? ((GuestContextAware) ds)
+                .createGuestContext() : null;
+        try {
+            if (guestContext != null) {
+                guestContext.attach();
+            }
+            String serverUrl = System
+                    .getProperty(SitemapRequestHandler.SERVER_URL_PROPERTY);
+            if (serverUrl == null) {
+                serverUrl = ds.getServerUrl();
+            }
+            if (serverUrl == null) {
+                getLogger().warn(
+                        "Unable to generate the sitemap, the server URL isn't "
+                                + "configured. Set the "
+                                + SitemapRequestHandler.SERVER_URL_PROPERTY
+                                + " system property.");
+                return;
+            }
+            final String pathRoot = ds.getPathRoot();
+            final String pageUrl = serverUrl
+                    + (pathRoot != null ? pathRoot : defaultPagePath);
+            refresh(serverUrl, pageUrl, urlBuilder);
+        } catch (final DataSourceException e) {
+            getLogger().error("Unable to generate the sitemap", e);
+        } catch (final IOException e) {
+            getLogger().error("Unable to generate the sitemap", e);
+        } catch (final IllegalStateException e) {
+            getLogger().error("Unable to generate the sitemap", e);
+        } finally {
+            if (guestContext != null) {
+                guestContext.detach();
+            }
+        }
+    }
+
+    private void refresh(final String serverUrl, final String pageUrl,
+            final SitemapUrlBuilder urlBuilder)
+            throws DataSourceException, IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        final DataSource ds = apiLoader.getDataSource();
+        final List<Long> categoryIds = new ArrayList<Long>();
+        categoryIds.add(null);
+        addCategoryIds(ds, null, categoryIds);
+
+        final Set<String> staleKeys = new HashSet<String>(
+                state.stringPropertyNames());
+        final Writer index = open(INDEX_FILE);
+        boolean complete = false;
+        try {
+            index.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            index.write("<sitemapindex xmlns=\"" + NAMESPACE + "\">\n");
+            for (final Long categoryId : categoryIds) {
+                final String key = CATEGORY_PREFIX
+                        + (categoryId != null ? categoryId : 0);
+                staleKeys.remove(key);
+                final CategoryState categoryState = refreshCategory(ds,
+                        categoryId, key, pageUrl);
+                for (int part = 0; part < categoryState.parts; part++) {
+                    index.write("<sitemap><loc>");
+                    index.write(ToriUtil.escapeXhtml(urlBuilder.getUrl(
+                            serverUrl, getFileName(key, part))));
+                    index.write("</loc><lastmod>");
+                    index.write(dateFormat.format(new Date(
+                            categoryState.lastPostTime)));
+                    index.write("</lastmod></sitemap>\n");
+                }
+            }
+            index.write("</sitemapindex>\n");
+            complete = true;
+        } finally {
+            close(index, INDEX_FILE, complete);
+        }
+
+        // categories deleted since the previous generation
+        for (final String key : staleKeys) {
+            deleteParts(key, 0, CategoryState.parse(state.getProperty(key)));
+            state.remove(key);
+        }
+        saveState();
+    }
+
+    private static void addCategoryIds(final DataSource ds,
+            final Long parentId, final List<Long> categoryIds)
+            throws DataSourceException {
+        for (final Category category : ds.getSubCategories(parentId)) {
+            categoryIds.add(category.getId());
+            addCategoryIds(ds, category.getId(), categoryIds);
+        }
+    }
+
+    private CategoryState refreshCategory(final DataSource ds,
+            final Long categoryId, final String key, final String pageUrl)
+            throws DataSourceException, IOException {
+        final int threadCount = ds.getThreadCount(categoryId);
+        long lastPostTime = 0;
+        if (threadCount > 0) {
+            // sticky threads first, then by the newest post
+            for (final DiscussionThread thread : ds.getThreads(categoryId, 0,
+                    PROBE_SIZE - 1)) {
+                lastPostTime = Math.max(lastPostTime, getLastPostTime(thread));
+            }
+        }
+
+        final CategoryState previous = CategoryState.parse(state
+                .getProperty(key));
+        if (previous != null && previous.threadCount == threadCount
+                && previous.lastPostTime == lastPostTime) {
+            return previous;
+        }
+
+        final int parts = writeCategory(ds, categoryId, key, pageUrl,
+                threadCount);
+        deleteParts(key, parts, previous);
+        final CategoryState current = new CategoryState(threadCount,
+                lastPostTime, parts);
+        state.setProperty(key, current.toString());
+        return current;
+    }
+
+    /**
+     * @return the number of sitemap files written
+     */
+    private int writeCategory(final DataSource ds, final Long categoryId,
+            final String key, final String pageUrl, final int threadCount)
+            throws DataSourceException, IOException {
+        int part = 0;
+        int urls = 0;
+        Writer writer = null;
+        boolean complete = false;
+        try {
+            for (int start = 0; start < threadCount; start += PAGE_SIZE) {
+                final List<DiscussionThread> threads = ds.getThreads(
+                        categoryId, start, start + PAGE_SIZE - 1);
+                if (threads.isEmpty()) {
+                    break;
+                }
+                for (final DiscussionThread thread : threads) {
+                    if (writer != null && urls == MAX_URLS_PER_FILE) {
+                        endSitemap(writer, getFileName(key, part));
+                        writer = null;
+                        part++;
+                    }
+                    if (writer == null) {
+                        writer = beginSitemap(getFileName(key, part));
+                        urls = 0;
+                    }
+                    writeUrl(writer, thread, pageUrl);
+                    urls++;
+                }
+            }
+            complete = true;
+        } finally {
+            if (writer != null && complete) {
+                endSitemap(writer, getFileName(key, part));
+                part++;
+            } else if (writer != null) {
+                close(writer, getFileName(key, part), false);
+            }
+        }
+        return part;
+    }
+
+    private void writeUrl(final Writer writer, final DiscussionThread thread,
+            final String pageUrl) throws IOException {
+        writer.write("<url><loc>");
+        writer.write(ToriUtil.escapeXhtml(pageUrl + "#"
+                + ApplicationView.THREADS.getUrl() + "/" + thread.getId()));
+        writer.write("</loc>");
+        final long lastPostTime = getLastPostTime(thread);
+        if (lastPostTime > 0) {
+            writer.write("<lastmod>");
+            writer.write(dateFormat.format(new Date(lastPostTime)));
+            writer.write("</lastmod>");
+        }
+        writer.write("</url>\n");
+    }
+
+    private static long getLastPostTime(final DiscussionThread thread) {
+        final Date lastPostTime = thread.getLastPostTime();
+        return lastPostTime != null ? lastPostTime.getTime() : 0;
+    }
+
+    private Writer beginSitemap(final String fileName) throws IOException {
+        final Writer writer = open(fileName);
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write("<urlset xmlns=\"" + NAMESPACE + "\">\n");
+        return writer;
+    }
+
+    private void endSitemap(final Writer writer, final String fileName)
+            throws IOException {
+        boolean complete = false;
+        try {
+            writer.write("</urlset>\n");
+            complete = true;
+        } finally {
+            close(writer, fileName, complete);
+        }
+    }
+
+    /**
+     * Opens a temporary file, which replaces the actual file once completed,
+     * so that the files being served are always complete.
+     */
+    private Writer open(final String fileName) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                new File(directory, fileName + ".tmp")), "UTF-8"));
+    }
+
+    private void close(final Writer writer, final String fileName,
+            final boolean complete) throws IOException {
+        writer.close();
+        final File tempFile = new File(directory, fileName + ".tmp");
+        if (!complete) {
+            tempFile.delete();
+            return;
+        }
+
+        final File file = new File(directory, fileName);
+        if (!tempFile.renameTo(file)) {
+            // renaming over an existing file fails on some platforms
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to write " + file);
+            }
+        }
+    }
+
+    private void deleteParts(final String key, final int fromPart,
+            final CategoryState previous) {
+        if (previous != null) {
+            for (int part = fromPart; part < previous.parts; part++) {
+                new File(directory, getFileName(key, part)).delete();
+            }
+        }
+    }
+
+    static String getFileName(final String categoryKey, final int part) {
+        return "sitemap-" + categoryKey.substring(CATEGORY_PREFIX.length())
+                + "-" + part + ".xml";
+    }
+
+    private void loadState() {
+        final File file = new File(directory, STATE_FILE);
+        if (file.isFile()) {
+            try {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    state.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (final IOException e) {
+                getLogger().warn("Unable to read " + file, e);
+                state.clear();
+            }
+        }
+    }
+
+    private void saveState() throws IOException {
+        final OutputStream out = new FileOutputStream(new File(directory,
+                STATE_FILE));
+        try {
+            state.store(out, "Tori sitemap state");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(SitemapGenerator.class);
+    }
+
+    private static class CategoryState {
+        private final int threadCount;
+        private final long lastPostTime;
+        private final int parts;
+
+        public CategoryState(final int threadCount, final long lastPostTime,
+                final int parts) {
+            this.threadCount = threadCount;
+            this.lastPostTime = lastPostTime;
+            this.parts = parts;
+        }
+
+        private static CategoryState parse(final String value) {
+            if (value != null) {
+                final String[] values = value.split(":");
+                try {
+                    return new CategoryState(Integer.parseInt(values[0]),
+                            Long.parseLong(values[1]),
+                            Integer.parseInt(values[2]));
+                } catch (final RuntimeException e) {
+                    // corrupted state, regenerate
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return threadCount + ":" + lastPostTime + ":" + parts;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.portlet.MimeResponse;
+import javax.portlet.PortletRequest;
+import javax.portlet.ResourceURL;
+import javax.servlet.http.HttpServletRequest;
+
+import org.vaadin.tori.indexing.SitemapGenerator.SitemapUrlBuilder;
+
+import com.vaadin.server.RequestHandler;
+import com.vaadin.server.VaadinPortletResponse;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Serves the sitemap of all the categories and threads as
+ * <code>sitemap.xml</code>, a sitemap index pointing to the per category
+ * <code>sitemap-&lt;categoryId&gt;-&lt;part&gt;.xml</code> files. In a servlet
+ * deployment the files are found right under the servlet path, and in a portlet
+ * deployment they are served as portlet resources with the file name as the
+ * resource id.
+ * <p>
+ * The files are generated by a {@link SitemapGenerator} per Tori instance and
+ * streamed from disk. As the files are shared by everyone, the absolute URLs
+ * in them use the address configured with the {@value #SERVER_URL_PROPERTY}
+ * system property, or else in the data source, such as the virtual host of
+ * the Liferay site. Without either no sitemap is generated.
+ */
+@SuppressWarnings("serial")
+public class SitemapRequestHandler implements RequestHandler {
+
+    /** The scheme, host and port of the URLs, e.g. https://forum.example.com */
+    public static final String SERVER_URL_PROPERTY = "tori.sitemap.serverUrl";
+
+    private static final Pattern SITEMAP_PATTERN = Pattern
+            .compile("/sitemap(-\\d+-\\d+)?\\.xml");
+    private static final int CACHE_TIME_SECONDS = 60 * 60;
+
+    private static final ConcurrentMap<String, SitemapGenerator> GENERATORS = new ConcurrentHashMap<String, SitemapGenerator>();
+
+    @Override
+    public boolean handleRequest(final VaadinSession session,
+            final VaadinRequest request, final VaadinResponse response)
+            throws IOException {
+        final String pathInfo = request.getPathInfo();
+        if (pathInfo == null || !SITEMAP_PATTERN.matcher(pathInfo).matches()) {
+            return false;
+        }
+
+        final String fileName = pathInfo.substring(1);
+        final File file = getGenerator(request).getFile(request,
+                getDefaultPagePath(request),
+                getSitemapUrlBuilder(request, response), fileName);
+        if (file == null) {
+            response.sendError(404, "No such sitemap");
+            return true;
+        }
+
+        response.setContentType("application/xml; charset=UTF-8");
+        response.setCacheTime(CACHE_TIME_SECONDS * 1000L);
+        final InputStream in = new FileInputStream(file);
+        try {
+            final OutputStream out = response.getOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.close();
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private static SitemapGenerator getGenerator(final VaadinRequest request) {
+        String key = request.getContextPath();
+        if (request instanceof PortletRequest) {
+            // one sitemap per portlet window
+            key += "/" + ((PortletRequest) request).getWindowID();
+        }
+
+        SitemapGenerator generator = GENERATORS.get(key);
+        if (generator == null) {
+            final File directory = new File(
+                    System.getProperty("java.io.tmpdir"), "tori-sitemap-"
+                            + Integer.toHexString(key.hashCode()));
+            final SitemapGenerator newGenerator = new SitemapGenerator(
+                    directory);
+            generator = GENERATORS.putIfAbsent(key, newGenerator);
+            if (generator == null) {
+                generator = newGenerator;
+            }
+        }
+        return generator;
+    }
+
+    /**
+     * The path of the page the thread URLs are relative to, in case the data
+     * source doesn't know it.
+     */
+    private static String getDefaultPagePath(final VaadinRequest request) {
+        if (request instanceof HttpServletRequest) {
+            return request.getContextPath()
+                    + ((HttpServletRequest) request).getServletPath() + "/";
+        } else {
+            return "/";
+        }
+    }
+
+    private static SitemapUrlBuilder getSitemapUrlBuilder(
+            final VaadinRequest request, final VaadinResponse response) {
+        if (response instanceof VaadinPortletResponse
+                && ((VaadinPortletResponse) response).getPortletResponse() instanceof MimeResponse) {
+            final MimeResponse mimeResponse = (MimeResponse) ((VaadinPortletResponse) response)
+                    .getPortletResponse();
+            return new SitemapUrlBuilder() {
+                @Override
+                public String getUrl(final String serverUrl,
+                        final String fileName) {
+                    final ResourceURL url = mimeResponse.createResourceURL();
+                    url.setResourceID("/" + fileName);
+                    return serverUrl + getPath(url.toString());
+                }
+            };
+        } else {
+            final String sitemapPath = getDefaultPagePath(request);
+            return new SitemapUrlBuilder() {
+                @Override
+                public String getUrl(final String serverUrl,
+                        final String fileName) {
+                    return serverUrl + sitemapPath + fileName;
+                }
+            };
+        }
+    }
+
+    /**
+     * Leaves out the scheme, host and port of an absolute URL, as the portal
+     * may have taken them from the request.
+     */
+    private static String getPath(final String url) {
+        final int schemeEnd = url.indexOf("://");
+        if (schemeEnd == -1) {
+            return url;
+        }
+        final int pathStart = url.indexOf('/', schemeEnd + 3);
+        return pathStart != -1 ? url.substring(pathStart) : "/";
+    }
+}
@@ -17,18 +17,36 @@
 package org.vaadin.tori.indexing;
 
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-import javax.portlet.PortletRequest;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
+import org.vaadin.tori.GuestContextAware;
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
 import org.vaadin.tori.ToriApiLoader;
 import org.vaadin.tori.ToriNavigator.ApplicationView;
 import org.vaadin.tori.data.DataSource;
 import org.vaadin.tori.util.PostFormatter;
 import org.vaadin.tori.util.UrlConverter;
 
+/**
+ * Renders the crawler versions of the Tori views. One instance is shared by
+ * all the crawler requests of a single Tori instance, and keeps the rendered
+ * views as {@link IndexableSnapshot}s so that unchanged threads aren't loaded
+ * and formatted again on every crawl.
+ * <p>
+ * Requests are handled concurrently, each with its own services bound to its
+ * request. As the snapshots are shared by all the crawlers, and crawlers are
+ * only recognized by their user agent, the views are always rendered as an
+ * anonymous guest, no matter who is signed in on the request. Data sources
+ * that don't implement {@link GuestContextAware} are expected to return the
+ * same content to everyone. The number of views validated and rendered is
+ * bounded node-wide by {@link CrawlerRateLimiter}.
+ */
 public class ToriIndexableApplication {
 
     public static final String ESCAPED_FRAGMENT = "_escaped_fragment_";
@@ -40,19 +58,58 @@ public class ToriIndexableApplication {
     // yahoo uses bing's crawlers
     };
 
-    private final ToriApiLoader apiLoader = new ToriApiLoader();
-
-    public ToriIndexableApplication(final PortletRequest request) {
-        apiLoader.setRequest(request);
-    }
+    private static final int MAX_SNAPSHOTS = 500;
+    /** Snapshots of views with a modification time, bounds staleness of edits */
+    private static final long MAX_SNAPSHOT_AGE = 60 * 60 * 1000;
+    /** Snapshots of views without a modification time */
+    private static final long MAX_UNVALIDATED_SNAPSHOT_AGE = 10 * 60 * 1000;
+
+    /** The services bound to the request handled by the current thread */
+    private final ThreadLocal<ToriApiLoader> apiLoader = new ThreadLocal<ToriApiLoader>();
+
+    @SuppressWarnings("serial")
+    private final Map<String, IndexableSnapshot> snapshots = new LinkedHashMap<String, IndexableSnapshot>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, IndexableSnapshot> eldest) {
+            return size() > MAX_SNAPSHOTS;
+        }
+    };
 
-    public ToriIndexableApplication(final HttpServletRequest request) {
-        apiLoader.setRequest(request);
+    /**
+     * Get the resulting XHTML of the requested view, either from a snapshot or
+     * freshly rendered.
+     * 
+     * @param request
+     *            the portlet or servlet request to bind the services to
+     * @return the snapshot, possibly a stale one if the crawler has exceeded
+     *         its rate limit or too many views are being rendered, or
+     *         <code>null</code> if there is no previous snapshot to serve
+     */
+    public IndexableSnapshot getSnapshot(final Object request,
+            final HttpServletRequest servletRequest) {
+        final ToriApiLoader loader = new ToriApiLoader();
+        loader.setRequest(request);
+        final DataSource ds = loader.getDataSource();
+        final ThreadContext guestContext = ds instanceof GuestContextAware ? ((GuestContextAware) ds)
+                .createGuestContext() : null;
+        apiLoader.set(loader);
+        try {
+            if (guestContext != null) {
+                guestContext.attach();
+            }
+            return getSnapshot(loader, servletRequest);
+        } finally {
+            if (guestContext != null) {
+                guestContext.detach();
+            }
+            apiLoader.remove();
+        }
     }
 
-    /** Get the resulting XHTML page (<code>&lt;html&gt;</code> tags and all) */
-    public String getResultInHtml(final HttpServletRequest servletRequest) {
-
+    private IndexableSnapshot getSnapshot(final ToriApiLoader apiLoader,
+            final HttpServletRequest servletRequest) {
         String requestUrl = null;
         String lrcid = servletRequest.getParameter("_19_mbCategoryId");
         if (lrcid != null) {
@@ -70,7 +127,9 @@ public class ToriIndexableApplication {
         if (urlConverter != null && requestUrl != null) {
             String convertedUrl = urlConverter.convertUrlToToriForm(requestUrl);
             if (!requestUrl.equals(convertedUrl)) {
-                return getRedirectionTag(convertedUrl);
+                return new IndexableSnapshot(requestUrl,
+                        getRedirectionTag(convertedUrl),
+                        System.currentTimeMillis());
             }
         }
 
@@ -79,7 +138,60 @@ public class ToriIndexableApplication {
         final String viewString = getViewString(fragmentArguments);
         final List<String> arguments = getArguments(fragmentArguments);
         final IndexableView view = getIndexableView(viewString, arguments, this);
-        return view.getHtml();
+
+        final String key = viewString + arguments;
+        final IndexableSnapshot cached;
+        synchronized (snapshots) {
+            cached = snapshots.get(key);
+        }
+
+        // validating the snapshot queries the data source as well
+        final String crawler = getIndexerBotName(servletRequest);
+        if (!CrawlerRateLimiter.tryAcquire(crawler != null ? crawler : "")) {
+            getLogger().debug(
+                    String.format("Rate limiting %s, not validating %s",
+                            crawler, key));
+            return cached;
+        }
+        final Date lastModified = view.getLastModified();
+        if (cached != null && isFresh(cached, lastModified)) {
+            return cached;
+        }
+        if (!CrawlerRateLimiter.tryStartRender()) {
+            getLogger().debug("Too many concurrent renders, not rendering " + key);
+            return cached;
+        }
+
+        final IndexableSnapshot snapshot;
+        try {
+            snapshot = new IndexableSnapshot(key, view.getHtml(),
+                    lastModified != null ? lastModified.getTime()
+                            : System.currentTimeMillis());
+        } finally {
+            CrawlerRateLimiter.endRender();
+        }
+        synchronized (snapshots) {
+            snapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    private static boolean isFresh(final IndexableSnapshot snapshot,
+            final Date lastModified) {
+        if (lastModified != null) {
+            return !snapshot.isOlderThan(lastModified)
+                    && snapshot.getAge() < MAX_SNAPSHOT_AGE;
+        } else {
+            return snapshot.getAge() < MAX_UNVALIDATED_SNAPSHOT_AGE;
+        }
+    }
+
+    /**
+     * Returns the number of seconds a rate limited crawler should wait before
+     * retrying.
+     */
+    public static int getRetryAfterSeconds() {
+        return CrawlerRateLimiter.getRetryAfterSeconds();
     }
 
     private String getRedirectionTag(final String redirectUrl) {
@@ -141,12 +253,12 @@ public class ToriIndexableApplication {
             }
         }
 
-        if (tempView != null) {
+        if (tempView != null && tempView.getIndexableView() != null) {
             viewToIndex = tempView;
         } else {
             final ApplicationView defaultView = ApplicationView.getDefault();
             getLogger().debug(
-                    String.format("\"%s\" is not an explicit view name. "
+                    String.format("\"%s\" is not an indexable view name. "
                             + "Defaulting to %s", view, defaultView));
             viewToIndex = defaultView;
         }
@@ -185,28 +297,33 @@ public class ToriIndexableApplication {
     }
 
     public static boolean isIndexerBot(final HttpServletRequest servletRequest) {
-        final String visitorUserAgent = servletRequest.getHeader(USER_AGENT)
-                .toLowerCase();
+        return getIndexerBotName(servletRequest) != null;
+    }
+
+    private static String getIndexerBotName(
+            final HttpServletRequest servletRequest) {
+        final String visitorUserAgent = servletRequest.getHeader(USER_AGENT);
         if (visitorUserAgent == null) {
             Logger.getLogger(ToriIndexableApplication.class).warn(
                     "User agent not detected. Assuming visitor is "
                             + "not an indexing bot");
-            return false;
+            return null;
         }
 
+        final String userAgent = visitorUserAgent.toLowerCase();
         for (final String botUserAgent : BOT_USER_AGENTS) {
-            if (visitorUserAgent.contains(botUserAgent)) {
-                return true;
+            if (userAgent.contains(botUserAgent)) {
+                return botUserAgent;
             }
         }
-        return false;
+        return null;
     }
 
     public DataSource getDataSource() {
-        return apiLoader.getDataSource();
+        return apiLoader.get().getDataSource();
     }
 
     public PostFormatter getPostFormatter() {
-        return apiLoader.getPostFormatter();
+        return apiLoader.get().getPostFormatter();
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit and miss counts of one of the node-wide caches, by cache name. Exported
+ * by {@link PrometheusMetricsHandler}.
+ */
+public final class CacheStats {
+
+    private static final ConcurrentMap<String, CacheStats> CACHES = new ConcurrentHashMap<String, CacheStats>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private CacheStats() {
+    }
+
+    /**
+     * Returns the statistics of the cache with the given name, creating them
+     * if needed.
+     */
+    public static CacheStats get(final String name) {
+        CacheStats stats = CACHES.get(name);
+        if (stats == null) {
+            final CacheStats newStats = new CacheStats();
+            stats = CACHES.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the statistics of all the caches, by cache name.
+     */
+    public static Map<String, CacheStats> getAll() {
+        return new TreeMap<String, CacheStats>(CACHES);
+    }
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the share of lookups served from the cache, or <code>0</code>
+     * if there have been none.
+     */
+    public double getHitRatio() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class DataSourceMethodStats implements DataSourceMethodStatsMXBean {
+
+    private final String method;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong nPlusOneRequests = new AtomicLong();
+
+    DataSourceMethodStats(final String method) {
+        this.method = method;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    void record(final long nanos, final boolean failed) {
+        latencies.record(nanos);
+        if (failed) {
+            errors.incrementAndGet();
+        }
+    }
+
+    void nPlusOneDetected() {
+        nPlusOneRequests.incrementAndGet();
+    }
+
+    void reset() {
+        latencies.reset();
+        errors.set(0);
+        nPlusOneRequests.set(0);
+    }
+
+    @Override
+    public long getCalls() {
+        return latencies.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return latencies.getMeanMillis();
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return latencies.getMaxMillis();
+    }
+
+    @Override
+    public double getMedianLatencyMillis() {
+        return latencies.getPercentileMillis(50);
+    }
+
+    @Override
+    public double get95thPercentileLatencyMillis() {
+        return latencies.getPercentileMillis(95);
+    }
+
+    @Override
+    public double get99thPercentileLatencyMillis() {
+        return latencies.getPercentileMillis(99);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyHistogram() {
+        final long[] bounds = LatencyHistogram.getBucketBounds();
+        final long[] counts = latencies.getBucketCounts();
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < bounds.length; i++) {
+            result.put("<=" + bounds[i] + "ms", counts[i]);
+        }
+        result.put(">" + bounds[bounds.length - 1] + "ms",
+                counts[counts.length - 1]);
+        return result;
+    }
+
+    @Override
+    public long getNPlusOneRequests() {
+        return nPlusOneRequests.get();
+    }
+}
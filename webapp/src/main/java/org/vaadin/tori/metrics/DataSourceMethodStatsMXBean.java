@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.util.Map;
+
+/**
+ * The statistics of the calls to a single {@link org.vaadin.tori.data.DataSource
+ * DataSource} method, overloads included.
+ */
+public interface DataSourceMethodStatsMXBean {
+
+    long getCalls();
+
+    long getErrors();
+
+    double getMeanLatencyMillis();
+
+    double getMaxLatencyMillis();
+
+    double getMedianLatencyMillis();
+
+    double get95thPercentileLatencyMillis();
+
+    double get99thPercentileLatencyMillis();
+
+    /**
+     * The number of samples by bucket, keyed by the upper bound of the bucket.
+     */
+    Map<String, Long> getLatencyHistogram();
+
+    /**
+     * The number of requests that called the method more times than the N+1
+     * threshold.
+     */
+    long getNPlusOneRequests();
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
+import org.vaadin.tori.util.ManagedBeans;
+
+/**
+ * Node-wide statistics of the calls made through
+ * {@link InstrumentedDataSource instrumented data sources}: per method call
+ * counts, latencies and errors, and the calls made per Vaadin request. The
+ * statistics are registered as MBeans of the deployment, see
+ * {@link ManagedBeans}, and summarized to the log every
+ * {@value #SUMMARY_INTERVAL} ms.
+ * <p>
+ * Disabled unless the {@value #ENABLED_PROPERTY} system property is
+ * <code>true</code>.
+ */
+public final class DataSourceMetrics implements DataSourceStatsMXBean {
+
+    public static final String ENABLED_PROPERTY = "tori.instrumentDataSource";
+    /**
+     * System property for the number of calls to a single method within one
+     * request that is reported as a likely N+1 pattern.
+     */
+    public static final String N_PLUS_ONE_THRESHOLD_PROPERTY = "tori.instrumentDataSource.nPlusOneThreshold";
+
+    private static final int DEFAULT_N_PLUS_ONE_THRESHOLD = 20;
+    private static final long SUMMARY_INTERVAL = 5 * 60 * 1000;
+    private static final int SUMMARY_METHODS = 10;
+
+    private static volatile DataSourceMetrics instance;
+    private static final ThreadLocal<RequestCalls> CURRENT_REQUEST = new ThreadLocal<RequestCalls>();
+
+    private final ConcurrentMap<String, DataSourceMethodStats> methods = new ConcurrentHashMap<String, DataSourceMethodStats>();
+    private final int nPlusOneThreshold = Integer.getInteger(
+            N_PLUS_ONE_THRESHOLD_PROPERTY, DEFAULT_N_PLUS_ONE_THRESHOLD);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestCalls = new AtomicLong();
+    private final AtomicLong maxRequestCalls = new AtomicLong();
+    private final AtomicLong nPlusOneRequests = new AtomicLong();
+    private final List<ObjectName> registeredNames = Collections
+            .synchronizedList(new ArrayList<ObjectName>());
+    private final ScheduledExecutorService summaryExecutor;
+
+    /** The calls made within a single request, by method. */
+    private static final class RequestCalls {
+        private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+        private final AtomicInteger total = new AtomicInteger();
+
+        private void add(final String method) {
+            AtomicInteger count = calls.get(method);
+            if (count == null) {
+                final AtomicInteger newCount = new AtomicInteger();
+                count = calls.putIfAbsent(method, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+            total.incrementAndGet();
+        }
+    }
+
+    private DataSourceMetrics() {
+        summaryExecutor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r,
+                                "tori-datasource-metrics");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        summaryExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logSummary();
+                } catch (RuntimeException e) {
+                    getLogger().warn("Unable to log data source metrics", e);
+                }
+            }
+        }, SUMMARY_INTERVAL, SUMMARY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void init() {
+        register(getObjectName(null), this);
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Returns the statistics, starting to collect them if needed.
+     */
+    public static DataSourceMetrics get() {
+        DataSourceMetrics metrics = instance;
+        if (metrics == null) {
+            synchronized (DataSourceMetrics.class) {
+                metrics = instance;
+                if (metrics == null) {
+                    metrics = new DataSourceMetrics();
+                    metrics.init();
+                    instance = metrics;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the statistics, or <code>null</code> if nothing has been
+     * instrumented.
+     */
+    public static DataSourceMetrics getIfStarted() {
+        return instance;
+    }
+
+    /**
+     * Stops logging and unregisters the MBeans, so that an undeployed
+     * application doesn't leave them behind.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.summaryExecutor.shutdownNow();
+            synchronized (instance.registeredNames) {
+                for (final ObjectName name : instance.registeredNames) {
+                    ManagedBeans.unregister(name);
+                }
+                instance.registeredNames.clear();
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Starts counting the data source calls of the request handled by the
+     * current thread.
+     */
+    public static void requestStart() {
+        if (getIfStarted() != null) {
+            CURRENT_REQUEST.set(new RequestCalls());
+        }
+    }
+
+    /**
+     * Ends the request started by {@link #requestStart()}, and checks it for
+     * methods called suspiciously many times.
+     * 
+     * @param description
+     *            what the request was for, used in the log
+     */
+    public static void requestEnd(final String description) {
+        final RequestCalls calls = CURRENT_REQUEST.get();
+        CURRENT_REQUEST.remove();
+        final DataSourceMetrics metrics = getIfStarted();
+        if (calls != null && metrics != null) {
+            metrics.requestEnded(calls, description);
+        }
+    }
+
+    /**
+     * Captures the request of the current thread, so that the calls a worker
+     * thread makes on its behalf are counted in it.
+     */
+    static ThreadContext captureThreadContext() {
+        final RequestCalls calls = CURRENT_REQUEST.get();
+        return new ThreadContext() {
+            private RequestCalls previous;
+
+            @Override
+            public void attach() {
+                previous = CURRENT_REQUEST.get();
+                CURRENT_REQUEST.set(calls);
+            }
+
+            @Override
+            public void detach() {
+                CURRENT_REQUEST.set(previous);
+            }
+        };
+    }
+
+    void recordCall(final String method, final long nanos,
+            final boolean failed) {
+        getMethodStats(method).record(nanos, failed);
+        final RequestCalls calls = CURRENT_REQUEST.get();
+        if (calls != null) {
+            calls.add(method);
+        }
+    }
+
+    private DataSourceMethodStats getMethodStats(final String method) {
+        DataSourceMethodStats stats = methods.get(method);
+        if (stats == null) {
+            final DataSourceMethodStats newStats = new DataSourceMethodStats(
+                    method);
+            stats = methods.putIfAbsent(method, newStats);
+            if (stats == null) {
+                stats = newStats;
+                register(getObjectName(method), stats);
+            }
+        }
+        return stats;
+    }
+
+    private void requestEnded(final RequestCalls calls,
+            final String description) {
+        final int total = calls.total.get();
+        if (total == 0) {
+            return;
+        }
+        requests.incrementAndGet();
+        requestCalls.addAndGet(total);
+        long max = maxRequestCalls.get();
+        while (total > max && !maxRequestCalls.compareAndSet(max, total)) {
+            max = maxRequestCalls.get();
+        }
+
+        boolean nPlusOne = false;
+        for (final Entry<String, AtomicInteger> call : calls.calls.entrySet()) {
+            final int count = call.getValue().get();
+            if (count > nPlusOneThreshold) {
+                nPlusOne = true;
+                getMethodStats(call.getKey()).nPlusOneDetected();
+                getLogger().debug(
+                        String.format("Likely N+1: %s called %d times in %s",
+                                call.getKey(), count, description));
+            }
+        }
+        if (nPlusOne) {
+            nPlusOneRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Logs the requests and the methods taking the most time in total.
+     */
+    private void logSummary() {
+        if (requests.get() == 0 && methods.isEmpty()) {
+            return;
+        }
+        final List<DataSourceMethodStats> slowest = getMethodStats();
+        Collections.sort(slowest, new Comparator<DataSourceMethodStats>() {
+            @Override
+            public int compare(final DataSourceMethodStats o1,
+                    final DataSourceMethodStats o2) {
+                final long t1 = o1.getLatencies().getTotalNanos();
+                final long t2 = o2.getLatencies().getTotalNanos();
+                return t1 < t2 ? 1 : t1 > t2 ? -1 : 0;
+            }
+        });
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Data source calls: %d requests, %.1f calls "
+                + "per request (max %d), %d likely N+1 requests",
+                getRequests(), getMeanCallsPerRequest(),
+                getMaxCallsPerRequest(), getNPlusOneRequests()));
+        for (final DataSourceMethodStats stats : slowest.subList(0,
+                Math.min(SUMMARY_METHODS, slowest.size()))) {
+            sb.append(String.format("%n  %s: %d calls, %d errors, "
+                    + "mean %.1f ms, p95 %.0f ms, max %.1f ms, %d N+1",
+                    stats.getMethod(), stats.getCalls(), stats.getErrors(),
+                    stats.getMeanLatencyMillis(),
+                    stats.get95thPercentileLatencyMillis(),
+                    stats.getMaxLatencyMillis(), stats.getNPlusOneRequests()));
+        }
+        getLogger().info(sb.toString());
+    }
+
+    private List<DataSourceMethodStats> getMethodStats() {
+        return new ArrayList<DataSourceMethodStats>(methods.values());
+    }
+
+    /**
+     * Returns the latencies of all the methods called so far, by method name.
+     */
+    public Map<String, LatencyHistogram> getLatencies() {
+        final Map<String, LatencyHistogram> result = new TreeMap<String, LatencyHistogram>();
+        for (final DataSourceMethodStats stats : methods.values()) {
+            result.put(stats.getMethod(), stats.getLatencies());
+        }
+        return result;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public double getMeanCallsPerRequest() {
+        final long n = requests.get();
+        return n > 0 ? (double) requestCalls.get() / n : 0;
+    }
+
+    @Override
+    public long getMaxCallsPerRequest() {
+        return maxRequestCalls.get();
+    }
+
+    @Override
+    public long getNPlusOneRequests() {
+        return nPlusOneRequests.get();
+    }
+
+    @Override
+    public int getNPlusOneThreshold() {
+        return nPlusOneThreshold;
+    }
+
+    @Override
+    public void reset() {
+        requests.set(0);
+        requestCalls.set(0);
+        maxRequestCalls.set(0);
+        nPlusOneRequests.set(0);
+        for (final DataSourceMethodStats stats : methods.values()) {
+            stats.reset();
+        }
+    }
+
+    static ObjectName getObjectName(final String method) {
+        return ManagedBeans.getObjectName("type=DataSource,name="
+                + (method != null ? method : "Requests"));
+    }
+
+    private void register(final ObjectName name, final Object mbean) {
+        if (ManagedBeans.register(name, mbean)) {
+            registeredNames.add(name);
+        }
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(DataSourceMetrics.class);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+/**
+ * The statistics of the data source calls per Vaadin request.
+ */
+public interface DataSourceStatsMXBean {
+
+    /** The requests that called the data source at least once. */
+    long getRequests();
+
+    double getMeanCallsPerRequest();
+
+    long getMaxCallsPerRequest();
+
+    /**
+     * The requests that called any single method more times than
+     * {@link #getNPlusOneThreshold()}, a likely sign of an N+1 pattern.
+     */
+    long getNPlusOneRequests();
+
+    int getNPlusOneThreshold();
+
+    /** Clears these and the per method statistics. */
+    void reset();
+}
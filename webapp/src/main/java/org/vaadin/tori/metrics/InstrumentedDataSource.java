@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.vaadin.tori.ThreadContextAware;
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
+import org.vaadin.tori.data.DataSource;
+
+/**
+ * Decorates a {@link DataSource} so that every call through it is recorded in
+ * the {@link DataSourceMetrics}. The decorator implements all the interfaces
+ * of the decorated data source, so request awareness and the like keep
+ * working, and carries the current request over to worker threads as a
+ * {@link ThreadContextAware}.
+ */
+public final class InstrumentedDataSource implements InvocationHandler,
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DataSource dataSource;
+
+    private InstrumentedDataSource(final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public static DataSource instrument(final DataSource dataSource) {
+        final Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> c = dataSource.getClass(); c != null; c = c
+                .getSuperclass()) {
+            for (final Class<?> i : c.getInterfaces()) {
+                interfaces.add(i);
+            }
+        }
+        interfaces.add(DataSource.class);
+        interfaces.add(ThreadContextAware.class);
+        return (DataSource) Proxy.newProxyInstance(dataSource.getClass()
+                .getClassLoader(), interfaces.toArray(new Class<?>[interfaces
+                .size()]), new InstrumentedDataSource(dataSource));
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method,
+            final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == ThreadContextAware.class) {
+            return captureThreadContext();
+        } else if (method.getDeclaringClass() != DataSource.class) {
+            // setRequest() and the like, as well as the Object methods
+            return invokeDataSource(method, args);
+        }
+
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final Object result = invokeDataSource(method, args);
+            failed = false;
+            return result;
+        } finally {
+            DataSourceMetrics.get().recordCall(method.getName(),
+                    System.nanoTime() - start, failed);
+        }
+    }
+
+    private Object invokeDataSource(final Method method, final Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(dataSource, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private ThreadContext captureThreadContext() {
+        final ThreadContext requestContext = DataSourceMetrics
+                .captureThreadContext();
+        if (!(dataSource instanceof ThreadContextAware)) {
+            return requestContext;
+        }
+        final ThreadContext dataSourceContext = ((ThreadContextAware) dataSource)
+                .captureThreadContext();
+        return new ThreadContext() {
+            @Override
+            public void attach() {
+                requestContext.attach();
+                dataSourceContext.attach();
+            }
+
+            @Override
+            public void detach() {
+                dataSourceContext.detach();
+                requestContext.detach();
+            }
+        };
+    }
+}
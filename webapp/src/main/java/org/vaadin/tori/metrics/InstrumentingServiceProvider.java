@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import org.vaadin.tori.data.DataSource;
+import org.vaadin.tori.data.spi.Disposable;
+import org.vaadin.tori.data.spi.ServiceProvider;
+import org.vaadin.tori.service.AuthorizationService;
+import org.vaadin.tori.util.PostFormatter;
+import org.vaadin.tori.util.ToriActivityMessaging;
+import org.vaadin.tori.util.ToriMailService;
+
+/**
+ * A {@link ServiceProvider} that provides the services of another one, with
+ * the data sources {@link InstrumentedDataSource instrumented}.
+ */
+public class InstrumentingServiceProvider implements ServiceProvider,
+        Disposable {
+
+    private final ServiceProvider serviceProvider;
+
+    public InstrumentingServiceProvider(final ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return InstrumentedDataSource.instrument(serviceProvider
+                .createDataSource());
+    }
+
+    @Override
+    public PostFormatter createPostFormatter() {
+        return serviceProvider.createPostFormatter();
+    }
+
+    @Override
+    public AuthorizationService createAuthorizationService() {
+        return serviceProvider.createAuthorizationService();
+    }
+
+    @Override
+    public ToriActivityMessaging createToriActivityMessaging() {
+        return serviceProvider.createToriActivityMessaging();
+    }
+
+    @Override
+    public ToriMailService createToriMailService() {
+        return serviceProvider.createToriMailService();
+    }
+
+    @Override
+    public void dispose() {
+        if (serviceProvider instanceof Disposable) {
+            ((Disposable) serviceProvider).dispose();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with fixed, roughly logarithmic buckets. Cheap
+ * enough to record every call, and coarse enough to be exported as is.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The inclusive upper bounds of the buckets in milliseconds, as in the
+     * Prometheus <code>le</code> label. Anything slower goes to the last,
+     * unbounded bucket.
+     */
+    private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 25, 50, 100,
+            250, 500, 1000, 2500, 5000, 10000 };
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = TimeUnit.MILLISECONDS
+                    .toNanos(BUCKET_BOUNDS[i]);
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(
+            BUCKET_BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(final long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length
+                && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public double getMeanMillis() {
+        final long n = count.get();
+        return n > 0 ? totalNanos.get() / 1e6 / n : 0;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Estimates the given percentile as the upper bound of the bucket it falls
+     * in, or the maximum if it falls in the unbounded bucket.
+     * 
+     * @param percentile
+     *            between 0 and 100
+     */
+    public double getPercentileMillis(final double percentile) {
+        final long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return BUCKET_BOUNDS[i];
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Returns the number of samples in each bucket, the unbounded one last.
+     */
+    public long[] getBucketCounts() {
+        final long[] result = new long[buckets.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buckets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the upper bounds of the bounded buckets in milliseconds.
+     */
+    public static long[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.util.ManagedBeans;
+
+import com.vaadin.server.RequestHandler;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.WrappedSession;
+
+/**
+ * Serves the node's metrics at {@value #PATH} in the Prometheus text
+ * exposition format: open sessions and UIs, activity message bus
+ * subscriptions and events, data source call latencies, view building
+ * timings, cache hit ratios, the mail digest queue and JVM memory and garbage
+ * collection. Everything is read from counters that are kept up to date
+ * anyway, so a scrape doesn't touch the data source.
+ * <p>
+ * Only registered if the {@value #ENABLED_PROPERTY} system property is
+ * <code>true</code> and at least one of {@value #ALLOWED_ADDRESSES_PROPERTY}
+ * and {@value #PORT_PROPERTY} is set. The metrics are then only served to the
+ * listed remote addresses, and only on the given local port, e.g. an internal
+ * connector of the servlet container. Requests that have passed through a
+ * proxy, as told by the <code>X-Forwarded-For</code> and
+ * <code>Forwarded</code> headers, are never served, as the remote address is
+ * then that of the proxy. Requests that aren't allowed are passed on as if
+ * this handler didn't exist.
+ * <p>
+ * The data source latencies and view timings are only available when
+ * {@link DataSourceMetrics} and {@link RenderMetrics} are enabled, and the
+ * activity and mail queue metrics when the data source provides the
+ * corresponding MBeans.
+ */
+@SuppressWarnings("serial")
+public class PrometheusMetricsHandler implements RequestHandler {
+
+    public static final String ENABLED_PROPERTY = "tori.metrics";
+    /** Comma separated list of the remote addresses allowed to scrape. */
+    public static final String ALLOWED_ADDRESSES_PROPERTY = "tori.metrics.allowedAddresses";
+    /** The local port the metrics are served on. */
+    public static final String PORT_PROPERTY = "tori.metrics.port";
+
+    static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String ACTIVITY_MBEAN = "type=ActivityDispatcher";
+    private static final String MAIL_QUEUE_MBEAN = "type=MailDigestQueue";
+    /** How long the sessions created just for a scrape are kept around. */
+    private static final int SCRAPE_SESSION_TIMEOUT_SECONDS = 60;
+
+    private final Set<String> allowedAddresses;
+    private final int port;
+
+    public PrometheusMetricsHandler(final VaadinService service) {
+        allowedAddresses = getAllowedAddresses();
+        port = Integer.getInteger(PORT_PROPERTY, -1);
+        SessionMetrics.listen(service);
+    }
+
+    private static Set<String> getAllowedAddresses() {
+        final Set<String> addresses = new HashSet<String>();
+        for (final String address : System.getProperty(
+                ALLOWED_ADDRESSES_PROPERTY, "").split(",")) {
+            if (!address.trim().isEmpty()) {
+                addresses.add(address.trim());
+            }
+        }
+        return Collections.unmodifiableSet(addresses);
+    }
+
+    /**
+     * Whether the metrics are enabled, and restricted to either some remote
+     * addresses or an internal port.
+     */
+    public static boolean isEnabled() {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+            return false;
+        }
+        if (getAllowedAddresses().isEmpty()
+                && Integer.getInteger(PORT_PROPERTY) == null) {
+            getLogger().warn(
+                    "Metrics are not served, as neither "
+                            + ALLOWED_ADDRESSES_PROPERTY + " nor "
+                            + PORT_PROPERTY + " is set");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleRequest(final VaadinSession session,
+            final VaadinRequest request, final VaadinResponse response)
+            throws IOException {
+        if (!PATH.equals(request.getPathInfo()) || !isAllowed(request)) {
+            return false;
+        }
+
+        final boolean scrapeSession = closeIfScrapeSession(session, request);
+        final StringBuilder sb = new StringBuilder(16 * 1024);
+        appendSessionMetrics(sb, scrapeSession);
+        appendActivityMetrics(sb);
+        appendDataSourceMetrics(sb);
+        appendRenderMetrics(sb);
+        appendCacheMetrics(sb);
+        appendMailQueueMetrics(sb);
+        appendJvmMetrics(sb);
+
+        final byte[] bytes = sb.toString().getBytes("UTF-8");
+        response.setContentType(CONTENT_TYPE);
+        response.setCacheTime(-1);
+        final OutputStream out = response.getOutputStream();
+        out.write(bytes);
+        out.close();
+        return true;
+    }
+
+    private boolean isAllowed(final VaadinRequest request) {
+        if (request.getHeader("X-Forwarded-For") != null
+                || request.getHeader("Forwarded") != null) {
+            getLogger().debug("Not serving metrics through a proxy");
+            return false;
+        }
+        if (!allowedAddresses.isEmpty()
+                && !allowedAddresses.contains(request.getRemoteAddr())) {
+            getLogger().debug(
+                    "Not serving metrics to " + request.getRemoteAddr());
+            return false;
+        }
+        if (port >= 0 && getLocalPort(request) != port) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the local port the request was received on, or -1 if unknown.
+     * Portlet requests don't tell, so the portlet overrides this to look at
+     * the request of the portal.
+     */
+    protected int getLocalPort(final VaadinRequest request) {
+        if (request instanceof HttpServletRequest) {
+            return ((HttpServletRequest) request).getLocalPort();
+        }
+        return -1;
+    }
+
+    /**
+     * Vaadin creates a session for every request, and a scraper doesn't keep
+     * cookies. Closes the session at the end of the request if it was only
+     * created for this scrape, so that scrapes don't pile up sessions.
+     * 
+     * @return <code>true</code> if the session was closed
+     */
+    private static boolean closeIfScrapeSession(final VaadinSession session,
+            final VaadinRequest request) {
+        final WrappedSession wrappedSession = request.getWrappedSession(false);
+        if (wrappedSession == null || !wrappedSession.isNew()) {
+            return false;
+        }
+        session.lock();
+        try {
+            if (!session.getUIs().isEmpty()) {
+                return false;
+            }
+            session.close();
+        } finally {
+            session.unlock();
+        }
+        wrappedSession.setMaxInactiveInterval(SCRAPE_SESSION_TIMEOUT_SECONDS);
+        return true;
+    }
+
+    private static void appendSessionMetrics(final StringBuilder sb,
+            final boolean scrapeSession) {
+        appendHeader(sb, "tori_sessions", "gauge",
+                "Vaadin sessions currently open.");
+        appendSample(sb, "tori_sessions", null, SessionMetrics
+                .getActiveSessions() - (scrapeSession ? 1 : 0));
+        appendHeader(sb, "tori_uis", "gauge", "Tori UIs currently attached.");
+        appendSample(sb, "tori_uis", null, SessionMetrics.getActiveUIs());
+        appendHeader(sb, "tori_uis_attached_total", "counter",
+                "Tori UIs attached since startup.");
+        appendSample(sb, "tori_uis_attached_total", null,
+                SessionMetrics.getAttachedUIs());
+    }
+
+    private static void appendActivityMetrics(final StringBuilder sb) {
+        final Map<String, Number> activity = getAttributes(ACTIVITY_MBEAN,
+                "ThreadSubscriptions", "GlobalSubscriptions",
+                "SubscribedThreads", "ReceivedTypingEvents",
+                "ReceivedAuthoredEvents", "Deliveries", "DeliveryErrors");
+        if (activity.isEmpty()) {
+            return;
+        }
+        appendHeader(sb, "tori_activity_subscriptions", "gauge",
+                "Activity listeners subscribed to a single thread or to all threads.");
+        appendSample(sb, "tori_activity_subscriptions", "scope=\"thread\"",
+                activity.get("ThreadSubscriptions"));
+        appendSample(sb, "tori_activity_subscriptions", "scope=\"global\"",
+                activity.get("GlobalSubscriptions"));
+        appendHeader(sb, "tori_activity_subscribed_threads", "gauge",
+                "Threads with at least one activity listener.");
+        appendSample(sb, "tori_activity_subscribed_threads", null,
+                activity.get("SubscribedThreads"));
+        appendHeader(sb, "tori_activity_events_received_total", "counter",
+                "Activity events received from the message bus.");
+        appendSample(sb, "tori_activity_events_received_total",
+                "type=\"typing\"", activity.get("ReceivedTypingEvents"));
+        appendSample(sb, "tori_activity_events_received_total",
+                "type=\"authored\"", activity.get("ReceivedAuthoredEvents"));
+        appendHeader(sb, "tori_activity_deliveries_total", "counter",
+                "Activity events passed on to listeners.");
+        appendSample(sb, "tori_activity_deliveries_total", null,
+                activity.get("Deliveries"));
+        appendHeader(sb, "tori_activity_delivery_errors_total", "counter",
+                "Activity events the listener failed to handle.");
+        appendSample(sb, "tori_activity_delivery_errors_total", null,
+                activity.get("DeliveryErrors"));
+    }
+
+    private static void appendDataSourceMetrics(final StringBuilder sb) {
+        final DataSourceMetrics metrics = DataSourceMetrics.getIfStarted();
+        if (metrics == null) {
+            return;
+        }
+        appendHistograms(sb, "tori_datasource_call_duration_seconds",
+                "Latency of the data source calls.", "method",
+                metrics.getLatencies());
+        appendHeader(sb, "tori_datasource_requests_total", "counter",
+                "Requests with data source calls.");
+        appendSample(sb, "tori_datasource_requests_total", null,
+                metrics.getRequests());
+        appendHeader(sb, "tori_datasource_n_plus_one_requests_total",
+                "counter",
+                "Requests calling a single data source method suspiciously many times.");
+        appendSample(sb, "tori_datasource_n_plus_one_requests_total", null,
+                metrics.getNPlusOneRequests());
+    }
+
+    private static void appendRenderMetrics(final StringBuilder sb) {
+        if (!RenderMetrics.isEnabled()) {
+            return;
+        }
+        appendHistograms(sb, "tori_render_duration_seconds",
+                "Server side time spent building views and calling client RPCs.",
+                "step", RenderMetrics.getTimings());
+        appendHeader(sb, "tori_rpc_payload_bytes_total", "counter",
+                "Estimated size of the client RPC payloads.");
+        for (final Entry<String, Long> entry : RenderMetrics
+                .getRpcPayloadBytes().entrySet()) {
+            appendSample(sb, "tori_rpc_payload_bytes_total",
+                    label("call", entry.getKey()), entry.getValue());
+        }
+    }
+
+    private static void appendCacheMetrics(final StringBuilder sb) {
+        final Map<String, CacheStats> caches = CacheStats.getAll();
+        appendHeader(sb, "tori_cache_requests_total", "counter",
+                "Cache lookups by result.");
+        for (final Entry<String, CacheStats> entry : caches.entrySet()) {
+            final String cache = label("cache", entry.getKey());
+            appendSample(sb, "tori_cache_requests_total", cache
+                    + ",result=\"hit\"", entry.getValue().getHits());
+            appendSample(sb, "tori_cache_requests_total", cache
+                    + ",result=\"miss\"", entry.getValue().getMisses());
+        }
+        appendHeader(sb, "tori_cache_hit_ratio", "gauge",
+                "Share of the cache lookups served from the cache since startup.");
+        for (final Entry<String, CacheStats> entry : caches.entrySet()) {
+            appendSample(sb, "tori_cache_hit_ratio",
+                    label("cache", entry.getKey()), entry.getValue()
+                            .getHitRatio());
+        }
+    }
+
+    private static void appendMailQueueMetrics(final StringBuilder sb) {
+        final Map<String, Number> queue = getAttributes(MAIL_QUEUE_MBEAN,
+                "QueuedDigests", "QueuedEntries", "SentDigests",
+                "FailedDigests");
+        if (queue.isEmpty()) {
+            return;
+        }
+        appendHeader(sb, "tori_mail_digest_queue_recipients", "gauge",
+                "Recipients with a mail digest waiting to be sent.");
+        appendSample(sb, "tori_mail_digest_queue_recipients", null,
+                queue.get("QueuedDigests"));
+        appendHeader(sb, "tori_mail_digest_queue_posts", "gauge",
+                "Posts in the mail digests waiting to be sent.");
+        appendSample(sb, "tori_mail_digest_queue_posts", null,
+                queue.get("QueuedEntries"));
+        appendHeader(sb, "tori_mail_digests_total", "counter",
+                "Mail digests sent, by result.");
+        appendSample(sb, "tori_mail_digests_total", "result=\"sent\"",
+                queue.get("SentDigests"));
+        appendSample(sb, "tori_mail_digests_total", "result=\"failed\"",
+                queue.get("FailedDigests"));
+    }
+
+    private static void appendJvmMetrics(final StringBuilder sb) {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final MemoryUsage heap = memory.getHeapMemoryUsage();
+        final MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        appendHeader(sb, "jvm_memory_bytes_used", "gauge",
+                "Used bytes of a given JVM memory area.");
+        appendSample(sb, "jvm_memory_bytes_used", "area=\"heap\"",
+                heap.getUsed());
+        appendSample(sb, "jvm_memory_bytes_used", "area=\"nonheap\"",
+                nonHeap.getUsed());
+        appendHeader(sb, "jvm_memory_bytes_committed", "gauge",
+                "Committed bytes of a given JVM memory area.");
+        appendSample(sb, "jvm_memory_bytes_committed", "area=\"heap\"",
+                heap.getCommitted());
+        appendSample(sb, "jvm_memory_bytes_committed", "area=\"nonheap\"",
+                nonHeap.getCommitted());
+        appendHeader(sb, "jvm_memory_bytes_max", "gauge",
+                "Max bytes of a given JVM memory area, -1 if undefined.");
+        appendSample(sb, "jvm_memory_bytes_max", "area=\"heap\"",
+                heap.getMax());
+        appendSample(sb, "jvm_memory_bytes_max", "area=\"nonheap\"",
+                nonHeap.getMax());
+
+        appendHeader(sb, "jvm_memory_pool_bytes_used", "gauge",
+                "Used bytes of a given JVM memory pool.");
+        for (final MemoryPoolMXBean pool : ManagementFactory
+                .getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = pool.getUsage();
+            if (usage != null) {
+                appendSample(sb, "jvm_memory_pool_bytes_used",
+                        label("pool", pool.getName()), usage.getUsed());
+            }
+        }
+
+        appendHeader(sb, "jvm_gc_collection_seconds", "summary",
+                "Time spent in a given JVM garbage collector in seconds.");
+        for (final GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            final String labels = label("gc", gc.getName());
+            appendSample(sb, "jvm_gc_collection_seconds_count", labels,
+                    gc.getCollectionCount());
+            appendSample(sb, "jvm_gc_collection_seconds_sum", labels,
+                    gc.getCollectionTime() / 1000.0);
+        }
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        appendHeader(sb, "jvm_threads_current", "gauge",
+                "Current thread count of the JVM.");
+        appendSample(sb, "jvm_threads_current", null, threads.getThreadCount());
+        appendHeader(sb, "jvm_threads_daemon", "gauge",
+                "Daemon thread count of the JVM.");
+        appendSample(sb, "jvm_threads_daemon", null,
+                threads.getDaemonThreadCount());
+    }
+
+    /**
+     * Appends the given latencies as one cumulative histogram, with the
+     * histograms' keys as the values of the given label.
+     */
+    private static void appendHistograms(final StringBuilder sb,
+            final String name, final String help, final String labelName,
+            final Map<String, LatencyHistogram> histograms) {
+        final long[] bounds = LatencyHistogram.getBucketBounds();
+        appendHeader(sb, name, "histogram", help);
+        for (final Entry<String, LatencyHistogram> entry : histograms
+                .entrySet()) {
+            final String labels = label(labelName, entry.getKey());
+            final long[] counts = entry.getValue().getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i];
+                appendSample(sb, name + "_bucket", labels + ",le=\""
+                        + bounds[i] / 1000.0 + "\"", cumulative);
+            }
+            cumulative += counts[bounds.length];
+            appendSample(sb, name + "_bucket", labels + ",le=\"+Inf\"",
+                    cumulative);
+            appendSample(sb, name + "_sum", labels, entry.getValue()
+                    .getTotalNanos() / 1e9);
+            // consistent with the buckets even if recorded to concurrently
+            appendSample(sb, name + "_count", labels, cumulative);
+        }
+    }
+
+    private static void appendHeader(final StringBuilder sb,
+            final String name, final String type, final String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+
+    private static void appendSample(final StringBuilder sb,
+            final String name, final String labels, final Number value) {
+        if (value == null) {
+            return;
+        }
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String label(final String name, final String value) {
+        return name
+                + "=\""
+                + value.replace("\\", "\\\\").replace("\"", "\\\"")
+                        .replace("\n", "\\n") + "\"";
+    }
+
+    /**
+     * Reads the given numeric attributes of an MBean registered by the data
+     * source, or returns an empty map if there is no such MBean.
+     */
+    /**
+     * Reads the numeric attributes of an MBean of this deployment.
+     * 
+     * @param keys
+     *            the key properties of the bean, see
+     *            {@link ManagedBeans#getObjectName(String)}
+     */
+    private static Map<String, Number> getAttributes(final String keys,
+            final String... attributes) {
+        final Map<String, Number> values = new HashMap<String, Number>();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = ManagedBeans.getObjectName(keys);
+        try {
+            if (server.isRegistered(name)) {
+                for (final Attribute attribute : server.getAttributes(name,
+                        attributes).asList()) {
+                    if (attribute.getValue() instanceof Number) {
+                        values.put(attribute.getName(),
+                                (Number) attribute.getValue());
+                    }
+                }
+            }
+        } catch (final JMException e) {
+            getLogger().debug("Unable to read " + name, e);
+        }
+        return values;
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(PrometheusMetricsHandler.class);
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.ToriUI;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.Connector;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents;
+import com.vaadin.ui.UI;
+
+/**
+ * Node-wide timings of building the UI: view initialization, presenter
+ * navigation, the known hot spots and every client RPC call, with the
+ * estimated size of the RPC payloads. The same figures are kept per UI in its
+ * {@link UiRenderStats}.
+ * <p>
+ * Navigations are traced until the end of their request, and the ones taking
+ * longer than {@value #SLOW_VIEW_THRESHOLD_PROPERTY} milliseconds (default
+ * {@value #DEFAULT_SLOW_VIEW_THRESHOLD}) are logged with a breakdown of where
+ * the time went.
+ * <p>
+ * Disabled unless the {@value #ENABLED_PROPERTY} system property is
+ * <code>true</code>, in which case all the methods here are close to free.
+ */
+public final class RenderMetrics {
+
+    public static final String ENABLED_PROPERTY = "tori.instrumentRendering";
+    public static final String SLOW_VIEW_THRESHOLD_PROPERTY = "tori.instrumentRendering.slowViewThreshold";
+
+    private static final long DEFAULT_SLOW_VIEW_THRESHOLD = 1000;
+    /** How deep into the RPC arguments their size is estimated. */
+    private static final int MAX_PAYLOAD_DEPTH = 8;
+
+    private static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+    private static final long SLOW_VIEW_THRESHOLD = Long.getLong(
+            SLOW_VIEW_THRESHOLD_PROPERTY, DEFAULT_SLOW_VIEW_THRESHOLD);
+
+    private static final ConcurrentMap<String, LatencyHistogram> TIMINGS = new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentMap<String, AtomicLong> PAYLOAD_BYTES = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ThreadLocal<ViewTrace> CURRENT_TRACE = new ThreadLocal<ViewTrace>();
+
+    private static final Timer DISABLED_TIMER = new Timer(null);
+
+    /**
+     * Measures a single piece of work, started by {@link RenderMetrics#start}.
+     */
+    public static final class Timer {
+        private final String name;
+        private final long start = System.nanoTime();
+
+        private Timer(final String name) {
+            this.name = name;
+        }
+
+        public void stop() {
+            if (name != null) {
+                record(name, System.nanoTime() - start, -1);
+            }
+        }
+    }
+
+    /** The work done within one navigation, by name. */
+    private static final class ViewTrace {
+        private final String view;
+        private final String parameters;
+        private final UI ui;
+        private final long start = System.nanoTime();
+        /** Calls, nanoseconds and payload bytes by name. */
+        private final Map<String, long[]> breakdown = new LinkedHashMap<String, long[]>();
+
+        private ViewTrace(final String view, final String parameters,
+                final UI ui) {
+            this.view = view;
+            this.parameters = parameters;
+            this.ui = ui;
+        }
+
+        private void add(final String name, final long nanos,
+                final long payloadBytes) {
+            long[] entry = breakdown.get(name);
+            if (entry == null) {
+                entry = new long[3];
+                breakdown.put(name, entry);
+            }
+            entry[0]++;
+            entry[1] += nanos;
+            entry[2] += Math.max(0, payloadBytes);
+        }
+    }
+
+    private RenderMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Starts timing the named piece of work. Stop the returned timer in a
+     * finally block.
+     */
+    public static Timer start(final String name) {
+        return ENABLED ? new Timer(name) : DISABLED_TIMER;
+    }
+
+    /**
+     * Returns a client RPC proxy that records every call made through it. Use
+     * it on the proxy returned by <code>getRpcProxy()</code>.
+     */
+    public static <T> T instrument(final T rpcProxy, final Class<T> rpcInterface) {
+        if (!ENABLED) {
+            return rpcProxy;
+        }
+        return rpcInterface.cast(Proxy.newProxyInstance(
+                rpcInterface.getClassLoader(), new Class<?>[] { rpcInterface },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args)
+                            throws Throwable {
+                        final long start = System.nanoTime();
+                        final Object result;
+                        try {
+                            result = method.invoke(rpcProxy, args);
+                        } catch (final InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if (method.getDeclaringClass() != Object.class) {
+                            long payloadBytes = 0;
+                            if (args != null) {
+                                for (final Object arg : args) {
+                                    payloadBytes += estimateSize(arg, 0);
+                                }
+                            }
+                            record("rpc " + rpcInterface.getSimpleName() + "."
+                                    + method.getName(), System.nanoTime()
+                                    - start, payloadBytes);
+                        }
+                        return result;
+                    }
+                }));
+    }
+
+    /**
+     * Starts tracing a navigation to the given view, until the end of the
+     * current request.
+     */
+    public static void viewChanging(final String view, final String parameters) {
+        if (ENABLED) {
+            // replaces any trace left unfinished by a request that didn't go
+            // through the service, such as one over a push connection
+            CURRENT_TRACE.set(new ViewTrace(view, parameters, UI.getCurrent()));
+        }
+    }
+
+    /**
+     * Ends the navigation traced in the current request, if any, logging it if
+     * it was slow.
+     * 
+     * @param session
+     *            the session of the request, locked for counting the
+     *            components of the UI
+     */
+    public static void requestEnd(final VaadinSession session) {
+        final ViewTrace trace = CURRENT_TRACE.get();
+        if (trace == null) {
+            return;
+        }
+        CURRENT_TRACE.remove();
+
+        try {
+            final long nanos = System.nanoTime() - trace.start;
+            final boolean slow = nanos / 1000000 >= SLOW_VIEW_THRESHOLD;
+            int componentCount = -1;
+            if (session != null && trace.ui != null) {
+                session.lock();
+                try {
+                    componentCount = countComponents(trace.ui);
+                } finally {
+                    session.unlock();
+                }
+            }
+            if (trace.ui instanceof ToriUI) {
+                ((ToriUI) trace.ui).getRenderStats().navigated(
+                        componentCount, slow);
+            }
+            if (slow) {
+                logSlowView(trace, nanos, componentCount);
+            }
+        } catch (final RuntimeException e) {
+            // must not get in the way of ending the request
+            getLogger().debug("Unable to end the view trace", e);
+        }
+    }
+
+    /**
+     * Returns the timings of everything measured so far, by name.
+     */
+    public static Map<String, LatencyHistogram> getTimings() {
+        return new TreeMap<String, LatencyHistogram>(TIMINGS);
+    }
+
+    /**
+     * Returns the estimated total RPC payload so far, by RPC method.
+     */
+    public static Map<String, Long> getRpcPayloadBytes() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (final Entry<String, AtomicLong> entry : PAYLOAD_BYTES.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    private static void record(final String name, final long nanos,
+            final long payloadBytes) {
+        getTiming(name).record(nanos);
+        if (payloadBytes >= 0) {
+            getPayloadBytes(name).addAndGet(payloadBytes);
+        }
+
+        final UI ui = UI.getCurrent();
+        if (ui instanceof ToriUI) {
+            final UiRenderStats stats = ((ToriUI) ui).getRenderStats();
+            if (payloadBytes >= 0) {
+                stats.addRpc(payloadBytes);
+            } else {
+                stats.addServerTime(nanos);
+            }
+        }
+
+        final ViewTrace trace = CURRENT_TRACE.get();
+        if (trace != null) {
+            trace.add(name, nanos, payloadBytes);
+        }
+    }
+
+    private static LatencyHistogram getTiming(final String name) {
+        LatencyHistogram timing = TIMINGS.get(name);
+        if (timing == null) {
+            final LatencyHistogram newTiming = new LatencyHistogram();
+            timing = TIMINGS.putIfAbsent(name, newTiming);
+            if (timing == null) {
+                timing = newTiming;
+            }
+        }
+        return timing;
+    }
+
+    private static AtomicLong getPayloadBytes(final String name) {
+        AtomicLong bytes = PAYLOAD_BYTES.get(name);
+        if (bytes == null) {
+            final AtomicLong newBytes = new AtomicLong();
+            bytes = PAYLOAD_BYTES.putIfAbsent(name, newBytes);
+            if (bytes == null) {
+                bytes = newBytes;
+            }
+        }
+        return bytes;
+    }
+
+    private static void logSlowView(final ViewTrace trace, final long nanos,
+            final int componentCount) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Slow view %s [%s]: %.1f ms, %d components",
+                trace.view, trace.parameters, nanos / 1e6, componentCount));
+        for (final Entry<String, long[]> entry : trace.breakdown.entrySet()) {
+            final long[] values = entry.getValue();
+            sb.append(String.format("%n  %s: %d calls, %.1f ms", entry.getKey(),
+                    values[0], values[1] / 1e6));
+            if (values[2] > 0) {
+                sb.append(String.format(", %d bytes", values[2]));
+            }
+        }
+        getLogger().warn(sb.toString());
+    }
+
+    private static int countComponents(final Component component) {
+        int count = 1;
+        if (component instanceof HasComponents) {
+            for (final Component child : (HasComponents) component) {
+                count += countComponents(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the size of the value in the JSON sent to the client. Shared
+     * state objects are walked through their public fields.
+     */
+    private static long estimateSize(final Object value, final int depth) {
+        if (value == null) {
+            return 4;
+        } else if (value instanceof CharSequence) {
+            return ((CharSequence) value).length() + 2;
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return 8;
+        } else if (value instanceof Enum) {
+            return ((Enum<?>) value).name().length() + 2;
+        } else if (value instanceof Connector) {
+            // only the connector id is sent
+            return ((Connector) value).getConnectorId().length() + 2;
+        } else if (depth >= MAX_PAYLOAD_DEPTH) {
+            return 0;
+        }
+
+        long size = 2;
+        if (value instanceof Collection) {
+            for (final Object item : (Collection<?>) value) {
+                size += estimateSize(item, depth + 1) + 1;
+            }
+        } else if (value instanceof Map) {
+            for (final Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += estimateSize(entry.getKey(), depth + 1)
+                        + estimateSize(entry.getValue(), depth + 1) + 2;
+            }
+        } else if (value.getClass().isArray()) {
+            for (int i = 0; i < Array.getLength(value); i++) {
+                size += estimateSize(Array.get(value, i), depth + 1) + 1;
+            }
+        } else {
+            for (final Field field : value.getClass().getFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    try {
+                        size += field.getName().length() + 4
+                                + estimateSize(field.get(value), depth + 1);
+                    } catch (final IllegalAccessException e) {
+                        // not sent either
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(RenderMetrics.class);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.server.SessionDestroyEvent;
+import com.vaadin.server.SessionDestroyListener;
+import com.vaadin.server.SessionInitEvent;
+import com.vaadin.server.SessionInitListener;
+import com.vaadin.server.VaadinService;
+
+/**
+ * Node-wide counts of the open Vaadin sessions and attached Tori UIs. Sessions
+ * are only counted in the services passed to {@link #listen(VaadinService)}.
+ */
+public final class SessionMetrics {
+
+    private static final AtomicInteger ACTIVE_SESSIONS = new AtomicInteger();
+    private static final AtomicInteger ACTIVE_UIS = new AtomicInteger();
+    private static final AtomicLong ATTACHED_UIS = new AtomicLong();
+
+    private static final Map<VaadinService, Boolean> LISTENED_SERVICES = new WeakHashMap<VaadinService, Boolean>();
+
+    @SuppressWarnings("serial")
+    private static final SessionInitListener SESSION_INIT_LISTENER = new SessionInitListener() {
+        @Override
+        public void sessionInit(final SessionInitEvent event) {
+            ACTIVE_SESSIONS.incrementAndGet();
+        }
+    };
+
+    @SuppressWarnings("serial")
+    private static final SessionDestroyListener SESSION_DESTROY_LISTENER = new SessionDestroyListener() {
+        @Override
+        public void sessionDestroy(final SessionDestroyEvent event) {
+            ACTIVE_SESSIONS.decrementAndGet();
+        }
+    };
+
+    private SessionMetrics() {
+    }
+
+    /**
+     * Starts counting the sessions of the given service. Should be called
+     * before the service has created any sessions.
+     */
+    public static void listen(final VaadinService service) {
+        synchronized (LISTENED_SERVICES) {
+            if (!LISTENED_SERVICES.containsKey(service)) {
+                service.addSessionInitListener(SESSION_INIT_LISTENER);
+                service.addSessionDestroyListener(SESSION_DESTROY_LISTENER);
+                LISTENED_SERVICES.put(service, Boolean.TRUE);
+            }
+        }
+    }
+
+    public static void uiAttached() {
+        ACTIVE_UIS.incrementAndGet();
+        ATTACHED_UIS.incrementAndGet();
+    }
+
+    public static void uiDetached() {
+        ACTIVE_UIS.decrementAndGet();
+    }
+
+    public static int getActiveSessions() {
+        return ACTIVE_SESSIONS.get();
+    }
+
+    public static int getActiveUIs() {
+        return ACTIVE_UIS.get();
+    }
+
+    /**
+     * Returns the number of UIs attached since the application was started.
+     */
+    public static long getAttachedUIs() {
+        return ATTACHED_UIS.get();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rendering statistics of a single UI.
+ */
+public final class UiRenderStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicLong serverNanos = new AtomicLong();
+    private final AtomicLong rpcCalls = new AtomicLong();
+    private final AtomicLong rpcPayloadBytes = new AtomicLong();
+    private final AtomicLong navigations = new AtomicLong();
+    private final AtomicLong slowNavigations = new AtomicLong();
+    private volatile int componentCount;
+
+    void addServerTime(final long nanos) {
+        serverNanos.addAndGet(nanos);
+    }
+
+    void addRpc(final long payloadBytes) {
+        rpcCalls.incrementAndGet();
+        rpcPayloadBytes.addAndGet(payloadBytes);
+    }
+
+    void navigated(final int componentCount, final boolean slow) {
+        this.componentCount = componentCount;
+        navigations.incrementAndGet();
+        if (slow) {
+            slowNavigations.incrementAndGet();
+        }
+    }
+
+    /**
+     * The time spent in the instrumented parts of building the UI. Nested
+     * parts are included in their enclosing part as well.
+     */
+    public long getServerNanos() {
+        return serverNanos.get();
+    }
+
+    public long getRpcCalls() {
+        return rpcCalls.get();
+    }
+
+    /** The estimated size of the arguments of all the client RPC calls. */
+    public long getRpcPayloadBytes() {
+        return rpcPayloadBytes.get();
+    }
+
+    public long getNavigations() {
+        return navigations.get();
+    }
+
+    public long getSlowNavigations() {
+        return slowNavigations.get();
+    }
+
+    /** The number of components in the UI after the latest navigation. */
+    public int getComponentCount() {
+        return componentCount;
+    }
+}
@@ -20,6 +20,8 @@ import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 import org.vaadin.tori.ToriNavigator;
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.metrics.RenderMetrics.Timer;
 
 import com.vaadin.navigator.ViewChangeListener.ViewChangeEvent;
 import com.vaadin.ui.Component;
@@ -68,7 +70,13 @@ public abstract class AbstractView<V extends View, P extends Presenter<V>>
                     + (arguments != null ? " with params: "
                             + Arrays.toString(arguments) : ""));
         }
-        presenter.navigationTo(arguments);
+        final Timer timer = RenderMetrics.start("navigationTo "
+                + presenter.getClass().getSimpleName());
+        try {
+            presenter.navigationTo(arguments);
+        } finally {
+            timer.stop();
+        }
     }
 
     public void exit() {
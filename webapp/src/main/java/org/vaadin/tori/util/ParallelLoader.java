@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vaadin.tori.ThreadContextAware.ThreadContext;
+import org.vaadin.tori.ToriApiLoader;
+import org.vaadin.tori.exception.DataSourceException;
+
+/**
+ * Runs the independent backend calls of a single request concurrently, so the
+ * time they take is that of the slowest call instead of the sum of all of
+ * them. The thread local state of the request is carried over to the worker
+ * threads, and the results are waited for until a deadline shared by all the
+ * calls.
+ * <p>
+ * The session's services aren't thread safe, so the calls of a loader share
+ * a set of services of their own from
+ * {@link ToriApiLoader#createTaskServices()}. Those may be bound to the
+ * request, so {@link #cancelAll()} must be called before the request ends; it
+ * waits for the calls that are already running.
+ * <p>
+ * When all the worker threads are busy, or the loader has been shut down, a
+ * call is run on the calling thread right away, as there would be no point in
+ * queueing it for a request that is already waiting.
+ */
+public class ParallelLoader {
+
+    /** The calls mostly wait for the backend, so there are more than cores. */
+    private static final int WORKER_THREADS = 4 * Runtime.getRuntime()
+            .availableProcessors();
+    private static final long DEFAULT_TIMEOUT = 10 * 1000;
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private final ToriApiLoader apiLoader;
+    private final long deadline;
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+    private ToriApiLoader services;
+
+    /** Guards the fields below. */
+    private final Object lock = new Object();
+    private int running;
+    private boolean cancelled;
+
+    /** A backend call made with services of its own. */
+    public interface Task<T> {
+        T call(ToriApiLoader services) throws Exception;
+    }
+
+    /**
+     * @param apiLoader
+     *            the services of the request, for capturing their thread
+     *            context
+     */
+    public ParallelLoader(final ToriApiLoader apiLoader) {
+        this(apiLoader, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param apiLoader
+     *            the services of the request, for capturing their thread
+     *            context
+     * @param timeout
+     *            the milliseconds from now after which waiting for any of the
+     *            results fails
+     */
+    public ParallelLoader(final ToriApiLoader apiLoader, final long timeout) {
+        this.apiLoader = apiLoader;
+        deadline = System.currentTimeMillis() + timeout;
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                WORKER_THREADS, WORKER_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r,
+                                "tori-parallel-loader-"
+                                        + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(final Runnable r,
+                            final ThreadPoolExecutor executor) {
+                        // busy or shut down
+                        r.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Stops the worker threads. Called when the servlet or the portlet is
+     * destroyed. Calls submitted after this are run on the calling thread.
+     */
+    public static void shutdown() {
+        EXECUTOR.shutdown();
+    }
+
+    /**
+     * Starts the call, with the thread context of the calling thread.
+     */
+    public <T> Future<T> submit(final Task<T> task) {
+        if (services == null) {
+            services = apiLoader.createTaskServices();
+        }
+        final ToriApiLoader taskServices = services;
+        final List<ThreadContext> contexts = taskServices
+                .captureThreadContexts();
+        final FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                synchronized (lock) {
+                    if (cancelled) {
+                        throw new CancellationException();
+                    }
+                    running++;
+                }
+                for (final ThreadContext context : contexts) {
+                    context.attach();
+                }
+                try {
+                    return task.call(taskServices);
+                } finally {
+                    for (int i = contexts.size() - 1; i >= 0; i--) {
+                        contexts.get(i).detach();
+                    }
+                    synchronized (lock) {
+                        running--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        });
+        futures.add(future);
+        EXECUTOR.execute(future);
+        return future;
+    }
+
+    /**
+     * Waits for the result of a call started by {@link #submit(Task)},
+     * rethrowing whatever the call threw.
+     * 
+     * @throws DataSourceException
+     *             if the call failed with one, or didn't complete before the
+     *             deadline
+     */
+    public <T> T get(final Future<T> future) throws DataSourceException {
+        try {
+            return future.get(
+                    Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            cancelAll();
+            throw new DataSourceException(e);
+        } catch (final CancellationException e) {
+            throw new DataSourceException(e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelAll();
+            throw new DataSourceException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof DataSourceException) {
+                throw (DataSourceException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DataSourceException(cause);
+        }
+    }
+
+    /**
+     * Cancels the calls that haven't started yet, and waits for the running
+     * ones to complete, so that none of them goes on using the services of the
+     * request after it has ended. The running ones are not interrupted, as
+     * that could leave the backend connections they use in a broken state.
+     */
+    public void cancelAll() {
+        boolean interrupted = false;
+        synchronized (lock) {
+            cancelled = true;
+            for (final Future<?> future : futures) {
+                future.cancel(false);
+            }
+            while (running > 0) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
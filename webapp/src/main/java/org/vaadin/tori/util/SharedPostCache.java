@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.tori.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vaadin.tori.data.DataSource;
+import org.vaadin.tori.data.entity.Attachment;
+import org.vaadin.tori.data.entity.DiscussionThread;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.data.entity.User;
+import org.vaadin.tori.exception.DataSourceException;
+import org.vaadin.tori.metrics.CacheStats;
+
+/**
+ * A small node-wide cache of recently authored posts. Posts announced through
+ * {@link ToriActivityMessaging} are usually displayed by every session viewing
+ * the thread, so the first one to need a post fetches it and the rest reuse
+ * the fetched data.
+ * <p>
+ * Only approved posts are cached, as they are shown to everyone allowed to
+ * view them. The callers must still check that their user may view the post.
+ * <p>
+ * Only an immutable copy of the displayed fields is cached, and every
+ * {@link #get(long, DataSource)} returns new entities built from it, so the
+ * sessions never share mutable state. The sessions viewing a thread evict its
+ * posts as soon as they are notified of an edit or a deletion (see
+ * {@link ToriActivityMessaging#addPostChangedListener(long, ToriActivityMessaging.PostChangedListener)}
+ * ), and the short maximum age bounds the staleness when such a notification
+ * is lost.
+ */
+public final class SharedPostCache {
+
+    private static final int MAX_SIZE = 200;
+    private static final long MAX_AGE = 30 * 1000;
+
+    private static final CacheStats STATS = CacheStats.get("shared_post");
+
+    @SuppressWarnings("serial")
+    private static final Map<Long, CachedPost> CACHE = new LinkedHashMap<Long, CachedPost>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<Long, CachedPost> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private SharedPostCache() {
+    }
+
+    /**
+     * Adds a post that was just authored in this node, unless it is waiting
+     * for approval. The post is copied, so the caller may go on using it.
+     */
+    public static void put(final Post post) {
+        if (!post.isApproved()) {
+            invalidate(post.getId());
+            return;
+        }
+        final CachedPost cached = new CachedPost(post);
+        synchronized (CACHE) {
+            CACHE.put(post.getId(), cached);
+        }
+    }
+
+    /**
+     * Drops the given post from the cache, e.g. after it has been edited or
+     * deleted.
+     */
+    public static void invalidate(final long postId) {
+        synchronized (CACHE) {
+            CACHE.remove(postId);
+        }
+    }
+
+    /**
+     * Returns a private copy of the cached post, or fetches the post from the
+     * given data source and caches it if not cached yet or expired. Returns
+     * <code>null</code> if the post doesn't exist.
+     */
+    public static Post get(final long postId, final DataSource dataSource)
+            throws DataSourceException {
+        CachedPost cached;
+        synchronized (CACHE) {
+            cached = CACHE.get(postId);
+        }
+        if (cached != null
+                && System.currentTimeMillis() - cached.created < MAX_AGE) {
+            STATS.hit();
+            return cached.toPost();
+        }
+        STATS.miss();
+        final Post post = dataSource.getPost(postId);
+        if (post != null) {
+            put(post);
+        }
+        return post;
+    }
+
+    /**
+     * The immutable copy of the fields of a post that are needed to display
+     * it.
+     */
+    private static class CachedPost {
+        private final long created = System.currentTimeMillis();
+
+        private final long id;
+        private final long time;
+        private final String bodyRaw;
+        private final boolean formatBBCode;
+        private final long threadId;
+        private final String threadTopic;
+        private final CachedUser author;
+        private final List<CachedAttachment> attachments;
+
+        public CachedPost(final Post post) {
+            id = post.getId();
+            time = post.getTime() != null ? post.getTime().getTime() : -1;
+            bodyRaw = post.getBodyRaw();
+            formatBBCode = post.isFormatBBCode();
+            final DiscussionThread thread = post.getThread();
+            threadId = thread != null ? thread.getId() : -1;
+            threadTopic = thread != null ? thread.getTopic() : null;
+            author = post.getAuthor() != null ? new CachedUser(
+                    post.getAuthor()) : null;
+            if (post.getAttachments() != null) {
+                final List<CachedAttachment> copies = new ArrayList<CachedAttachment>();
+                for (final Attachment attachment : post.getAttachments()) {
+                    copies.add(new CachedAttachment(attachment));
+                }
+                attachments = copies;
+            } else {
+                attachments = null;
+            }
+        }
+
+        public Post toPost() {
+            final Post post = new Post();
+            post.setId(id);
+            post.setTime(time != -1 ? new Date(time) : null);
+            post.setBodyRaw(bodyRaw);
+            post.setFormatBBCode(formatBBCode);
+            if (threadId != -1) {
+                final DiscussionThread thread = new DiscussionThread();
+                thread.setId(threadId);
+                thread.setTopic(threadTopic);
+                post.setThread(thread);
+            }
+            if (author != null) {
+                post.setAuthor(author.toUser());
+            }
+            if (attachments != null) {
+                final List<Attachment> copies = new ArrayList<Attachment>();
+                for (final CachedAttachment attachment : attachments) {
+                    final Attachment copy = attachment.toAttachment();
+                    copy.setPost(post);
+                    copies.add(copy);
+                }
+                post.setAttachments(copies);
+            }
+            return post;
+        }
+    }
+
+    private static class CachedUser {
+        private final long id;
+        private final String displayedName;
+        private final String avatarUrl;
+        private final String userLink;
+        private final boolean anonymous;
+        private final boolean banned;
+        private final Object originalUserObject;
+
+        public CachedUser(final User user) {
+            id = user.getId();
+            displayedName = user.getDisplayedName();
+            avatarUrl = user.getAvatarUrl();
+            userLink = user.getUserLink();
+            anonymous = user.isAnonymous();
+            banned = user.isBanned();
+            // only read by the badge providers
+            originalUserObject = user.getOriginalUserObject();
+        }
+
+        public User toUser() {
+            final User user = new User();
+            user.setId(id);
+            user.setDisplayedName(displayedName);
+            user.setAvatarUrl(avatarUrl);
+            user.setUserLink(userLink);
+            user.setAnonymous(anonymous);
+            user.setBanned(banned);
+            user.setOriginalUserObject(originalUserObject);
+            return user;
+        }
+    }
+
+    private static class CachedAttachment {
+        private final long id;
+        private final String downloadUrl;
+        private final String filename;
+        private final long fileSize;
+
+        public CachedAttachment(final Attachment attachment) {
+            id = attachment.getId();
+            downloadUrl = attachment.getDownloadUrl();
+            filename = attachment.getFilename();
+            fileSize = attachment.getFileSize();
+        }
+
+        public Attachment toAttachment() {
+            final Attachment attachment = new Attachment(filename, fileSize);
+            attachment.setId(id);
+            attachment.setDownloadUrl(downloadUrl);
+            return attachment;
+        }
+    }
+}
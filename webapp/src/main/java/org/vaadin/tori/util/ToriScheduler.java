@@ -18,14 +18,31 @@ package org.vaadin.tori.util;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.vaadin.tori.ToriApiLoader;
+import org.vaadin.tori.ToriUI;
 
+import com.vaadin.server.ClientConnector.DetachEvent;
+import com.vaadin.server.ClientConnector.DetachListener;
 import com.vaadin.server.VaadinSession;
 import com.vaadin.ui.JavaScript;
 import com.vaadin.ui.JavaScriptFunction;
 import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 
 @SuppressWarnings("serial")
 public class ToriScheduler implements Serializable {
@@ -34,11 +51,170 @@ public class ToriScheduler implements Serializable {
         void execute();
     }
 
+    /**
+     * Data loading split into the part that may run without the session lock
+     * and the part that updates the UI with the result.
+     */
+    public interface BackgroundTask<T> {
+        /**
+         * Called from a background thread. Must not touch any components, only
+         * load the data they need.
+         */
+        T load() throws Exception;
+
+        /** Called with the session lock held once {@link #load()} is done. */
+        void loaded(T result);
+    }
+
     private static final String TORI_SCHEDULER = "TORI_SCHEDULER";
     private static final String DEFERRED_COMMAND_FUNCTION_NAME = "org.vaadin.tori.deferredcommand";
     private static final String FUNCTION = "()";
+
+    private static final int BACKGROUND_THREADS = Math.max(2, Runtime
+            .getRuntime().availableProcessors());
+    /** Tasks beyond this are run as deferred commands instead. */
+    private static final int BACKGROUND_QUEUE_SIZE = 500;
+
+    /** Node-wide, so the number of loader threads doesn't grow with the UIs. */
+    private static final ThreadPoolExecutor BACKGROUND_EXECUTOR = createBackgroundExecutor();
+
     private final Collection<ScheduledCommand> deferredCommands = new ArrayList<ScheduledCommand>();
     private final Collection<ScheduledCommand> manualCommands = new ArrayList<ScheduledCommand>();
+    private transient Set<Future<?>> backgroundTasks;
+    private final ToriUI ui;
+
+    private ToriScheduler(final ToriUI ui) {
+        this.ui = ui;
+    }
+
+    private static ThreadPoolExecutor createBackgroundExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                BACKGROUND_THREADS, BACKGROUND_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(BACKGROUND_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r,
+                                "tori-background-loader-"
+                                        + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Loads data on a background thread and delivers it to the UI through
+     * push, so the request that scheduled the task returns right away and
+     * tasks scheduled together load in parallel.
+     * <p>
+     * Without push the result could only be delivered on the next poll, so
+     * the task is run as a deferred command instead. The same goes for data
+     * sources bound to the current request, as they can't be used once it has
+     * ended, and for the rare case of the background queue being full. In the
+     * portlet all tasks are thus deferred, so this is only worth using for
+     * tasks that call the backend.
+     */
+    public <T> void scheduleBackground(final BackgroundTask<T> task) {
+        if (ui == null || !ui.isPushEnabled()
+                || ToriApiLoader.getCurrent().isRequestBound()) {
+            scheduleDeferred(task);
+            return;
+        }
+        final FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                load(task);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                getBackgroundTasks().remove(this);
+            }
+        };
+        getBackgroundTasks().add(future);
+        try {
+            BACKGROUND_EXECUTOR.execute(future);
+        } catch (RejectedExecutionException e) {
+            getBackgroundTasks().remove(future);
+            scheduleDeferred(task);
+        }
+    }
+
+    private <T> void load(final BackgroundTask<T> task) {
+        final T result;
+        try {
+            result = task.load();
+        } catch (Exception e) {
+            getLogger().warn("Loading data in the background failed", e);
+            return;
+        }
+        try {
+            ui.accessBatched(new Runnable() {
+                @Override
+                public void run() {
+                    task.loaded(result);
+                }
+            });
+        } catch (UIDetachedException e) {
+            // closed while loading, nobody to deliver the result to
+        }
+    }
+
+    private <T> void scheduleDeferred(final BackgroundTask<T> task) {
+        scheduleDeferred(new ScheduledCommand() {
+            @Override
+            public void execute() {
+                final T result;
+                try {
+                    result = task.load();
+                } catch (Exception e) {
+                    getLogger().warn("Loading data failed", e);
+                    return;
+                }
+                task.loaded(result);
+            }
+        });
+    }
+
+    /**
+     * Stops the background loader threads. Called when the servlet or the
+     * portlet is destroyed.
+     */
+    public static void shutdown() {
+        BACKGROUND_EXECUTOR.shutdownNow();
+    }
+
+    private Set<Future<?>> getBackgroundTasks() {
+        synchronized (this) {
+            if (backgroundTasks == null) {
+                // transient, gone if the session has been serialized
+                backgroundTasks = Collections
+                        .synchronizedSet(new HashSet<Future<?>>());
+            }
+            return backgroundTasks;
+        }
+    }
+
+    /**
+     * Cancels the background tasks that haven't been delivered yet and forgets
+     * the scheduler, once its UI has been closed.
+     */
+    private void uiDetached() {
+        final Set<Future<?>> tasks = getBackgroundTasks();
+        synchronized (tasks) {
+            for (final Future<?> future : new ArrayList<Future<?>>(tasks)) {
+                future.cancel(false);
+            }
+            tasks.clear();
+        }
+        BACKGROUND_EXECUTOR.purge();
+        deferredCommands.clear();
+        manualCommands.clear();
+    }
 
     public void scheduleDeferred(final ScheduledCommand command) {
         if (deferredCommands.isEmpty()) {
@@ -80,12 +256,29 @@ public class ToriScheduler implements Serializable {
         }
     }
 
+    private static Logger getLogger() {
+        return Logger.getLogger(ToriScheduler.class);
+    }
+
     public static ToriScheduler get() {
-        final String id = TORI_SCHEDULER + UI.getCurrent().getUIId();
+        final UI ui = UI.getCurrent();
+        final String id = TORI_SCHEDULER + ui.getUIId();
         ToriScheduler scheduler = (ToriScheduler) VaadinSession.getCurrent()
                 .getAttribute(id);
         if (scheduler == null) {
-            scheduler = new ToriScheduler();
+            scheduler = new ToriScheduler(ui instanceof ToriUI ? (ToriUI) ui
+                    : null);
+            final ToriScheduler detachedScheduler = scheduler;
+            ui.addDetachListener(new DetachListener() {
+                @Override
+                public void detach(final DetachEvent event) {
+                    detachedScheduler.uiDetached();
+                    final VaadinSession session = VaadinSession.getCurrent();
+                    if (session != null) {
+                        session.setAttribute(id, null);
+                    }
+                }
+            });
             VaadinSession.getCurrent().setAttribute(id, scheduler);
         }
         return scheduler;
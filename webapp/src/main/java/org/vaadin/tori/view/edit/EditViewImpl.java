@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.vaadin.tori.Configuration;
+import org.vaadin.tori.Configuration.EmailDigestMode;
 import org.vaadin.tori.data.DataSource;
 import org.vaadin.tori.mvp.AbstractView;
 import org.vaadin.tori.service.AuthorizationService;
@@ -46,6 +47,7 @@ import com.vaadin.ui.Field;
 import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.Notification;
+import com.vaadin.ui.OptionGroup;
 import com.vaadin.ui.TabSheet;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.TableFieldFactory;
@@ -88,6 +90,8 @@ public class EditViewImpl extends AbstractView<EditView, EditPresenter>
     private TextField emailReplyToAddress;
     @PropertyId("emailHeaderImageUrl")
     private TextField emailHeaderImageUrl;
+    @PropertyId("emailDigestMode")
+    private OptionGroup emailDigestMode;
 
     public EditViewImpl(final DataSource dataSource,
             final AuthorizationService authorizationService) {
@@ -128,6 +132,7 @@ public class EditViewImpl extends AbstractView<EditView, EditPresenter>
         result.addComponent(buildEmailFromName());
         result.addComponent(buildEmailReplyToAddress());
         result.addComponent(buildEmailHeaderImageURL());
+        result.addComponent(buildEmailDigestMode());
 
         return result;
     }
@@ -152,6 +157,7 @@ public class EditViewImpl extends AbstractView<EditView, EditPresenter>
         emailFromName.setEnabled(useToriMailService.getValue());
         emailReplyToAddress.setEnabled(useToriMailService.getValue());
         emailHeaderImageUrl.setEnabled(useToriMailService.getValue());
+        emailDigestMode.setEnabled(useToriMailService.getValue());
     }
 
     private Component buildEmailFromAddress() {
@@ -175,6 +181,22 @@ public class EditViewImpl extends AbstractView<EditView, EditPresenter>
                 emailHeaderImageUrl);
     }
 
+    private Component buildEmailDigestMode() {
+        emailDigestMode = new OptionGroup();
+        emailDigestMode.setNullSelectionAllowed(false);
+        emailDigestMode.addItem(EmailDigestMode.IMMEDIATE);
+        emailDigestMode.setItemCaption(EmailDigestMode.IMMEDIATE,
+                "Immediately for every new post");
+        emailDigestMode.addItem(EmailDigestMode.HOURLY);
+        emailDigestMode.setItemCaption(EmailDigestMode.HOURLY,
+                "Hourly digest");
+        emailDigestMode.addItem(EmailDigestMode.DAILY);
+        emailDigestMode.setItemCaption(EmailDigestMode.DAILY, "Daily digest");
+        return getFieldWrapper(
+                "How often thread notification emails are sent to subscribers",
+                emailDigestMode);
+    }
+
     private Component buildGeneralPreferences() {
         VerticalLayout result = new VerticalLayout();
         result.addStyleName("preferenceslayout");
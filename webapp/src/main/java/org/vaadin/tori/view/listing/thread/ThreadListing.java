@@ -2,15 +2,16 @@ package org.vaadin.tori.view.listing.thread;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
 
 import org.ocpsoft.prettytime.PrettyTime;
 import org.vaadin.dialogs.ConfirmDialog;
 import org.vaadin.tori.ToriNavigator;
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.metrics.RenderMetrics.Timer;
 import org.vaadin.tori.util.ComponentUtil;
 import org.vaadin.tori.util.ToriScheduler;
 import org.vaadin.tori.util.ToriScheduler.ScheduledCommand;
@@ -44,22 +45,29 @@ public class ThreadListing extends AbstractComponentContainer implements
 
     private static final int PRELOAD_COUNT = 30;
     private static final int FETCH_COUNT = 50;
-    private int fetchedRows = 0;
-    private int totalRows = 0;
+    /** Upper bound for the page size the client may ask for. */
+    private static final int MAX_FETCH_COUNT = 200;
+    private int sentRows = 0;
     private final PrettyTime prettyTime = new PrettyTime(Locale.US);
 
-    private final Set<Component> components = new HashSet<Component>();
+    /**
+     * The actions menu shared by all the rows. Its items are rebuilt for a
+     * thread whenever the client opens the menu on that thread's row.
+     */
+    private final MenuBar actionMenu = ComponentUtil.getDropdownMenu();
 
     public ThreadListing(final ThreadListingPresenter presenter) {
         this.presenter = presenter;
         setWidth(100.0f, Unit.PERCENTAGE);
         registerRpc(this);
+        addComponent(actionMenu);
     }
 
     private ThreadProvider threadProvider;
     private final ThreadListingPresenter presenter;
 
-    private ThreadPrimaryData getThreadPrimaryData(final ThreadData thread) {
+    // package-private for the row building benchmarks
+    ThreadPrimaryData getThreadPrimaryData(final ThreadData thread) {
         final ThreadPrimaryData data = new ThreadPrimaryData();
         data.author = thread.getAuthor();
         data.latestAuthor = thread.getLatestPostAuthor();
@@ -72,7 +80,7 @@ public class ThreadListing extends AbstractComponentContainer implements
         return data;
     }
 
-    private ThreadAdditionalData getThreadAdditionalData(final ThreadData thread) {
+    ThreadAdditionalData getThreadAdditionalData(final ThreadData thread) {
         final ThreadAdditionalData data = new ThreadAdditionalData();
         data.threadId = String.valueOf(thread.getId());
         data.isLocked = thread.isLocked();
@@ -85,7 +93,9 @@ public class ThreadListing extends AbstractComponentContainer implements
         if (thread.getPostCount() > 1) {
             data.latestPostUrl = data.url + "/" + thread.getLatestPostId();
         }
-        data.settings = buildSettings(thread);
+        data.hasActions = thread.mayFollow() || thread.mayMarkAsRead()
+                || thread.mayLock() || thread.maySticky() || thread.mayDelete()
+                || thread.mayMove();
         return data;
     }
 
@@ -129,10 +139,10 @@ public class ThreadListing extends AbstractComponentContainer implements
         };
     }
 
-    private Component buildSettings(final ThreadData thread) {
+    private boolean buildActions(final ThreadData thread) {
         Command settingsCommand = getSettingsCommand(thread.getId());
-        MenuBar dropdownMenu = ComponentUtil.getDropdownMenu();
-        MenuItem rootItem = dropdownMenu.getMoreMenuItem();
+        MenuItem rootItem = actionMenu.getMoreMenuItem();
+        rootItem.removeChildren();
         if (thread.mayFollow()) {
             rootItem.addItem(thread.isFollowing() ? UNFOLLOW_CAPTION
                     : FOLLOW_CAPTION, settingsCommand);
@@ -164,29 +174,30 @@ public class ThreadListing extends AbstractComponentContainer implements
             rootItem.removeChild(separator);
         }
 
-        Component result = null;
-        if (rootItem.hasChildren()) {
-            components.add(dropdownMenu);
-            addComponent(dropdownMenu);
-            result = dropdownMenu;
+        return rootItem.hasChildren();
+    }
+
+    @Override
+    public void openActions(final long threadId) {
+        final ThreadData thread = presenter.getThread(threadId);
+        if (thread != null && buildActions(thread)) {
+            getClientRpc().openActions(String.valueOf(threadId));
         }
-        return result;
     }
 
     public void setThreadProvider(final ThreadProvider threadProvider) {
         this.threadProvider = threadProvider;
-        totalRows = threadProvider.getThreadCount();
+        sentRows = 0;
         sendRows(PRELOAD_COUNT);
     }
 
     public void updateThreadRow(final ThreadData thread) {
-        getRpcProxy(ThreadListingClientRpc.class).refreshThreadRows(
+        getClientRpc().refreshThreadRows(
                 Arrays.asList(getThreadAdditionalData(thread)));
     }
 
     public void removeThreadRow(final long threadId) {
-        getRpcProxy(ThreadListingClientRpc.class).removeThreadRow(
-                String.valueOf(threadId));
+        getClientRpc().removeThreadRow(String.valueOf(threadId));
     }
 
     @Override
@@ -197,50 +208,61 @@ public class ThreadListing extends AbstractComponentContainer implements
 
     @Override
     public int getComponentCount() {
-        return components.size();
+        return 1;
     }
 
     @Override
     public Iterator<Component> iterator() {
-        return components.iterator();
+        return Collections.<Component> singletonList(actionMenu).iterator();
     }
 
     @Override
-    public void fetchRows() {
-        sendRows(FETCH_COUNT);
+    public void fetchRows(final int maxCount) {
+        // the client sizes its requests by how fast the user scrolls
+        sendRows(Math.max(1, Math.min(maxCount, MAX_FETCH_COUNT)));
     }
 
-    private void sendRows(final int maxCount) {
-        final List<ThreadData> threads = threadProvider.getThreadsBetween(
-                fetchedRows, fetchedRows + maxCount);
-
-        final ArrayList<ThreadPrimaryData> rows = new ArrayList<ThreadPrimaryData>();
+    private ThreadListingClientRpc getClientRpc() {
+        return RenderMetrics.instrument(
+                getRpcProxy(ThreadListingClientRpc.class),
+                ThreadListingClientRpc.class);
+    }
 
-        for (final ThreadData thread : threads) {
-            if (thread.mayView()) {
+    private void sendRows(final int maxCount) {
+        final Timer timer = RenderMetrics.start("ThreadListing.sendRows");
+        // the provider returns only visible threads as immutable snapshots, so
+        // both the primary and the additional data are built from them without
+        // going to the backend
+        final List<ThreadData> threads;
+        try {
+            threads = threadProvider.getNextThreads(maxCount);
+            final ArrayList<ThreadPrimaryData> rows = new ArrayList<ThreadPrimaryData>();
+            for (final ThreadData thread : threads) {
                 rows.add(getThreadPrimaryData(thread));
             }
-        }
 
-        fetchedRows += threads.size();
-        int remaining = totalRows - fetchedRows;
-        if (fetchedRows == 0) {
-            remaining = 0;
+            sentRows += threads.size();
+            // the count is an estimate until the provider runs out of
+            // threads, which clears the remaining placeholders
+            int placeholders = 0;
+            if (threads.size() == maxCount && threadProvider.hasMoreThreads()) {
+                final int remaining = threadProvider.getThreadCount()
+                        - sentRows;
+                placeholders = Math.max(1, Math.min(remaining, FETCH_COUNT));
+            }
+            getClientRpc().sendRows(rows, placeholders);
+        } finally {
+            timer.stop();
         }
-        int placeholders = Math.min(remaining, FETCH_COUNT);
-        getRpcProxy(ThreadListingClientRpc.class).sendRows(rows, placeholders);
 
         ToriScheduler.get().scheduleDeferred(new ScheduledCommand() {
             @Override
             public void execute() {
                 final ArrayList<ThreadAdditionalData> rows = new ArrayList<ThreadAdditionalData>();
                 for (final ThreadData thread : threads) {
-                    if (thread.mayView()) {
-                        rows.add(getThreadAdditionalData(thread));
-                    }
+                    rows.add(getThreadAdditionalData(thread));
                 }
-                getRpcProxy(ThreadListingClientRpc.class).refreshThreadRows(
-                        rows);
+                getClientRpc().refreshThreadRows(rows);
             }
         });
     }
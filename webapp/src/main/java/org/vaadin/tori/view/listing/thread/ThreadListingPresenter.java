@@ -16,16 +16,26 @@
 
 package org.vaadin.tori.view.listing.thread;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.vaadin.tori.data.DataSource;
 import org.vaadin.tori.data.entity.Category;
 import org.vaadin.tori.data.entity.DiscussionThread;
 import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.exception.NoSuchThreadException;
 import org.vaadin.tori.mvp.Presenter;
 import org.vaadin.tori.view.listing.SpecialCategory;
+import org.vaadin.tori.view.listing.thread.ThreadRow.CategoryPermissions;
 import org.vaadin.tori.view.listing.thread.ThreadListingView.ThreadData;
 import org.vaadin.tori.view.listing.thread.ThreadListingView.ThreadProvider;
 
@@ -114,13 +124,29 @@ public class ThreadListingPresenter extends Presenter<ThreadListingView> {
     }
 
     private void updateThread(final long threadId) {
+        final ThreadData thread = getThread(threadId);
+        if (thread != null) {
+            view.updateThread(thread);
+        }
+    }
+
+    /**
+     * Returns a fresh snapshot of the given thread, or <code>null</code> if it
+     * could not be fetched.
+     */
+    public ThreadData getThread(final long threadId) {
         try {
-            view.updateThread(getThreadData(dataSource.getThread(threadId)));
+            final List<ThreadData> rows = createRows(dataSource,
+                    Collections.singletonList(dataSource.getThread(threadId)));
+            if (!rows.isEmpty()) {
+                return rows.get(0);
+            }
         } catch (NoSuchThreadException e) {
             displayError(e);
         } catch (DataSourceException e) {
             displayError(e);
         }
+        return null;
     }
 
     public void delete(final long threadId) {
@@ -194,121 +220,76 @@ public class ThreadListingPresenter extends Presenter<ThreadListingView> {
         return result;
     }
 
-    private ThreadData getThreadData(final DiscussionThread thread) {
-        final long threadId = thread.getId();
-        final Long categoryId = thread.getCategory() != null ? thread
-                .getCategory().getId() : null;
-        return new ThreadData() {
-
-            @Override
-            public boolean isFollowing() {
-                return dataSource.isFollowingThread(threadId);
-            }
-
-            @Override
-            public boolean userHasRead() {
-                return dataSource.isThreadRead(threadId);
-            }
-
-            @Override
-            public boolean mayMove() {
-                return authorizationService.mayMoveThreadInCategory(categoryId);
-            }
-
-            @Override
-            public boolean maySticky() {
-                return authorizationService
-                        .mayStickyThreadInCategory(categoryId);
-            }
-
-            @Override
-            public boolean mayLock() {
-                return authorizationService.mayLockThreadInCategory(categoryId);
-            }
-
-            @Override
-            public boolean mayDelete() {
-                return authorizationService.mayDeleteThread(threadId);
-            }
-
-            @Override
-            public boolean mayReplyIn() {
-                return authorizationService.mayReplyInThread(threadId);
-            }
-
-            @Override
-            public boolean mayFollow() {
-                return authorizationService.mayFollowThread(threadId);
-            }
-
-            @Override
-            public long getId() {
-                return threadId;
-            }
-
-            @Override
-            public boolean isLocked() {
-                return thread.isLocked();
-            }
-
-            @Override
-            public boolean isSticky() {
-                return thread.isSticky();
-            }
-
-            @Override
-            public String getAuthor() {
-                return thread.getOriginalPoster().getDisplayedName();
-            }
-
-            @Override
-            public int getPostCount() {
-                return thread.getPostCount();
-            }
-
-            @Override
-            public String getTopic() {
-                return thread.getTopic();
-            }
-
-            @Override
-            public String getLatestPostAuthor() {
-                return thread.getLatestPost().getAuthor().getDisplayedName();
-            }
-
-            @Override
-            public Date getLatestPostTime() {
-                return thread.getLatestPost().getTime();
-            }
-
-            @Override
-            public Long getLatestPostId() {
-                return thread.getLatestPost().getId();
-            }
-
-            @Override
-            public boolean mayView() {
-                return authorizationService.mayViewThread(threadId);
-            }
-
-            @Override
-            public Date getCreateTime() {
-                return thread.getCreateTime();
+    /**
+     * Materializes the given threads into immutable rows with a constant
+     * number of data source calls, regardless of the number of threads. The
+     * authorization service is queried three times per category and up to
+     * four times per thread, see {@link ThreadRow}. Threads without an
+     * original poster are left out.
+     */
+    private List<ThreadData> createRows(final DataSource dataSource,
+            final List<DiscussionThread> threads) {
+        final List<Long> threadIds = new ArrayList<Long>(threads.size());
+        for (final DiscussionThread thread : threads) {
+            threadIds.add(thread.getId());
+        }
+        final Set<Long> followedIds = dataSource
+                .getFollowedThreadIds(threadIds);
+        final Set<Long> readIds = dataSource.getReadThreadIds(threadIds);
+        final boolean mayMarkAsRead = dataSource.isLoggedInUser();
+
+        final Map<Long, CategoryPermissions> categoryPermissions = new HashMap<Long, CategoryPermissions>();
+        final List<ThreadData> result = new ArrayList<ThreadData>(
+                threads.size());
+        for (final DiscussionThread thread : threads) {
+            if (thread.getOriginalPoster() == null) {
+                continue;
             }
-
-            @Override
-            public boolean mayMarkAsRead() {
-                return dataSource.isLoggedInUser();
+            final Long categoryId = thread.getCategory() != null ? thread
+                    .getCategory().getId() : null;
+            CategoryPermissions permissions = categoryPermissions
+                    .get(categoryId);
+            if (permissions == null) {
+                permissions = new CategoryPermissions(authorizationService,
+                        categoryId);
+                categoryPermissions.put(categoryId, permissions);
             }
+            result.add(new ThreadRow(thread, followedIds.contains(thread
+                    .getId()), readIds.contains(thread.getId()),
+                    mayMarkAsRead, permissions, authorizationService));
+        }
+        return result;
+    }
 
-        };
+    /**
+     * Returns a data source that counts the calls made through it, for
+     * reporting the number of calls used for a page of rows.
+     */
+    private static DataSource getCountingDataSource(
+            final DataSource dataSource, final AtomicInteger calls) {
+        return (DataSource) Proxy.newProxyInstance(
+                DataSource.class.getClassLoader(),
+                new Class<?>[] { DataSource.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args)
+                            throws Throwable {
+                        calls.incrementAndGet();
+                        try {
+                            return method.invoke(dataSource, args);
+                        } catch (final InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
     }
 
     private ThreadProvider getDefaultThreadProvider(final Long categoryId) {
         return new AbstractThreadProvider() {
             @Override
             protected List<DiscussionThread> getThreadsBetweenInternal(
-                    final int from, final int to) throws DataSourceException {
+                    final DataSource dataSource, final int from, final int to)
+                    throws DataSourceException {
                 return dataSource.getThreads(categoryId, from, to);
             }
 
@@ -323,7 +304,8 @@ public class ThreadListingPresenter extends Presenter<ThreadListingView> {
         return new AbstractThreadProvider() {
             @Override
             protected List<DiscussionThread> getThreadsBetweenInternal(
-                    final int from, final int to) throws DataSourceException {
+                    final DataSource dataSource, final int from, final int to)
+                    throws DataSourceException {
                 return dataSource.getMyPostThreads(from, to);
             }
 
@@ -338,7 +320,8 @@ public class ThreadListingPresenter extends Presenter<ThreadListingView> {
         return new AbstractThreadProvider() {
             @Override
             protected List<DiscussionThread> getThreadsBetweenInternal(
-                    final int from, final int to) throws DataSourceException {
+                    final DataSource dataSource, final int from, final int to)
+                    throws DataSourceException {
                 return dataSource.getRecentPosts(from, to);
             }
 
@@ -349,32 +332,88 @@ public class ThreadListingPresenter extends Presenter<ThreadListingView> {
         };
     }
 
+    /**
+     * Pages through the threads of a listing, leaving out the ones the current
+     * user may not view. The permissions can't be checked in the listing
+     * queries, so the provider keeps fetching until it has a full page of
+     * visible threads or runs out of threads.
+     */
     private abstract class AbstractThreadProvider implements ThreadProvider {
 
+        /** Index of the next unfiltered thread to fetch. */
+        private int offset = 0;
+        private int hiddenThreads = 0;
+        private int threadCount = -1;
+        private boolean exhausted = false;
+
         @Override
         public int getThreadCount() {
-            int result = 0;
-            try {
-                result = getThreadCountInternal();
-            } catch (DataSourceException e) {
-                displayError(e);
+            if (threadCount < 0) {
+                try {
+                    threadCount = getThreadCountInternal();
+                } catch (DataSourceException e) {
+                    threadCount = 0;
+                    displayError(e);
+                }
             }
-            return result;
+            final int visibleThreads = offset - hiddenThreads;
+            if (exhausted) {
+                return visibleThreads;
+            }
+            // the rest is assumed to be hidden in the same proportion
+            final int unfetched = Math.max(0, threadCount - offset);
+            final double visibleShare = offset > 0 ? (double) visibleThreads
+                    / offset : 1;
+            return visibleThreads
+                    + (int) Math.round(unfetched * visibleShare);
+        }
+
+        @Override
+        public boolean hasMoreThreads() {
+            return !exhausted;
         }
 
         @Override
-        public List<ThreadData> getThreadsBetween(final int from, final int to) {
-            List<ThreadData> result = new ArrayList<ThreadData>();
+        public List<ThreadData> getNextThreads(final int maxCount) {
+            final AtomicInteger calls = new AtomicInteger();
+            final DataSource pageDataSource = log.isDebugEnabled() ? getCountingDataSource(
+                    dataSource, calls) : dataSource;
+            final List<ThreadData> result = new ArrayList<ThreadData>();
+            int batches = 0;
             try {
-                for (DiscussionThread thread : getThreadsBetweenInternal(from,
-                        to)) {
-                    if (thread.getOriginalPoster() != null) {
-                        result.add(getThreadData(thread));
+                while (result.size() < maxCount && !exhausted) {
+                    final int batchSize = maxCount - result.size();
+                    List<DiscussionThread> threads = getThreadsBetweenInternal(
+                            pageDataSource, offset, offset + batchSize - 1);
+                    batches++;
+                    if (threads.size() < batchSize) {
+                        exhausted = true;
+                    } else if (threads.size() > batchSize) {
+                        // not all data sources honor the inclusive end index
+                        threads = threads.subList(0, batchSize);
+                    }
+                    offset += threads.size();
+
+                    final List<ThreadData> rows = createRows(pageDataSource,
+                            threads);
+                    int visible = 0;
+                    for (final ThreadData row : rows) {
+                        if (row.mayView()) {
+                            result.add(row);
+                            visible++;
+                        }
                     }
+                    hiddenThreads += threads.size() - visible;
                 }
             } catch (DataSourceException e) {
                 displayError(e);
             }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Thread rows from %d: %d rows in %d "
+                        + "batches, %d hidden so far, %d DataSource calls",
+                        offset, result.size(), batches, hiddenThreads,
+                        calls.get()));
+            }
             return result;
         }
 
@@ -382,7 +421,8 @@ public class ThreadListingPresenter extends Presenter<ThreadListingView> {
                 throws DataSourceException;
 
         protected abstract List<DiscussionThread> getThreadsBetweenInternal(
-                int from, int to) throws DataSourceException;
+                DataSource dataSource, int from, int to)
+                throws DataSourceException;
 
     }
 
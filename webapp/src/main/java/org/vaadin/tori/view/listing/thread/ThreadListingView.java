@@ -39,10 +39,31 @@ public interface ThreadListingView extends View {
 
     void navigateToNewThreadView(Long categoryId);
 
+    /**
+     * Provides the threads visible to the current user, one page at a time.
+     */
     public interface ThreadProvider {
+
+        /**
+         * Returns an estimate of the number of threads visible to the current
+         * user. Until all the threads have been fetched, the threads not
+         * fetched yet are assumed to be hidden in the same proportion as the
+         * ones already fetched. The count is exact once
+         * {@link #hasMoreThreads()} returns <code>false</code>.
+         */
         int getThreadCount();
 
-        List<ThreadData> getThreadsBetween(int from, int to);
+        /**
+         * Whether there may be more visible threads to fetch. Only known to be
+         * <code>false</code> once a fetch has run out of threads.
+         */
+        boolean hasMoreThreads();
+
+        /**
+         * Returns the next <code>maxCount</code> threads visible to the current
+         * user, or fewer if there are no more.
+         */
+        List<ThreadData> getNextThreads(int maxCount);
     }
 
     public interface ThreadData {
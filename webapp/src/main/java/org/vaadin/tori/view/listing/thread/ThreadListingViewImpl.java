@@ -91,10 +91,12 @@ public class ThreadListingViewImpl extends
 
     @Override
     public void setThreadProvider(final ThreadProvider threadProvider) {
+        threadListing.setThreadProvider(threadProvider);
+        // checked after the first page, so threads hidden from the user are
+        // not counted
         boolean hasThreads = threadProvider.getThreadCount() > 0;
         noTopicsLabel.setVisible(!hasThreads);
         threadListing.setVisible(hasThreads);
-        threadListing.setThreadProvider(threadProvider);
     }
 
     @Override
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.listing.thread;
+
+import java.util.Date;
+
+import org.vaadin.tori.data.entity.DiscussionThread;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.service.AuthorizationService;
+import org.vaadin.tori.view.listing.thread.ThreadListingView.ThreadData;
+
+/**
+ * An immutable snapshot of a single row in the thread listing. All the values
+ * are read from the thread, the data source and the authorization service when
+ * the row is created, so the getters never call back to the backend.
+ * <p>
+ * The permissions that depend on the category are shared by the rows of a
+ * category through {@link CategoryPermissions}. The ones that depend on the
+ * thread itself are checked per row, up to four checks each, and skipped
+ * altogether for the threads the user may not view.
+ */
+final class ThreadRow implements ThreadData {
+
+    private final long id;
+    private final String topic;
+    private final String author;
+    private final Date createTime;
+    private final int postCount;
+    private final String latestPostAuthor;
+    private final Date latestPostTime;
+    private final Long latestPostId;
+    private final boolean locked;
+    private final boolean sticky;
+    private final boolean following;
+    private final boolean read;
+    private final boolean mayView;
+    private final boolean mayDelete;
+    private final boolean mayReplyIn;
+    private final boolean mayFollow;
+    private final boolean mayMove;
+    private final boolean maySticky;
+    private final boolean mayLock;
+    private final boolean mayMarkAsRead;
+
+    /**
+     * The permissions that depend only on the category of the thread, to be
+     * checked once for all the rows of a page that are in the same category.
+     */
+    static final class CategoryPermissions {
+        private final boolean mayMove;
+        private final boolean maySticky;
+        private final boolean mayLock;
+
+        CategoryPermissions(final AuthorizationService authorizationService,
+                final Long categoryId) {
+            mayMove = authorizationService.mayMoveThreadInCategory(categoryId);
+            maySticky = authorizationService
+                    .mayStickyThreadInCategory(categoryId);
+            mayLock = authorizationService.mayLockThreadInCategory(categoryId);
+        }
+    }
+
+    ThreadRow(final DiscussionThread thread, final boolean following,
+            final boolean read, final boolean mayMarkAsRead,
+            final CategoryPermissions categoryPermissions,
+            final AuthorizationService authorizationService) {
+        id = thread.getId();
+        topic = thread.getTopic();
+        author = thread.getOriginalPoster().getDisplayedName();
+        createTime = thread.getCreateTime();
+        postCount = thread.getPostCount();
+        locked = thread.isLocked();
+        sticky = thread.isSticky();
+
+        final Post latestPost = thread.getLatestPost();
+        if (latestPost != null && latestPost.getAuthor() != null) {
+            latestPostAuthor = latestPost.getAuthor().getDisplayedName();
+            latestPostTime = latestPost.getTime();
+        } else {
+            latestPostAuthor = author;
+            latestPostTime = createTime;
+        }
+        // the id is only linked to when there are replies
+        latestPostId = latestPost != null && postCount > 1 ? latestPost
+                .getId() : null;
+
+        this.following = following;
+        this.read = read;
+        this.mayMarkAsRead = mayMarkAsRead;
+        mayMove = categoryPermissions.mayMove;
+        maySticky = categoryPermissions.maySticky;
+        mayLock = categoryPermissions.mayLock;
+        mayView = authorizationService.mayViewThread(id);
+        if (mayView) {
+            mayDelete = authorizationService.mayDeleteThread(id);
+            mayReplyIn = authorizationService.mayReplyInThread(id);
+            mayFollow = authorizationService.mayFollowThread(id);
+        } else {
+            // the row is left out of the listing
+            mayDelete = false;
+            mayReplyIn = false;
+            mayFollow = false;
+        }
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public boolean isFollowing() {
+        return following;
+    }
+
+    @Override
+    public boolean userHasRead() {
+        return read;
+    }
+
+    @Override
+    public boolean mayDelete() {
+        return mayDelete;
+    }
+
+    @Override
+    public boolean mayReplyIn() {
+        return mayReplyIn;
+    }
+
+    @Override
+    public boolean mayFollow() {
+        return mayFollow;
+    }
+
+    @Override
+    public boolean mayMove() {
+        return mayMove;
+    }
+
+    @Override
+    public boolean maySticky() {
+        return maySticky;
+    }
+
+    @Override
+    public boolean mayLock() {
+        return mayLock;
+    }
+
+    @Override
+    public boolean isLocked() {
+        return locked;
+    }
+
+    @Override
+    public boolean isSticky() {
+        return sticky;
+    }
+
+    @Override
+    public boolean mayView() {
+        return mayView;
+    }
+
+    @Override
+    public String getAuthor() {
+        return author;
+    }
+
+    @Override
+    public String getTopic() {
+        return topic;
+    }
+
+    @Override
+    public int getPostCount() {
+        return postCount;
+    }
+
+    @Override
+    public String getLatestPostAuthor() {
+        return latestPostAuthor;
+    }
+
+    @Override
+    public Date getLatestPostTime() {
+        return latestPostTime;
+    }
+
+    @Override
+    public Long getLatestPostId() {
+        return latestPostId;
+    }
+
+    @Override
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    @Override
+    public boolean mayMarkAsRead() {
+        return mayMarkAsRead;
+    }
+}
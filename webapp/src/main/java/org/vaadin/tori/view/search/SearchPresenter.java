@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.search;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.List;
+
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.exception.DataSourceException;
+import org.vaadin.tori.mvp.Presenter;
+
+public class SearchPresenter extends Presenter<SearchView> {
+
+    static final int RESULTS_PER_PAGE = 20;
+
+    private String query;
+    private int loaded;
+
+    public SearchPresenter(final SearchView view) {
+        super(view);
+    }
+
+    @Override
+    public void navigationTo(final String[] arguments) {
+        try {
+            query = URLDecoder.decode(arguments[0], "UTF-8").trim();
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (final IllegalArgumentException e) {
+            log.debug("Malformed search query: " + arguments[0]);
+            query = arguments[0];
+        }
+        view.setQuery(query);
+
+        loaded = 0;
+        if (query.isEmpty()) {
+            view.setResults(Collections.<Post> emptyList(), false);
+        } else {
+            search(false);
+        }
+    }
+
+    public void loadMore() {
+        search(true);
+    }
+
+    /**
+     * Fetches the next page of results, plus one to tell whether there are
+     * more pages.
+     */
+    private void search(final boolean append) {
+        try {
+            List<Post> posts = dataSource.search(query, loaded, loaded
+                    + RESULTS_PER_PAGE);
+            final boolean more = posts.size() > RESULTS_PER_PAGE;
+            if (more) {
+                posts = posts.subList(0, RESULTS_PER_PAGE);
+            }
+            loaded += posts.size();
+
+            if (append) {
+                view.appendResults(posts, more);
+            } else {
+                view.setResults(posts, more);
+            }
+        } catch (final DataSourceException e) {
+            log.error("Search failed: " + query, e);
+            view.panic();
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.search;
+
+import java.util.List;
+
+import org.vaadin.tori.component.PanicComponent;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.mvp.View;
+
+public interface SearchView extends View {
+
+    void setQuery(String query);
+
+    /**
+     * Replaces the displayed results with the given posts.
+     * 
+     * @param more
+     *            whether there are more results to be loaded
+     */
+    void setResults(List<Post> posts, boolean more);
+
+    /**
+     * Appends the given posts to the displayed results.
+     * 
+     * @param more
+     *            whether there are more results to be loaded
+     */
+    void appendResults(List<Post> posts, boolean more);
+
+    void showError(String message);
+
+    /**
+     * Show an error message to the user that says that something irrecoverable
+     * went wrong, and there's nothing really we can do.
+     * 
+     * @see PanicComponent
+     */
+    void panic();
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.search;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.ocpsoft.prettytime.PrettyTime;
+import org.vaadin.tori.ToriNavigator;
+import org.vaadin.tori.ToriUtil;
+import org.vaadin.tori.component.PanicComponent;
+import org.vaadin.tori.data.entity.DiscussionThread;
+import org.vaadin.tori.data.entity.Post;
+import org.vaadin.tori.data.entity.User;
+import org.vaadin.tori.mvp.AbstractView;
+
+import com.vaadin.server.ExternalResource;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Button.ClickEvent;
+import com.vaadin.ui.Button.ClickListener;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Link;
+import com.vaadin.ui.Notification;
+import com.vaadin.ui.Notification.Type;
+import com.vaadin.ui.VerticalLayout;
+
+@SuppressWarnings("serial")
+public class SearchViewImpl extends AbstractView<SearchView, SearchPresenter>
+        implements SearchView {
+
+    private static final int EXCERPT_LENGTH = 200;
+
+    private final PrettyTime prettyTime = new PrettyTime(Locale.US);
+
+    private VerticalLayout layout;
+    private CssLayout resultsLayout;
+    private Label noResultsLabel;
+    private Button moreButton;
+
+    private String query;
+
+    @Override
+    protected SearchPresenter createPresenter() {
+        return new SearchPresenter(this);
+    }
+
+    @Override
+    protected Component createCompositionRoot() {
+        return layout = new VerticalLayout();
+    }
+
+    @Override
+    public void initView() {
+        setStyleName("searchview");
+        layout.setMargin(true);
+        layout.setSpacing(true);
+
+        resultsLayout = new CssLayout();
+        resultsLayout.setWidth(100.0f, Unit.PERCENTAGE);
+        resultsLayout.setStyleName("searchresults");
+        layout.addComponent(resultsLayout);
+
+        noResultsLabel = new Label("No posts found");
+        noResultsLabel.setStyleName("noresults");
+        layout.addComponent(noResultsLabel);
+
+        moreButton = new Button("Show more", new ClickListener() {
+            @Override
+            public void buttonClick(final ClickEvent event) {
+                getPresenter().loadMore();
+            }
+        });
+        layout.addComponent(moreButton);
+    }
+
+    @Override
+    public void setQuery(final String query) {
+        this.query = query;
+    }
+
+    @Override
+    public String getTitle() {
+        return query == null || query.isEmpty() ? "Search"
+                : "Search results for \"" + query + "\"";
+    }
+
+    @Override
+    public void setResults(final List<Post> posts, final boolean more) {
+        resultsLayout.removeAllComponents();
+        appendResults(posts, more);
+    }
+
+    @Override
+    public void appendResults(final List<Post> posts, final boolean more) {
+        for (final Post post : posts) {
+            resultsLayout.addComponent(buildResult(post));
+        }
+        noResultsLabel.setVisible(resultsLayout.getComponentCount() == 0);
+        moreButton.setVisible(more);
+    }
+
+    private Component buildResult(final Post post) {
+        final DiscussionThread thread = post.getThread();
+        final Link topic = new Link(thread.getTopic(), new ExternalResource(
+                "#" + ToriNavigator.ApplicationView.THREADS.getUrl() + "/"
+                        + thread.getId() + "/" + post.getId()));
+        topic.setStyleName("topic");
+
+        final User author = post.getAuthor();
+        final Label details = new Label((author != null ? author
+                .getDisplayedName() + ", " : "")
+                + prettyTime.format(post.getTime()));
+        details.setStyleName("details");
+
+        final Label excerpt = new Label(getExcerpt(post.getBodyRaw()));
+        excerpt.setStyleName("excerpt");
+
+        final CssLayout result = new CssLayout(topic, details, excerpt);
+        result.setWidth(100.0f, Unit.PERCENTAGE);
+        result.setStyleName("searchresult");
+        return result;
+    }
+
+    private static String getExcerpt(final String bodyRaw) {
+        final String text = ToriUtil.stripBBCode(bodyRaw);
+        if (text.length() <= EXCERPT_LENGTH) {
+            return text;
+        }
+        int end = text.lastIndexOf(' ', EXCERPT_LENGTH);
+        if (end < EXCERPT_LENGTH / 2) {
+            end = EXCERPT_LENGTH;
+        }
+        return text.substring(0, end) + "...";
+    }
+
+    @Override
+    public void showError(final String message) {
+        Notification.show(message, Type.ERROR_MESSAGE);
+    }
+
+    @Override
+    public void panic() {
+        layout.removeAllComponents();
+        layout.addComponent(new PanicComponent());
+    }
+}
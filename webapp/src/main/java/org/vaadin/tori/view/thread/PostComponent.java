@@ -27,22 +27,21 @@ import org.vaadin.dialogs.ConfirmDialog;
 import org.vaadin.tori.ToriNavigator;
 import org.vaadin.tori.ToriUI;
 import org.vaadin.tori.exception.DataSourceException;
-import org.vaadin.tori.util.ComponentUtil;
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.metrics.RenderMetrics.Timer;
 import org.vaadin.tori.util.ToriScheduler;
 import org.vaadin.tori.util.ToriScheduler.ScheduledCommand;
 import org.vaadin.tori.view.thread.PostEditor.PostEditorListener;
 import org.vaadin.tori.view.thread.ThreadView.PostData;
 import org.vaadin.tori.widgetset.client.ui.post.PostComponentClientRpc;
+import org.vaadin.tori.widgetset.client.ui.post.PostComponentServerRpc;
 import org.vaadin.tori.widgetset.client.ui.post.PostData.PostAdditionalData;
 import org.vaadin.tori.widgetset.client.ui.post.PostData.PostPrimaryData;
 
-import com.vaadin.event.LayoutEvents.LayoutClickEvent;
-import com.vaadin.event.LayoutEvents.LayoutClickListener;
 import com.vaadin.ui.AbstractComponentContainer;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.ComponentContainer;
 import com.vaadin.ui.CssLayout;
-import com.vaadin.ui.Label;
 import com.vaadin.ui.MenuBar;
 import com.vaadin.ui.MenuBar.Command;
 import com.vaadin.ui.MenuBar.MenuItem;
@@ -61,8 +60,9 @@ public class PostComponent extends AbstractComponentContainer implements
     private final PrettyTime prettyTime;
     private PostData post;
 
+    /** The thread's shared settings menu, while it is shown on this post. */
     private MenuBar settings;
-    private Footer footer;
+    private ReportComponent report;
     private Component editorComponent;
 
     private final ThreadPresenter presenter;
@@ -76,6 +76,29 @@ public class PostComponent extends AbstractComponentContainer implements
         setVisible(post == null || post.userMayView());
 
         setStyleName("post");
+        registerRpc(new PostComponentServerRpc() {
+            @Override
+            public void vote(final boolean up) {
+                postVoted(up);
+            }
+
+            @Override
+            public void quoteForReply() {
+                PostComponent.this.quoteForReply();
+            }
+
+            @Override
+            public void openSettings() {
+                if (getParent() instanceof PostsLayout) {
+                    ((PostsLayout) getParent()).openSettings(PostComponent.this);
+                }
+            }
+
+            @Override
+            public void openReport() {
+                PostComponent.this.openReport();
+            }
+        });
 
         initData();
     }
@@ -96,14 +119,26 @@ public class PostComponent extends AbstractComponentContainer implements
         initData();
     }
 
+    private PostComponentClientRpc getClientRpc() {
+        return RenderMetrics.instrument(
+                getRpcProxy(PostComponentClientRpc.class),
+                PostComponentClientRpc.class);
+    }
+
     private void updatePrimaryData() {
-        PostPrimaryData data = new PostPrimaryData();
-        data.attachments = post.getAttachments();
-        data.authorName = post.getAuthorName();
-        data.authorAvatarUrl = post.getAuthorAvatarUrl();
-        data.authorLink = post.getAuthorLink();
-        data.postBody = post.getFormattedBody(true);
-        getRpcProxy(PostComponentClientRpc.class).setPostPrimaryData(data);
+        final Timer timer = RenderMetrics
+                .start("PostComponent.updatePrimaryData");
+        try {
+            PostPrimaryData data = new PostPrimaryData();
+            data.attachments = post.getAttachments();
+            data.authorName = post.getAuthorName();
+            data.authorAvatarUrl = post.getAuthorAvatarUrl();
+            data.authorLink = post.getAuthorLink();
+            data.postBody = post.getFormattedBody(true);
+            getClientRpc().setPostPrimaryData(data);
+        } finally {
+            timer.stop();
+        }
     }
 
     private void updateAdditionalData() {
@@ -113,25 +148,27 @@ public class PostComponent extends AbstractComponentContainer implements
         setUserIsBanned(post.isAuthorBanned());
         data.badgeHTML = post.getBadgeHTML();
 
-        if (footer == null) {
-            footer = new Footer();
-            addComponent(footer);
+        // the footer is rendered on the client, and the settings menu and the
+        // report popup are only built when the user opens them
+        data.hasFooter = true;
+        data.mayVote = post.userMayVote();
+        if (data.mayVote) {
+            data.upVoted = post.getUpVoted();
         }
-        footer.update();
-        data.footer = footer;
+        data.score = post.getScore();
+        data.mayQuote = post.userMayQuote();
+        data.mayReport = post.userMayReportPosts();
+        data.hasSettings = post.userMayHaveSettings();
 
-        if (settings == null) {
-            settings = buildSettings();
-            addComponent(settings);
-        }
-        updateSettings();
-        data.settings = settings.isVisible() ? settings : null;
-
-        getRpcProxy(PostComponentClientRpc.class).setPostAdditionalData(data);
+        getClientRpc().setPostAdditionalData(data);
     }
 
-    private void updateSettings() {
-        MenuItem root = settings.getMoreMenuItem();
+    /**
+     * Populates the thread's shared settings menu for this post and opens it
+     * on this post.
+     */
+    void showSettings(final MenuBar sharedSettings) {
+        MenuItem root = sharedSettings.getMoreMenuItem();
         root.removeChildren();
         Command command = new Command() {
             @Override
@@ -165,13 +202,42 @@ public class PostComponent extends AbstractComponentContainer implements
             }
         }
 
-        settings.setVisible(root.hasChildren());
+        if (root.hasChildren()) {
+            if (settings == null) {
+                settings = sharedSettings;
+                addComponent(settings);
+            }
+            getClientRpc().openSettings(settings);
+        } else {
+            releaseSettings();
+            getClientRpc().settingsUnavailable();
+        }
     }
 
-    private MenuBar buildSettings() {
-        final MenuBar settingsMenuBar = ComponentUtil.getDropdownMenu();
-        settingsMenuBar.addStyleName("settings");
-        return settingsMenuBar;
+    /**
+     * Gives up the thread's shared settings menu so that another post can
+     * show it.
+     */
+    void releaseSettings() {
+        if (settings != null) {
+            final MenuBar released = settings;
+            settings = null;
+            removeComponent(released);
+            getClientRpc().settingsReleased();
+        }
+    }
+
+    private void openReport() {
+        if (!post.userMayReportPosts()) {
+            return;
+        }
+        if (report == null) {
+            report = new ReportComponent(post, presenter,
+                    getPermaLinkUrl(post));
+            addComponent(report);
+        }
+        report.open();
+        getClientRpc().openReport(report);
     }
 
     private void confirmDelete() {
@@ -181,8 +247,13 @@ public class PostComponent extends AbstractComponentContainer implements
                     @Override
                     public void onClose(final ConfirmDialog arg0) {
                         if (arg0.isConfirmed()) {
-                            ((ComponentContainer) getParent())
-                                    .removeComponent(PostComponent.this);
+                            if (getParent() instanceof PostsLayout) {
+                                ((PostsLayout) getParent())
+                                        .removePost(PostComponent.this);
+                            } else {
+                                ((ComponentContainer) getParent())
+                                        .removeComponent(PostComponent.this);
+                            }
                             presenter.delete(post.getId());
                         }
                     }
@@ -219,7 +290,7 @@ public class PostComponent extends AbstractComponentContainer implements
                 addStyleName("editing");
             }
         });
-        getRpcProxy(PostComponentClientRpc.class).editPost(editorWrapper);
+        getClientRpc().editPost(editorWrapper);
         if (editorComponent != null) {
             removeComponent(editorComponent);
         }
@@ -270,7 +341,7 @@ public class PostComponent extends AbstractComponentContainer implements
     @Override
     public Iterator<Component> iterator() {
         List<Component> components = new ArrayList<Component>(Arrays.asList(
-                editorComponent, settings, footer));
+                editorComponent, settings, report));
         components.removeAll(Collections.singleton(null));
         return components.iterator();
     }
@@ -296,72 +367,4 @@ public class PostComponent extends AbstractComponentContainer implements
     public Long getPostId() {
         return post.getId();
     }
-
-    private class Footer extends CssLayout {
-        private final Label upVote = new Label();
-        private final Label downVote = new Label();
-        private final Label reply = new Label("Reply");
-        private final Label score = new Label();
-        private final ReportComponent report = new ReportComponent(post,
-                presenter, getPermaLinkUrl(post));
-
-        public Footer() {
-            setStyleName("footer");
-
-            upVote.setSizeUndefined();
-            downVote.setSizeUndefined();
-            score.setSizeUndefined();
-            reply.setSizeUndefined();
-            reply.setStyleName("quoteforreply");
-
-            addComponent(upVote);
-            addComponent(downVote);
-            addComponent(score);
-            addComponent(reply);
-            addComponent(report);
-
-            addLayoutClickListener(new LayoutClickListener() {
-                @Override
-                public void layoutClick(final LayoutClickEvent event) {
-                    if (event.getClickedComponent() == upVote) {
-                        postVoted(true);
-                    } else if (event.getClickedComponent() == downVote) {
-                        postVoted(false);
-                    } else if (event.getClickedComponent() == reply) {
-                        quoteForReply();
-                    }
-                }
-            });
-        }
-
-        public void update() {
-            upVote.setVisible(post.userMayVote());
-            downVote.setVisible(post.userMayVote());
-
-            upVote.setStyleName("vote upvote");
-            downVote.setStyleName("vote downvote");
-            if (post.userMayVote() && post.getUpVoted() != null) {
-                if (post.getUpVoted()) {
-                    upVote.addStyleName("done");
-                } else {
-                    downVote.addStyleName("done");
-                }
-            }
-
-            long newScore = post.getScore();
-            score.setStyleName("score");
-            score.setValue((newScore > 0 ? "+" : "") + String.valueOf(newScore));
-            String scoreStyle = "zero";
-            if (newScore > 0) {
-                scoreStyle = "positive";
-            } else if (newScore < 0) {
-                scoreStyle = "negative";
-            }
-            score.addStyleName(scoreStyle);
-
-            reply.setVisible(post.userMayQuote());
-
-            report.setVisible(post.userMayReportPosts());
-        }
-    }
 }
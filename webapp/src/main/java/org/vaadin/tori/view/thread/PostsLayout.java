@@ -16,80 +16,189 @@
 
 package org.vaadin.tori.view.thread;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.ocpsoft.prettytime.PrettyTime;
+import org.vaadin.tori.util.ComponentUtil;
 import org.vaadin.tori.util.ToriScheduler;
 import org.vaadin.tori.util.ToriScheduler.ScheduledCommand;
 import org.vaadin.tori.view.thread.ThreadView.PostData;
 
-import com.vaadin.ui.Component;
+import com.vaadin.server.Sizeable.Unit;
 import com.vaadin.ui.CssLayout;
 import com.vaadin.ui.JavaScript;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.MenuBar;
 import com.vaadin.ui.UI;
 
+/**
+ * Lists the posts of a thread, keeping only a window of posts around the
+ * viewport as components. The posts outside the window are represented by
+ * spacers, and are turned into components again from the post list as the
+ * reader scrolls to them.
+ */
 @SuppressWarnings("serial")
 public class PostsLayout extends CssLayout {
 
-    private static final int INITIAL_BATCH_MIN_SIZE = 5;
-    private static final int INITIAL_BATCH_MAX_SIZE = 20;
+    private static final int INITIAL_BATCH_SIZE = 20;
     private static final int RENDER_BATCH_SIZE = 100;
-    private final ThreadPresenter presenter;
+    /** Posts kept rendered on each side of the visible ones. */
+    private static final int BUFFER_SIZE = 30;
+    /**
+     * The window is only moved once the viewport gets this close to its edge,
+     * so that scrolling doesn't re-render on every report.
+     */
+    private static final int MIN_MARGIN = BUFFER_SIZE / 3;
+    /**
+     * The most post components kept alive. A UI shows one thread at a time,
+     * so this caps the post components per UI.
+     */
+    private static final int MAX_LIVE_POSTS = 150;
+    /** Used for the spacers until the client has measured the posts. */
+    private static final int DEFAULT_POST_HEIGHT = 250;
     private static final String STYLE_READY = "ready";
+    private static final String STYLE_SPACER = "postsspacer";
+
+    private final ThreadPresenter presenter;
     private final Map<Long, PostComponent> postComponents = new HashMap<Long, PostComponent>();
+    /**
+     * One settings menu for all the posts, handed to a post when the user
+     * opens its settings.
+     */
+    private final MenuBar settingsMenu = ComponentUtil.getDropdownMenu();
+    private PostComponent settingsHolder;
+
+    private final Label topSpacer = new Label();
+    private final Label bottomSpacer = new Label();
+    private final PostsViewport viewport;
 
     public PostsLayout(final ThreadPresenter presenter) {
         this.presenter = presenter;
+        topSpacer.addStyleName(STYLE_SPACER);
+        bottomSpacer.addStyleName(STYLE_SPACER);
+        addComponent(topSpacer);
+        addComponent(bottomSpacer);
+        viewport = new PostsViewport(this);
     }
 
     private List<PostData> posts;
-    private int renderedIndex = -1;
+    /** The rendered posts, starting from the post at {@link #first}. */
+    private final List<PostComponent> rendered = new ArrayList<PostComponent>();
+    private int first;
+    private int targetFirst;
+    private int targetLast;
+    private int averagePostHeight = DEFAULT_POST_HEIGHT;
     private Integer scrollToIndex;
     private final PrettyTime prettyTime = new PrettyTime();
 
     public void setPosts(final List<PostData> posts, final Integer selectedIndex) {
+        if (settingsHolder != null) {
+            settingsHolder.releaseSettings();
+            settingsHolder = null;
+        }
         removeAllComponents();
+        rendered.clear();
+        postComponents.clear();
+        addComponent(topSpacer);
+        addComponent(bottomSpacer);
         removeStyleName(STYLE_READY);
-        renderedIndex = -1;
         scrollToIndex = selectedIndex;
-        this.posts = posts;
-
-        int renderUntil = INITIAL_BATCH_MIN_SIZE;
-        if (scrollToIndex != null && scrollToIndex < INITIAL_BATCH_MAX_SIZE) {
-            renderUntil = scrollToIndex;
-        } else if (posts.size() - 1 < INITIAL_BATCH_MAX_SIZE) {
-            renderUntil = posts.size() - 1;
-        }
-        renderUntil(renderUntil);
-    }
-
-    private void renderUntil(final int untilIndex) {
-        boolean postsAdded = false;
-        while (renderedIndex <= untilIndex) {
-            renderedIndex++;
-            if (posts != null) {
-                if (renderedIndex < posts.size()) {
-                    postsAdded = true;
-                    final Component component = new PostComponent(
-                            posts.get(renderedIndex), presenter, prettyTime);
-                    addComponent(component);
-                    if (scrollToIndex != null && renderedIndex == scrollToIndex) {
-                        // The component should be scrolled to
-                        UI.getCurrent().scrollIntoView(component);
-                        component.setId("scrollpostid");
-                        JavaScript
-                                .eval("window.setTimeout(\"document.getElementById('scrollpostid').scrollIntoView(true)\",10)");
-                        scrollToIndex = null;
-                    }
-                } else {
-                    break;
-                }
-            }
+        this.posts = new ArrayList<PostData>(posts);
+
+        // start from the selected post, so that it's in the first batch
+        final int center = selectedIndex != null ? selectedIndex : 0;
+        first = center;
+        setTarget(center, center);
+        renderBatch(INITIAL_BATCH_SIZE);
+        checkReady();
+    }
+
+    /**
+     * Sets the window of posts to render around the given visible posts,
+     * within the {@link #MAX_LIVE_POSTS} limit.
+     */
+    private void setTarget(final int firstVisible, final int lastVisible) {
+        targetFirst = Math.max(0, firstVisible - BUFFER_SIZE);
+        targetLast = Math.min(posts.size(), lastVisible + 1 + BUFFER_SIZE);
+        if (targetLast - targetFirst > MAX_LIVE_POSTS) {
+            targetFirst = Math.max(0, firstVisible);
+            targetLast = Math.min(posts.size(), targetFirst + MAX_LIVE_POSTS);
+        }
+    }
+
+    private boolean isWindowComplete() {
+        return first == targetFirst
+                && first + rendered.size() == targetLast;
+    }
+
+    /**
+     * Removes the posts outside the target window and renders at most the
+     * given number of the missing ones, following posts first.
+     */
+    private void renderBatch(final int maxCount) {
+        while (!rendered.isEmpty() && first < targetFirst) {
+            removePostComponent(rendered.remove(0));
+            first++;
+        }
+        while (!rendered.isEmpty() && first + rendered.size() > targetLast) {
+            removePostComponent(rendered.remove(rendered.size() - 1));
+        }
+        if (rendered.isEmpty() && (first < targetFirst || first >= targetLast)) {
+            first = targetFirst;
+        }
+
+        int count = 0;
+        while (count < maxCount && first + rendered.size() < targetLast) {
+            renderPost(first + rendered.size(), rendered.size());
+            count++;
+        }
+        while (count < maxCount && first > targetFirst) {
+            first--;
+            renderPost(first, 0);
+            count++;
         }
+        updateSpacers();
+    }
+
+    private void renderPost(final int index, final int position) {
+        final PostData post = posts.get(index);
+        final PostComponent component = new PostComponent(post, presenter,
+                prettyTime);
+        rendered.add(position, component);
+        postComponents.put(post.getId(), component);
+        // the top spacer comes first
+        addComponent(component, position + 1);
+        if (scrollToIndex != null && index == scrollToIndex) {
+            // The component should be scrolled to
+            UI.getCurrent().scrollIntoView(component);
+            component.setId("scrollpostid");
+            JavaScript
+                    .eval("window.setTimeout(\"document.getElementById('scrollpostid').scrollIntoView(true)\",10)");
+            scrollToIndex = null;
+        }
+    }
+
+    private void removePostComponent(final PostComponent component) {
+        if (component == settingsHolder) {
+            settingsHolder.releaseSettings();
+            settingsHolder = null;
+        }
+        postComponents.remove(component.getPostId());
+        removeComponent(component);
+    }
+
+    private void updateSpacers() {
+        final int last = first + rendered.size();
+        topSpacer.setHeight(first * averagePostHeight, Unit.PIXELS);
+        bottomSpacer.setHeight((posts.size() - last) * averagePostHeight,
+                Unit.PIXELS);
+    }
 
-        if (!postsAdded) {
+    private void checkReady() {
+        if (isWindowComplete()) {
             List<String> styles = getState(false).styles;
             if ((styles == null || !styles.contains(STYLE_READY))) {
                 ToriScheduler.get().executeManualCommands();
@@ -98,23 +207,83 @@ public class PostsLayout extends CssLayout {
         }
     }
 
-    @Override
-    public void addComponent(final Component c) {
-        if (c instanceof PostComponent) {
-            PostComponent postComponent = (PostComponent) c;
-            postComponents.put(postComponent.getPostId(), postComponent);
+    private boolean isReady() {
+        final List<String> styles = getState(false).styles;
+        return styles != null && styles.contains(STYLE_READY);
+    }
+
+    /**
+     * Moves the window of rendered posts to follow the viewport. The indices
+     * are relative to the first rendered post that is visible on the client.
+     */
+    void viewportChanged(final int firstVisible, final int lastVisible,
+            final int measuredPostHeight) {
+        if (posts == null || posts.isEmpty()) {
+            return;
+        }
+        if (measuredPostHeight > 0) {
+            averagePostHeight = measuredPostHeight;
         }
-        super.addComponent(c);
+
+        // posts the user may not view are not on the client
+        final List<Integer> visibleIndices = new ArrayList<Integer>();
+        for (int i = 0; i < rendered.size(); i++) {
+            if (rendered.get(i).isVisible()) {
+                visibleIndices.add(first + i);
+            }
+        }
+        final int absoluteFirst = toAbsoluteIndex(firstVisible, visibleIndices);
+        final int absoluteLast = Math.max(absoluteFirst,
+                toAbsoluteIndex(lastVisible, visibleIndices));
+
+        final int last = first + rendered.size();
+        final boolean roomAbove = first == 0
+                || absoluteFirst - first >= MIN_MARGIN;
+        final boolean roomBelow = last == posts.size()
+                || last - absoluteLast - 1 >= MIN_MARGIN;
+        if (roomAbove && roomBelow && isWindowComplete()) {
+            updateSpacers();
+            return;
+        }
+
+        setTarget(absoluteFirst, absoluteLast);
+        renderBatch(MAX_LIVE_POSTS);
+        if (isReady()) {
+            // loads the additional data of the new posts
+            ToriScheduler.get().executeManualCommands();
+        } else {
+            checkReady();
+        }
+        viewport.windowChanged();
+    }
+
+    private int toAbsoluteIndex(final int relativeIndex,
+            final List<Integer> visibleIndices) {
+        int result;
+        if (visibleIndices.isEmpty()) {
+            result = first + relativeIndex;
+        } else if (relativeIndex < 0) {
+            result = visibleIndices.get(0) + relativeIndex;
+        } else if (relativeIndex >= visibleIndices.size()) {
+            result = visibleIndices.get(visibleIndices.size() - 1) + 1
+                    + relativeIndex - visibleIndices.size();
+        } else {
+            result = visibleIndices.get(relativeIndex);
+        }
+        return Math.max(0, Math.min(result, posts.size() - 1));
     }
 
     @Override
     public void beforeClientResponse(final boolean initial) {
-        ToriScheduler.get().scheduleDeferred(new ScheduledCommand() {
-            @Override
-            public void execute() {
-                renderUntil(renderedIndex + RENDER_BATCH_SIZE);
-            }
-        });
+        if (posts != null && !isWindowComplete()) {
+            ToriScheduler.get().scheduleDeferred(new ScheduledCommand() {
+                @Override
+                public void execute() {
+                    renderBatch(RENDER_BATCH_SIZE);
+                    checkReady();
+                }
+            });
+        }
         if (initial && scrollToIndex == null) {
             // First render & no scroll to component specified -> scroll to
             // beginning
@@ -126,7 +295,57 @@ public class PostsLayout extends CssLayout {
         super.beforeClientResponse(initial);
     }
 
+    void openSettings(final PostComponent postComponent) {
+        if (settingsHolder != null && settingsHolder != postComponent) {
+            settingsHolder.releaseSettings();
+        }
+        settingsHolder = postComponent;
+        postComponent.showSettings(settingsMenu);
+    }
+
+    /**
+     * Adds new posts to the end of the thread. They are rendered if the end of
+     * the thread is.
+     */
+    public void appendPosts(final List<PostData> newPosts) {
+        if (posts == null) {
+            posts = new ArrayList<PostData>();
+        }
+        final boolean endRendered = first + rendered.size() == posts.size();
+        posts.addAll(newPosts);
+        if (endRendered) {
+            targetLast = posts.size();
+            targetFirst = Math.max(targetFirst, targetLast - MAX_LIVE_POSTS);
+            renderBatch(MAX_LIVE_POSTS);
+        } else {
+            updateSpacers();
+        }
+    }
+
+    /**
+     * Removes a deleted post from the thread.
+     */
+    void removePost(final PostComponent component) {
+        final int position = rendered.indexOf(component);
+        if (position >= 0) {
+            rendered.remove(position);
+            posts.remove(first + position);
+            targetLast--;
+            removePostComponent(component);
+            updateSpacers();
+        }
+    }
+
     public void updatePost(final PostData postData) {
-        postComponents.get(postData.getId()).update(postData);
+        for (int i = 0; i < posts.size(); i++) {
+            if (posts.get(i).getId() == postData.getId()) {
+                posts.set(i, postData);
+                break;
+            }
+        }
+        final PostComponent component = postComponents.get(postData.getId());
+        if (component != null) {
+            component.update(postData);
+        }
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.thread;
+
+import org.vaadin.tori.metrics.RenderMetrics;
+import org.vaadin.tori.widgetset.client.ui.postsviewport.PostsViewportClientRpc;
+import org.vaadin.tori.widgetset.client.ui.postsviewport.PostsViewportServerRpc;
+
+import com.vaadin.server.AbstractExtension;
+
+/**
+ * Reports the posts of a {@link PostsLayout} that are in the browser's
+ * viewport.
+ */
+@SuppressWarnings("serial")
+public class PostsViewport extends AbstractExtension {
+
+    public PostsViewport(final PostsLayout postsLayout) {
+        registerRpc(new PostsViewportServerRpc() {
+            @Override
+            public void viewportChanged(final int firstVisible,
+                    final int lastVisible, final int averagePostHeight) {
+                postsLayout.viewportChanged(firstVisible, lastVisible,
+                        averagePostHeight);
+            }
+        });
+        extend(postsLayout);
+    }
+
+    public void windowChanged() {
+        RenderMetrics.instrument(getRpcProxy(PostsViewportClientRpc.class),
+                PostsViewportClientRpc.class).windowChanged();
+    }
+}
@@ -79,6 +79,17 @@ public class ReportComponent extends CustomComponent {
         setCompositionRoot(reportPopup);
     }
 
+    /**
+     * Opens the report popup, for when the component is only created once the
+     * user asks to flag the post.
+     */
+    public void open() {
+        if (reportPopup.getContent() == null) {
+            reportPopup.setContent(newReportLayout());
+        }
+        reportPopup.setPopupVisible(true);
+    }
+
     private Component newReportLayout() {
         final VerticalLayout layout = new VerticalLayout();
         layout.setWidth("260px");
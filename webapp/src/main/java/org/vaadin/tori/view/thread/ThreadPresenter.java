@@ -18,13 +18,14 @@ package org.vaadin.tori.view.thread;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Future;
 
 import org.vaadin.tori.Configuration;
 import org.vaadin.tori.ToriApiLoader;
@@ -37,29 +38,87 @@ import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.exception.FileNameException;
 import org.vaadin.tori.exception.NoSuchThreadException;
 import org.vaadin.tori.mvp.Presenter;
+import org.vaadin.tori.service.AuthorizationService;
 import org.vaadin.tori.service.post.PostReport.Reason;
+import org.vaadin.tori.util.ParallelLoader;
+import org.vaadin.tori.util.ParallelLoader.Task;
+import org.vaadin.tori.util.PostSnapshot;
+import org.vaadin.tori.util.SharedPostCache;
+import org.vaadin.tori.util.ToriActivityMessaging.PostChangedListener;
 import org.vaadin.tori.util.ToriActivityMessaging.UserAuthoredListener;
 import org.vaadin.tori.util.ToriActivityMessaging.UserTypingListener;
 import org.vaadin.tori.util.UserBadgeProvider;
 import org.vaadin.tori.view.thread.ThreadView.PostData;
 import org.vaadin.tori.view.thread.ThreadView.ViewData;
+import org.vaadin.tori.view.thread.TypingAggregator.TypingListener;
 
 public class ThreadPresenter extends Presenter<ThreadView> implements
-        UserTypingListener, UserAuthoredListener {
+        UserTypingListener, UserAuthoredListener, PostChangedListener,
+        TypingListener {
 
     private DiscussionThread currentThread;
     private final Configuration configuration;
+    private ThreadPermissions threadPermissions;
+    /** Badge HTML by author id, for the posts of the displayed thread. */
+    private final Map<Long, String> badges = new HashMap<Long, String>();
+
+    /**
+     * The permissions that are the same for every post of a thread, evaluated
+     * once for all the posts instead of once per post.
+     */
+    static final class ThreadPermissions {
+        private final long threadId;
+        private final boolean mayBan;
+        private final boolean mayReportPosts;
+        private final boolean mayVote;
+        private final boolean mayReply;
+
+        ThreadPermissions(final AuthorizationService authorizationService,
+                final long threadId) {
+            this.threadId = threadId;
+            mayBan = authorizationService.mayBan();
+            mayReportPosts = authorizationService.mayReportPosts();
+            mayVote = authorizationService.mayVote();
+            mayReply = authorizationService.mayReplyInThread(threadId);
+        }
+    }
 
     public ThreadPresenter(final ThreadView view) {
         super(view);
         configuration = dataSource.getConfiguration();
     }
 
+    private ThreadPermissions getThreadPermissions(final long threadId) {
+        if (threadPermissions == null || threadPermissions.threadId != threadId) {
+            threadPermissions = new ThreadPermissions(authorizationService,
+                    threadId);
+        }
+        return threadPermissions;
+    }
+
+    private String getBadgeHTML(final User author) {
+        if (!badges.containsKey(author.getId())) {
+            String result = null;
+            final UserBadgeProvider badgeProvider = ToriApiLoader.getCurrent()
+                    .getUserBadgeProvider();
+            if (badgeProvider != null) {
+                result = badgeProvider.getHtmlBadgeFor(author);
+            }
+            badges.put(author.getId(), result);
+        }
+        return badges.get(author.getId());
+    }
+
     public PostData getPostData(final Post _post) {
         return new PostData() {
             private final Post post = _post;
             final User author = _post.getAuthor();
             final long postId = _post.getId();
+            final ThreadPermissions permissions = getThreadPermissions(_post
+                    .getThread().getId());
+            // the post specific permissions are only checked when needed
+            private Boolean mayEdit;
+            private Boolean mayDelete;
 
             @Override
             public long getId() {
@@ -83,7 +142,7 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
             @Override
             public boolean userMayBanAuthor() {
-                return !author.isAnonymous() && authorizationService.mayBan();
+                return !author.isAnonymous() && permissions.mayBan;
             }
 
             @Override
@@ -147,13 +206,7 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
             @Override
             public String getBadgeHTML() {
-                String result = null;
-                final UserBadgeProvider badgeProvider = ToriApiLoader
-                        .getCurrent().getUserBadgeProvider();
-                if (badgeProvider != null) {
-                    result = badgeProvider.getHtmlBadgeFor(author);
-                }
-                return result;
+                return ThreadPresenter.this.getBadgeHTML(author);
             }
 
             @Override
@@ -163,29 +216,39 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
             @Override
             public boolean userMayReportPosts() {
-                return !author.isAnonymous()
-                        && authorizationService.mayReportPosts();
+                return !author.isAnonymous() && permissions.mayReportPosts;
             }
 
             @Override
             public boolean userMayEdit() {
-                return authorizationService.mayEditPost(postId);
+                if (mayEdit == null) {
+                    mayEdit = authorizationService.mayEditPost(postId);
+                }
+                return mayEdit;
             }
 
             @Override
             public boolean userMayQuote() {
-                return authorizationService.mayReplyInThread(post.getThread()
-                        .getId()) && post.isFormatBBCode();
+                return permissions.mayReply && post.isFormatBBCode();
             }
 
             @Override
             public boolean userMayVote() {
-                return authorizationService.mayVote();
+                return permissions.mayVote;
             }
 
             @Override
             public boolean userMayDelete() {
-                return authorizationService.mayDeletePost(postId);
+                if (mayDelete == null) {
+                    mayDelete = authorizationService.mayDeletePost(postId);
+                }
+                return mayDelete;
+            }
+
+            @Override
+            public boolean userMayHaveSettings() {
+                // editing and deleting posts needs a logged in user
+                return userMayBanAuthor() || dataSource.isLoggedInUser();
             }
 
             @Override
@@ -215,46 +278,25 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
     public void setCurrentThreadById(final String threadIdString,
             final String selectedPostIdString) throws DataSourceException {
-        DiscussionThread requestedThread = null;
         try {
             try {
                 final long threadId = Long.valueOf(threadIdString);
-                requestedThread = dataSource.getThread(threadId);
-
-                if (requestedThread != null) {
-                    currentThread = requestedThread;
-
-                    if (authorizationService.mayViewThread(threadId)) {
-                        Long selectedPostId = null;
-                        if (selectedPostIdString != null) {
-                            try {
-                                selectedPostId = Long
-                                        .parseLong(selectedPostIdString);
-                            } catch (final NumberFormatException e) {
-                                log.error("Invalid post id format: "
-                                        + selectedPostIdString);
-                            }
-                        }
-
-                        view.setViewData(getViewData(currentThread),
-                                getAuthoringData());
-
-                        displayPosts(threadId, selectedPostId);
-
-                        try {
-                            dataSource.incrementViewCount(requestedThread);
-                            dataSource.markThreadRead(requestedThread.getId());
-                        } catch (final DataSourceException e) {
-                            log.error("Couldn't increment view count and "
-                                    + "mark thread as read.", e);
-                        }
-                    } else {
-                        view.setViewData(null, null);
-                        view.showError("Not allowed to view the topic");
+                Long selectedPostId = null;
+                if (selectedPostIdString != null) {
+                    try {
+                        selectedPostId = Long.parseLong(selectedPostIdString);
+                    } catch (final NumberFormatException e) {
+                        log.error("Invalid post id format: "
+                                + selectedPostIdString);
                     }
-                } else {
-                    view.setViewData(null, null);
-                    log.error("requestedthread was null, but no exception was thrown.");
+                }
+
+                final ParallelLoader loader = new ParallelLoader(
+                        getApiLoader());
+                try {
+                    openThread(loader, threadId, selectedPostId);
+                } finally {
+                    loader.cancelAll();
                 }
 
             } catch (final NumberFormatException e) {
@@ -272,12 +314,126 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
     }
 
-    private ViewData getViewData(final DiscussionThread currentThread) {
+    /**
+     * Opens the thread with the lookups that don't depend on each other run
+     * concurrently. The permission to view the thread is checked first, and
+     * only the lookups that need the thread itself wait for it.
+     */
+    private void openThread(final ParallelLoader loader, final long threadId,
+            final Long selectedPostId) throws DataSourceException {
+        if (!authorizationService.mayViewThread(threadId)) {
+            // throws if the thread doesn't exist at all
+            dataSource.getThread(threadId);
+            view.setViewData(null, null);
+            view.showError("Not allowed to view the topic");
+            return;
+        }
+
+        final Future<DiscussionThread> thread = loader
+                .submit(new Task<DiscussionThread>() {
+                    @Override
+                    public DiscussionThread call(final ToriApiLoader services)
+                            throws DataSourceException {
+                        return services.getDataSource().getThread(threadId);
+                    }
+                });
+        final Future<List<Post>> posts = loader.submit(new Task<List<Post>>() {
+            @Override
+            public List<Post> call(final ToriApiLoader services)
+                    throws DataSourceException {
+                return services.getDataSource().getPosts(threadId);
+            }
+        });
+        final Future<ThreadPermissions> permissions = loader
+                .submit(new Task<ThreadPermissions>() {
+                    @Override
+                    public ThreadPermissions call(final ToriApiLoader services) {
+                        return new ThreadPermissions(services
+                                .getAuthorizationService(), threadId);
+                    }
+                });
+        final Future<User> currentUser = loader.submit(new Task<User>() {
+            @Override
+            public User call(final ToriApiLoader services) {
+                return services.getDataSource().getCurrentUser();
+            }
+        });
+        final Future<Boolean> mayFollow = loader.submit(new Task<Boolean>() {
+            @Override
+            public Boolean call(final ToriApiLoader services) {
+                return services.getAuthorizationService().mayFollowThread(
+                        threadId);
+            }
+        });
+        final Future<Integer> maxFileSize = loader
+                .submit(new Task<Integer>() {
+                    @Override
+                    public Integer call(final ToriApiLoader services) {
+                        return services.getDataSource()
+                                .getAttachmentMaxFileSize();
+                    }
+                });
+
+        final DiscussionThread requestedThread = loader.get(thread);
+        if (requestedThread == null) {
+            view.setViewData(null, null);
+            log.error("requestedthread was null, but no exception was thrown.");
+            return;
+        }
+        currentThread = requestedThread;
+
+        final Category category = requestedThread.getCategory();
+        final Future<Boolean> mayAddFiles = loader
+                .submit(new Task<Boolean>() {
+                    @Override
+                    public Boolean call(final ToriApiLoader services) {
+                        return services.getAuthorizationService()
+                                .mayAddFilesInCategory(
+                                        category != null ? category.getId()
+                                                : null);
+                    }
+                });
+        final Future<Void> viewed = loader.submit(new Task<Void>() {
+            @Override
+            public Void call(final ToriApiLoader services)
+                    throws DataSourceException {
+                services.getDataSource().incrementViewCount(requestedThread);
+                services.getDataSource().markThreadRead(
+                        requestedThread.getId());
+                return null;
+            }
+        });
+
+        threadPermissions = loader.get(permissions);
+        final User user = loader.get(currentUser);
+        view.setViewData(
+                getViewData(requestedThread, threadPermissions.mayReply,
+                        user.isBanned()),
+                getAuthoringData(user, loader.get(mayAddFiles),
+                        loader.get(maxFileSize), loader.get(mayFollow)));
+
+        List<Post> threadPosts = Collections.emptyList();
+        try {
+            threadPosts = loader.get(posts);
+        } catch (DataSourceException e) {
+            e.printStackTrace();
+        }
+        showPosts(threadPosts, selectedPostId);
+
+        try {
+            loader.get(viewed);
+        } catch (final DataSourceException e) {
+            log.error("Couldn't increment view count and "
+                    + "mark thread as read.", e);
+        }
+    }
+
+    private ViewData getViewData(final DiscussionThread currentThread,
+            final boolean mayReply, final boolean userBanned) {
         return new ViewData() {
             @Override
             public boolean mayReplyInThread() {
-                return authorizationService.mayReplyInThread(currentThread
-                        .getId());
+                return mayReply;
             }
 
             @Override
@@ -292,7 +448,7 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
             @Override
             public boolean isUserBanned() {
-                return dataSource.getCurrentUser().isBanned();
+                return userBanned;
             }
 
             @Override
@@ -313,20 +469,18 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
         };
     }
 
-    private AuthoringData getAuthoringData() {
-        final User currentUser = dataSource.getCurrentUser();
+    private AuthoringData getAuthoringData(final User currentUser,
+            final boolean mayAddFiles, final int maxFileSize,
+            final boolean mayFollow) {
         return new AuthoringData() {
             @Override
             public boolean mayAddFiles() {
-                Category category = currentThread.getCategory();
-                return authorizationService
-                        .mayAddFilesInCategory(category != null ? category
-                                .getId() : null);
+                return mayAddFiles;
             }
 
             @Override
             public int getMaxFileSize() {
-                return dataSource.getAttachmentMaxFileSize();
+                return maxFileSize;
             }
 
             @Override
@@ -357,27 +511,37 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
             @Override
             public boolean mayFollow() {
-                return authorizationService.mayFollowThread(currentThread
-                        .getId());
+                return mayFollow;
             }
         };
     }
 
     private void displayPosts(final long threadId, final Long selectedPostId) {
-        List<PostData> posts = new ArrayList<PostData>();
-        Integer selectedIndex = null;
+        // permissions may have changed since the last time
+        threadPermissions = null;
+        List<Post> posts = Collections.emptyList();
         try {
-            int index = -1;
-            for (Post post : dataSource.getPosts(threadId)) {
-                index++;
-                posts.add(getPostData(post));
-                if (selectedPostId != null && selectedPostId == post.getId()) {
-                    selectedIndex = index;
-                }
-            }
+            posts = dataSource.getPosts(threadId);
         } catch (DataSourceException e) {
             e.printStackTrace();
         }
+        showPosts(posts, selectedPostId);
+    }
+
+    private void showPosts(final List<Post> threadPosts,
+            final Long selectedPostId) {
+        // badges may have changed since the last time
+        badges.clear();
+        List<PostData> posts = new ArrayList<PostData>();
+        Integer selectedIndex = null;
+        int index = -1;
+        for (Post post : threadPosts) {
+            index++;
+            posts.add(getPostData(post));
+            if (selectedPostId != null && selectedPostId == post.getId()) {
+                selectedIndex = index;
+            }
+        }
         view.setPosts(posts, selectedIndex);
     }
 
@@ -413,6 +577,7 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
         try {
             boolean deletingLastMessage = currentThread.getPostCount() == 1;
             dataSource.deletePost(postId);
+            SharedPostCache.invalidate(postId);
 
             if (deletingLastMessage) {
                 view.showNotification("Thread deleted");
@@ -508,8 +673,8 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
                 dataSource.unfollowThread(currentThread.getId());
             }
             if (messaging != null) {
-                messaging.sendUserAuthored(updatedPost.getId(),
-                        currentThread.getId());
+                SharedPostCache.put(updatedPost);
+                messaging.sendUserAuthored(new PostSnapshot(updatedPost));
             }
             if (configuration.isUseToriMailService() && mailService != null) {
                 mailService.sendUserAuthored(updatedPost.getId(),
@@ -564,6 +729,7 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
         if (authorizationService.mayEditPost(postId)) {
             try {
                 dataSource.savePost(postId, newBody);
+                SharedPostCache.invalidate(postId);
                 view.updatePost(getPostData(dataSource.getPost(postId)));
             } catch (DataSourceException e) {
                 view.showError(DataSourceException.GENERIC_ERROR_MESSAGE);
@@ -585,6 +751,11 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
         if (messaging != null) {
             messaging.removeUserAuthoredListener(this);
             messaging.removeUserTypingListener(this);
+            messaging.removePostChangedListener(this);
+        }
+        if (typingThreadId != null) {
+            TypingAggregator.getInstance().removeListener(typingThreadId, this);
+            typingThreadId = null;
         }
     }
 
@@ -596,11 +767,6 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
 
     @Override
     public void navigationTo(final String[] args) {
-        if (messaging != null) {
-            messaging.addUserAuthoredListener(this);
-            messaging.addUserTypingListener(this);
-        }
-
         try {
             handleArguments(args);
         } catch (final NoSuchThreadException e) {
@@ -608,38 +774,54 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
         } catch (final DataSourceException e) {
             view.panic();
         }
+
+        if (messaging != null && currentThread != null) {
+            // only the activity of the displayed thread is of interest
+            navigationFrom();
+            messaging.addUserAuthoredListener(currentThread.getId(), this);
+            messaging.addUserTypingListener(currentThread.getId(), this);
+            messaging.addPostChangedListener(currentThread.getId(), this);
+
+            final User currentUser = dataSource.getCurrentUser();
+            currentUserId = currentUser != null ? currentUser.getId() : 0;
+            typingThreadId = currentThread.getId();
+            TypingAggregator.getInstance().addListener(typingThreadId, this);
+        }
     }
 
-    private final Map<Long, Date[]> pendingReplies = new HashMap<Long, Date[]>();
+    private Long typingThreadId;
+    private long currentUserId;
+    private Map<User, Date> typists = Collections.emptyMap();
     private final List<Long> newPosts = new ArrayList<Long>();
 
     @Override
-    public synchronized void userTyping(final long userId, final long threadId,
+    public void userTyping(final long userId, final long threadId,
             final Date startedTyping) {
-        try {
-            if (currentThread != null && currentThread.getId() == threadId) {
-                pendingReplies.put(userId, new Date[] { startedTyping,
-                        new Date() });
+        // the aggregator pushes a consolidated update via typingUpdated()
+        TypingAggregator.getInstance().userTyping(threadId, userId,
+                startedTyping, dataSource);
+    }
+
+    @Override
+    public synchronized void typingUpdated(final Map<User, Date> typists) {
+        final Map<User, Date> othersTyping = new HashMap<User, Date>();
+        for (final Entry<User, Date> entry : typists.entrySet()) {
+            if (entry.getKey().getId() != currentUserId) {
+                othersTyping.put(entry.getKey(), entry.getValue());
             }
-            refreshThreadUpdates();
-        } catch (NullPointerException e) {
-            log.warn("NPE while delivering user typing event", e);
         }
+        this.typists = othersTyping;
+        refreshThreadUpdates();
     }
 
     @Override
-    public synchronized void userAuthored(final long postId, final long threadId) {
+    public synchronized void userAuthored(final PostSnapshot post) {
         try {
-            if (currentThread != null && currentThread.getId() == threadId) {
-                newPosts.add(postId);
-                try {
-                    Post post = dataSource.getPost(postId);
-                    pendingReplies.remove(post.getAuthor().getId());
-                } catch (DataSourceException e) {
-                    log.warn(
-                            "DataSourceException while delivering user authored event",
-                            e);
-                }
+            if (currentThread != null
+                    && currentThread.getId() == post.getThreadId()) {
+                newPosts.add(post.getPostId());
+                TypingAggregator.getInstance().userAuthored(
+                        post.getThreadId(), post.getAuthorId());
             }
             refreshThreadUpdates();
         } catch (NullPointerException e) {
@@ -647,31 +829,27 @@ public class ThreadPresenter extends Presenter<ThreadView> implements
         }
     }
 
-    private void refreshThreadUpdates() {
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.MINUTE, -1);
-        // User name : user linkeg pairs
-        Map<User, Date> pendingReplies = new HashMap<User, Date>();
-        for (Entry<Long, Date[]> entry : this.pendingReplies.entrySet()) {
-            if (entry.getValue()[1].after(calendar.getTime())) {
-                try {
-                    User user = dataSource.getToriUser(entry.getKey());
-                    pendingReplies.put(user, entry.getValue()[0]);
-                } catch (DataSourceException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    @Override
+    public void postChanged(final long threadId, final long postId) {
+        SharedPostCache.invalidate(postId);
+    }
 
-        view.setThreadUpdates(newPosts.size(), pendingReplies);
+    private void refreshThreadUpdates() {
+        view.setThreadUpdates(newPosts.size(), typists);
     }
 
     public void showNewPostsRequested() {
         List<PostData> newPostsData = new ArrayList<ThreadView.PostData>();
         for (Long postId : newPosts) {
             try {
-                Post post = dataSource.getPost(postId);
-                newPostsData.add(getPostData(post));
+                // the cached post may have been loaded by another user
+                if (!authorizationService.mayViewPost(postId)) {
+                    continue;
+                }
+                Post post = SharedPostCache.get(postId, dataSource);
+                if (post != null) {
+                    newPostsData.add(getPostData(post));
+                }
             } catch (DataSourceException e) {
                 e.printStackTrace();
             }
@@ -91,6 +91,13 @@ public interface ThreadView extends View {
 
         boolean userMayDelete();
 
+        /**
+         * A cheap check of whether the settings menu may have any items for
+         * the post. The post specific permissions are only checked when the
+         * menu is opened.
+         */
+        boolean userMayHaveSettings();
+
         String getAuthorLink();
 
         boolean isFormatBBCode();
@@ -20,7 +20,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
-import org.ocpsoft.prettytime.PrettyTime;
 import org.vaadin.tori.ToriNavigator;
 import org.vaadin.tori.ToriUI;
 import org.vaadin.tori.component.AuthoringComponent;
@@ -126,11 +125,7 @@ public class ThreadViewImpl extends AbstractView<ThreadView, ThreadPresenter>
 
     @Override
     public void appendPosts(final List<PostData> posts) {
-        PrettyTime prettyTime = new PrettyTime();
-        for (PostData postData : posts) {
-            postsLayout.addComponent(new PostComponent(postData,
-                    getPresenter(), prettyTime));
-        }
+        postsLayout.appendPosts(posts);
         ToriScheduler.get().executeManualCommands();
         appendNewReply();
     }
@@ -200,7 +195,7 @@ public class ThreadViewImpl extends AbstractView<ThreadView, ThreadPresenter>
     public void setThreadUpdates(final int newPostsCount,
             final Map<User, Date> pendingReplies) {
         try {
-            getUI().access(new Runnable() {
+            ((ToriUI) getUI()).accessBatched(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.view.thread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.vaadin.tori.data.DataSource;
+import org.vaadin.tori.data.entity.User;
+import org.vaadin.tori.exception.DataSourceException;
+import org.vaadin.tori.metrics.CacheStats;
+
+/**
+ * Node-wide aggregator of the users typing a reply in each thread. Typing
+ * events are collected into a small expiring map per thread, and the listeners
+ * of a thread receive at most one consolidated update per
+ * {@value #UPDATE_INTERVAL} ms, and only when the set of typists has changed.
+ * The typists' user objects are resolved once per node through a cache.
+ * <p>
+ * Every session viewing a thread receives the same typing event, and passes it
+ * on to this aggregator. Only the first delivery of an event is processed, the
+ * duplicates are recognized by the start time and dropped before any other
+ * work.
+ */
+public final class TypingAggregator {
+
+    interface TypingListener {
+        /**
+         * Called from a background thread with the users currently typing a
+         * reply in the thread, mapped to the time they started typing.
+         */
+        void typingUpdated(Map<User, Date> typists);
+    }
+
+    static final long UPDATE_INTERVAL = 2000;
+    private static final long TYPING_TIMEOUT = 60 * 1000;
+    private static final long USER_CACHE_TIMEOUT = 10 * 60 * 1000;
+
+    private static final CacheStats USER_CACHE_STATS = CacheStats
+            .get("typing_user");
+
+    private static final TypingAggregator INSTANCE = new TypingAggregator();
+
+    private final ConcurrentMap<Long, ThreadTypists> threads = new ConcurrentHashMap<Long, ThreadTypists>();
+    private final ConcurrentMap<Long, CachedUser> users = new ConcurrentHashMap<Long, CachedUser>();
+    private final ScheduledExecutorService executor;
+
+    private TypingAggregator() {
+        executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r,
+                                "tori-typing-aggregator");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    emitUpdates(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    getLogger().warn("Unable to emit typing updates", e);
+                }
+            }
+        }, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    static TypingAggregator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Stops the update thread and drops the aggregated state. Called when the
+     * servlet or the portlet is destroyed.
+     */
+    public static void shutdown() {
+        INSTANCE.executor.shutdownNow();
+        INSTANCE.threads.clear();
+        INSTANCE.users.clear();
+    }
+
+    void addListener(final long threadId, final TypingListener listener) {
+        boolean added = false;
+        while (!added) {
+            final ThreadTypists typists = getThreadTypists(threadId);
+            synchronized (typists) {
+                if (!typists.removed) {
+                    typists.listeners.add(listener);
+                    // deliver the current state to the new listener on the
+                    // next tick
+                    typists.dirty = true;
+                    added = true;
+                }
+            }
+        }
+    }
+
+    void removeListener(final long threadId, final TypingListener listener) {
+        final ThreadTypists typists = threads.get(threadId);
+        if (typists != null) {
+            synchronized (typists) {
+                typists.listeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Registers that the given user is typing in the thread. The data source
+     * is only used if the user is not cached yet.
+     */
+    void userTyping(final long threadId, final long userId,
+            final Date startedTyping, final DataSource dataSource) {
+        if (isDuplicate(threadId, userId, startedTyping)) {
+            return;
+        }
+        if (getUser(userId, dataSource) == null) {
+            return;
+        }
+        boolean added = false;
+        while (!added) {
+            final ThreadTypists typists = getThreadTypists(threadId);
+            synchronized (typists) {
+                if (!typists.removed) {
+                    final Date[] previous = typists.typists.put(userId,
+                            new Date[] { startedTyping, new Date() });
+                    if (previous == null) {
+                        typists.dirty = true;
+                    }
+                    added = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers that the given user has posted to the thread and thus no
+     * longer is typing.
+     */
+    void userAuthored(final long threadId, final long userId) {
+        final ThreadTypists typists = threads.get(threadId);
+        if (typists != null) {
+            synchronized (typists) {
+                if (typists.typists.remove(userId) != null) {
+                    typists.dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the given event has already been delivered by another session.
+     * The senders repeat their typing events at most every few seconds, so an
+     * event with the same start time received within an update interval is
+     * the same event.
+     */
+    private boolean isDuplicate(final long threadId, final long userId,
+            final Date startedTyping) {
+        final ThreadTypists typists = threads.get(threadId);
+        if (typists == null) {
+            return false;
+        }
+        synchronized (typists) {
+            final Date[] typing = typists.typists.get(userId);
+            return typing != null
+                    && typing[0].equals(startedTyping)
+                    && System.currentTimeMillis() - typing[1].getTime() < UPDATE_INTERVAL;
+        }
+    }
+
+    private ThreadTypists getThreadTypists(final long threadId) {
+        ThreadTypists typists = threads.get(threadId);
+        if (typists == null) {
+            final ThreadTypists newTypists = new ThreadTypists();
+            typists = threads.putIfAbsent(threadId, newTypists);
+            if (typists == null) {
+                typists = newTypists;
+            }
+        }
+        return typists;
+    }
+
+    private User getUser(final long userId, final DataSource dataSource) {
+        final CachedUser cached = users.get(userId);
+        if (cached != null
+                && System.currentTimeMillis() - cached.created < USER_CACHE_TIMEOUT) {
+            USER_CACHE_STATS.hit();
+            return cached.user;
+        }
+        USER_CACHE_STATS.miss();
+        User user = null;
+        try {
+            user = dataSource.getToriUser(userId);
+        } catch (final DataSourceException e) {
+            getLogger().warn("Unable to resolve typing user " + userId, e);
+        }
+        if (user != null) {
+            users.put(userId, new CachedUser(user));
+        }
+        return user;
+    }
+
+    private void emitUpdates(final long now) {
+        for (final Entry<Long, ThreadTypists> thread : threads.entrySet()) {
+            final ThreadTypists typists = thread.getValue();
+            final Map<User, Date> update = new HashMap<User, Date>();
+            final List<TypingListener> listeners;
+            synchronized (typists) {
+                for (final Iterator<Date[]> typing = typists.typists.values()
+                        .iterator(); typing.hasNext();) {
+                    if (now - typing.next()[1].getTime() > TYPING_TIMEOUT) {
+                        typing.remove();
+                        typists.dirty = true;
+                    }
+                }
+                if (typists.listeners.isEmpty() && typists.typists.isEmpty()) {
+                    typists.removed = true;
+                    threads.remove(thread.getKey(), typists);
+                    continue;
+                }
+                if (!typists.dirty) {
+                    continue;
+                }
+                typists.dirty = false;
+                for (final Entry<Long, Date[]> entry : typists.typists
+                        .entrySet()) {
+                    final CachedUser cached = users.get(entry.getKey());
+                    if (cached != null) {
+                        update.put(cached.user, entry.getValue()[0]);
+                    }
+                }
+                listeners = new ArrayList<TypingListener>(typists.listeners);
+            }
+
+            final Map<User, Date> unmodifiableUpdate = Collections
+                    .unmodifiableMap(update);
+            for (final TypingListener listener : listeners) {
+                try {
+                    listener.typingUpdated(unmodifiableUpdate);
+                } catch (final RuntimeException e) {
+                    getLogger().warn("Unable to deliver typing update", e);
+                }
+            }
+        }
+        pruneUserCache(now);
+    }
+
+    private void pruneUserCache(final long now) {
+        for (final Iterator<CachedUser> it = users.values().iterator(); it
+                .hasNext();) {
+            if (now - it.next().created > USER_CACHE_TIMEOUT) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(TypingAggregator.class);
+    }
+
+    private static class ThreadTypists {
+        /** user id -> { started typing, last typing event } */
+        private final Map<Long, Date[]> typists = new HashMap<Long, Date[]>();
+        private final Set<TypingListener> listeners = Collections
+                .newSetFromMap(new WeakHashMap<TypingListener, Boolean>());
+        private boolean dirty;
+        private boolean removed;
+    }
+
+    private static class CachedUser {
+        private final User user;
+        private final long created = System.currentTimeMillis();
+
+        public CachedUser(final User user) {
+            this.user = user;
+        }
+    }
+}
@@ -16,20 +16,29 @@
 
 package org.vaadin.tori.view.thread.newthread;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.vaadin.tori.ToriApiLoader;
 import org.vaadin.tori.data.entity.Post;
 import org.vaadin.tori.data.entity.User;
+import org.vaadin.tori.data.search.TopicIndex.Topic;
 import org.vaadin.tori.exception.DataSourceException;
 import org.vaadin.tori.exception.FileNameException;
 import org.vaadin.tori.mvp.Presenter;
+import org.vaadin.tori.util.PostSnapshot;
+import org.vaadin.tori.util.SharedPostCache;
 import org.vaadin.tori.util.UserBadgeProvider;
 import org.vaadin.tori.view.thread.AuthoringData;
 import org.vaadin.tori.view.thread.newthread.NewThreadView.ViewData;
 
 public class NewThreadPresenter extends Presenter<NewThreadView> {
 
+    private static final int MAX_TOPIC_SUGGESTIONS = 5;
+    private static final int MIN_TOPIC_SUGGESTION_LENGTH = 3;
+
     private Long categoryId;
 
     public NewThreadPresenter(final NewThreadView view) {
@@ -49,8 +58,8 @@ public class NewThreadPresenter extends Presenter<NewThreadView> {
                     dataSource.followThread(post.getThread().getId());
                 }
                 if (messaging != null) {
-                    messaging.sendUserAuthored(post.getId(), post.getThread()
-                            .getId());
+                    SharedPostCache.put(post);
+                    messaging.sendUserAuthored(new PostSnapshot(post));
                 }
                 view.newThreadCreated(post.getThread().getId());
             } catch (final FileNameException e) {
@@ -67,6 +76,39 @@ public class NewThreadPresenter extends Presenter<NewThreadView> {
         }
     }
 
+    /**
+     * Suggests the existing topics similar to the one being typed, to avoid
+     * duplicate threads.
+     */
+    public void topicChanged(final String topic) {
+        final List<Topic> suggestions = new ArrayList<Topic>();
+        if (topic != null
+                && topic.trim().length() >= MIN_TOPIC_SUGGESTION_LENGTH) {
+            // some of the topics may be in categories or threads the user may
+            // not view
+            final Map<Long, Boolean> mayView = new HashMap<Long, Boolean>();
+            for (final Topic suggestion : dataSource.getTopicSuggestions(
+                    topic, MAX_TOPIC_SUGGESTIONS * 3)) {
+                final Long suggestionCategoryId = suggestion.getCategoryId();
+                Boolean visible = mayView.get(suggestionCategoryId);
+                if (visible == null) {
+                    visible = authorizationService
+                            .mayViewCategory(suggestionCategoryId);
+                    mayView.put(suggestionCategoryId, visible);
+                }
+                if (visible
+                        && authorizationService.mayViewThread(suggestion
+                                .getThreadId())) {
+                    suggestions.add(suggestion);
+                    if (suggestions.size() == MAX_TOPIC_SUGGESTIONS) {
+                        break;
+                    }
+                }
+            }
+        }
+        view.setTopicSuggestions(suggestions);
+    }
+
     private AuthoringData getAuthoringData() {
         final User currentUser = dataSource.getCurrentUser();
         return new AuthoringData() {
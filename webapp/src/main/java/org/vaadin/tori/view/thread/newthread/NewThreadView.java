@@ -16,6 +16,9 @@
 
 package org.vaadin.tori.view.thread.newthread;
 
+import java.util.List;
+
+import org.vaadin.tori.data.search.TopicIndex.Topic;
 import org.vaadin.tori.mvp.View;
 import org.vaadin.tori.view.thread.AuthoringData;
 
@@ -36,4 +39,10 @@ public interface NewThreadView extends View {
 
     void authoringFailed();
 
+    /**
+     * Shows the existing topics similar to the one being typed, or hides the
+     * suggestions if the list is empty.
+     */
+    void setTopicSuggestions(List<Topic> topics);
+
 }
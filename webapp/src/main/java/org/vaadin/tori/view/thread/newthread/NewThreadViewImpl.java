@@ -16,6 +16,7 @@
 
 package org.vaadin.tori.view.thread.newthread;
 
+import java.util.List;
 import java.util.Map;
 
 import org.vaadin.tori.ToriNavigator;
@@ -23,6 +24,7 @@ import org.vaadin.tori.ToriUI;
 import org.vaadin.tori.component.AuthoringComponent;
 import org.vaadin.tori.component.AuthoringComponent.AuthoringListener;
 import org.vaadin.tori.component.RecentBar;
+import org.vaadin.tori.data.search.TopicIndex.Topic;
 import org.vaadin.tori.mvp.AbstractView;
 import org.vaadin.tori.util.InputCacheUtil;
 import org.vaadin.tori.util.InputCacheUtil.Callback;
@@ -30,9 +32,16 @@ import org.vaadin.tori.util.ToriScheduler;
 import org.vaadin.tori.util.ToriScheduler.ScheduledCommand;
 import org.vaadin.tori.view.thread.AuthoringData;
 
+import com.vaadin.event.FieldEvents.TextChangeEvent;
+import com.vaadin.event.FieldEvents.TextChangeListener;
+import com.vaadin.server.ExternalResource;
 import com.vaadin.shared.ui.MarginInfo;
+import com.vaadin.ui.AbstractTextField.TextChangeEventMode;
 import com.vaadin.ui.Component;
+import com.vaadin.ui.CssLayout;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Link;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.Notification.Type;
 import com.vaadin.ui.TextField;
@@ -45,11 +54,13 @@ public class NewThreadViewImpl extends
         NewThreadView {
 
     private static final String CACHE_KEY_PREFIX = "new_";
+    private static final int TOPIC_SUGGESTION_DELAY = 300;
     private VerticalLayout layout;
 
     private AuthoringComponent authoringComponent;
 
     private TextField topicField;
+    private CssLayout topicSuggestions;
 
     private ViewData viewData;
 
@@ -110,11 +121,25 @@ public class NewThreadViewImpl extends
         topicField.setInputPrompt("Write your topic title here...");
         topicField.setWidth(100.0f, Unit.PERCENTAGE);
         topicField.setHeight(48.0f, Unit.PIXELS);
+        topicField.setTextChangeEventMode(TextChangeEventMode.LAZY);
+        topicField.setTextChangeTimeout(TOPIC_SUGGESTION_DELAY);
+        topicField.addTextChangeListener(new TextChangeListener() {
+            @Override
+            public void textChange(final TextChangeEvent event) {
+                getPresenter().topicChanged(event.getText());
+            }
+        });
         topicLayout.addComponent(topicField);
         topicLayout.setExpandRatio(topicField, 1.0f);
 
         result.addComponent(topicLayout);
 
+        topicSuggestions = new CssLayout();
+        topicSuggestions.setStyleName("topicsuggestions");
+        topicSuggestions.setWidth(100.0f, Unit.PERCENTAGE);
+        topicSuggestions.setVisible(false);
+        result.addComponent(topicSuggestions);
+
         return result;
     }
 
@@ -186,4 +211,22 @@ public class NewThreadViewImpl extends
     public void authoringFailed() {
         authoringComponent.reEnablePosting();
     }
+
+    @Override
+    public void setTopicSuggestions(final List<Topic> topics) {
+        topicSuggestions.removeAllComponents();
+        if (!topics.isEmpty()) {
+            topicSuggestions.addComponent(new Label("Similar topics"));
+            for (final Topic topic : topics) {
+                final Link link = new Link(topic.getTopic(),
+                        new ExternalResource("#"
+                                + ToriNavigator.ApplicationView.THREADS
+                                        .getUrl() + "/" + topic.getThreadId()));
+                // keeps the draft open
+                link.setTargetName("_blank");
+                topicSuggestions.addComponent(link);
+            }
+        }
+        topicSuggestions.setVisible(!topics.isEmpty());
+    }
 }
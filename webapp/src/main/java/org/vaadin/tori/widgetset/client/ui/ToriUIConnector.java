@@ -47,8 +47,34 @@ public class ToriUIConnector extends UIConnector implements
                 minutesInactive = 0;
             }
         });
+
+        addVisibilityChangeHandler();
+    }
+
+    /**
+     * Hidden tabs are treated as inactive right away so that the server can
+     * back off its polling.
+     */
+    private void visibilityChanged(final boolean hidden) {
+        if (hidden) {
+            minutesInactive = INACTIVITY_LIMIT_MINUTES;
+            rpc.userInactive();
+        } else {
+            minutesInactive = 0;
+            rpc.userActive();
+        }
     }
 
+    private native void addVisibilityChangeHandler()
+    /*-{
+        var self = this;
+        if (typeof $doc.hidden !== "undefined") {
+            $doc.addEventListener("visibilitychange", $entry(function() {
+                self.@org.vaadin.tori.widgetset.client.ui.ToriUIConnector::visibilityChanged(Z)($doc.hidden);
+            }), false);
+        }
+    }-*/;
+
     @Override
     public void onValueChange(final ValueChangeEvent<String> event) {
         getWidget().addStyleName(LOADING_STYLENAME);
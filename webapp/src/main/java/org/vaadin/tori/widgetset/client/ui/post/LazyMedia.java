@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.widgetset.client.ui.post;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.NodeList;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Window;
+
+/**
+ * Defers the loading of the images and embeds in post bodies. Images are
+ * loaded once they come near the viewport. Embeds are loaded right away only
+ * if they are near the viewport when the post is shown, and otherwise only
+ * when the user clicks them.
+ */
+public final class LazyMedia {
+
+    private static final String LAZY_SRC = "data-lazysrc";
+    private static final String STYLE_IMAGE = "lazyimage";
+    private static final String STYLE_EMBED = "lazyembed";
+    private static final String[] EMBED_TAGS = { "iframe", "embed" };
+    private static final String BLANK_IMAGE = "data:image/gif;base64,"
+            + "R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7";
+    /** How close to the viewport, in pixels, an image is loaded. */
+    private static final int MARGIN = 600;
+    private static final int DELAY = 100;
+
+    private static final List<Element> pendingImages = new ArrayList<Element>();
+    private static final List<Element> newEmbeds = new ArrayList<Element>();
+    private static boolean listening;
+    private static Timer timer;
+
+    private LazyMedia() {
+    }
+
+    /**
+     * Rewrites the sources of the media in the given HTML so that nothing is
+     * downloaded when it is inserted into the page. The browser starts
+     * loading images as soon as they are parsed, so this has to be done to
+     * the HTML rather than to the elements.
+     */
+    public static String deferMedia(final String html) {
+        if (html == null || !supportsLazyLoading()) {
+            return html;
+        }
+        return html.replaceAll("(<(?:img|IMG|iframe|IFRAME|embed|EMBED)\\b"
+                + "[^>]*?\\s)(?:src|SRC)\\s*=", "$1" + LAZY_SRC + "=");
+    }
+
+    /**
+     * Prepares the deferred media under the given element, which must be
+     * attached, and loads those already near the viewport.
+     */
+    public static void register(final Element root) {
+        final NodeList<Element> images = root.getElementsByTagName("img");
+        for (int i = 0; i < images.getLength(); i++) {
+            final Element image = images.getItem(i);
+            if (image.hasAttribute(LAZY_SRC) && !pendingImages.contains(image)) {
+                if (!image.hasAttribute("width")
+                        && !image.hasAttribute("height")) {
+                    // reserves some space until the size is known
+                    image.addClassName(STYLE_IMAGE);
+                }
+                image.setAttribute("src", BLANK_IMAGE);
+                pendingImages.add(image);
+            }
+        }
+
+        for (final String tag : EMBED_TAGS) {
+            final NodeList<Element> embeds = root.getElementsByTagName(tag);
+            for (int i = 0; i < embeds.getLength(); i++) {
+                final Element embed = embeds.getItem(i);
+                if (embed.hasAttribute(LAZY_SRC)
+                        && !embed.getParentElement().hasClassName(STYLE_EMBED)) {
+                    // a placeholder of the embed's size, which loads the
+                    // embed when clicked
+                    final Element placeholder = Document.get().createDivElement();
+                    placeholder.addClassName(STYLE_EMBED);
+                    setSize(placeholder, embed);
+                    embed.getParentElement().insertBefore(placeholder, embed);
+                    placeholder.appendChild(embed);
+                    newEmbeds.add(placeholder);
+                }
+            }
+        }
+
+        listen();
+        scheduleCheck();
+    }
+
+    /**
+     * Forgets the media under the given element, which is being detached.
+     */
+    public static void unregister(final Element root) {
+        for (final Iterator<Element> i = pendingImages.iterator(); i.hasNext();) {
+            if (root.isOrHasChild(i.next())) {
+                i.remove();
+            }
+        }
+        for (final Iterator<Element> i = newEmbeds.iterator(); i.hasNext();) {
+            if (root.isOrHasChild(i.next())) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the embed placeholder the given element belongs to, if any.
+     */
+    public static Element getEmbedPlaceholder(final Element element,
+            final Element root) {
+        Element current = element;
+        while (current != null && current != root) {
+            if (current.hasClassName(STYLE_EMBED)) {
+                return current;
+            }
+            current = current.getParentElement();
+        }
+        return null;
+    }
+
+    public static void loadEmbed(final Element placeholder) {
+        placeholder.removeClassName(STYLE_EMBED);
+        placeholder.getStyle().clearWidth();
+        placeholder.getStyle().clearHeight();
+        final Element embed = placeholder.getFirstChildElement();
+        if (embed != null && embed.hasAttribute(LAZY_SRC)) {
+            embed.setAttribute("src", embed.getAttribute(LAZY_SRC));
+            embed.removeAttribute(LAZY_SRC);
+        }
+    }
+
+    private static void loadImage(final Element image) {
+        image.removeClassName(STYLE_IMAGE);
+        image.setAttribute("src", image.getAttribute(LAZY_SRC));
+        image.removeAttribute(LAZY_SRC);
+    }
+
+    private static void setSize(final Element placeholder, final Element embed) {
+        final String width = embed.getAttribute("width");
+        final String height = embed.getAttribute("height");
+        if (width.matches("\\d+")) {
+            placeholder.getStyle().setProperty("width", width + "px");
+        }
+        if (height.matches("\\d+")) {
+            placeholder.getStyle().setProperty("height", height + "px");
+        }
+    }
+
+    private static void scheduleCheck() {
+        if (timer == null) {
+            timer = new Timer() {
+                @Override
+                public void run() {
+                    timer = null;
+                    check();
+                }
+            };
+            timer.schedule(DELAY);
+        }
+    }
+
+    private static void check() {
+        final Element body = Document.get().getBody();
+        final int viewportHeight = Window.getClientHeight();
+        for (final Iterator<Element> i = pendingImages.iterator(); i.hasNext();) {
+            final Element image = i.next();
+            if (!body.isOrHasChild(image)) {
+                // the post body has been replaced
+                i.remove();
+            } else if (isNearViewport(image, viewportHeight, MARGIN)) {
+                loadImage(image);
+                i.remove();
+            }
+        }
+
+        // embeds only load by themselves if they are in view right away
+        for (final Element placeholder : newEmbeds) {
+            if (body.isOrHasChild(placeholder)
+                    && isNearViewport(placeholder, viewportHeight, 0)) {
+                loadEmbed(placeholder);
+            }
+        }
+        newEmbeds.clear();
+    }
+
+    private static boolean isNearViewport(final Element element,
+            final int viewportHeight, final int margin) {
+        return getTop(element) < viewportHeight + margin
+                && getBottom(element) > -margin;
+    }
+
+    private static void listen() {
+        if (!listening) {
+            listening = true;
+            addListeners();
+        }
+    }
+
+    /**
+     * Called on any scroll in the page, as the scrolling element is the
+     * Vaadin root in standalone apps and the window in portlets.
+     */
+    static void onScroll() {
+        if (!pendingImages.isEmpty()) {
+            scheduleCheck();
+        }
+    }
+
+    private static native boolean supportsLazyLoading()
+    /*-{
+        return !!$doc.addEventListener;
+    }-*/;
+
+    private static native void addListeners()
+    /*-{
+        var listener = $entry(function() {
+            @org.vaadin.tori.widgetset.client.ui.post.LazyMedia::onScroll()();
+        });
+        // capturing, as scroll events don't bubble
+        $doc.addEventListener('scroll', listener, true);
+        $wnd.addEventListener('resize', listener, false);
+    }-*/;
+
+    private static native double getTop(final Element el)
+    /*-{
+        return el.getBoundingClientRect().top;
+    }-*/;
+
+    private static native double getBottom(final Element el)
+    /*-{
+        return el.getBoundingClientRect().bottom;
+    }-*/;
+}
@@ -28,4 +28,24 @@ public interface PostComponentClientRpc extends ClientRpc {
     void setPostAdditionalData(PostAdditionalData data);
 
     void editPost(Connector editor);
+
+    /**
+     * Shows the thread's shared settings menu, populated for this post, in
+     * place of the settings button and opens it.
+     */
+    void openSettings(Connector settings);
+
+    /**
+     * Restores the settings button after the shared settings menu has been
+     * moved to another post.
+     */
+    void settingsReleased();
+
+    /**
+     * Hides the settings button, as the settings menu turned out to have no
+     * items for this post.
+     */
+    void settingsUnavailable();
+
+    void openReport(Connector report);
 }
@@ -24,8 +24,10 @@ import com.google.gwt.core.client.GWT;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.client.ComponentConnector;
 import com.vaadin.client.ConnectorHierarchyChangeEvent;
+import com.vaadin.client.communication.RpcProxy;
 import com.vaadin.client.ui.AbstractComponentConnector;
 import com.vaadin.client.ui.AbstractComponentContainerConnector;
+import com.vaadin.client.ui.VMenuBar;
 import com.vaadin.shared.Connector;
 import com.vaadin.shared.ui.Connect;
 
@@ -34,6 +36,9 @@ import com.vaadin.shared.ui.Connect;
 public final class PostComponentConnector extends
         AbstractComponentContainerConnector {
 
+    private final PostComponentServerRpc rpc = RpcProxy.create(
+            PostComponentServerRpc.class, this);
+
     public PostComponentConnector() {
         registerRpc(PostComponentClientRpc.class, new PostComponentClientRpc() {
 
@@ -53,9 +58,38 @@ public final class PostComponentConnector extends
                         ((AbstractComponentConnector) editor).getWidget());
             }
 
+            @Override
+            public void openSettings(final Connector settings) {
+                getWidget().openSettings(
+                        (VMenuBar) ((AbstractComponentConnector) settings)
+                                .getWidget());
+            }
+
+            @Override
+            public void settingsReleased() {
+                getWidget().settingsReleased();
+            }
+
+            @Override
+            public void settingsUnavailable() {
+                getWidget().settingsUnavailable();
+            }
+
+            @Override
+            public void openReport(final Connector report) {
+                getWidget().showReport(
+                        ((AbstractComponentConnector) report).getWidget());
+            }
+
         });
     }
 
+    @Override
+    protected void init() {
+        super.init();
+        getWidget().init(rpc);
+    }
+
     @Override
     protected Widget createWidget() {
         return GWT.create(PostWidget.class);
@@ -18,8 +18,6 @@ package org.vaadin.tori.widgetset.client.ui.post;
 
 import java.util.Map;
 
-import com.vaadin.shared.Connector;
-
 public class PostData {
 
     public static class PostPrimaryData {
@@ -34,7 +32,12 @@ public class PostData {
         public String prettyTime;
         public String permaLink;
         public String badgeHTML;
-        public Connector settings;
-        public Connector footer;
+        public boolean hasSettings;
+        public boolean hasFooter;
+        public long score;
+        public Boolean upVoted;
+        public boolean mayVote;
+        public boolean mayQuote;
+        public boolean mayReport;
     }
 }
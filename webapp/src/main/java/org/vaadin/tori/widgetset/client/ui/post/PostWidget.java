@@ -9,7 +9,10 @@ import org.vaadin.tori.widgetset.client.ui.post.PostData.PostPrimaryData;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.dom.client.AnchorElement;
 import com.google.gwt.dom.client.DivElement;
+import com.google.gwt.dom.client.Element;
 import com.google.gwt.dom.client.SpanElement;
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.safehtml.shared.SimpleHtmlSanitizer;
 import com.google.gwt.uibinder.client.LazyDomElement;
 import com.google.gwt.uibinder.client.UiBinder;
@@ -17,10 +20,13 @@ import com.google.gwt.uibinder.client.UiField;
 import com.google.gwt.user.client.ui.Anchor;
 import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.FlowPanel;
+import com.google.gwt.user.client.ui.HTML;
 import com.google.gwt.user.client.ui.HTMLPanel;
+import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.SimplePanel;
 import com.google.gwt.user.client.ui.Widget;
-import com.vaadin.client.ui.AbstractComponentConnector;
+import com.vaadin.client.ui.VMenuBar;
+import com.vaadin.client.ui.VMenuBar.CustomMenuItem;
 
 public class PostWidget extends Composite {
 
@@ -40,7 +46,14 @@ public class PostWidget extends Composite {
     private SimplePanel postEditorPlaceholderWidget;
     @UiField
     public LazyDomElement<DivElement> footer;
-    private Widget footerWidget;
+    private FlowPanel footerWidget;
+    private Label upVote;
+    private Label downVote;
+    private Label score;
+    private Label reply;
+    /** Stands in for the report popup until the user flags the post. */
+    private HTML reportButton;
+    private Widget reportWidget;
     @UiField
     public LazyDomElement<DivElement> attachments;
     private FlowPanel attachmentsWidget;
@@ -48,9 +61,12 @@ public class PostWidget extends Composite {
     public LazyDomElement<AnchorElement> permaLink;
     @UiField
     public LazyDomElement<DivElement> settings;
-    private Widget settingsWidget;
+    private FlowPanel settingsWidget;
+    /** Stands in for the shared settings menu until it is opened here. */
+    private HTML settingsButton;
 
     private final HTMLPanel panel;
+    private PostComponentServerRpc rpc;
 
     private static PostWidgetUiBinder uiBinder = GWT
             .create(PostWidgetUiBinder.class);
@@ -62,6 +78,34 @@ public class PostWidget extends Composite {
         panel = uiBinder.createAndBindUi(this);
         initWidget(panel);
         setVisible(false);
+
+        addDomHandler(new ClickHandler() {
+            @Override
+            public void onClick(final ClickEvent event) {
+                final Element placeholder = LazyMedia.getEmbedPlaceholder(
+                        Element.as(event.getNativeEvent().getEventTarget()),
+                        bodyText);
+                if (placeholder != null) {
+                    LazyMedia.loadEmbed(placeholder);
+                }
+            }
+        }, ClickEvent.getType());
+    }
+
+    @Override
+    protected void onLoad() {
+        super.onLoad();
+        LazyMedia.register(bodyText);
+    }
+
+    @Override
+    protected void onUnload() {
+        LazyMedia.unregister(bodyText);
+        super.onUnload();
+    }
+
+    public void init(final PostComponentServerRpc rpc) {
+        this.rpc = rpc;
     }
 
     public void updatePostData(final PostPrimaryData data) {
@@ -72,7 +116,10 @@ public class PostWidget extends Composite {
             authorName.addClassName("nolink");
         }
 
-        bodyText.setInnerHTML(data.postBody);
+        bodyText.setInnerHTML(LazyMedia.deferMedia(data.postBody));
+        if (isAttached()) {
+            LazyMedia.register(bodyText);
+        }
 
         updateAttachments(data.attachments);
 
@@ -113,16 +160,140 @@ public class PostWidget extends Composite {
         badge.get().setInnerHTML(data.badgeHTML);
         permaLink.get().setHref(data.permaLink);
 
-        if (footerWidget == null && data.footer != null) {
-            footerWidget = ((AbstractComponentConnector) data.footer)
-                    .getWidget();
+        updateFooter(data);
+
+        if (settingsWidget == null && data.hasSettings) {
+            settingsButton = new HTML("<span class=\"v-menubar-menuitem\">"
+                    + "<span class=\"v-menubar-menuitem-caption\"></span>"
+                    + "</span>");
+            settingsButton.setStyleName("v-menubar dropdown");
+            settingsButton.addClickHandler(new ClickHandler() {
+                @Override
+                public void onClick(final ClickEvent event) {
+                    rpc.openSettings();
+                }
+            });
+            settingsWidget = new FlowPanel();
+            settingsWidget.setStyleName("settings");
+            settingsWidget.add(settingsButton);
+            panel.addAndReplaceElement(settingsWidget, settings.get());
+        }
+        if (settingsWidget != null) {
+            settingsWidget.setVisible(data.hasSettings);
+        }
+    }
+
+    private void updateFooter(final PostAdditionalData data) {
+        if (!data.hasFooter) {
+            return;
+        }
+        if (footerWidget == null) {
+            footerWidget = new FlowPanel();
+            footerWidget.setStyleName("footer");
+            upVote = new Label();
+            downVote = new Label();
+            score = new Label();
+            reply = new Label("Reply");
+            reply.setStyleName("quoteforreply");
+            reportButton = new HTML("<div class=\"v-button\">"
+                    + "<span class=\"v-button-wrap\">"
+                    + "<span class=\"v-button-caption\">Flag post...</span>"
+                    + "</span></div>");
+            reportButton.setStyleName("flagpost");
+
+            final ClickHandler clickHandler = new ClickHandler() {
+                @Override
+                public void onClick(final ClickEvent event) {
+                    final Object source = event.getSource();
+                    if (source == upVote) {
+                        rpc.vote(true);
+                    } else if (source == downVote) {
+                        rpc.vote(false);
+                    } else if (source == reply) {
+                        rpc.quoteForReply();
+                    } else if (source == reportButton) {
+                        rpc.openReport();
+                    }
+                }
+            };
+            upVote.addClickHandler(clickHandler);
+            downVote.addClickHandler(clickHandler);
+            reply.addClickHandler(clickHandler);
+            reportButton.addClickHandler(clickHandler);
+
+            footerWidget.add(upVote);
+            footerWidget.add(downVote);
+            footerWidget.add(score);
+            footerWidget.add(reply);
+            footerWidget.add(reportButton);
             panel.addAndReplaceElement(footerWidget, footer.get());
         }
 
-        if (settingsWidget == null && data.settings != null) {
-            settingsWidget = ((AbstractComponentConnector) data.settings)
-                    .getWidget();
-            panel.addAndReplaceElement(settingsWidget, settings.get());
+        upVote.setVisible(data.mayVote);
+        downVote.setVisible(data.mayVote);
+        upVote.setStyleName("vote upvote");
+        downVote.setStyleName("vote downvote");
+        if (data.mayVote && data.upVoted != null) {
+            if (data.upVoted) {
+                upVote.addStyleName("done");
+            } else {
+                downVote.addStyleName("done");
+            }
+        }
+
+        score.setText((data.score > 0 ? "+" : "") + String.valueOf(data.score));
+        score.setStyleName("score");
+        String scoreStyle = "zero";
+        if (data.score > 0) {
+            scoreStyle = "positive";
+        } else if (data.score < 0) {
+            scoreStyle = "negative";
+        }
+        score.addStyleName(scoreStyle);
+
+        reply.setVisible(data.mayQuote);
+        (reportWidget != null ? reportWidget : reportButton)
+                .setVisible(data.mayReport);
+    }
+
+    public void openSettings(final VMenuBar settingsMenu) {
+        if (settingsWidget == null) {
+            return;
+        }
+        settingsButton.setVisible(false);
+        if (settingsMenu.getParent() != settingsWidget) {
+            settingsWidget.add(settingsMenu);
+        }
+        if (!settingsMenu.getItems().isEmpty()) {
+            final CustomMenuItem rootItem = settingsMenu.getItems().get(0);
+            settingsMenu.setSelected(rootItem);
+            settingsMenu.showChildMenu(rootItem);
+        }
+    }
+
+    public void settingsReleased() {
+        if (settingsWidget != null) {
+            // the menu may not have been moved to the other post yet
+            while (settingsWidget.getWidgetCount() > 1) {
+                settingsWidget.remove(1);
+            }
+            settingsButton.setVisible(true);
+        }
+    }
+
+    public void settingsUnavailable() {
+        if (settingsWidget != null) {
+            settingsReleased();
+            settingsWidget.setVisible(false);
+        }
+    }
+
+    public void showReport(final Widget report) {
+        if (reportWidget == null && footerWidget != null) {
+            reportWidget = report;
+            footerWidget.insert(reportWidget,
+                    footerWidget.getWidgetIndex(reportButton));
+            footerWidget.remove(reportButton);
         }
     }
 
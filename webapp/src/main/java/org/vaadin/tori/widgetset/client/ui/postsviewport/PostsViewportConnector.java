@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.widgetset.client.ui.postsviewport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vaadin.tori.view.thread.PostsViewport;
+
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.event.dom.client.ScrollEvent;
+import com.google.gwt.event.dom.client.ScrollHandler;
+import com.google.gwt.event.shared.HandlerRegistration;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.ui.Widget;
+import com.vaadin.client.ComponentConnector;
+import com.vaadin.client.ServerConnector;
+import com.vaadin.client.communication.RpcProxy;
+import com.vaadin.client.extensions.AbstractExtensionConnector;
+import com.vaadin.shared.ui.Connect;
+
+/**
+ * Tells the server which posts of the extended layout are in the viewport, so
+ * that it can keep only the posts around them rendered.
+ */
+@SuppressWarnings("serial")
+@Connect(PostsViewport.class)
+public class PostsViewportConnector extends AbstractExtensionConnector
+        implements PostsViewportClientRpc {
+
+    private static final String POST_CLASS_NAME = "post";
+    private static final String SPACER_CLASS_NAME = "postsspacer";
+    /** Used for the spacers until a post has been measured. */
+    private static final int DEFAULT_POST_HEIGHT = 250;
+    private static final int DELAY = 150;
+
+    private final PostsViewportServerRpc rpc = RpcProxy.create(
+            PostsViewportServerRpc.class, this);
+
+    private Widget widget;
+    private Widget rootWidget;
+    private HandlerRegistration scrollHandlerRegistration;
+    private HandlerRegistration scrollHandlerRegistrationWin;
+    private Timer timer;
+
+    private int reportedFirst = Integer.MIN_VALUE;
+    private int reportedLast = Integer.MIN_VALUE;
+    /** The post that was in view when the viewport was last reported. */
+    private Element anchor;
+    private double anchorTop;
+
+    @Override
+    protected void init() {
+        super.init();
+        registerRpc(PostsViewportClientRpc.class, this);
+    }
+
+    @Override
+    protected void extend(final ServerConnector target) {
+        widget = ((ComponentConnector) target).getWidget();
+        rootWidget = getConnection().getUIConnector().getWidget();
+
+        // the Vaadin root scrolls in standalone apps and the Window in
+        // portlets, so both need to be listened to
+        scrollHandlerRegistration = rootWidget.addDomHandler(
+                new ScrollHandler() {
+                    @Override
+                    public void onScroll(final ScrollEvent event) {
+                        scheduleReport();
+                    }
+                }, ScrollEvent.getType());
+        scrollHandlerRegistrationWin = Window
+                .addWindowScrollHandler(new Window.ScrollHandler() {
+                    @Override
+                    public void onWindowScroll(final Window.ScrollEvent event) {
+                        scheduleReport();
+                    }
+                });
+        scheduleReport();
+    }
+
+    @Override
+    public void onUnregister() {
+        scrollHandlerRegistration.removeHandler();
+        scrollHandlerRegistrationWin.removeHandler();
+        if (timer != null) {
+            timer.cancel();
+        }
+        super.onUnregister();
+    }
+
+    @Override
+    public void windowChanged() {
+        Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+            @Override
+            public void execute() {
+                // posts above the viewport were added or removed, so move the
+                // viewport back to the post that was in view
+                if (anchor != null && widget.getElement().isOrHasChild(anchor)) {
+                    scrollBy((int) Math.round(getTop(anchor) - anchorTop));
+                }
+                reportedFirst = Integer.MIN_VALUE;
+                reportedLast = Integer.MIN_VALUE;
+                scheduleReport();
+            }
+        });
+    }
+
+    private void scheduleReport() {
+        if (timer == null) {
+            timer = new Timer() {
+                @Override
+                public void run() {
+                    timer = null;
+                    report();
+                }
+            };
+            timer.schedule(DELAY);
+        }
+    }
+
+    private void report() {
+        if (!widget.isAttached()) {
+            return;
+        }
+        final List<Element> posts = new ArrayList<Element>();
+        Element topSpacer = null;
+        Element bottomSpacer = null;
+        Element child = widget.getElement().getFirstChildElement();
+        while (child != null) {
+            if (child.hasClassName(SPACER_CLASS_NAME)) {
+                if (posts.isEmpty()) {
+                    topSpacer = child;
+                } else {
+                    bottomSpacer = child;
+                }
+            } else if (child.hasClassName(POST_CLASS_NAME)) {
+                posts.add(child);
+            }
+            child = child.getNextSiblingElement();
+        }
+
+        int totalHeight = 0;
+        for (final Element post : posts) {
+            totalHeight += post.getOffsetHeight();
+        }
+        final int averageHeight = posts.isEmpty() ? 0 : totalHeight
+                / posts.size();
+        final int estimate = averageHeight > 0 ? averageHeight
+                : DEFAULT_POST_HEIGHT;
+
+        final int viewportHeight = Window.getClientHeight();
+        final int first = indexAt(0, posts, topSpacer, bottomSpacer, estimate);
+        final int last = indexAt(viewportHeight, posts, topSpacer,
+                bottomSpacer, estimate);
+
+        anchor = null;
+        for (final Element post : posts) {
+            if (getBottom(post) > 0 && getTop(post) < viewportHeight) {
+                anchor = post;
+                anchorTop = getTop(post);
+                break;
+            }
+        }
+
+        if (first != reportedFirst || last != reportedLast) {
+            reportedFirst = first;
+            reportedLast = last;
+            rpc.viewportChanged(first, last, averageHeight);
+        }
+    }
+
+    /**
+     * Returns the index of the post at the given viewport coordinate, relative
+     * to the first rendered post. Over the spacers, the index is estimated.
+     */
+    private static int indexAt(final double y, final List<Element> posts,
+            final Element topSpacer, final Element bottomSpacer,
+            final int estimate) {
+        if (topSpacer != null && y < getBottom(topSpacer)) {
+            return -(int) Math.ceil((getBottom(topSpacer) - y) / estimate);
+        }
+        for (int i = 0; i < posts.size(); i++) {
+            if (y < getBottom(posts.get(i))) {
+                return i;
+            }
+        }
+        double bottomTop = y;
+        if (bottomSpacer != null) {
+            bottomTop = getTop(bottomSpacer);
+        } else if (!posts.isEmpty()) {
+            bottomTop = getBottom(posts.get(posts.size() - 1));
+        }
+        return posts.size()
+                + (int) Math.floor(Math.max(0, y - bottomTop) / estimate);
+    }
+
+    private void scrollBy(final int delta) {
+        if (delta == 0) {
+            return;
+        }
+        final Element scroller = rootWidget.getElement();
+        if (scroller.getScrollHeight() > scroller.getClientHeight()) {
+            scroller.setScrollTop(scroller.getScrollTop() + delta);
+        } else {
+            Window.scrollTo(Window.getScrollLeft(), Window.getScrollTop()
+                    + delta);
+        }
+    }
+
+    private static native double getTop(final Element el)
+    /*-{
+        return el.getBoundingClientRect().top;
+    }-*/;
+
+    private static native double getBottom(final Element el)
+    /*-{
+        return el.getBoundingClientRect().bottom;
+    }-*/;
+}
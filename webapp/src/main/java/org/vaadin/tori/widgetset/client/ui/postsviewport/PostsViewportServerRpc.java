@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.widgetset.client.ui.postsviewport;
+
+import com.vaadin.shared.communication.ServerRpc;
+
+public interface PostsViewportServerRpc extends ServerRpc {
+
+    /**
+     * Reports the posts in the viewport, as indices relative to the first
+     * rendered post. Indices outside the rendered posts are estimated from
+     * the spacer heights and the average post height.
+     */
+    void viewportChanged(int firstVisible, int lastVisible,
+            int averagePostHeight);
+}
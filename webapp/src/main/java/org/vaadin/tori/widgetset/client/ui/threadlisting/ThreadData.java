@@ -1,7 +1,5 @@
 package org.vaadin.tori.widgetset.client.ui.threadlisting;
 
-import com.vaadin.shared.Connector;
-
 public class ThreadData {
 
     public static class ThreadPrimaryData {
@@ -23,7 +21,7 @@ public class ThreadData {
         public boolean isFollowed;
         public boolean isRead;
         public String url;
-        public Connector settings;
+        public boolean hasActions;
         public String latestPostUrl;
         public int replyCount;
     }
@@ -13,4 +13,10 @@ public interface ThreadListingClientRpc extends ClientRpc {
     void refreshThreadRows(List<ThreadAdditionalData> rows);
 
     void removeThreadRow(String threadId);
+
+    /**
+     * Opens the shared actions menu, already populated for the given thread,
+     * on that thread's row.
+     */
+    void openActions(String threadId);
 }
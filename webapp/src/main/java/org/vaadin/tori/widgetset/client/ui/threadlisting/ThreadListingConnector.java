@@ -10,6 +10,7 @@ import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.client.ComponentConnector;
 import com.vaadin.client.ConnectorHierarchyChangeEvent;
 import com.vaadin.client.communication.RpcProxy;
+import com.vaadin.client.ui.VMenuBar;
 import com.vaadin.client.ui.AbstractComponentContainerConnector;
 import com.vaadin.shared.ui.Connect;
 
@@ -40,6 +41,15 @@ public class ThreadListingConnector extends AbstractComponentContainerConnector
                 getWidget().addRows(rows, placeholders);
             }
 
+            @Override
+            public void openActions(final String threadId) {
+                // the shared actions menu is the only child component
+                if (!getChildComponents().isEmpty()) {
+                    getWidget().openActions(threadId,
+                            (VMenuBar) getChildComponents().get(0).getWidget());
+                }
+            }
+
             @Override
             public void refreshThreadRows(final List<ThreadAdditionalData> rows) {
                 getWidget().refreshRows(rows);
@@ -12,6 +12,8 @@ import com.google.gwt.dom.client.Element;
 import com.google.gwt.dom.client.SpanElement;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.event.logical.shared.CloseEvent;
+import com.google.gwt.event.logical.shared.CloseHandler;
 import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.uibinder.client.UiBinder;
 import com.google.gwt.uibinder.client.UiField;
@@ -19,10 +21,13 @@ import com.google.gwt.uibinder.client.UiHandler;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.Window.Location;
 import com.google.gwt.user.client.ui.Composite;
+import com.google.gwt.user.client.ui.HTML;
 import com.google.gwt.user.client.ui.Label;
+import com.google.gwt.user.client.ui.PopupPanel;
 import com.google.gwt.user.client.ui.SimplePanel;
 import com.google.gwt.user.client.ui.Widget;
-import com.vaadin.client.ui.AbstractComponentConnector;
+import com.vaadin.client.ui.VMenuBar;
+import com.vaadin.client.ui.VMenuBar.CustomMenuItem;
 
 public class ThreadListingRow extends Composite implements ClickHandler {
 
@@ -56,10 +61,18 @@ public class ThreadListingRow extends Composite implements ClickHandler {
     @UiField
     public SimplePanel settings;
 
-    private final long threadId;
+    private long threadId;
 
     private final ThreadListingRowListener listener;
     private HandlerRegistration clickHandler;
+    /**
+     * Stands in for the shared actions menu until it is opened on this row.
+     */
+    private final HTML actionsButton = new HTML(
+            "<span class=\"v-menubar-menuitem\">"
+                    + "<span class=\"v-menubar-menuitem-caption\"></span></span>");
+
+    private boolean hasActions;
 
     private final Collection<String> staticStyleNames = new ArrayList<String>();
     private String threadHash;
@@ -78,15 +91,39 @@ public class ThreadListingRow extends Composite implements ClickHandler {
         threadFollowed(!following);
     }
 
-    public ThreadListingRow(final ThreadPrimaryData data,
-            final ThreadListingRowListener listener) {
-        this.threadId = Long.parseLong(data.threadId);
+    public ThreadListingRow(final ThreadListingRowListener listener) {
         this.listener = listener;
         initWidget(uiBinder.createAndBindUi(this));
         setWidth("100%");
         setStyleName(ROW_CLASS_NAME);
 
+        actionsButton.setStyleName("v-menubar dropdown");
+        actionsButton.addClickHandler(new ClickHandler() {
+            @Override
+            public void onClick(final ClickEvent event) {
+                listener.openActions(threadId);
+            }
+        });
+    }
+
+    /**
+     * Binds this row to the given thread, resetting whatever was shown for the
+     * thread it was previously bound to. Rows are recycled as the listing is
+     * scrolled, so this is called many times for the same instance.
+     */
+    public void setPrimaryData(final ThreadPrimaryData data) {
+        this.threadId = Long.parseLong(data.threadId);
+        setStyleName(ROW_CLASS_NAME);
+        staticStyleNames.clear();
+        threadHash = null;
+        following = false;
+        hasActions = false;
+        settings.clear();
+        latest.setHref("");
+        latestTime.setInnerText("");
+
         topicName.setInnerText(data.topic);
+        topicName.removeAttribute("href");
         startedBy.setInnerText(data.author);
         startedTime.setInnerText(shortenPretty(data.firstPostPretty));
         started.setTitle("Topic created by " + data.author + " "
@@ -124,6 +161,10 @@ public class ThreadListingRow extends Composite implements ClickHandler {
         addStaticStyleNames();
     }
 
+    public long getThreadId() {
+        return threadId;
+    }
+
     private void addStaticStyleNames() {
         for (String style : staticStyleNames) {
             addStyleName(style);
@@ -176,19 +217,65 @@ public class ThreadListingRow extends Composite implements ClickHandler {
             latest.setHref(data.latestPostUrl);
         }
 
-        if (data.settings != null) {
-            Widget settings = ((AbstractComponentConnector) data.settings)
-                    .getWidget();
-            this.settings.setWidget(settings);
+        hasActions = data.hasActions;
+        if (hasActions) {
+            settings.setWidget(actionsButton);
+        } else {
+            settings.clear();
+        }
+    }
+
+    /**
+     * Shows the shared actions menu on this row and opens it. The menu has
+     * been populated for this row's thread by the server. The actions button
+     * is put back once the menu closes.
+     */
+    public void openActions(final VMenuBar actionMenu) {
+        settings.setWidget(actionMenu);
+        if (!actionMenu.getItems().isEmpty()) {
+            final CustomMenuItem rootItem = actionMenu.getItems().get(0);
+            actionMenu.setSelected(rootItem);
+            actionMenu.showChildMenu(rootItem);
+
+            final PopupPanel popup = getPopup(actionMenu);
+            if (popup != null) {
+                popup.addCloseHandler(new CloseHandler<PopupPanel>() {
+                    @Override
+                    public void onClose(final CloseEvent<PopupPanel> event) {
+                        if (settings.getWidget() == actionMenu) {
+                            actionsReleased();
+                        }
+                    }
+                });
+            }
+        } else {
+            actionsReleased();
         }
     }
 
+    /**
+     * Puts the actions button back in place of the shared actions menu, which
+     * has been closed or moved on to another row.
+     */
+    public void actionsReleased() {
+        if (hasActions) {
+            settings.setWidget(actionsButton);
+        } else {
+            settings.clear();
+        }
+    }
+
+    private static native PopupPanel getPopup(final VMenuBar menuBar)
+    /*-{
+        return menuBar.@com.vaadin.client.ui.VMenuBar::popup;
+    }-*/;
+
     @Override
     public void onClick(final ClickEvent event) {
         Element clicked = Element.as(event.getNativeEvent().getEventTarget());
         if (!follow.getElement().isOrHasChild(clicked)
                 && !settings.getElement().isOrHasChild(clicked)
-                && !topicName.isOrHasChild(clicked)) {
+                && !topicName.isOrHasChild(clicked) && threadHash != null) {
             if (!latest.isOrHasChild(clicked)
                     || latest.getAttribute("href").isEmpty()) {
                 String threadUrl = Location.createUrlBuilder()
@@ -213,5 +300,7 @@ public class ThreadListingRow extends Composite implements ClickHandler {
 
     public interface ThreadListingRowListener {
         void follow(long threadId, boolean follow);
+
+        void openActions(long threadId);
     }
 }
@@ -1,5 +1,6 @@
 package org.vaadin.tori.widgetset.client.ui.threadlisting;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,41 +9,85 @@ import org.vaadin.tori.widgetset.client.ui.threadlisting.ThreadData.ThreadAdditi
 import org.vaadin.tori.widgetset.client.ui.threadlisting.ThreadData.ThreadPrimaryData;
 import org.vaadin.tori.widgetset.client.ui.threadlisting.ThreadListingRow.ThreadListingRowListener;
 
+import com.google.gwt.animation.client.AnimationScheduler;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationCallback;
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.event.dom.client.ScrollEvent;
 import com.google.gwt.event.dom.client.ScrollHandler;
 import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.Element;
-import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.ui.FlowPanel;
 import com.google.gwt.user.client.ui.Label;
+import com.google.gwt.user.client.ui.SimplePanel;
 import com.google.gwt.user.client.ui.Widget;
+import com.vaadin.client.ui.VMenuBar;
 
+/**
+ * Lists threads, keeping only the rows near the viewport as widgets. The rest
+ * of the listing is represented by spacers of the same height, and the row
+ * widgets are rebound to other threads as they scroll out of view.
+ */
 public class ThreadListingWidget extends FlowPanel {
 
     private static final String CLASS_NAME = "threadlisting";
-    private static final String ROW_CLASS_NAME = "threadlistingrow";
+
+    /** Used until a row has been rendered and measured. */
+    private static final int DEFAULT_ROW_HEIGHT = 40;
+    /** Rows rendered above and below the viewport. */
+    private static final int BUFFER_ROWS = 10;
+    private static final int MIN_FETCH_COUNT = 20;
+    private static final int MAX_FETCH_COUNT = 200;
+    /** Assumed until the first fetch has completed. */
+    private static final double DEFAULT_FETCH_LATENCY = 500;
+    /** The scroll speed is reset after this many milliseconds of no scrolling. */
+    private static final double SCROLL_IDLE_TIME = 300;
+    /** Weight of the latest sample in the scroll speed and latency averages. */
+    private static final double SMOOTHING = 0.3;
 
     private HandlerRegistration scrollHandlerRegistration;
     private HandlerRegistration scrollHandlerRegistrationWin;
 
+    private final SimplePanel topSpacer = new SimplePanel();
+    private final FlowPanel rowPanel = new FlowPanel();
+    private final SimplePanel bottomSpacer = new SimplePanel();
     private final FlowPanel placeHolders = new FlowPanel();
+
+    private final List<ThreadPrimaryData> rows = new ArrayList<ThreadPrimaryData>();
+    private final Map<String, ThreadAdditionalData> additionalData = new HashMap<String, ThreadAdditionalData>();
+    /** The row widgets currently bound to a thread, by thread id. */
     private final Map<String, ThreadListingRow> threadRows = new HashMap<String, ThreadListingRow>();
+    private final List<ThreadListingRow> spareRows = new ArrayList<ThreadListingRow>();
+    /** The row the shared actions menu was last opened on. */
+    private ThreadListingRow actionsRow;
+    private int firstRendered = 0;
+    private int lastRendered = 0;
+    /** The average height of the rendered rows. */
+    private double rowHeight = DEFAULT_ROW_HEIGHT;
 
     public interface Fetcher {
-        void fetchRows();
+        void fetchRows(int maxCount);
     }
 
     private ThreadListingRowListener threadListingRowListener;
     private Fetcher fetcher;
     private boolean fetching;
-    private Timer timer;
+    private double fetchStarted;
+    private double fetchLatency = DEFAULT_FETCH_LATENCY;
 
-    private static final int DELAY = 200;
+    /** Scroll speed in pixels per millisecond. */
+    private double scrollSpeed;
+    private double lastScrollTime;
+    private double lastScrollTop;
+    private boolean updateScheduled;
 
     public ThreadListingWidget() {
-        setStyleName("threadlisting");
+        setStyleName(CLASS_NAME);
         setWidth("100%");
+        add(topSpacer);
+        add(rowPanel);
+        add(bottomSpacer);
+        add(placeHolders);
     }
 
     public void init(final Fetcher fetcher,
@@ -53,15 +98,13 @@ public class ThreadListingWidget extends FlowPanel {
 
     public void addRows(final List<ThreadPrimaryData> rows,
             final int placeholders) {
-
-        remove(placeHolders);
+        if (fetching) {
+            fetchLatency = smooth(fetchLatency, Duration.currentTimeMillis()
+                    - fetchStarted);
+            fetching = false;
+        }
         if (rows != null) {
-            for (ThreadPrimaryData rowInfo : rows) {
-                ThreadListingRow newRow = new ThreadListingRow(rowInfo,
-                        threadListingRowListener);
-                add(newRow);
-                threadRows.put(rowInfo.threadId, newRow);
-            }
+            this.rows.addAll(rows);
         }
         while (placeHolders.getWidgetCount() > 0
                 && placeHolders.getWidgetCount() > placeholders) {
@@ -72,9 +115,13 @@ public class ThreadListingWidget extends FlowPanel {
             placeHolder.addStyleName(CLASS_NAME + "-placeholder");
             placeHolders.add(placeHolder);
         }
-        add(placeHolders);
-        fetching = false;
-        checkNewRowsNeeded();
+        scheduleUpdate();
+    }
+
+    @Override
+    protected void onLoad() {
+        super.onLoad();
+        scheduleUpdate();
     }
 
     @Override
@@ -96,7 +143,7 @@ public class ThreadListingWidget extends FlowPanel {
             final ScrollHandler handler = new ScrollHandler() {
                 @Override
                 public void onScroll(final ScrollEvent event) {
-                    checkNewRowsNeeded();
+                    scrolled();
                 }
             };
             scrollHandlerRegistration = rootWidget.addDomHandler(handler,
@@ -109,7 +156,7 @@ public class ThreadListingWidget extends FlowPanel {
                 @Override
                 public void onWindowScroll(
                         final com.google.gwt.user.client.Window.ScrollEvent event) {
-                    checkNewRowsNeeded();
+                    scrolled();
                 }
 
             };
@@ -118,38 +165,175 @@ public class ThreadListingWidget extends FlowPanel {
         }
     }
 
-    private void checkNewRowsNeeded() {
-        if (timer == null) {
-            timer = new Timer() {
-                @Override
-                public void run() {
-                    if (!fetching && placeHolders.getWidgetCount() > 0
-                            && isElementInViewport(placeHolders.getElement())) {
-                        fetching = true;
-                        fetcher.fetchRows();
-                    }
-                    timer.cancel();
-                    timer = null;
+    private void scrolled() {
+        final double now = Duration.currentTimeMillis();
+        final double top = getViewportTop(getElement());
+        if (now > lastScrollTime && now - lastScrollTime < SCROLL_IDLE_TIME) {
+            scrollSpeed = smooth(scrollSpeed, Math.abs(top - lastScrollTop)
+                    / (now - lastScrollTime));
+        }
+        lastScrollTime = now;
+        lastScrollTop = top;
+        scheduleUpdate();
+    }
+
+    /**
+     * Renders the rows and checks the prefetch window at most once per
+     * animation frame, however many scroll events arrive.
+     */
+    private void scheduleUpdate() {
+        if (!updateScheduled) {
+            updateScheduled = true;
+            AnimationScheduler.get().requestAnimationFrame(
+                    new AnimationCallback() {
+                        @Override
+                        public void execute(final double timestamp) {
+                            updateScheduled = false;
+                            if (isAttached()) {
+                                renderVisibleRows();
+                                checkNewRowsNeeded();
+                            }
+                        }
+                    });
+        }
+    }
+
+    private void renderVisibleRows() {
+        final double listTop = getViewportTop(getElement());
+        final int viewportHeight = Window.getClientHeight();
+        final int firstVisible = (int) Math.floor(Math.max(0, -listTop)
+                / rowHeight);
+        final int lastVisible = (int) Math.ceil((viewportHeight - listTop)
+                / rowHeight);
+        final int first = Math.max(0,
+                Math.min(firstVisible - BUFFER_ROWS, rows.size()));
+        final int last = Math.max(first,
+                Math.min(lastVisible + BUFFER_ROWS, rows.size()));
+
+        // free the rows that scrolled out of the window...
+        for (int i = firstRendered; i < lastRendered; i++) {
+            if (i < first || i >= last) {
+                final ThreadListingRow row = threadRows.remove(rows.get(i)
+                        .threadId);
+                if (row != null) {
+                    rowPanel.remove(row);
+                    spareRows.add(row);
                 }
-            };
-            timer.schedule(DELAY);
+            }
         }
+
+        // ...and bind them to the ones that scrolled in
+        for (int i = first; i < last; i++) {
+            final ThreadPrimaryData data = rows.get(i);
+            ThreadListingRow row = threadRows.get(data.threadId);
+            if (row == null) {
+                row = spareRows.isEmpty() ? new ThreadListingRow(
+                        threadListingRowListener) : spareRows
+                        .remove(spareRows.size() - 1);
+                row.setPrimaryData(data);
+                final ThreadAdditionalData additional = additionalData
+                        .get(data.threadId);
+                if (additional != null) {
+                    row.updateRowInfo(additional);
+                }
+                threadRows.put(data.threadId, row);
+            }
+            if (rowPanel.getWidgetIndex(row) != i - first) {
+                rowPanel.insert(row, i - first);
+            }
+        }
+        firstRendered = first;
+        lastRendered = last;
+
+        if (rowPanel.getWidgetCount() > 0) {
+            // rows wrap to different heights, so the spacers use the average
+            // of all the rendered rows
+            final double measured = (double) rowPanel.getOffsetHeight()
+                    / rowPanel.getWidgetCount();
+            if (measured > 0) {
+                rowHeight = measured;
+            }
+        }
+        topSpacer.setHeight(Math.round(first * rowHeight) + "px");
+        bottomSpacer.setHeight(Math.round((rows.size() - last) * rowHeight)
+                + "px");
+    }
+
+    /**
+     * Fetches more rows once the unloaded part of the listing comes within the
+     * prefetch distance of the viewport. The distance grows with the scroll
+     * speed and the time a fetch takes, so fast scrolling doesn't run into the
+     * placeholders.
+     */
+    private void checkNewRowsNeeded() {
+        if (fetching || placeHolders.getWidgetCount() == 0) {
+            return;
+        }
+        final int viewportHeight = Window.getClientHeight();
+        if (Duration.currentTimeMillis() - lastScrollTime > SCROLL_IDLE_TIME) {
+            // the user has stopped scrolling
+            scrollSpeed = 0;
+        }
+        final double prefetchDistance = Math.max(viewportHeight, 2
+                * scrollSpeed * fetchLatency);
+        final double distance = getViewportTop(placeHolders.getElement())
+                - viewportHeight;
+        if (distance <= prefetchDistance) {
+            final int count = (int) Math.ceil(2 * prefetchDistance / rowHeight);
+            fetching = true;
+            fetchStarted = Duration.currentTimeMillis();
+            fetcher.fetchRows(Math.max(MIN_FETCH_COUNT,
+                    Math.min(count, MAX_FETCH_COUNT)));
+        }
+    }
+
+    private static double smooth(final double average, final double sample) {
+        return (1 - SMOOTHING) * average + SMOOTHING * sample;
     }
 
     public void removeThreadRow(final String threadId) {
-        remove(threadRows.get(threadId));
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i).threadId.equals(threadId)) {
+                rows.remove(i);
+                final ThreadListingRow row = threadRows.remove(threadId);
+                if (row != null) {
+                    rowPanel.remove(row);
+                    spareRows.add(row);
+                    lastRendered--;
+                } else if (i < firstRendered) {
+                    firstRendered--;
+                    lastRendered--;
+                }
+                break;
+            }
+        }
+        additionalData.remove(threadId);
+        scheduleUpdate();
     }
 
-    private static native boolean isElementInViewport(final Element el)
+    private static native double getViewportTop(final Element el)
     /*-{
-        return (
-            el.getBoundingClientRect().top <= ($wnd.innerHeight || $doc.documentElement.clientHeight)
-        );
+        return el.getBoundingClientRect().top;
     }-*/;
 
+    public void openActions(final String threadId, final VMenuBar actionMenu) {
+        final ThreadListingRow row = threadRows.get(threadId);
+        if (actionsRow != null && actionsRow != row) {
+            actionsRow.actionsReleased();
+        }
+        actionsRow = row;
+        if (row != null) {
+            row.openActions(actionMenu);
+        }
+    }
+
     public void refreshRows(final List<ThreadAdditionalData> rows) {
         for (ThreadAdditionalData data : rows) {
-            threadRows.get(data.threadId).updateRowInfo(data);
+            additionalData.put(data.threadId, data);
+            final ThreadListingRow row = threadRows.get(data.threadId);
+            if (row != null) {
+                row.updateRowInfo(data);
+            }
         }
     }
 }
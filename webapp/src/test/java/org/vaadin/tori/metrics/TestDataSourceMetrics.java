@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.tori.util.ManagedBeans;
+
+public class TestDataSourceMetrics {
+
+    private static final long MILLISECOND = 1000 * 1000;
+
+    private final MBeanServer server = ManagementFactory
+            .getPlatformMBeanServer();
+    private DataSourceMetrics metrics;
+
+    @Before
+    public void setup() {
+        metrics = DataSourceMetrics.get();
+    }
+
+    @After
+    public void tearDown() {
+        DataSourceMetrics.requestEnd("test");
+        DataSourceMetrics.shutdown();
+    }
+
+    private void request(final String method, final int calls) {
+        DataSourceMetrics.requestStart();
+        for (int i = 0; i < calls; i++) {
+            metrics.recordCall(method, MILLISECOND, false);
+        }
+        DataSourceMetrics.requestEnd("test");
+    }
+
+    @Test
+    public void countsCallsAndErrors() {
+        metrics.recordCall("getThread", 2 * MILLISECOND, false);
+        metrics.recordCall("getThread", 4 * MILLISECOND, true);
+        metrics.recordCall("getPosts", MILLISECOND, false);
+
+        assertEquals(2, metrics.getLatencies().get("getThread").getCount());
+        assertEquals(1, metrics.getLatencies().get("getPosts").getCount());
+        assertEquals(3.0, metrics.getLatencies().get("getThread")
+                .getMeanMillis(), 0.001);
+    }
+
+    @Test
+    public void countsCallsPerRequest() {
+        request("getThread", 1);
+        request("getPosts", 3);
+        // requests without any calls aren't counted
+        request("getPosts", 0);
+
+        assertEquals(2, metrics.getRequests());
+        assertEquals(2.0, metrics.getMeanCallsPerRequest(), 0.001);
+        assertEquals(3, metrics.getMaxCallsPerRequest());
+        assertEquals(0, metrics.getNPlusOneRequests());
+    }
+
+    @Test
+    public void detectsNPlusOne() {
+        request("getPostScore", metrics.getNPlusOneThreshold());
+        assertEquals(0, metrics.getNPlusOneRequests());
+
+        request("getPostScore", metrics.getNPlusOneThreshold() + 1);
+        assertEquals(1, metrics.getNPlusOneRequests());
+    }
+
+    @Test
+    public void reset() {
+        request("getThread", 2);
+        metrics.reset();
+        assertEquals(0, metrics.getRequests());
+        assertEquals(0, metrics.getMaxCallsPerRequest());
+        assertEquals(0, metrics.getLatencies().get("getThread").getCount());
+    }
+
+    @Test
+    public void registersDeploymentQualifiedNames() {
+        metrics.recordCall("getThread", MILLISECOND, false);
+        final ObjectName name = DataSourceMetrics.getObjectName("getThread");
+        assertEquals(ManagedBeans.DOMAIN, name.getDomain());
+        assertTrue(name.getKeyProperty("deployment") != null);
+        assertTrue(server.isRegistered(name));
+        assertTrue(server.isRegistered(DataSourceMetrics.getObjectName(null)));
+
+        DataSourceMetrics.shutdown();
+        assertFalse(server.isRegistered(name));
+        assertNull(DataSourceMetrics.getIfStarted());
+    }
+
+    @Test
+    public void leavesOtherBeansAlone() throws Exception {
+        final ObjectName name = DataSourceMetrics.getObjectName("getPosts");
+        final DataSourceMethodStats other = new DataSourceMethodStats(
+                "getPosts");
+        server.registerMBean(other, name);
+        try {
+            metrics.recordCall("getPosts", MILLISECOND, false);
+            // still the other bean, not the one the metrics recorded to
+            assertEquals(0L, server.getAttribute(name, "Calls"));
+            DataSourceMetrics.shutdown();
+            assertTrue(server.isRegistered(name));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
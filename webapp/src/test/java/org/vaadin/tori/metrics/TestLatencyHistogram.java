@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.tori.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+    private LatencyHistogram histogram;
+
+    @Before
+    public void setup() {
+        histogram = new LatencyHistogram();
+    }
+
+    private void recordMillis(final double millis) {
+        histogram.record((long) (millis * TimeUnit.MILLISECONDS.toNanos(1)));
+    }
+
+    private long[] counts(final long... first) {
+        final long[] result = new long[LatencyHistogram.getBucketBounds().length
+                + 1];
+        System.arraycopy(first, 0, result, 0, first.length);
+        return result;
+    }
+
+    @Test
+    public void boundsAreInclusive() {
+        recordMillis(0);
+        recordMillis(1);
+        recordMillis(1.001);
+        recordMillis(2);
+        recordMillis(2.5);
+        assertArrayEquals(counts(2, 2, 1), histogram.getBucketCounts());
+    }
+
+    @Test
+    public void slowestGoToUnboundedBucket() {
+        final long[] bounds = LatencyHistogram.getBucketBounds();
+        final long last = bounds[bounds.length - 1];
+        recordMillis(last);
+        recordMillis(last + 1);
+        recordMillis(10 * last);
+
+        final long[] expected = counts();
+        expected[bounds.length - 1] = 1;
+        expected[bounds.length] = 2;
+        assertArrayEquals(expected, histogram.getBucketCounts());
+    }
+
+    @Test
+    public void countTotalAndMax() {
+        recordMillis(3);
+        recordMillis(7);
+        recordMillis(5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(15),
+                histogram.getTotalNanos());
+        assertEquals(5.0, histogram.getMeanMillis(), 0.001);
+        assertEquals(7.0, histogram.getMaxMillis(), 0.001);
+    }
+
+    @Test
+    public void percentileIsBucketUpperBound() {
+        for (int i = 0; i < 95; i++) {
+            recordMillis(0.5);
+        }
+        for (int i = 0; i < 5; i++) {
+            recordMillis(40);
+        }
+        assertEquals(1.0, histogram.getPercentileMillis(50), 0);
+        assertEquals(1.0, histogram.getPercentileMillis(95), 0);
+        assertEquals(50.0, histogram.getPercentileMillis(99), 0);
+    }
+
+    @Test
+    public void percentileInUnboundedBucketIsMax() {
+        recordMillis(60000);
+        assertEquals(60000.0, histogram.getPercentileMillis(99), 0.001);
+    }
+
+    @Test
+    public void emptyHistogram() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getMeanMillis(), 0);
+        assertEquals(0.0, histogram.getPercentileMillis(95), 0);
+        assertArrayEquals(counts(), histogram.getBucketCounts());
+    }
+
+    @Test
+    public void reset() {
+        recordMillis(3);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getTotalNanos());
+        assertEquals(0.0, histogram.getMaxMillis(), 0);
+        assertArrayEquals(counts(), histogram.getBucketCounts());
+    }
+}